@@ -0,0 +1,61 @@
+package cs224n.bench;
+
+import cs224n.util.ConcurrentCounter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks ConcurrentCounter.incrementCount() and getCount() from four
+ * threads sharing one counter, on streams of Zipf-distributed words.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class ConcurrentCounterBenchmark {
+
+  static final int NUM_WORDS = 1 << 16;
+
+  @State(Scope.Benchmark)
+  public static class SharedCounter {
+    @Param({"10000"})
+    public int vocabularySize;
+
+    ConcurrentCounter<String> counter;
+    String[] words;
+
+    @Setup
+    public void setUp() {
+      SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, 1);
+      words = new String[NUM_WORDS];
+      for (int i = 0; i < NUM_WORDS; i++) {
+        words[i] = corpus.nextWord();
+      }
+      counter = new ConcurrentCounter<String>();
+      for (String word : words) {
+        counter.incrementCount(word, 1.0);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Position {
+    int next = (int) (Thread.currentThread().getId() * 7919);
+
+    String nextWord(SharedCounter shared) {
+      next = (next + 1) & (NUM_WORDS - 1);
+      return shared.words[next];
+    }
+  }
+
+  @Benchmark
+  public double incrementCount(SharedCounter shared, Position position) {
+    return shared.counter.incrementCount(position.nextWord(shared), 1.0);
+  }
+
+  @Benchmark
+  public double getCount(SharedCounter shared, Position position) {
+    return shared.counter.getCount(position.nextWord(shared));
+  }
+}
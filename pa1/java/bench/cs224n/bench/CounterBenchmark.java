@@ -0,0 +1,98 @@
+package cs224n.bench;
+
+import cs224n.util.Counter;
+import cs224n.util.ObjectDoubleCounter;
+import cs224n.util.PriorityQueue;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Counter.incrementCount() and getCount() on a stream of
+ * Zipf-distributed words, as when counting a corpus, against those of
+ * ObjectDoubleCounter, and the totals of both; and picking the ten
+ * largest counts with topK() against popping them from asPriorityQueue().
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CounterBenchmark {
+
+  static final int NUM_WORDS = 1 << 16;
+
+  @Param({"10000"})
+  public int vocabularySize;
+
+  private String[] words;
+  private Counter<String> counter;
+  private ObjectDoubleCounter<String> objectDoubleCounter;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, 1);
+    words = new String[NUM_WORDS];
+    for (int i = 0; i < NUM_WORDS; i++) {
+      words[i] = corpus.nextWord();
+    }
+    counter = new Counter<String>();
+    objectDoubleCounter = new ObjectDoubleCounter<String>();
+    for (String word : words) {
+      counter.incrementCount(word, 1.0);
+      objectDoubleCounter.incrementCount(word, 1.0);
+    }
+  }
+
+  private String nextWord() {
+    next = (next + 1) & (NUM_WORDS - 1);
+    return words[next];
+  }
+
+  @Benchmark
+  public void incrementCount() {
+    counter.incrementCount(nextWord(), 1.0);
+  }
+
+  @Benchmark
+  public double getCount() {
+    return counter.getCount(nextWord());
+  }
+
+  @Benchmark
+  public double totalCount() {
+    return counter.totalCount();
+  }
+
+  @Benchmark
+  public List<String> topK() {
+    return counter.topK(10);
+  }
+
+  @Benchmark
+  public List<String> priorityQueueTopTen() {
+    PriorityQueue<String> pq = counter.asPriorityQueue();
+    List<String> top = new ArrayList<String>(10);
+    while (top.size() < 10 && pq.hasNext()) {
+      top.add(pq.next());
+    }
+    return top;
+  }
+
+  @Benchmark
+  public void objectDoubleIncrementCount() {
+    objectDoubleCounter.incrementCount(nextWord(), 1.0);
+  }
+
+  @Benchmark
+  public double objectDoubleGetCount() {
+    return objectDoubleCounter.getCount(nextWord());
+  }
+
+  @Benchmark
+  public double objectDoubleTotalCount() {
+    return objectDoubleCounter.totalCount();
+  }
+}
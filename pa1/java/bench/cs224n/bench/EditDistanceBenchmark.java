@@ -0,0 +1,52 @@
+package cs224n.bench;
+
+import cs224n.util.EditDistance;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks EditDistance.getDistance() between synthetic sentences and
+ * shuffled copies of them, as in the word error rate of the Jumble
+ * evaluation, in full and bounded by a small distance.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EditDistanceBenchmark {
+
+  static final int NUM_PAIRS = 1000;
+
+  private EditDistance editDistance;
+  private List<List<String>> sentences;
+  private List<List<String>> shuffled;
+  private int pair;
+
+  @Setup
+  public void setUp() {
+    SyntheticCorpus corpus = new SyntheticCorpus(10000, 4);
+    Random random = new Random(4);
+    editDistance = new EditDistance();
+    sentences = corpus.nextSentences(NUM_PAIRS);
+    shuffled = new ArrayList<List<String>>(NUM_PAIRS);
+    for (List<String> sentence : sentences) {
+      List<String> copy = new ArrayList<String>(sentence);
+      Collections.shuffle(copy, random);
+      shuffled.add(copy);
+    }
+  }
+
+  @Benchmark
+  public double getDistance() {
+    pair = (pair + 1) % NUM_PAIRS;
+    return editDistance.getDistance(sentences.get(pair), shuffled.get(pair));
+  }
+
+  @Benchmark
+  public boolean isWithinDistance() {
+    pair = (pair + 1) % NUM_PAIRS;
+    return editDistance.isWithinDistance(sentences.get(pair), shuffled.get(pair), 3);
+  }
+}
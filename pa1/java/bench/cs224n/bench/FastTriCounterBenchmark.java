@@ -0,0 +1,172 @@
+package cs224n.bench;
+
+import cs224n.util.FastTriCounter;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks FastTriCounter, counting and frozen, against the packed-key
+ * NgramCounter on the trigrams of a synthetic corpus: incrementing and
+ * looking up a trigram, summing the counts of a context's successors, and
+ * discounting every count in place.  Setup prints the memory each layout
+ * of FastTriCounter takes.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FastTriCounterBenchmark {
+
+  @Param({"20000"})
+  public int numSentences;
+
+  @Param({"10000"})
+  public int vocabularySize;
+
+  private int[] firsts;
+  private int[] seconds;
+  private int[] thirds;
+  private int numTrigrams;
+  private FastTriCounter counting;
+  private FastTriCounter frozen;
+  private NgramCounter ngramCounter;
+  private long[] sortedKeys;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    List<List<String>> sentences = new SyntheticCorpus(vocabularySize, 2).nextSentences(numSentences);
+    counting = new FastTriCounter();
+    frozen = new FastTriCounter(counting.getIndex());
+    ngramCounter = new NgramCounter(3, counting.getIndex());
+    int start = counting.intern("<S>");
+    int stop = counting.intern("</S>");
+    int size = 0;
+    for (List<String> sentence : sentences) {
+      size += sentence.size() + 1;
+    }
+    firsts = new int[size];
+    seconds = new int[size];
+    thirds = new int[size];
+    for (List<String> sentence : sentences) {
+      int first = start;
+      int second = start;
+      for (int i = 0; i <= sentence.size(); i++) {
+        int third = (i == sentence.size()) ? stop : counting.intern(sentence.get(i));
+        firsts[numTrigrams] = first;
+        seconds[numTrigrams] = second;
+        thirds[numTrigrams] = third;
+        numTrigrams++;
+        counting.incrementCount(first, second, third, 1.0);
+        frozen.incrementCount(first, second, third, 1.0);
+        ngramCounter.incrementCount(NgramCounter.pack(first, second, third), 1.0);
+        first = second;
+        second = third;
+      }
+    }
+    long countingBytes = frozen.getMemoryUsage();
+    frozen.freeze();
+    sortedKeys = ngramCounter.sortedKeys();
+    System.out.printf("%n%d trigrams in %d contexts: %.1f bytes per trigram counting, %.1f frozen%n",
+                      frozen.size(), frozen.getNumContexts(), (double) countingBytes / frozen.size(),
+                      (double) frozen.getMemoryUsage() / frozen.size());
+  }
+
+  private int nextTrigram() {
+    next = (next + 1 == numTrigrams) ? 0 : next + 1;
+    return next;
+  }
+
+  @Benchmark
+  public double incrementCount() {
+    int i = nextTrigram();
+    return counting.incrementCount(firsts[i], seconds[i], thirds[i], 1.0);
+  }
+
+  @Benchmark
+  public void ngramCounterIncrementCount() {
+    int i = nextTrigram();
+    ngramCounter.incrementCount(NgramCounter.pack(firsts[i], seconds[i], thirds[i]), 1.0);
+  }
+
+  @Benchmark
+  public double getCount() {
+    int i = nextTrigram();
+    return counting.getCount(firsts[i], seconds[i], thirds[i]);
+  }
+
+  @Benchmark
+  public double frozenGetCount() {
+    int i = nextTrigram();
+    return frozen.getCount(firsts[i], seconds[i], thirds[i]);
+  }
+
+  @Benchmark
+  public double ngramCounterGetCount() {
+    int i = nextTrigram();
+    return ngramCounter.getCount(NgramCounter.pack(firsts[i], seconds[i], thirds[i]));
+  }
+
+  @Benchmark
+  public double frozenSuccessors() {
+    int i = nextTrigram();
+    FastTriCounter.Cursor cursor = frozen.cursor(firsts[i], seconds[i]);
+    double sum = 0.0;
+    while (cursor.advance()) {
+      sum += cursor.count();
+    }
+    return sum;
+  }
+
+  /**
+   * The successors of a context in NgramCounter, as the trigram models
+   * find them: a range of the sorted keys, each of whose counts is then
+   * looked up.
+   */
+  @Benchmark
+  public double ngramCounterSuccessors() {
+    int i = nextTrigram();
+    long context = NgramCounter.pack(firsts[i], seconds[i]);
+    int end = NgramCounter.findContext(sortedKeys, context + 1);
+    double sum = 0.0;
+    for (int k = NgramCounter.findContext(sortedKeys, context); k < end; k++) {
+      sum += ngramCounter.getCount(sortedKeys[k]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double frozenDiscount() {
+    return frozen.discount(0.0);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double countingDiscount() {
+    return counting.discount(0.0);
+  }
+
+  /**
+   * Discounting NgramCounter in place goes through its cursor.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double ngramCounterDiscount() {
+    LongCounter.Cursor cursor = ngramCounter.cursor();
+    double removed = 0.0;
+    while (cursor.advance()) {
+      double taken = Math.min(0.0, cursor.count());
+      cursor.setCount(cursor.count() - taken);
+      removed += taken;
+    }
+    return removed;
+  }
+}
@@ -0,0 +1,62 @@
+package cs224n.bench;
+
+import cs224n.langmodel.LanguageModel;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks scoring by each model class, trained on a synthetic corpus:
+ * getWordProbability() of successive words of held-out sentences, and
+ * getSentenceProbability() of successive held-out sentences.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+  static final int NUM_TEST_SENTENCES = 1000;
+
+  @Param({"EmpiricalUnigramLanguageModel", "EmpiricalUnigramModel", "GoodTuringUnigramModel",
+          "EmpiricalBigramModel", "GoodTuringBigramModel", "AbsoluteDiscountedBigramModel",
+          "EmpiricalTrigramModel", "AbsoluteDiscountedTrigramModel", "KneserNeyModel"})
+  public String model;
+
+  @Param({"20000"})
+  public int numSentences;
+
+  @Param({"10000"})
+  public int vocabularySize;
+
+  private LanguageModel languageModel;
+  private List<List<String>> testSentences;
+  private int sentence;
+  private int index;
+
+  @Setup
+  public void setUp() throws Exception {
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, 3);
+    languageModel = (LanguageModel) Class.forName("cs224n.langmodel." + model).newInstance();
+    languageModel.train(corpus.nextSentences(numSentences));
+    testSentences = corpus.nextSentences(NUM_TEST_SENTENCES);
+  }
+
+  @Benchmark
+  public double getWordProbability() {
+    List<String> words = testSentences.get(sentence);
+    double probability = languageModel.getWordProbability(words, index);
+    if (++index > words.size()) {
+      index = 0;
+      sentence = (sentence + 1) % testSentences.size();
+    }
+    return probability;
+  }
+
+  @Benchmark
+  public double getSentenceProbability() {
+    sentence = (sentence + 1) % testSentences.size();
+    return languageModel.getSentenceProbability(testSentences.get(sentence));
+  }
+}
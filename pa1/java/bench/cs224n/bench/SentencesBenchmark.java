@@ -0,0 +1,40 @@
+package cs224n.bench;
+
+import cs224n.util.Sentences;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks iterating over a Sentences file written from a synthetic
+ * corpus.  Each invocation reads the whole file.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SentencesBenchmark {
+
+  @Param({"20000"})
+  public int numSentences;
+
+  private Sentences sentences;
+
+  @Setup
+  public void setUp() throws Exception {
+    SyntheticCorpus corpus = new SyntheticCorpus(10000, 5);
+    File file = SyntheticCorpus.writeTempFile(corpus.nextSentences(numSentences));
+    sentences = new Sentences(file.getPath());
+  }
+
+  @Benchmark
+  public int iterate() {
+    int numWords = 0;
+    for (List<String> sentence : sentences) {
+      numWords += sentence.size();
+    }
+    return numWords;
+  }
+}
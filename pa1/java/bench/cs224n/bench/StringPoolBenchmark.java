@@ -0,0 +1,61 @@
+package cs224n.bench;
+
+import cs224n.util.Index;
+import cs224n.util.StringPool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks looking up the ids of Zipf-distributed words in a StringPool
+ * against an Index, as when mapping a sentence to word ids.  The words
+ * looked up are copies of the pooled ones, as read from a corpus, so
+ * neither can match them by identity.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class StringPoolBenchmark {
+
+  static final int NUM_WORDS = 1 << 16;
+
+  @Param({"100000"})
+  public int vocabularySize;
+
+  private String[] words;
+  private StringPool pool;
+  private Index<String> index;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, 1);
+    pool = new StringPool();
+    index = new Index<String>();
+    for (int i = 0; i < vocabularySize; i++) {
+      pool.add("w" + i);
+      index.add("w" + i);
+    }
+    pool.trimToSize();
+    words = new String[NUM_WORDS];
+    for (int i = 0; i < NUM_WORDS; i++) {
+      words[i] = new String(corpus.nextWord());
+    }
+  }
+
+  private String nextWord() {
+    next = (next + 1) & (NUM_WORDS - 1);
+    return words[next];
+  }
+
+  @Benchmark
+  public int poolIndexOf() {
+    return pool.indexOf(nextWord());
+  }
+
+  @Benchmark
+  public int indexIndexOf() {
+    return index.indexOf(nextWord());
+  }
+}
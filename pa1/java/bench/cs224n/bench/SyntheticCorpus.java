@@ -0,0 +1,101 @@
+package cs224n.bench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates corpora shaped like the training data, for benchmarks which
+ * should not depend on a data directory.  Words are drawn from a Zipf
+ * distribution over a vocabulary of "w0", "w1", ... (so "w0" is the
+ * commonest word, as in the anonymized Europarl data), and sentence lengths
+ * are uniform between MIN_LENGTH and MAX_LENGTH.  The same seed always
+ * gives the same corpus.
+ */
+public class SyntheticCorpus {
+
+  static final int MIN_LENGTH = 5;
+  static final int MAX_LENGTH = 40;
+  static final double ZIPF_EXPONENT = 1.1;
+
+  private final String[] words;
+  private final double[] cumulativeWeights;
+  private final Random random;
+
+  /**
+   * Draws a word: the first word whose cumulative weight exceeds a uniform
+   * draw, found by binary search.
+   */
+  public String nextWord() {
+    double draw = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+    int low = 0;
+    int high = cumulativeWeights.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (cumulativeWeights[middle] <= draw) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return words[low];
+  }
+
+  public List<String> nextSentence() {
+    int length = MIN_LENGTH + random.nextInt(MAX_LENGTH - MIN_LENGTH + 1);
+    List<String> sentence = new ArrayList<String>(length);
+    for (int i = 0; i < length; i++) {
+      sentence.add(nextWord());
+    }
+    return sentence;
+  }
+
+  public List<List<String>> nextSentences(int numSentences) {
+    List<List<String>> sentences = new ArrayList<List<String>>(numSentences);
+    for (int i = 0; i < numSentences; i++) {
+      sentences.add(nextSentence());
+    }
+    return sentences;
+  }
+
+  /**
+   * Writes sentences one per line, words separated by spaces, to a
+   * temporary file which is deleted when the JVM exits.
+   */
+  public static File writeTempFile(List<List<String>> sentences) throws IOException {
+    File file = File.createTempFile("corpus", ".sent.txt");
+    file.deleteOnExit();
+    new File(file.getPath() + ".lines").deleteOnExit();
+    Writer out = new BufferedWriter(new FileWriter(file));
+    try {
+      for (List<String> sentence : sentences) {
+        for (int i = 0; i < sentence.size(); i++) {
+          if (i > 0) out.write(' ');
+          out.write(sentence.get(i));
+        }
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  public SyntheticCorpus(int vocabularySize, long seed) {
+    words = new String[vocabularySize];
+    cumulativeWeights = new double[vocabularySize];
+    double total = 0.0;
+    for (int rank = 0; rank < vocabularySize; rank++) {
+      words[rank] = "w" + rank;
+      total += 1.0 / Math.pow(rank + 1, ZIPF_EXPONENT);
+      cumulativeWeights[rank] = total;
+    }
+    random = new Random(seed);
+  }
+
+  public static void main(String[] args) {
+    SyntheticCorpus corpus = new SyntheticCorpus(1000, 0);
+    for (List<String> sentence : corpus.nextSentences(5)) {
+      System.out.println(sentence);
+    }
+  }
+}
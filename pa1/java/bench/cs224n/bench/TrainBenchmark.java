@@ -0,0 +1,44 @@
+package cs224n.bench;
+
+import cs224n.langmodel.LanguageModel;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks training models, by default the trigram models, on a synthetic
+ * corpus.  Each invocation trains a new model, so it is timed as a single
+ * shot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class TrainBenchmark {
+
+  @Param({"EmpiricalTrigramModel", "AbsoluteDiscountedTrigramModel"})
+  public String model;
+
+  @Param({"20000"})
+  public int numSentences;
+
+  @Param({"10000"})
+  public int vocabularySize;
+
+  private List<List<String>> sentences;
+
+  @Setup
+  public void setUp() {
+    sentences = new SyntheticCorpus(vocabularySize, 2).nextSentences(numSentences);
+  }
+
+  @Benchmark
+  public LanguageModel train() throws Exception {
+    LanguageModel languageModel = (LanguageModel) Class.forName("cs224n.langmodel." + model).newInstance();
+    languageModel.train(sentences);
+    return languageModel;
+  }
+}
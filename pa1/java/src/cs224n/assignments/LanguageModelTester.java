@@ -5,6 +5,7 @@ import cs224n.langmodel.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 
@@ -25,16 +26,21 @@ public class LanguageModelTester {
    */
   static double computePerplexity(LanguageModel languageModel, 
                                   Collection<List<String>> sentences) {
-    double logProbability = 0.0;
-    double numSymbols = 0.0;
-    for (List<String> sentence : sentences) {
-      logProbability += 
-        Math.log(languageModel.getSentenceProbability(sentence)) / 
-        Math.log(2.0);
-      numSymbols += sentence.size();
-      //      System.out.println("logp=" + logProbability + " size=" + numSymbols);
-    }
-    double avgLogProbability = logProbability / numSymbols;
+    return computePerplexity(languageModel, sentences, null);
+  }
+
+  /**
+   * Computes the perplexity as above, scoring the sentences on the threads
+   * of the given executor (or on the calling thread if it is null).  The
+   * sentence log probabilities are summed in corpus order, so the result is
+   * identical to that of a serial run.
+   */
+  static double computePerplexity(LanguageModel languageModel, 
+                                  Collection<List<String>> sentences,
+                                  ExecutorService executor) {
+    PerplexityEvaluation evaluation = new PerplexityEvaluation(languageModel);
+    evaluation.run(sentences, executor);
+    double avgLogProbability = evaluation.logProbability / evaluation.numSymbols;
     //    System.out.println("avglogp=" + avgLogProbability);
     double perplexity = Math.pow(0.5, avgLogProbability);
     //    System.out.println("perplexity=" + perplexity);
@@ -60,53 +66,206 @@ public class LanguageModelTester {
   static Pair<Double,Double> computeWordErrorRate(LanguageModel languageModel, 
 						  List<JumbleProblem> jumbleProblems,
 						  boolean showGuesses) {
-    double totalDistance = 0.0;
-    double totalWords = 0.0;
-    double totalWER = 0.0;
-    int absoluteCorrect = 0;
-    EditDistance editDistance = new EditDistance();
+    return computeWordErrorRate(languageModel, jumbleProblems, showGuesses, null);
+  }
 
+  /**
+   * Computes the word error rate as above, solving the problems on the
+   * threads of the given executor (or on the calling thread if it is null).
+   * Solutions are tallied (and printed) in problem order, so the result is
+   * identical to that of a serial run.
+   */
+  static Pair<Double,Double> computeWordErrorRate(LanguageModel languageModel, 
+						  List<JumbleProblem> jumbleProblems,
+						  boolean showGuesses,
+						  ExecutorService executor) {
     if( showGuesses ) System.out.println("***Rebuilt Enron Emails***");
-    // Loop over each jumbled sentence.
-    for (JumbleProblem jProblem : jumbleProblems) {
-      List<String> correctSentence = jProblem.getCorrectSentence();
-      List<String> bestGuess = null;
-      double bestScore = Double.NEGATIVE_INFINITY;
-      double numWithBestScores = 0.0;
-      double distanceForBestScores = 0.0;
-      for (List<String> guess : jProblem.getNBestSentences()) {
-        double score = languageModel.getSentenceProbability(guess);
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (score == bestScore) {
-          numWithBestScores += 1.0;
-          distanceForBestScores += distance;
+    WordErrorRateEvaluation evaluation = 
+      new WordErrorRateEvaluation(languageModel, showGuesses);
+    evaluation.run(jumbleProblems, executor);
+    if( showGuesses ) System.out.println("******");
+
+    //    return totalDistance / totalWords;
+    return new Pair<Double,Double>(evaluation.totalWER / (double)jumbleProblems.size(), 
+				   (double)evaluation.absoluteCorrect / (double)jumbleProblems.size());
+  }
+
+  /**
+   * Evaluates a stream of items in chunks.  Each chunk is evaluated either
+   * inline or as a task on an executor, and the results are reduced on the
+   * calling thread in the order the chunks were read, so any floating point
+   * sums come out exactly as they would serially.  Only a few chunks per
+   * processor are in flight at once, so a disk-backed collection is never
+   * held in memory in full.
+   */
+  static abstract class ChunkedEvaluation<T, R> {
+
+    static final int CHUNK_SIZE = 256;
+    static final int MAX_PENDING_CHUNKS = 
+      4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Evaluates one chunk.  This may run on any thread.
+     */
+    abstract R evaluate(List<T> chunk);
+
+    /**
+     * Folds the result of one chunk into the totals.  This always runs on
+     * the calling thread, in chunk order.
+     */
+    abstract void reduce(List<T> chunk, R result);
+
+    void run(Iterable<T> items, ExecutorService executor) {
+      LinkedList<Pair<List<T>, Future<R>>> pending = 
+        new LinkedList<Pair<List<T>, Future<R>>>();
+      List<T> chunk = new ArrayList<T>(CHUNK_SIZE);
+      Iterator<T> iterator = items.iterator();
+      while (iterator.hasNext()) {
+        chunk.add(iterator.next());
+        if (chunk.size() == CHUNK_SIZE || !iterator.hasNext()) {
+          if (executor == null) {
+            reduce(chunk, evaluate(chunk));
+          } else {
+            pending.addLast(new Pair<List<T>, Future<R>>(chunk, submit(chunk, executor)));
+            if (pending.size() >= MAX_PENDING_CHUNKS) {
+              reduce(pending.removeFirst());
+            }
+          }
+          chunk = new ArrayList<T>(CHUNK_SIZE);
         }
-        if (score > bestScore || bestGuess == null) {
-          bestScore = score;
-          bestGuess = guess;
-          distanceForBestScores = distance;
-          numWithBestScores = 1.0;
+      }
+      while (!pending.isEmpty()) {
+        reduce(pending.removeFirst());
+      }
+    }
+
+    private Future<R> submit(final List<T> chunk, ExecutorService executor) {
+      return executor.submit(new Callable<R>() {
+        public R call() {
+          return evaluate(chunk);
         }
+      });
+    }
+
+    private void reduce(Pair<List<T>, Future<R>> task) {
+      try {
+        reduce(task.getFirst(), task.getSecond().get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException)
+          throw (RuntimeException) e.getCause();
+        throw new RuntimeException(e.getCause());
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
       }
-      // Debugging, showing the best guess sentences
-      if( showGuesses ) {
-	for( String token : bestGuess ) System.out.print(token + " ");
-	System.out.println();
+    }
+  }
+
+  static class PerplexityEvaluation 
+    extends ChunkedEvaluation<List<String>, double[]> {
+
+    private final LanguageModel languageModel;
+    double logProbability = 0.0;
+    double numSymbols = 0.0;
+
+    PerplexityEvaluation(LanguageModel languageModel) {
+      this.languageModel = languageModel;
+    }
+
+    double[] evaluate(List<List<String>> sentences) {
+      double[] logProbabilities = new double[sentences.size()];
+      for (int i = 0; i < logProbabilities.length; i++) {
+        logProbabilities[i] = languageModel.getSentenceLogProbability(sentences.get(i));
       }
-      // If exactly correct
-      if( distanceForBestScores == 0 ) {
-	absoluteCorrect++;
+      return logProbabilities;
+    }
+
+    void reduce(List<List<String>> sentences, double[] logProbabilities) {
+      for (int i = 0; i < logProbabilities.length; i++) {
+        logProbability += logProbabilities[i] / Math.log(2.0);
+        numSymbols += sentences.get(i).size();
+        //      System.out.println("logp=" + logProbability + " size=" + numSymbols);
       }
-      totalDistance += distanceForBestScores / numWithBestScores;
-      totalWords += correctSentence.size();
-      totalWER += distanceForBestScores / (numWithBestScores * correctSentence.size());
-    } // end jumbleproblem loop
+    }
+  }
 
-    if( showGuesses ) System.out.println("******");
+  /**
+   * The language model's pick from the candidates of one Jumble problem.
+   */
+  static class JumbleSolution {
+    List<String> bestGuess = null;
+    double numWithBestScores = 0.0;
+    double distanceForBestScores = 0.0;
+  }
 
-    //    return totalDistance / totalWords;
-    return new Pair<Double,Double>(totalWER / (double)jumbleProblems.size(), 
-				   (double)absoluteCorrect / (double)jumbleProblems.size());
+  static class WordErrorRateEvaluation 
+    extends ChunkedEvaluation<JumbleProblem, List<JumbleSolution>> {
+
+    private final LanguageModel languageModel;
+    private final boolean showGuesses;
+    private final ThreadLocal<EditDistance> editDistances = 
+      new ThreadLocal<EditDistance>() {
+        protected EditDistance initialValue() {
+          return new EditDistance();
+        }
+      };
+    double totalDistance = 0.0;
+    double totalWords = 0.0;
+    double totalWER = 0.0;
+    int absoluteCorrect = 0;
+
+    WordErrorRateEvaluation(LanguageModel languageModel, boolean showGuesses) {
+      this.languageModel = languageModel;
+      this.showGuesses = showGuesses;
+    }
+
+    List<JumbleSolution> evaluate(List<JumbleProblem> jumbleProblems) {
+      EditDistance editDistance = editDistances.get();
+      List<JumbleSolution> solutions = new ArrayList<JumbleSolution>(jumbleProblems.size());
+      for (JumbleProblem jProblem : jumbleProblems) {
+        List<String> correctSentence = jProblem.getCorrectSentence();
+        JumbleSolution solution = new JumbleSolution();
+        double bestScore = Double.NEGATIVE_INFINITY;
+        List<List<String>> guesses = jProblem.getNBestSentences();
+        SentenceScores scores = languageModel.scoreNBestList(guesses);
+        for (int i = 0; i < guesses.size(); i++) {
+          List<String> guess = guesses.get(i);
+          double score = scores.getSentenceLogProbability(i);
+          double distance = editDistance.getDistance(correctSentence, guess);
+          if (score == bestScore) {
+            solution.numWithBestScores += 1.0;
+            solution.distanceForBestScores += distance;
+          }
+          if (score > bestScore || solution.bestGuess == null) {
+            bestScore = score;
+            solution.bestGuess = guess;
+            solution.distanceForBestScores = distance;
+            solution.numWithBestScores = 1.0;
+          }
+        }
+        solutions.add(solution);
+      }
+      return solutions;
+    }
+
+    void reduce(List<JumbleProblem> jumbleProblems, List<JumbleSolution> solutions) {
+      for (int i = 0; i < solutions.size(); i++) {
+        List<String> correctSentence = jumbleProblems.get(i).getCorrectSentence();
+        JumbleSolution solution = solutions.get(i);
+        // Debugging, showing the best guess sentences
+        if( showGuesses ) {
+          for( String token : solution.bestGuess ) System.out.print(token + " ");
+          System.out.println();
+        }
+        // If exactly correct
+        if( solution.distanceForBestScores == 0 ) {
+          absoluteCorrect++;
+        }
+        totalDistance += solution.distanceForBestScores / solution.numWithBestScores;
+        totalWords += correctSentence.size();
+        totalWER += solution.distanceForBestScores / 
+          (solution.numWithBestScores * correctSentence.size());
+      }
+    }
   }
 
   /**
@@ -181,33 +340,143 @@ public class LanguageModelTester {
 	private static void evaluateContext(LanguageModel model, String contextString){
 		List<String> context = new ArrayList(Arrays.asList(contextString.split("\\s+")));
 		System.err.println("Evaluating context " + context);
-		Counter<String> wordProbabilities = new Counter<String>();
-        Collection<String> vocabulary = model.getVocabulary();
-		for (String token : vocabulary) {
-			context.add(token);
-			int lastIndex = context.size() - 1;
-			wordProbabilities.incrementCount(token, model.getWordProbability(context, lastIndex));
-			context.remove(lastIndex);
-		}
-		cs224n.util.PriorityQueue<String> pq = wordProbabilities.asPriorityQueue();
+		List<String> vocab = new ArrayList<String>(model.getVocabulary());
+		double[] probabilities = model.getNextWordProbabilities(context, null);
 		NumberFormat nf = new DecimalFormat("0.0000");
 		System.err.println("Most likely completions:");
-		for(int i=0; i<5 && pq.hasNext(); i++) {
-			double probability = pq.getPriority();
-			System.err.printf("  %-20s",pq.next());
-			System.err.println(nf.format(probability));
+		for (int word : topWords(probabilities, vocab.size(), 5)) {
+			System.err.printf("  %-20s",vocab.get(word));
+			System.err.println(nf.format(probabilities[word]));
 		}
 		System.err.println("Random completions:");
-		List<String> vocab = new ArrayList<String>(wordProbabilities.keySet());
 		for(int i=0; i<5; i++) {
-			String word = vocab.get((int)(Math.random()*vocab.size()));
-			System.err.printf("  %-20s",word);
-			System.err.println(nf.format(wordProbabilities.getCount(word)));
+			int word = model.getRandom().nextInt(vocab.size());
+			System.err.printf("  %-20s",vocab.get(word));
+			System.err.println(nf.format(probabilities[word]));
 		}
 	}
 
+	/**
+	 * Returns the indices of the k largest of probabilities[0, size), most
+	 * probable first, in one pass.
+	 */
+	static int[] topWords(double[] probabilities, int size, int k) {
+		int[] top = new int[Math.min(k, size)];
+		if (top.length == 0) return top;
+		int found = 0;
+		for (int word = 0; word < size; word++) {
+			double probability = probabilities[word];
+			if (found == top.length && !(probability > probabilities[top[found - 1]])) {
+				continue;
+			}
+			int i = (found < top.length) ? found++ : found - 1;
+			while (i > 0 && probability > probabilities[top[i - 1]]) {
+				top[i] = top[i - 1];
+				i--;
+			}
+			top[i] = word;
+		}
+		return top;
+	}
+
   // =======================================================================
 
+  /**
+   * Writes the model an n-gram model would train to from a count file
+   * straight to a model file, first counting the training sentences into
+   * the count file on disk if it does not exist, so that the n-grams are
+   * never all in the heap.  Returns false, with a warning for n-gram
+   * models, if the model cannot be written this way, and must be trained.
+   */
+  static boolean writeFromCounts(LanguageModel model, Collection<List<String>> sentences, File countFile,
+                                 String modelFile) throws IOException {
+    if (!(model instanceof UnigramModel || model instanceof BigramModel ||
+          model instanceof TrigramModel)) {
+      return false;
+    }
+    if (!model.canWriteFromCounts()) {
+      System.out.print("\nWARNING: " + model.getClass().getName() +
+                       " cannot be written from a count file; training in the heap ... ");
+      return false;
+    }
+    if (!countFile.exists()) {
+      NgramCounts.countToFile(sentences, countFile, null,
+                              ExternalNgramCounter.DEFAULT_BUFFER_SIZE, 2, 3);
+    }
+    NgramCountFile counts = new NgramCountFile(countFile);
+    try {
+      MappedNgramModel.Writer.write(model, counts, modelFile);
+      return true;
+    } finally {
+      counts.close();
+    }
+  }
+
+  /**
+   * Trains an n-gram model from a count file, first counting the training
+   * sentences into it on disk if it does not exist.  Other models are
+   * trained from the sentences.
+   */
+  static void train(LanguageModel model, Collection<List<String>> sentences, File countFile)
+    throws IOException {
+    if (!(model instanceof UnigramModel || model instanceof BigramModel ||
+          model instanceof TrigramModel)) {
+      model.train(sentences);
+      return;
+    }
+    if (!countFile.exists()) {
+      NgramCounts.countToFile(sentences, countFile, null,
+                              ExternalNgramCounter.DEFAULT_BUFFER_SIZE, 2, 3);
+    }
+    NgramCounts counts = NgramCounts.read(countFile);
+    if (model instanceof UnigramModel) {
+      ((UnigramModel) model).train(counts);
+    } else if (model instanceof BigramModel) {
+      ((BigramModel) model).train(counts);
+    } else {
+      ((TrigramModel) model).train(counts);
+    }
+  }
+
+  /**
+   * Writes a trained n-gram model both plainly and compressed (see
+   * MappedNgramModel.Writer.writeCompressed()), and reports the size of
+   * each file and the test set perplexity of the model before and after
+   * compression.  The compressed model is written to path, or to a
+   * temporary file if that is null.
+   */
+  static void reportCompression(LanguageModel model, Collection<List<String>> testSentences,
+                                double pruningThreshold, String path, ExecutorService executor)
+    throws IOException {
+    File plainFile = File.createTempFile("model", ".bin");
+    plainFile.deleteOnExit();
+    File compressedFile;
+    if (path != null) {
+      compressedFile = new File(path);
+    } else {
+      compressedFile = File.createTempFile("model", ".compressed.bin");
+      compressedFile.deleteOnExit();
+    }
+    MappedNgramModel.Writer.write(model, plainFile.getPath());
+    MappedNgramModel.Writer.writeCompressed(model, compressedFile.getPath(), pruningThreshold);
+    MappedNgramModel compressed = new MappedNgramModel(compressedFile.getPath());
+
+    NumberFormat nf = new DecimalFormat("0.0000");
+    System.out.println("Compressing model with pruning threshold " + pruningThreshold + " ... ");
+    System.out.printf("%-30s%d bytes%n", "  Plain model file: ", plainFile.length());
+    System.out.printf("%-30s%d bytes (%.1fx smaller)%n", "  Compressed model file: ", 
+                      compressedFile.length(), (double) plainFile.length() / compressedFile.length());
+    System.out.printf("%-30s","  Perplexity before: ");
+    System.out.println(nf.format(computePerplexity(model, testSentences, executor)));
+    System.out.printf("%-30s","  Perplexity after: ");
+    System.out.println(nf.format(computePerplexity(compressed, testSentences, executor)));
+    System.out.println();
+    if (path == null) {
+      compressedFile.delete();
+    }
+    plainFile.delete();
+  }
+
   /**
    * The main method loads language model training, validation, and test
    * data files, along with files containing a set of jumbled sentences from
@@ -243,6 +512,15 @@ public class LanguageModelTester {
     options.put("-baselines", "true");  // compute WER baselines?
     options.put("-generate",  "true");  // generate some sentences?
     options.put("-check",     "true");  // check probabilities sum to 1
+    options.put("-lmfile",    null);  // binary model file to load, or to write after training (not for KneserNeyModel)
+    options.put("-counts",    null);  // n-gram count file to train from (or to write -lmfile from), counted on disk if missing (not for KneserNeyModel)
+    options.put("-order",     null);  // order of a KneserNeyModel (1 to 5)
+    options.put("-seed",      null);  // seed for generation and random check contexts
+    options.put("-lmcache",   null);  // entries in the model's cache of context states (0 = none)
+    options.put("-compress",  null);  // pruning threshold; report the model's size and perplexity compressed (not for KneserNeyModel)
+    options.put("-compressfile", null);  // file to keep the compressed model in
+    options.put("-update",    null);  // sentence file (in -data) to fold into the trained model
+    options.put("-threads",   String.valueOf(Runtime.getRuntime().availableProcessors()));  // training and evaluation threads (1 = serial)
 
     // let command-line options supersede defaults .........................
     options.putAll(CommandLineUtils.simpleCommandLineParser(args));
@@ -281,25 +559,91 @@ public class LanguageModelTester {
       }
     }
     
-    // construct model, using reflection ...................................
+    int threads = Integer.parseInt(options.get("-threads"));
+    NgramCounts.setDefaultThreads(threads);
+
+    // load a binary model, or construct one using reflection ..............
     System.out.println();
     LanguageModel model;
-    try {
-      @SuppressWarnings("unchecked")
-      Class modelClass = Class.forName(options.get("-model"));
-      model = (LanguageModel) modelClass.newInstance();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
-    System.out.println("Created model: " + model);
-
-    // train model .........................................................
-    System.out.print("Training model" +
-                     // trainSentences.size() is slow, because disk-backed!!!
-                     // " on " + trainSentences.size() + " sentences" +
-                     " from " + trainFile + " ... ");
-    model.train(trainSentences);
-    System.out.println("done\n");
+    String modelFile = options.get("-lmfile");
+    if (modelFile != null && new File(modelFile).exists()) {
+      long start = System.currentTimeMillis();
+      model = new MappedNgramModel(modelFile);
+      System.out.println("Loaded model from " + modelFile + " in " + 
+                         (System.currentTimeMillis() - start) + " ms\n");
+    } else {
+      try {
+        @SuppressWarnings("unchecked")
+        Class modelClass = Class.forName(options.get("-model"));
+        model = (LanguageModel) modelClass.newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      if (options.get("-order") != null && model instanceof KneserNeyModel) {
+        ((KneserNeyModel) model).setOrder(Integer.parseInt(options.get("-order")));
+      }
+      System.out.println("Created model: " + model);
+      if (!MappedNgramModel.Writer.canWrite(model)) {
+        // model files, count files and compression take only the unigram,
+        // bigram and trigram models; a KneserNeyModel lives in the heap
+        for (String option : new String[] { "-lmfile", "-counts", "-compress" }) {
+          if (options.get(option) != null) {
+            System.out.println("WARNING: " + option + " needs a unigram, bigram or trigram model; ignoring it for " +
+                               model.getClass().getName());
+            options.put(option, null);
+          }
+        }
+        modelFile = null;
+      }
+
+      // train model .......................................................
+      System.out.print("Training model" +
+                       // trainSentences.size() is slow, because disk-backed!!!
+                       // " on " + trainSentences.size() + " sentences" +
+                       " from " + trainFile + " ... ");
+      String countFile = options.get("-counts");
+      if (countFile == null) {
+        model.train(trainSentences);
+      } else if (modelFile != null && writeFromCounts(model, trainSentences, new File(countFile), modelFile)) {
+        // the n-grams were streamed from the count file into the model file
+        model = new MappedNgramModel(modelFile);
+        modelFile = null;
+      } else {
+        train(model, trainSentences, new File(countFile));
+      }
+      System.out.println("done\n");
+
+      if (modelFile != null) {
+        System.out.println("Writing model to " + modelFile + "\n");
+        MappedNgramModel.Writer.write(model, modelFile);
+      }
+    }
+
+    // fold more sentences into the model ...................................
+    if (options.get("-update") != null) {
+      String updateFile = dataPath + "/" + options.get("-update");
+      if (model.isUpdatable()) {
+        System.out.print("Updating model with sentences from " + updateFile + " ... ");
+        long start = System.currentTimeMillis();
+        model.update(Sentences.Reader.readSentences(updateFile));
+        System.out.println("done in " + (System.currentTimeMillis() - start) + " ms\n");
+      } else {
+        System.out.println("WARNING: " + model.getClass().getName() + " cannot be updated; ignoring -update\n");
+      }
+    }
+
+    Random random = new Random();
+    if (options.get("-seed") != null) {
+      random = new Random(Long.parseLong(options.get("-seed")));
+    }
+    model.setRandom(random);
+    if (options.get("-lmcache") != null) {
+      int cacheSize = Integer.parseInt(options.get("-lmcache"));
+      model.setContextCacheSize(cacheSize);
+      if (cacheSize > 0 && model.getContextCache() == null) {
+        System.out.println("WARNING: only Kneser-Ney and mapped models keep a context cache; ignoring -lmcache\n");
+      }
+    }
 
     // check if the probability distribution of the model sums up properly
     if ("true".equals(options.get("-check"))) {
@@ -313,7 +657,7 @@ public class LanguageModelTester {
       contexts.add(new ArrayList(Arrays.asList("lalok nok crrok".split(" "))));
       for(int i=0; i<10; i++) {
         List<String> randomSentence = new ArrayList(model.generateSentence());
-        contexts.add(randomSentence.subList(0, (int)(Math.random()*randomSentence.size())));
+        contexts.add(randomSentence.subList(0, random.nextInt(randomSentence.size())));
       }
 
       for (List<String> context : contexts) {
@@ -328,17 +672,36 @@ public class LanguageModelTester {
       System.err.println();
     }
     
+    // set up evaluation threads ...........................................
+    // The trained model is only read from here on, so sentences can be
+    // scored concurrently.
+    ExecutorService executor = null;
+    if (threads > 1) {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+
+    // compress model ......................................................
+    if (options.get("-compress") != null) {
+      if (model instanceof UnigramModel || model instanceof BigramModel ||
+          model instanceof TrigramModel) {
+        reportCompression(model, testSentences, Double.parseDouble(options.get("-compress")),
+                          options.get("-compressfile"), executor);
+      } else {
+        System.out.println("WARNING: only trained unigram, bigram and trigram models can be compressed\n");
+      }
+    }
+
     // evaluate on training and test data ..................................
     NumberFormat nf = new DecimalFormat("0.0000");
     System.out.printf("%-30s","Training set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, trainSentences)));
+    System.out.println(nf.format(computePerplexity(model, trainSentences, executor)));
     System.out.printf("%-30s","Test set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, testSentences)));
+    System.out.println(nf.format(computePerplexity(model, testSentences, executor)));
 
     // evaluate on Jumble data ................................................
     if ("true".equals(options.get("-jumble"))) {
       System.out.printf("%-30s","Enron Jumble Perplexity: ");
-      System.out.println(nf.format(computePerplexity(model, getCorrectSentences(jumbleProblems))));
+      System.out.println(nf.format(computePerplexity(model, getCorrectSentences(jumbleProblems), executor)));
 
       // If we want to print the guessed email
       boolean showGuesses = false;
@@ -346,7 +709,7 @@ public class LanguageModelTester {
 	showGuesses = true;
 
       // Get the WER and % correct scores.
-      Pair<Double,Double> results = computeWordErrorRate(model, jumbleProblems, showGuesses);
+      Pair<Double,Double> results = computeWordErrorRate(model, jumbleProblems, showGuesses, executor);
       System.out.printf("%-30s","Enron Word Error Rate: ");
       System.out.println(nf.format(results.getFirst()));
       System.out.printf("%-30s","Enron Percent Correct: ");
@@ -362,6 +725,18 @@ public class LanguageModelTester {
       }
     }
 
+    if (executor != null) {
+      executor.shutdown();
+    }
+
+    if (model.getContextCache() != null) {
+      ClockCache<?> cache = model.getContextCache();
+      System.out.println();
+      System.out.printf("%-30s","Context cache hit rate: ");
+      System.out.println(nf.format(100 * cache.getHitRate()) + "% (" + cache.getHits() + 
+                         " hits, " + cache.getMisses() + " misses)");
+    }
+
     // generate sentences from model .......................................
     if ("true".equals(options.get("-generate"))) {
       System.out.println();
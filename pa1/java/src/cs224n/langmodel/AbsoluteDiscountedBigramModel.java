@@ -1,19 +1,69 @@
 package cs224n.langmodel;
 
 
-import cs224n.util.Pair;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
 
+import java.io.IOException;
 import java.util.*;
 
 public class AbsoluteDiscountedBigramModel extends BigramModel {
 
-    double unseenCount = 0;
-    HashMap<String, Double> marginalCountTable;
+    static final double DISCOUNT = 0.75;
+
+    // Only getKatzBackoffProbability() reads this, and update() leaves it
+    // as trained.
     HashMap<String, Double> katzBackoffTable;
 
+    /**
+     * A snapshot of the model with the discounted bigram counts its
+     * probabilities are computed from.  The marginal of a first word is the
+     * discounted count of the bigrams seen after it plus unseenCount for
+     * every other word of the vocabulary.  Every update changes
+     * unseenCount, so the two parts are kept apart, per word, rather than
+     * summed: an update then only changes the first words of the bigrams it
+     * adds.  All three tables are layered (see LayeredCounter), so an update
+     * shares what it does not change with the state before it.
+     */
+    private class State extends Snapshot {
+        final LayeredCounter contextCounts;
+        final LayeredCounter successorCounts;
+        final double vocabularySize;
+        final double unseenCount;
+
+        State(UnigramModel unigramModel, LayeredCounter bigrams, double totalCount,
+              LayeredCounter contextCounts, LayeredCounter successorCounts, double vocabularySize) {
+            super(unigramModel, bigrams, totalCount);
+            this.contextCounts = contextCounts;
+            this.successorCounts = successorCounts;
+            this.vocabularySize = vocabularySize;
+            this.unseenCount = getUnseenCount(vocabularySize, bigrams.size());
+        }
+
+        double getMarginalCount(int first) {
+            double unseenSuccessors = vocabularySize - successorCounts.getCount(first);
+            return contextCounts.getCount(first) + unseenSuccessors * unseenCount;
+        }
+    }
+
+    private State getState() {
+        return (State) getSnapshot();
+    }
+
+    /**
+     * The discounted count of an unseen bigram: the count DISCOUNT takes
+     * from each of the numBigrams seen, shared by the others.
+     */
+    private static double getUnseenCount(double vocabularySize, double numBigrams) {
+        // Every (first, second) cell of the V x V table which was not
+        // observed is an unseen bigram.
+        double unseenBigramCount = vocabularySize * vocabularySize - numBigrams;
+        return DISCOUNT * numBigrams / unseenBigramCount;
+    }
+
     @Override
-    public void train(Collection<List<String>> sentences) {
-        super.train(sentences);
+    public void train(NgramCounts ngramCounts) {
+        super.train(ngramCounts);
 
 
         if (false) {
@@ -28,70 +78,25 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
             for (String y : starters) {
                 System.out.printf("%9s | ", y);
                 for (String x : unigramModel.getVocabulary()) {
-                    System.out.printf("%9.3f", bigramCounter.getCount(new Pair<String, String>(y, x)));
+                    System.out.printf("%9.3f", bigramCounter.getCount(y, x));
                 }
                 System.out.println();
             }
         }
 
-        double discount = 0.75;
-        double discountedTotal = 0;
-
-        Set<Pair<String, String>> bigrams = bigramCounter.keySet();
-        for (Pair<String, String> bigram : bigrams) {
-            double count = bigramCounter.getCount(bigram);
-            bigramCounter.setCount(bigram, count - discount);
-            discountedTotal += discount;
-        }
-
-        double unseenBigramCount = 0;
-
-        for (String first : this.getVocabulary()) {
-            if (first.equals(STOP)) {
-                first = START;
-            }
-            for (String second : this.getVocabulary()) {
-                Pair<String, String> bigram = new Pair<String, String>(first, second);
-                double count = bigramCounter.getCount(bigram);
-                if (count == 0) {
-                    unseenBigramCount++;
-                }
-            }
-        }
-
-        unseenCount = discountedTotal / unseenBigramCount;
-
-//        marginalCountTable = new HashMap<String, Double>();
-//        for (String second : this.getVocabulary()) {
-//            double marginalCountSum = 0;
-//            for (String first : this.getVocabulary()) {
-//                if (first.equals(STOP)) {
-//                    first = START;
-//                }
-//                double count = bigramCounter.getCount(new Pair<String, String>(first, second));
-//                if (count == 0) {
-//                    count = unseenCount;
-//                }
-//                marginalCountSum += count;
-//            }
-//            marginalCountTable.put(second, marginalCountSum);
-//        }
-
-        marginalCountTable = new HashMap<String, Double>();
-        for (String first : this.getVocabulary()) {
-            if (first.equals(STOP)) {
-                first = START;
-            }
-            double marginalCountSum = 0;
-            for (String second : getVocabulary()) {
-                double count = bigramCounter.getCount(new Pair<String, String>(first, second));
-                if (count == 0) {
-                    count = unseenCount;
-                }
-                marginalCountSum += count;
-            }
-            marginalCountTable.put(first, marginalCountSum);
+        LongCounter contextCounts = new LongCounter();
+        LongCounter successorCounts = new LongCounter();
+        LongCounter.Cursor bigrams = bigramCounter.cursor();
+        while (bigrams.advance()) {
+            double count = bigrams.count() - DISCOUNT;
+            bigrams.setCount(count);
+            long first = NgramCounter.getContext(bigrams.key());
+            contextCounts.incrementCount(first, count);
+            successorCounts.incrementCount(first, 1.0);
         }
+        publish(new State(unigramModel, new LayeredCounter(bigramCounter.getCounts()), totalBigramCount,
+                          new LayeredCounter(contextCounts), new LayeredCounter(successorCounts),
+                          getVocabulary().size()));
 
         //double marginalUnigramMleProbability = 0;
         //for (String word : getVocabulary()) {
@@ -108,7 +113,7 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
             double marginalUnseenBigramConditionalProbability = 0;
             double marginalUnigramMleProbability = 0;
             for (String second : getVocabulary()) {
-                double count = bigramCounter.getCount(new Pair<String, String>(first, second));
+                double count = bigramCounter.getCount(first, second);
                 if (count == 0) {
                     marginalUnseenBigramConditionalProbability += getConditionalProbability(first, second);
                     marginalUnigramMleProbability += unigramModel.getMleWordProbability(second);
@@ -133,7 +138,7 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
                     first = START;
                 }
                 for (String second : getVocabulary()) {
-                    double count = bigramCounter.getCount(new Pair<String, String>(first, second));
+                    double count = bigramCounter.getCount(first, second);
                     double cp = getConditionalProbability(first, second);
                     if (count == 0) {
 
@@ -158,7 +163,7 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
             for (String y : starters) {
                 System.out.printf("%9s | ", y);
                 for (String x : getVocabulary()) {
-                    System.out.printf("%9.3f", bigramCounter.getCount(new Pair<String, String>(y, x)));
+                    System.out.printf("%9.3f", bigramCounter.getCount(y, x));
                 }
                 System.out.println();
             }
@@ -253,30 +258,77 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
         System.out.println();
     }
 
+    /**
+     * Counts more sentences against the model's word index and folds them
+     * into the model (see update(NgramCounts)).
+     */
+    @Override
+    public void update(Collection<List<String>> sentences) {
+        update(NgramCounts.count(sentences, unigramModel.getWordIndex(), 2));
+    }
+
+    @Override
+    public boolean isUpdatable() {
+        return true;
+    }
+
+    /**
+     * Folds the counts of more sentences, counted against the model's word
+     * index, into the model.  The increments of the bigrams and first words
+     * the counts add to are layered over the current state's tables (see
+     * LayeredCounter), so the update costs time in the size of the counts
+     * rather than of the model, and the new state, unigram model and all,
+     * is published by one volatile write, so that readers never see an
+     * update half done.  The fields set by training are left as trained.
+     * Updates are serialized.
+     */
+    public synchronized void update(NgramCounts counts) {
+        if (counts.getWordIndex() != unigramModel.getWordIndex()) {
+            throw new IllegalArgumentException("The counts were not made against the model's word index");
+        }
+        State current = getState();
+        NgramCounter added = counts.getCounter(2);
+        LongCounter bigramIncrements = new LongCounter(added.size());
+        LongCounter contextIncrements = new LongCounter();
+        LongCounter successorIncrements = new LongCounter();
+        LongCounter.Cursor cursor = added.cursor();
+        while (cursor.advance()) {
+            long key = cursor.key();
+            long first = NgramCounter.getContext(key);
+            double count = cursor.count();
+            // Seen bigrams keep a discounted count of at least 1 - DISCOUNT.
+            if (current.bigrams.getCount(key) == 0.0) {
+                count -= DISCOUNT;
+                successorIncrements.incrementCount(first, 1.0);
+            }
+            bigramIncrements.incrementCount(key, count);
+            contextIncrements.incrementCount(first, count);
+        }
+        publish(new State(current.unigramModel.addWordCounts(counts), current.bigrams.plus(bigramIncrements),
+                          current.totalCount + added.totalCount(), current.contextCounts.plus(contextIncrements),
+                          current.successorCounts.plus(successorIncrements), current.vocabularySize));
+    }
+
     private double getJointProbability(String first, String second) {
-        double bigramCount = bigramCounter.getCount(new Pair<String, String>(first, second));
+        State state = getState();
+        return getJointProbability(state, state.unigramModel.getWordId(first), state.unigramModel.getWordId(second));
+    }
+
+    private double getJointProbability(State state, int first, int second) {
+        double bigramCount = state.bigrams.getCount(NgramCounter.pack(first, second));
         if (bigramCount == 0) {
-            bigramCount = unseenCount;
+            bigramCount = state.unseenCount;
         }
-        return bigramCount / totalBigramCount;
+        return bigramCount / state.totalCount;
     }
 
     private double getMarginalProbability(String word) {
-//        double marginalCountSum = 0;
-//        for (String first : this.getVocabulary()) {
-//            if (first.equals(STOP)) {
-//                first = START;
-//            }
-//            double count = bigramCounter.getCount(new Pair<String, String>(first, word));
-//            if (count == 0) {
-//                count = unseenCount;
-//            }
-//            marginalCountSum += count;
-//        }
-//        System.err.println("!: " + word);
-        double marginalCountSum = marginalCountTable.get(word);
+        State state = getState();
+        return getMarginalProbability(state, state.unigramModel.getWordId(word));
+    }
 
-        return marginalCountSum / totalBigramCount;
+    private double getMarginalProbability(State state, int word) {
+        return state.getMarginalCount(word) / state.totalCount;
     }
 
     private double getConditionalProbability(String first, String second) {
@@ -287,33 +339,117 @@ public class AbsoluteDiscountedBigramModel extends BigramModel {
     }
 
     private double getKatzBackoffProbability(String first, String second) {
-        Pair<String, String> bigram = new Pair<String, String>(first, second);
-        double count = bigramCounter.getCount(bigram);
+        double count = bigramCounter.getCount(first, second);
         if (count == 0) {
             double alpha = katzBackoffTable.get(first);
             return alpha * unigramModel.getMleWordProbability(second);
         }
         else {
-            return getConditionalProbability(bigram.getFirst(), bigram.getSecond());
+            return getConditionalProbability(first, second);
         }
     }
 
     public double getAbsoluteDiscountedWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 1);
-        String second = unigramModel.getWord(sentence, index);
-        return getAbsoluteDiscountedWordProbability(first, second);
+        State state = getState();
+        int first = state.unigramModel.getWordId(sentence, index - 1);
+        int second = state.unigramModel.getWordId(sentence, index);
+        return getAbsoluteDiscountedWordProbability(state, first, second);
     }
 
     public double getAbsoluteDiscountedWordProbability(String first, String second) {
-        double joint = getJointProbability(first, second);
-        double marginal = getMarginalProbability(first);
+        State state = getState();
+        return getAbsoluteDiscountedWordProbability(state, state.unigramModel.getWordId(first),
+                                                    state.unigramModel.getWordId(second));
+    }
+
+    public double getAbsoluteDiscountedWordProbability(int first, int second) {
+        return getAbsoluteDiscountedWordProbability(getState(), first, second);
+    }
+
+    private double getAbsoluteDiscountedWordProbability(State state, int first, int second) {
+        double joint = getJointProbability(state, first, second);
+        double marginal = getMarginalProbability(state, first);
         double probability = joint / marginal;
 //        System.out.printf("(%s, %s): %.5f\n", first, second, probability);
         return probability;
     }
 
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        return getAbsoluteDiscountedWordProbability(sentence, index);
+    public double getWordProbability(int first, int second) {
+        return getAbsoluteDiscountedWordProbability(getState(), first, second);
+    }
+
+    /**
+     * Scores the whole sentence against one state, even if the model is
+     * updated meanwhile.
+     */
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        State state = getState();
+        int[] ids = state.unigramModel.getWordIds(sentence, 1);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordLogProbability = Math.log(getAbsoluteDiscountedWordProbability(state, ids[i], ids[i + 1]));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    /**
+     * Estimates the model this would train to from the counts of a count
+     * file.  A first word's probabilities need only the discounted counts
+     * of the bigrams seen after it and the totals: the vocabulary size, the
+     * total count and the number of distinct bigrams.  They are computed as
+     * getAbsoluteDiscountedWordProbability() computes them, so the model
+     * written is the one trained.
+     */
+    @Override
+    public boolean canWriteFromCounts() {
+        return true;
+    }
+
+    @Override
+    ContextEstimator getContextEstimator(NgramCountFile countFile) throws IOException {
+        final double vocabularySize = countFile.getWordIndex().size() - 1;
+        final double totalCount = countFile.getTotalCount(2);
+        final double unseenCount = getUnseenCount(vocabularySize, countFile.size(2));
+        return new ContextEstimator() {
+            @Override
+            double estimate(long context, int[] words, double[] counts, int size, double[] probabilities) {
+                double contextCount = 0.0;
+                for (int i = 0; i < size; i++) {
+                    contextCount += counts[i] - DISCOUNT;
+                }
+                double marginal = (contextCount + (vocabularySize - size) * unseenCount) / totalCount;
+                for (int i = 0; i < size; i++) {
+                    probabilities[i] = ((counts[i] - DISCOUNT) / totalCount) / marginal;
+                }
+                return (unseenCount / totalCount) / marginal;
+            }
+        };
+    }
+
+    @Override
+    public void getNextWordProbabilities(int first, double[] probabilities) {
+        getNextWordProbabilities(getSnapshot(), first, probabilities);
+    }
+
+    /**
+     * Fills probabilities with the probability of an unseen bigram, and
+     * then with those of the words seen after first, all from one state.
+     */
+    @Override
+    void getNextWordProbabilities(Snapshot snapshot, int first, double[] probabilities) {
+        State state = (State) snapshot;
+        double unseenJoint = state.unseenCount / state.totalCount;
+        double unseenProbability = unseenJoint / getMarginalProbability(state, first);
+        Arrays.fill(probabilities, 0, state.unigramModel.getWordIndex().size() - 1, unseenProbability);
+        for (long bigram : state.bigrams.getSuccessors(first)) {
+            int word = NgramCounter.getLastWordId(bigram);
+            probabilities[word] = getAbsoluteDiscountedWordProbability(state, first, word);
+        }
     }
 }
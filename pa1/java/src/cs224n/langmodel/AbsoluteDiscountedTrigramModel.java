@@ -1,18 +1,64 @@
 package cs224n.langmodel;
 
 
-import cs224n.util.Pair;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
 
+import java.io.IOException;
 import java.util.*;
 
 public class AbsoluteDiscountedTrigramModel extends TrigramModel {
 
-    double unseenCount = 0;
-    HashMap<Pair<String, String>, Double> marginalCountTable;
+    static final double DISCOUNT = 0.75;
+
+    /**
+     * A snapshot of the model with the discounted trigram counts its
+     * probabilities are computed from.  A context's marginal is the
+     * discounted count of the trigrams seen after it plus unseenCount for
+     * every other word of the vocabulary.  Every update changes
+     * unseenCount, so the two parts are kept apart, per context, rather
+     * than summed: an update then only changes the contexts of the
+     * trigrams it adds.  All three tables are layered (see LayeredCounter),
+     * so an update shares what it does not change with the state before it.
+     */
+    private class State extends Snapshot {
+        final LayeredCounter contextCounts;
+        final LayeredCounter successorCounts;
+        final double vocabularySize;
+        final double unseenCount;
+
+        State(UnigramModel unigramModel, LayeredCounter trigrams, double totalCount,
+              LayeredCounter contextCounts, LayeredCounter successorCounts, double vocabularySize) {
+            super(unigramModel, trigrams, totalCount);
+            this.contextCounts = contextCounts;
+            this.successorCounts = successorCounts;
+            this.vocabularySize = vocabularySize;
+            this.unseenCount = getUnseenCount(vocabularySize, trigrams.size(), totalCount);
+        }
+
+        double getMarginalCount(long context) {
+            // An unseen context has no successors and a count of zero.
+            double unseenSuccessors = vocabularySize - successorCounts.getCount(context);
+            return contextCounts.getCount(context) + unseenSuccessors * unseenCount;
+        }
+    }
+
+    private State getState() {
+        return (State) getSnapshot();
+    }
+
+    /**
+     * The discounted count of an unseen trigram: the count DISCOUNT takes
+     * from each of the numTrigrams seen, shared by the others.
+     */
+    private static double getUnseenCount(double vocabularySize, double numTrigrams, double totalCount) {
+        double unseenTrigramCount = Math.pow(vocabularySize, 3) - totalCount;
+        return DISCOUNT * numTrigrams / unseenTrigramCount;
+    }
 
     @Override
-    public void train(Collection<List<String>> sentences) {
-        super.train(sentences);
+    public void train(NgramCounts ngramCounts) {
+        super.train(ngramCounts);
 
 //        if (false) {
 //            System.out.printf("\n%-12s| ", "BEFORE");
@@ -29,15 +75,15 @@ public class AbsoluteDiscountedTrigramModel extends TrigramModel {
 //            }
 //        }
 
-        double unseenBigramCount = Math.pow(getVocabulary().size(), 3) - totalTrigramCount;
-
-        double discount = 0.75;
-        double discountedTotal = 0;
-
-        for (Pair<Pair<String, String>, String> trigram : trigramCounter.keySet()) {
-            double count = trigramCounter.getCount(trigram);
-            trigramCounter.setCount(trigram, count - discount);
-            discountedTotal += discount;
+        LongCounter contextCounts = new LongCounter();
+        LongCounter successorCounts = new LongCounter();
+        LongCounter.Cursor trigrams = trigramCounter.cursor();
+        while (trigrams.advance()) {
+            double count = trigrams.count() - DISCOUNT;
+            trigrams.setCount(count);
+            long context = NgramCounter.getContext(trigrams.key());
+            contextCounts.incrementCount(context, count);
+            successorCounts.incrementCount(context, 1.0);
         }
 //        discountedTotal = fastTriCounter.getTotalCount() * discount;
 //        fastTriCounter.subtract(discount);
@@ -63,35 +109,9 @@ public class AbsoluteDiscountedTrigramModel extends TrigramModel {
 //        }
 
         System.out.println();
-        int m = 0, n = 0;
-        int size = getVocabulary().size();
-        unseenCount = discountedTotal / unseenBigramCount;
-        marginalCountTable = new HashMap<Pair<String, String>, Double>();
-        for (String first : getVocabulary()) {
-//            System.out.printf("%d / %d\n", n++, size);
-            m = 0;
-            if (first.equals(STOP)) {
-                first = START;
-            }
-            for (String second : getVocabulary()) {
-                if ((m++ % 100) == 0) {
-//                    System.out.printf("    %d / %d\n", m, size);
-                }
-                if (second.equals(STOP)) {
-                    second = START;
-                }
-                double marginalCountSum = 0;
-                for (String third : getVocabulary()) {
-                    double count = trigramCounter.getCount(new Pair<Pair<String, String>, String>(new Pair<String, String>(first, second), third));
-//                    double count = fastTriCounter.get(first, second, third);
-                    if (count == 0) {
-                        count = unseenCount;
-                    }
-                    marginalCountSum += count;
-                }
-                marginalCountTable.put(new Pair<String, String>(first, second), marginalCountSum);
-            }
-        }
+        publish(new State(unigramModel, new LayeredCounter(trigramCounter.getCounts()), totalTrigramCount,
+                          new LayeredCounter(contextCounts), new LayeredCounter(successorCounts),
+                          getVocabulary().size()));
 
 
 
@@ -203,38 +223,183 @@ public class AbsoluteDiscountedTrigramModel extends TrigramModel {
     }
 
 
+    /**
+     * Counts more sentences against the model's word index and folds them
+     * into the model (see update(NgramCounts)).
+     */
+    @Override
+    public void update(Collection<List<String>> sentences) {
+        update(NgramCounts.count(sentences, unigramModel.getWordIndex(), 3));
+    }
+
+    @Override
+    public boolean isUpdatable() {
+        return true;
+    }
+
+    /**
+     * Folds the counts of more sentences, counted against the model's word
+     * index, into the model.  The increments of the trigrams and contexts
+     * the counts add to are layered over the current state's tables (see
+     * LayeredCounter), so the update costs time in the size of the counts
+     * rather than of the model, and the new state, unigram model and all,
+     * is published by one volatile write, so that readers never see an
+     * update half done.  The fields set by training are left as trained.
+     * Updates are serialized.
+     */
+    public synchronized void update(NgramCounts counts) {
+        if (counts.getWordIndex() != unigramModel.getWordIndex()) {
+            throw new IllegalArgumentException("The counts were not made against the model's word index");
+        }
+        State current = getState();
+        NgramCounter added = counts.getCounter(3);
+        LongCounter trigramIncrements = new LongCounter(added.size());
+        LongCounter contextIncrements = new LongCounter();
+        LongCounter successorIncrements = new LongCounter();
+        LongCounter.Cursor cursor = added.cursor();
+        while (cursor.advance()) {
+            long key = cursor.key();
+            long context = NgramCounter.getContext(key);
+            double count = cursor.count();
+            // Seen trigrams keep a discounted count of at least 1 - DISCOUNT.
+            if (current.trigrams.getCount(key) == 0.0) {
+                count -= DISCOUNT;
+                successorIncrements.incrementCount(context, 1.0);
+            }
+            trigramIncrements.incrementCount(key, count);
+            contextIncrements.incrementCount(context, count);
+        }
+        publish(new State(current.unigramModel.addWordCounts(counts), current.trigrams.plus(trigramIncrements),
+                          current.totalCount + added.totalCount(), current.contextCounts.plus(contextIncrements),
+                          current.successorCounts.plus(successorIncrements), current.vocabularySize));
+    }
+
     private double getJointProbability(String first, String second, String third) {
-        double trigramCount = trigramCounter.getCount(new Pair<Pair<String, String>, String>(new Pair<String, String>(first, second), third));
+        State state = getState();
+        UnigramModel unigramModel = state.unigramModel;
+        return getJointProbability(state, unigramModel.getWordId(first), unigramModel.getWordId(second),
+                                   unigramModel.getWordId(third));
+    }
+
+    private double getJointProbability(State state, int first, int second, int third) {
+        double trigramCount = state.trigrams.getCount(NgramCounter.pack(first, second, third));
 //        double trigramCount = fastTriCounter.get(first, second, third);
         if (trigramCount == 0) {
-            trigramCount = unseenCount;
+            trigramCount = state.unseenCount;
         }
-        return trigramCount / totalTrigramCount;
+        return trigramCount / state.totalCount;
     }
 
-    private double getMarginalProbability(Pair<String, String> bigram) {
-        double marginalCountSum = marginalCountTable.get(bigram);
-        return marginalCountSum / totalTrigramCount;
+    private double getMarginalProbability(State state, int first, int second) {
+        return state.getMarginalCount(NgramCounter.pack(first, second)) / state.totalCount;
     }
 
     public double getAbsoluteDiscountedWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 2);
-        String second = unigramModel.getWord(sentence, index - 1);
-        String third = unigramModel.getWord(sentence, index);
-        return getAbsoluteDiscountedWordProbability(first, second, third);
+        State state = getState();
+        UnigramModel unigramModel = state.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 2);
+        int second = unigramModel.getWordId(sentence, index - 1);
+        int third = unigramModel.getWordId(sentence, index);
+        return getAbsoluteDiscountedWordProbability(state, first, second, third);
     }
 
     public double getAbsoluteDiscountedWordProbability(String first, String second, String third) {
-        double joint = getJointProbability(first, second, third);
-        double marginal = getMarginalProbability(new Pair<String, String>(first, second));
+        State state = getState();
+        UnigramModel unigramModel = state.unigramModel;
+        return getAbsoluteDiscountedWordProbability(state, unigramModel.getWordId(first), unigramModel.getWordId(second), unigramModel.getWordId(third));
+    }
+
+    public double getAbsoluteDiscountedWordProbability(int first, int second, int third) {
+        return getAbsoluteDiscountedWordProbability(getState(), first, second, third);
+    }
+
+    private double getAbsoluteDiscountedWordProbability(State state, int first, int second, int third) {
+        double joint = getJointProbability(state, first, second, third);
+        double marginal = getMarginalProbability(state, first, second);
         double probability = joint / marginal;
 //        System.out.printf("(%s, %s): %.5f\n", first, second, probability);
         return probability;
     }
 
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        return getAbsoluteDiscountedWordProbability(sentence, index);
+    public double getWordProbability(int first, int second, int third) {
+        return getAbsoluteDiscountedWordProbability(getState(), first, second, third);
+    }
+
+    /**
+     * Scores the whole sentence against one state, even if the model is
+     * updated meanwhile.
+     */
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        State state = getState();
+        int[] ids = state.unigramModel.getWordIds(sentence, 2);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordProbability = getAbsoluteDiscountedWordProbability(state, ids[i], ids[i + 1], ids[i + 2]);
+            double wordLogProbability = Math.log(wordProbability);
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    /**
+     * Estimates the model this would train to from the counts of a count
+     * file.  A context's probabilities need only the discounted counts of
+     * the trigrams seen after it and the totals: the vocabulary size, the
+     * total count and the number of distinct trigrams.  They are computed
+     * as getAbsoluteDiscountedWordProbability() computes them, so the
+     * model written is the one trained.
+     */
+    @Override
+    public boolean canWriteFromCounts() {
+        return true;
+    }
+
+    @Override
+    ContextEstimator getContextEstimator(NgramCountFile countFile) throws IOException {
+        final double vocabularySize = countFile.getWordIndex().size() - 1;
+        final double totalCount = countFile.getTotalCount(3);
+        final double unseenCount = getUnseenCount(vocabularySize, countFile.size(3), totalCount);
+        return new ContextEstimator() {
+            @Override
+            double estimate(long context, int[] words, double[] counts, int size, double[] probabilities) {
+                double contextCount = 0.0;
+                for (int i = 0; i < size; i++) {
+                    contextCount += counts[i] - DISCOUNT;
+                }
+                double marginal = (contextCount + (vocabularySize - size) * unseenCount) / totalCount;
+                for (int i = 0; i < size; i++) {
+                    probabilities[i] = ((counts[i] - DISCOUNT) / totalCount) / marginal;
+                }
+                return (unseenCount / totalCount) / marginal;
+            }
+        };
+    }
+
+    @Override
+    public void getNextWordProbabilities(int first, int second, double[] probabilities) {
+        getNextWordProbabilities(getSnapshot(), first, second, probabilities);
+    }
+
+    /**
+     * Fills probabilities with the probability of an unseen trigram, and
+     * then with those of the words seen after first and second, all from
+     * one state.
+     */
+    @Override
+    void getNextWordProbabilities(Snapshot snapshot, int first, int second, double[] probabilities) {
+        State state = (State) snapshot;
+        double unseenJoint = state.unseenCount / state.totalCount;
+        double unseenProbability = unseenJoint / getMarginalProbability(state, first, second);
+        Arrays.fill(probabilities, 0, state.unigramModel.getWordIndex().size() - 1, unseenProbability);
+        for (long trigram : state.trigrams.getSuccessors(NgramCounter.pack(first, second))) {
+            int word = NgramCounter.getLastWordId(trigram);
+            probabilities[word] = getAbsoluteDiscountedWordProbability(state, first, second, word);
+        }
     }
 
 }
@@ -1,38 +1,68 @@
 package cs224n.langmodel;
 
 
-import cs224n.util.Counter;
-import cs224n.util.Pair;
+import cs224n.util.AliasSampler;
+import cs224n.util.NgramCounter;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 public abstract class BigramModel extends LanguageModel {
 
+    // The model as trained, which subclasses compute their probabilities
+    // from.  update() leaves these alone, and publishes a new snapshot.
     protected UnigramModel unigramModel;
 
-    protected Counter<Pair<String, String>> bigramCounter;
+    protected NgramCounter bigramCounter;
     protected double totalBigramCount;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Everything the methods of this class read of the model: the unigram
+     * model, the bigram counts and their total, and the samplers of
+     * generateSentence().  A snapshot is never changed once published (its
+     * caches only fill), and it is published by one volatile write, so a
+     * reader which takes one sees one consistent model whatever updates
+     * follow.  Models which support updates extend it with the tables their
+     * probabilities are computed from.
+     */
+    class Snapshot {
+        final UnigramModel unigramModel;
+        final LayeredCounter bigrams;
+        final double totalCount;
+        final ContextSamplers samplers;
+
+        Snapshot(UnigramModel unigramModel, LayeredCounter bigrams, double totalCount) {
+            this.unigramModel = unigramModel;
+            this.bigrams = bigrams;
+            this.totalCount = totalCount;
+            this.samplers = new ContextSamplers(unigramModel.getWordIndex().size() - 1) {
+                @Override
+                void getNextWordProbabilities(long context, double[] probabilities) {
+                    BigramModel.this.getNextWordProbabilities(Snapshot.this, (int) context, probabilities);
+                }
+            };
+        }
+    }
 
     @Override
     public void train(Collection<List<String>> sentences) {
-        unigramModel = new UnigramModel() {
-            @Override
-            public double getWordProbability(List<String> sentence, int index) {
-                throw new RuntimeException("Not implemented.");
-            }
-        };
-        unigramModel.train(sentences);
+        train(NgramCounts.count(sentences, 2));
+    }
 
-        bigramCounter = new Counter<Pair<String, String>>();
+    /**
+     * Trains the model from the word and bigram counts of a corpus.  The
+     * bigram counts are copied, so subclasses may change them.
+     */
+    public void train(NgramCounts counts) {
+        unigramModel = UnigramModel.trainWordCounts(counts);
+        bigramCounter = new NgramCounter(counts.getCounter(2));
+        totalBigramCount = bigramCounter.totalCount();
+        publish(new Snapshot(unigramModel, new LayeredCounter(bigramCounter.getCounts()), totalBigramCount));
 
-        for (List<String> sentence : sentences) {
-            for (int i=0; i<=sentence.size(); i++) {
-                String lastWord = unigramModel.getWord(sentence, i-1);
-                String word = unigramModel.getWord(sentence, i);
-                bigramCounter.incrementCount(new Pair<String, String>(lastWord, word), 1.0);
-            }
-        }
         // add ..
         // XXX REMOVE
 //        bigramCounter.incrementCount(new Pair<String, String>(START, STOP), 1.0);
@@ -40,7 +70,6 @@ public abstract class BigramModel extends LanguageModel {
 //        bigramCounter.incrementCount(new Pair<String, String>("B", "C"), 0.0);
 //        bigramCounter.incrementCount(new Pair<String, String>("C", "A"), 0.0);
 //        bigramCounter.incrementCount(new Pair<String, String>("C", "B"), 0.0);
-        totalBigramCount = bigramCounter.totalCount();
 
 //        TreeSet<String> starters = new TreeSet<String>(unigramModel.getVocabulary());
 //        starters.remove(STOP);
@@ -53,7 +82,7 @@ public abstract class BigramModel extends LanguageModel {
 //        for (String y : starters) {
 //            System.out.printf("%9s | ", y);
 //            for (String x : unigramModel.getVocabulary()) {
-//                System.out.printf("%9.0f", bigramCounter.getCount(new Pair<String, String>(y, x)));
+//                System.out.printf("%9.0f", bigramCounter.getCount(y, x));
 //            }
 //            System.out.println();
 //        }
@@ -61,69 +90,218 @@ public abstract class BigramModel extends LanguageModel {
 //        System.out.println();
     }
 
+    /**
+     * Returns the snapshot of the model last published.
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the model, on training or update, to the
+     * readers which follow.
+     */
+    void publish(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     @Override
     public Collection<String> getVocabulary() {
-        return unigramModel.getVocabulary();
+        return snapshot.unigramModel.getVocabulary();
     }
 
     public double getTotalWordCount() {
-        return unigramModel.getTotalWordCount();
+        return snapshot.unigramModel.getTotalWordCount();
     }
 
     public double getWordCount(String word) {
-        return unigramModel.getWordCount(word);
+        return snapshot.unigramModel.getWordCount(word);
     }
 
+    /**
+     * Generates each word from the model's distribution following the
+     * previous word, through a cached alias table per previous word.  A
+     * context after which the model gives no word a positive probability
+     * falls back to the unigram counts.
+     */
     @Override
     public List<String> generateSentence() {
-        return unigramModel.generateSentence();
+        Snapshot snapshot = this.snapshot;
+        UnigramModel unigramModel = snapshot.unigramModel;
+        List<String> sentence = new ArrayList<String>();
+        int stopId = unigramModel.getWordId(STOP);
+        int previous = unigramModel.getWordIndex().indexOf(START);
+        int word;
+        do {
+            AliasSampler sampler = snapshot.samplers.get(previous);
+            word = (sampler == null) ? unigramModel.generateWordId(getRandom()) : sampler.sample(getRandom());
+            sentence.add(unigramModel.getWordIndex().get(word));
+            previous = word;
+        }
+        while (word != stopId);
+        return sentence;
     }
 
 
     // Word probability methods.
 
-    private double getJointProbability(String first, String second) {
-        double bigramCount = bigramCounter.getCount(new Pair<String, String>(first, second));
+    /**
+     * Returns the probability of the word with id second following the word
+     * with id first.  Ids are those of unigramModel.getWordIndex().
+     */
+    public abstract double getWordProbability(int first, int second);
+
+    @Override
+    public double getWordProbability(List<String> sentence, int index) {
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 1);
+        int second = unigramModel.getWordId(sentence, index);
+        return getWordProbability(first, second);
+    }
+
+    @Override
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int vocabularySize = unigramModel.getWordIndex().size() - 1;
+        if (probabilities == null || probabilities.length < vocabularySize) {
+            probabilities = new double[vocabularySize];
+        }
+        getNextWordProbabilities(unigramModel.getWordId(context, context.size() - 1), probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Fills probabilities[word] with the probability of each word following
+     * the word with id first.  This implementation calls
+     * getWordProbability(first, word) once per word.  Subclasses which give
+     * every unseen bigram of a context the same probability should
+     * override it to call fillNextWordProbabilities().
+     */
+    public void getNextWordProbabilities(int first, double[] probabilities) {
+        int vocabularySize = snapshot.unigramModel.getWordIndex().size() - 1;
+        for (int word = 0; word < vocabularySize; word++) {
+            probabilities[word] = getWordProbability(first, word);
+        }
+    }
+
+    /**
+     * Fills probabilities as getNextWordProbabilities(first, probabilities)
+     * does, from the given snapshot; the samplers of a snapshot fill their
+     * tables through it.  This implementation ignores the snapshot, which
+     * is right for models which are never updated; models which are
+     * override it.
+     */
+    void getNextWordProbabilities(Snapshot snapshot, int first, double[] probabilities) {
+        getNextWordProbabilities(first, probabilities);
+    }
+
+    /**
+     * Returns an estimator of the probabilities this model would have if it
+     * were trained on the counts of a count file, so that it can be written
+     * from the file without being trained (see ContextEstimator).  This
+     * implementation throws UnsupportedOperationException; models whose
+     * probabilities after a word depend only on the bigrams seen after it
+     * and on totals override it, and canWriteFromCounts().
+     */
+    ContextEstimator getContextEstimator(NgramCountFile countFile) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be written from a count file");
+    }
+
+    /**
+     * Fills probabilities with unseenProbability, and then with
+     * getWordProbability(first, word) for each word seen after first.  This
+     * costs one probability per seen bigram instead of one per word.
+     */
+    protected void fillNextWordProbabilities(int first, double unseenProbability, double[] probabilities) {
+        Snapshot snapshot = this.snapshot;
+        Arrays.fill(probabilities, 0, snapshot.unigramModel.getWordIndex().size() - 1, unseenProbability);
+        for (long bigram : snapshot.bigrams.getSuccessors(first)) {
+            int word = NgramCounter.getLastWordId(bigram);
+            probabilities[word] = getWordProbability(first, word);
+        }
+    }
+
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        int[] ids = snapshot.unigramModel.getWordIds(sentence, 1);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordLogProbability = Math.log(getWordProbability(ids[i], ids[i + 1]));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    @Override
+    public ScoringState getStartState() {
+        return new ScoringState(new int[] { snapshot.unigramModel.getWordIndex().indexOf(START) });
+    }
+
+    @Override
+    public ScoringState extend(ScoringState state, String word) {
+        int id = snapshot.unigramModel.getWordId(word);
+        double wordProbability = getWordProbability(state.history[0], id);
+        return new ScoringState(state, word, new int[] { id }, Math.log(wordProbability));
+    }
+
+    private double getJointProbability(Snapshot snapshot, int first, int second) {
+        double bigramCount = snapshot.bigrams.getCount(NgramCounter.pack(first, second));
 //        return (bigramCount + 1) / (totalBigramCount + (unigramModel.getVocabulary().size() * unigramModel.getVocabulary().size()));
-        return bigramCount / totalBigramCount;
+        return bigramCount / snapshot.totalCount;
     }
 
-    private double getMarginalProbability(String word) {
-        double unigramCount = unigramModel.getWordCount(word);
+    private double getMarginalProbability(Snapshot snapshot, int word) {
+        double unigramCount = snapshot.unigramModel.getWordCount(word);
 //        return (unigramCount + unigramModel.getVocabulary().size()) / (totalBigramCount + (unigramModel.getVocabulary().size() * unigramModel.getVocabulary().size()));
-        return unigramCount / totalBigramCount;
+        return unigramCount / snapshot.totalCount;
     }
 
     public double getMleWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 1);
-        String second = unigramModel.getWord(sentence, index);
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 1);
+        int second = unigramModel.getWordId(sentence, index);
         return getMleWordProbability(first, second);
     }
 
     public double getMleWordProbability(String first, String second) {
-        double joint = getJointProbability(first, second);
-        double marginal = getMarginalProbability(second);
+        UnigramModel unigramModel = snapshot.unigramModel;
+        return getMleWordProbability(unigramModel.getWordId(first), unigramModel.getWordId(second));
+    }
+
+    public double getMleWordProbability(int first, int second) {
+        Snapshot snapshot = this.snapshot;
+        double joint = getJointProbability(snapshot, first, second);
+        double marginal = getMarginalProbability(snapshot, second);
         return joint / marginal;
     }
 
     public double getAddOneWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 1);
-        String second = unigramModel.getWord(sentence, index);
-        double jointCount = bigramCounter.getCount(new Pair<String, String>(first, second));
+        Snapshot snapshot = this.snapshot;
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 1);
+        int second = unigramModel.getWordId(sentence, index);
+        double jointCount = snapshot.bigrams.getCount(NgramCounter.pack(first, second));
         double marginalCount = unigramModel.getWordCount(second);
         return (jointCount + 1) / (marginalCount + unigramModel.getVocabulary().size());
     }
 
     public double getLaplaceSmoothedMleWordProbability(List<String> sentence, int index) {
+        UnigramModel unigramModel = snapshot.unigramModel;
         String prev = unigramModel.getWord(sentence, index - 1);
         String word = unigramModel.getWord(sentence, index);
         return getLaplaceSmoothedMleWordProbability(prev, word);
     }
 
     public double getLaplaceSmoothedMleWordProbability(String prev, String word) {
-        double count = bigramCounter.getCount(new Pair<String, String>(prev, word));
+        Snapshot snapshot = this.snapshot;
+        UnigramModel unigramModel = snapshot.unigramModel;
+        double count = snapshot.bigrams.getCount(NgramCounter.pack(unigramModel.getWordId(prev),
+                                                                   unigramModel.getWordId(word)));
         // Apply Laplace.
 //        return (count + 1) / (unigramModel.getTotalWordCount() + unigramModel.getVocabulary().size());
-        return count / totalBigramCount;
+        return count / snapshot.totalCount;
     }
 }
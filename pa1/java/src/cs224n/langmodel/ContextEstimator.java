@@ -0,0 +1,22 @@
+package cs224n.langmodel;
+
+/**
+ * The probabilities of an n-gram model after each context, computed from
+ * the counts of the n-grams of that context and from totals over the whole
+ * corpus, which the estimator takes when it is made.  A model whose
+ * probabilities can be computed this way can be written from a count file
+ * a context at a time, without being trained (see
+ * MappedNgramModel.Writer.write(LanguageModel, NgramCountFile, String)),
+ * so that its n-grams never have to fit in the heap.
+ */
+abstract class ContextEstimator {
+
+    /**
+     * Sets probabilities[i] to the probability of the word with id words[i]
+     * following the packed context, for the size words seen after it, whose
+     * n-grams have the given counts, and returns the probability of a word
+     * not seen after it.  An unseen context has no words.  Ids are those of
+     * the count file's word index.
+     */
+    abstract double estimate(long context, int[] words, double[] counts, int size, double[] probabilities);
+}
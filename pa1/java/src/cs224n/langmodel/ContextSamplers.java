@@ -0,0 +1,68 @@
+package cs224n.langmodel;
+
+import cs224n.util.AliasSampler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The alias tables of a model's next-word distributions, one per packed
+ * context, built when a context is first sampled from.  Building a table
+ * costs a pass over the vocabulary, so tables are cached; the cache holds
+ * at most MAX_CACHED_WORDS entries in all and evicts the least recently
+ * used context.
+ */
+abstract class ContextSamplers {
+
+    static final int MAX_CACHED_WORDS = 1 << 22;
+
+    private final int vocabularySize;
+    private final double[] weights;
+    private final Map<Long, AliasSampler> samplers;
+
+    /**
+     * Fills probabilities[word] with the probability of each word following
+     * the packed context.
+     */
+    abstract void getNextWordProbabilities(long context, double[] probabilities);
+
+    /**
+     * Returns the sampler of the words following a context, or null if the
+     * model gives no word following it a positive probability.
+     */
+    synchronized AliasSampler get(long context) {
+        Long key = context;
+        AliasSampler sampler = samplers.get(key);
+        if (sampler == null && !samplers.containsKey(key)) {
+            getNextWordProbabilities(context, weights);
+            double total = 0.0;
+            for (int word = 0; word < vocabularySize; word++) {
+                double probability = weights[word];
+                // Unsmoothed models may return NaN for unseen contexts.
+                weights[word] = (probability > 0.0 && !Double.isInfinite(probability)) ? probability : 0.0;
+                total += weights[word];
+            }
+            if (total > 0.0 && !Double.isInfinite(total)) {
+                sampler = new AliasSampler(weights, vocabularySize);
+            }
+            samplers.put(key, sampler);
+        }
+        return sampler;
+    }
+
+    /**
+     * Constructs an empty cache for a model whose vocabulary has ids
+     * 0..vocabularySize-1.
+     */
+    ContextSamplers(int vocabularySize) {
+        this.vocabularySize = vocabularySize;
+        this.weights = new double[vocabularySize];
+        final int capacity = Math.max(1, MAX_CACHED_WORDS / Math.max(1, vocabularySize));
+        this.samplers = new LinkedHashMap<Long, AliasSampler>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, AliasSampler> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}
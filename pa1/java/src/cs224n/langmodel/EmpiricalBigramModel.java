@@ -1,13 +1,11 @@
 package cs224n.langmodel;
 
 
-import java.util.List;
-
 public class EmpiricalBigramModel extends BigramModel {
 
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        return getMleWordProbability(sentence, index);
+    public double getWordProbability(int first, int second) {
+        return getMleWordProbability(first, second);
     }
 
 }
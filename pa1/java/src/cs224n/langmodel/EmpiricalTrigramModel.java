@@ -1,11 +1,9 @@
 package cs224n.langmodel;
 
 
-import java.util.List;
-
 public class EmpiricalTrigramModel extends TrigramModel {
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        return getMleWordProbability(sentence, index);
+    public double getWordProbability(int first, int second, int third) {
+        return getMleWordProbability(first, second, third);
     }
 }
@@ -119,7 +119,7 @@ public class EmpiricalUnigramLanguageModel extends LanguageModel {
    * mass until we reach our sample.
    */
   private String generateWord() {
-    double sample = Math.random();
+    double sample = getRandom().nextDouble();
     double sum = 0.0;
     for (String word : wordCounter.keySet()) {
       sum += wordCounter.getCount(word) / (total + 1.0);
@@ -2,7 +2,8 @@ package cs224n.langmodel;
 
 
 import cs224n.util.Counter;
-import cs224n.util.Pair;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
 
 import java.util.*;
 
@@ -13,30 +14,23 @@ public class GoodTuringBigramModel extends BigramModel {
     private double cutoff;
     private double totalPpgtProbability;
     private double totalModifiedCountStarCount;
-    HashMap<String, Double> marginalCountTable;
+    LongCounter marginalCountTable;
+    double unseenHistoryMarginalCount;
 
     @Override
-    public void train(Collection<List<String>> sentences) {
-        super.train(sentences);
+    public void train(NgramCounts ngramCounts) {
+        super.train(ngramCounts);
 
         countCounter = new Counter<Double>();
-        for (Pair<String, String> bigram : bigramCounter.keySet()) {
-            countCounter.incrementCount(bigramCounter.getCount(bigram), 1.0);
+        LongCounter.Cursor bigrams = bigramCounter.cursor();
+        while (bigrams.advance()) {
+            countCounter.incrementCount(bigrams.count(), 1.0);
         }
 
-        // XXX  Instead, count the seen trigrams, and subtract from the computed number of possible trigrams.
-        unseenBigramCount = 0;
-        for (String first : getVocabulary()) {
-            if (first.equals(STOP)) {
-                first = START;
-            }
-            for (String second : getVocabulary()) {
-                double count = bigramCounter.getCount(new Pair<String, String>(first, second));
-                if (count == 0) {
-                    unseenBigramCount++;
-                }
-            }
-        }
+        // Every (history, word) cell of the V x V table which was not observed
+        // is an unseen bigram.
+        double vocabularySize = getVocabulary().size();
+        unseenBigramCount = vocabularySize * vocabularySize - bigramCounter.size();
 
         SortedSet<Double> counts = new TreeSet<Double>(countCounter.keySet());
         for (double k : counts) {
@@ -47,25 +41,31 @@ public class GoodTuringBigramModel extends BigramModel {
         }
 
         totalPpgtProbability = 0;
-        for (Pair<String, String> bigram : bigramCounter.keySet()) {
-            double ppgt = getPpgt(bigram.getFirst(), bigram.getSecond());
+        bigrams = bigramCounter.cursor();
+        while (bigrams.advance()) {
+            double ppgt = getPpgt(bigramCounter.getWord(bigrams.key(), 0), bigramCounter.getWord(bigrams.key(), 1));
             totalPpgtProbability += ppgt;
         }
         totalPpgtProbability += (unseenBigramCount * (countCounter.getCount(1.0) / totalBigramCount));
 
 
-        marginalCountTable = new HashMap<String, Double>();
-        for (String first : this.getVocabulary()) {
-            if (first.equals(STOP)) {
-                first = START;
-            }
-            double marginalCountSum = 0;
-            for (String second : this.getVocabulary()) {
-                double count = getModifiedCountStar(first, second);
-                marginalCountSum += count;
-            }
-            marginalCountTable.put(first, marginalCountSum);
+        // A history's marginal is the modified count of its observed successors
+        // plus the modified count of an unseen bigram for every other word.
+        double unseenCountStar = getModifiedCountStar(0.0);
+        LongCounter successorCounts = new LongCounter();
+        marginalCountTable = new LongCounter();
+        bigrams = bigramCounter.cursor();
+        while (bigrams.advance()) {
+            long history = NgramCounter.getContext(bigrams.key());
+            marginalCountTable.incrementCount(history, getModifiedCountStar(bigrams.count()));
+            successorCounts.incrementCount(history, 1.0);
         }
+        LongCounter.Cursor histories = marginalCountTable.cursor();
+        while (histories.advance()) {
+            double unseenSuccessors = vocabularySize - successorCounts.getCount(histories.key());
+            histories.setCount(histories.count() + unseenSuccessors * unseenCountStar);
+        }
+        unseenHistoryMarginalCount = vocabularySize * unseenCountStar;
 
         if (false) {
             System.out.printf("\n%20s | %6s %6s %6s %6s %6s %6s %6s\n", "x", "k", "Nk", "Nk+1", "k*", "Pgt", "P'gt", "P''gt");
@@ -75,7 +75,7 @@ public class GoodTuringBigramModel extends BigramModel {
                     first = START;
                 }
                 for (String second : getVocabulary()) {
-                    double k = bigramCounter.getCount(new Pair<String, String>(first, second));
+                    double k = bigramCounter.getCount(first, second);
                     double nk = countCounter.getCount(k);
                     if (k == 0) {
                         nk = unseenBigramCount;
@@ -148,7 +148,10 @@ public class GoodTuringBigramModel extends BigramModel {
     }
 
     private double getModifiedCountStar(String first, String second) {
-        double k = bigramCounter.getCount(new Pair<String, String>(first, second));
+        return getModifiedCountStar(bigramCounter.getCount(first, second));
+    }
+
+    private double getModifiedCountStar(double k) {
         if (k >= cutoff) {
             return k;
         }
@@ -161,7 +164,7 @@ public class GoodTuringBigramModel extends BigramModel {
     }
 
     private double getCountStar(String first, String second) {
-        double k = bigramCounter.getCount(new Pair<String, String>(first, second));
+        double k = bigramCounter.getCount(first, second);
         double nk = countCounter.getCount(k);
         if (k == 0) {
             nk = unseenBigramCount;
@@ -171,7 +174,7 @@ public class GoodTuringBigramModel extends BigramModel {
     }
 
     private double getPgt(String first, String second) {
-        double k = bigramCounter.getCount(new Pair<String, String>(first, second));
+        double k = bigramCounter.getCount(first, second);
         if (k == 0) {
             return countCounter.getCount(1.0) / totalBigramCount;
         }
@@ -188,7 +191,7 @@ public class GoodTuringBigramModel extends BigramModel {
     }
 
 //    private double getPgt(String first, String second) {
-//        double k = bigramCounter.getCount(new Pair<String, String>(first, second));
+//        double k = bigramCounter.getCount(first, second);
 //        if (k >= cutoff) {
 //            return 0;
 //        }
@@ -210,22 +213,37 @@ public class GoodTuringBigramModel extends BigramModel {
     }
 
     private double getJointProbability(String first, String second) {
-        double count = getModifiedCountStar(first, second);
+        return getJointProbability(unigramModel.getWordId(first), unigramModel.getWordId(second));
+    }
+
+    private double getJointProbability(int first, int second) {
+        double count = getModifiedCountStar(bigramCounter.getCount(NgramCounter.pack(first, second)));
         return count / totalBigramCount;
     }
 
     private double getMarginalProbability(String word) {
-        double marginalCountSum = marginalCountTable.get(word);
+        return getMarginalProbability(unigramModel.getWordId(word));
+    }
+
+    private double getMarginalProbability(int history) {
+        double marginalCountSum = unseenHistoryMarginalCount;
+        if (marginalCountTable.containsKey(history)) {
+            marginalCountSum = marginalCountTable.getCount(history);
+        }
         return marginalCountSum / totalBigramCount;
     }
 
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 1);
-        String second = unigramModel.getWord(sentence, index);
+    public double getWordProbability(int first, int second) {
         double joint = getJointProbability(first, second);
         double marginal = getMarginalProbability(first);
         double probability = joint / marginal;
         return probability;
     }
+
+    @Override
+    public void getNextWordProbabilities(int first, double[] probabilities) {
+        double unseenJoint = getModifiedCountStar(0.0) / totalBigramCount;
+        fillNextWordProbabilities(first, unseenJoint / getMarginalProbability(first), probabilities);
+    }
 }
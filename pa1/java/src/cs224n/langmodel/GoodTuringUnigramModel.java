@@ -3,7 +3,6 @@ package cs224n.langmodel;
 import cs224n.util.Counter;
 
 import java.util.Collection;
-import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -15,8 +14,8 @@ public class GoodTuringUnigramModel extends UnigramModel {
     private double totalPpgtProbability;
 
     @Override
-    public void train(Collection<List<String>> sentences) {
-        super.train(sentences);
+    public void train(NgramCounts ngramCounts) {
+        super.train(ngramCounts);
 
         countCounter = new Counter<Double>();
         Collection<String> words = getVocabulary();
@@ -34,7 +33,7 @@ public class GoodTuringUnigramModel extends UnigramModel {
 
         totalPpgtProbability = 0;
         for (String word : words) {
-            double ppgt = getPpgt(word);
+            double ppgt = getPpgt(getWordId(word));
             totalPpgtProbability += ppgt;
         }
 
@@ -42,13 +41,12 @@ public class GoodTuringUnigramModel extends UnigramModel {
     }
 
     @Override
-    public double getWordProbability(List<String> sentence, int index) {
-        String word = this.getWord(sentence, index);
+    public double getWordProbability(int word) {
         return getGtSmoothedWordProbability(word);
     }
 
 
-    private double getPgt(String word) {
+    private double getPgt(int word) {
         double k = this.getWordCount(word);
         if (k >= cutoff) {
             return 0;
@@ -58,7 +56,7 @@ public class GoodTuringUnigramModel extends UnigramModel {
         return ((k + 1) * (nk1 / nk)) / this.getTotalWordCount();
     }
 
-    private double getPpgt(String word) {
+    private double getPpgt(int word) {
         double p = getPgt(word);
         if (p == 0) {
             p = this.getMleWordProbability(word);
@@ -67,6 +65,10 @@ public class GoodTuringUnigramModel extends UnigramModel {
     }
 
     public double getGtSmoothedWordProbability(String word) {
+        return getGtSmoothedWordProbability(getWordId(word));
+    }
+
+    public double getGtSmoothedWordProbability(int word) {
         return getPpgt(word) / totalPpgtProbability;
     }
 
@@ -0,0 +1,526 @@
+package cs224n.langmodel;
+
+import cs224n.util.AliasSampler;
+import cs224n.util.ClockCache;
+import cs224n.util.Filter;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
+
+import java.util.*;
+
+/**
+ * An interpolated Kneser-Ney model of order 1 to MAX_ORDER.  The probability
+ * of a word after a history of order - 1 words is
+ * <pre>
+ *   P(w | h) = max(c(hw) - D, 0) / c(h) + D * N(h) / c(h) * P(w | h')
+ * </pre>
+ * where h' is h without its first word, c(hw) is the count of hw (for the
+ * highest order) or the number of distinct words seen before it (for lower
+ * orders), c(h) is the sum of c(hv) over all v, N(h) is the number of words
+ * v with c(hv) > 0, and D is the discount of the order of hw, estimated as
+ * n1 / (n1 + 2 n2) from the numbers of n-grams of that order with counts
+ * one and two.  The lowest order interpolates with the uniform
+ * distribution, so every vocabulary word has positive probability, and a
+ * history which was never seen backs off to its longest seen suffix.
+ * <p/>
+ * The n-grams are held in a trie of sorted arrays, one level per order.
+ * Level 1 is indexed by word id; the nodes of level k are the k-grams seen,
+ * sorted by their (k-1)-gram prefix and then by last word, so the children
+ * of node p of level k - 1 are the nodes firstChild[k-1][p] to
+ * firstChild[k-1][p+1] - 1 of level k, and a child is found by binary
+ * search on its word.  Each node stores its count, and each node with
+ * children stores c(h) and N(h), so a query allocates nothing and memory
+ * grows with the number of distinct n-grams.
+ * <p/>
+ * The trie is built one level at a time, each level from one pass over the
+ * corpus which counts the pairs (node of the prefix, last word).
+ * <p/>
+ * The model lives only in the heap.  MappedNgramModel.Writer cannot write
+ * it, plainly or compressed, as the mapped formats hold n-grams of at most
+ * three words and give the words unseen after a context one flat
+ * probability rather than a backoff to the lower orders, and it trains
+ * from the sentences rather than from a count file (see
+ * NgramCounts.countToFile()), whose n-grams are of fixed orders up to
+ * three.  LanguageModelTester therefore ignores -lmfile, -counts and
+ * -compress for it, with a warning.
+ */
+public class KneserNeyModel extends LanguageModel {
+
+    public static final int MAX_ORDER = 5;
+    public static final int DEFAULT_ORDER = 3;
+
+    private int order = DEFAULT_ORDER;
+    private UnigramModel unigramModel;
+    private int vocabularySize;
+
+    // Indexed by level (1 to order); level 0 is unused.
+    private int[][] words;
+    private int[][] parents;
+    private int[][] firstChild;
+    private int[][] counts;
+    private int[][] childTotals;
+    private int[][] childTypes;
+    private double[] discounts;
+    private double unigramTotal;
+    private double unigramTypes;
+
+    private ContextSamplers samplers;
+    private volatile ClockCache<ContextState> contextCache;
+
+    /**
+     * The lookups of a history which do not depend on the word predicted:
+     * the node of each of its suffixes which has children (up to the
+     * longest), with its normalizer and backoff weight.  A state is cached
+     * under a hash of its history and keeps the history's ids, which are
+     * compared on every hit.
+     */
+    private static class ContextState {
+        final int[] history;
+        int longest;
+        final int[] nodes;
+        final double[] totals;
+        final double[] backoffs;
+
+        ContextState(int[] ids, int position, int length) {
+            history = new int[length];
+            System.arraycopy(ids, position - length, history, 0, length);
+            nodes = new int[length + 1];
+            totals = new double[length + 1];
+            backoffs = new double[length + 1];
+        }
+
+        boolean matches(int[] ids, int position) {
+            int start = position - history.length;
+            for (int i = 0; i < history.length; i++) {
+                if (ids[start + i] != history[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    public KneserNeyModel() {
+    }
+
+    public KneserNeyModel(int order) {
+        setOrder(order);
+    }
+
+    /**
+     * Sets the order of the model, which takes effect when it is next
+     * trained.
+     */
+    public void setOrder(int order) {
+        if (order < 1 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("Unsupported order: " + order);
+        }
+        this.order = order;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    @Override
+    public void setContextCacheSize(int size) {
+        contextCache = (size > 0) ? new ClockCache<ContextState>(size) : null;
+    }
+
+    @Override
+    public ClockCache<?> getContextCache() {
+        return contextCache;
+    }
+
+    @Override
+    public void train(Collection<List<String>> sentences) {
+        train(NgramCounts.count(sentences), sentences);
+    }
+
+    /**
+     * Trains the model from the word counts of a corpus and the corpus
+     * itself, which is read once for each order above the first.
+     */
+    public void train(NgramCounts wordCounts, Collection<List<String>> sentences) {
+        unigramModel = new UnigramModel() {
+            @Override
+            public double getWordProbability(int word) {
+                throw new RuntimeException("Not implemented.");
+            }
+        };
+        unigramModel.train(wordCounts);
+        vocabularySize = unigramModel.getWordIndex().size() - 1;
+
+        words = new int[order + 1][];
+        parents = new int[order + 1][];
+        firstChild = new int[order + 1][];
+        counts = new int[order + 1][];
+        childTotals = new int[order + 1][];
+        childTypes = new int[order + 1][];
+        discounts = new double[order + 1];
+
+        // Level 1 holds every word, START included, in id order.
+        int numIds = vocabularySize + 1;
+        counts[1] = new int[numIds];
+        if (order == 1) {
+            for (int id = 0; id < numIds; id++) {
+                counts[1][id] = (int) unigramModel.getWordCount(id);
+            }
+        }
+        for (int level = 2; level <= order; level++) {
+            countLevel(level, sentences);
+        }
+        for (int level = 1; level <= order; level++) {
+            discounts[level] = getDiscount(counts[level]);
+        }
+        for (int level = 1; level < order; level++) {
+            totalChildren(level);
+        }
+        unigramTotal = 0.0;
+        unigramTypes = 0.0;
+        for (int word = 0; word < vocabularySize; word++) {
+            if (counts[1][word] > 0) {
+                unigramTotal += counts[1][word];
+                unigramTypes++;
+            }
+        }
+
+        samplers = new ContextSamplers(vocabularySize) {
+            @Override
+            void getNextWordProbabilities(long context, double[] probabilities) {
+                int length = (int) (context >>> 32);
+                int[] ids = new int[order];
+                int node = (int) context;
+                for (int level = length; level >= 1; level--) {
+                    ids[order - 1 - length + level - 1] = (level == 1) ? node : words[level][node];
+                    node = (level == 1) ? -1 : parents[level][node];
+                }
+                fillNextWordProbabilities(ids, order - 1, length, probabilities);
+            }
+        };
+    }
+
+    /**
+     * Builds level k of the trie.  For each word of the corpus, the node of
+     * the (k-1)-gram ending before it is found by walking down the levels
+     * already built, and the pair (node, word) is counted.  A k-gram made of
+     * the START padding before a sentence is added with count zero, as a
+     * context for longer n-grams.  Each k-gram seen for the first time adds
+     * one to the continuation count of the (k-1)-gram ending at its last
+     * word.
+     */
+    private void countLevel(int k, Collection<List<String>> sentences) {
+        int history = order - 1;
+        int[] parentCounts = counts[k - 1];
+        LongCounter pairs = new LongCounter();
+        int[] previous = new int[64];
+        int[] current = new int[64];
+        for (List<String> sentence : sentences) {
+            int[] ids = unigramModel.getWordIds(sentence, history);
+            int length = history + sentence.size() + 1;
+            if (previous.length < length) {
+                previous = new int[2 * length];
+                current = new int[2 * length];
+            }
+            // previous[i] is the node of the (level)-gram ending at i.
+            System.arraycopy(ids, 0, previous, 0, length);
+            for (int level = 2; level < k; level++) {
+                for (int i = level - 1; i < length; i++) {
+                    current[i] = findChild(level, previous[i - 1], ids[i]);
+                }
+                int[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            for (int i = k - 1; i < length; i++) {
+                long key = ((long) previous[i - 1] << NgramCounter.BITS_PER_WORD) | ids[i];
+                if (i < history) {
+                    if (!pairs.containsKey(key)) {
+                        pairs.setCount(key, 0.0);
+                    }
+                } else if (pairs.incrementCount(key, 1.0) == 1.0) {
+                    parentCounts[previous[i]]++;
+                }
+            }
+        }
+
+        long[] keys = pairs.keys();
+        Arrays.sort(keys);
+        int size = keys.length;
+        words[k] = new int[size];
+        parents[k] = new int[size];
+        counts[k] = new int[size];
+        int[] children = new int[parentCounts.length + 1];
+        for (int node = 0; node < size; node++) {
+            long key = keys[node];
+            int parent = (int) NgramCounter.getContext(key);
+            words[k][node] = NgramCounter.getLastWordId(key);
+            parents[k][node] = parent;
+            counts[k][node] = (k == order) ? (int) pairs.getCount(key) : 0;
+            children[parent + 1]++;
+        }
+        for (int parent = 0; parent < parentCounts.length; parent++) {
+            children[parent + 1] += children[parent];
+        }
+        firstChild[k - 1] = children;
+    }
+
+    /**
+     * Sums the counts of the children of each node of a level, and counts
+     * the children with positive counts.
+     */
+    private void totalChildren(int level) {
+        int numNodes = firstChild[level].length - 1;
+        childTotals[level] = new int[numNodes];
+        childTypes[level] = new int[numNodes];
+        int[] childCounts = counts[level + 1];
+        for (int node = 0; node < numNodes; node++) {
+            for (int child = firstChild[level][node]; child < firstChild[level][node + 1]; child++) {
+                if (childCounts[child] > 0) {
+                    childTotals[level][node] += childCounts[child];
+                    childTypes[level][node]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the discount of a level as n1 / (n1 + 2 n2).
+     */
+    private static double getDiscount(int[] levelCounts) {
+        double n1 = 0.0;
+        double n2 = 0.0;
+        for (int count : levelCounts) {
+            if (count == 1) n1++;
+            else if (count == 2) n2++;
+        }
+        if (n1 == 0.0) {
+            return 0.5;
+        }
+        return n1 / (n1 + 2.0 * n2);
+    }
+
+    /**
+     * Returns the node of level k which extends the given node of level
+     * k - 1 by a word, or -1 if there is none.
+     */
+    private int findChild(int k, int parent, int word) {
+        if (parent < 0) {
+            return -1;
+        }
+        int low = firstChild[k - 1][parent];
+        int high = firstChild[k - 1][parent + 1] - 1;
+        int[] levelWords = words[k];
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = levelWords[middle];
+            if (id < word) {
+                low = middle + 1;
+            } else if (id > word) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node of the context of the given length which ends just
+     * before ids[position], or -1 if it was never seen.
+     */
+    private int findContext(int[] ids, int position, int length) {
+        int node = ids[position - length];
+        for (int level = 2; level <= length && node >= 0; level++) {
+            node = findChild(level, node, ids[position - length + level - 1]);
+        }
+        return node;
+    }
+
+
+    // Word probability methods.
+
+    /**
+     * Returns the probability of the word ids[position] following the
+     * order - 1 words before it.
+     */
+    public double getWordProbability(int[] ids, int position) {
+        int word = ids[position];
+        double probability = getUnigramProbability(word);
+        ClockCache<ContextState> cache = contextCache;
+        if (cache != null) {
+            ContextState state = getContextState(cache, ids, position);
+            for (int length = 1; length <= state.longest; length++) {
+                int child = findChild(length + 1, state.nodes[length], word);
+                int count = (child < 0) ? 0 : counts[length + 1][child];
+                double discount = discounts[length + 1];
+                probability = Math.max(count - discount, 0.0) / state.totals[length] + state.backoffs[length] * probability;
+            }
+            return probability;
+        }
+        for (int length = 1; length < order; length++) {
+            int context = findContext(ids, position, length);
+            if (context < 0 || childTotals[length][context] == 0) {
+                break;
+            }
+            int child = findChild(length + 1, context, word);
+            int count = (child < 0) ? 0 : counts[length + 1][child];
+            double discount = discounts[length + 1];
+            double total = childTotals[length][context];
+            double backoff = discount * childTypes[length][context] / total;
+            probability = Math.max(count - discount, 0.0) / total + backoff * probability;
+        }
+        return probability;
+    }
+
+    private ContextState getContextState(ClockCache<ContextState> cache, final int[] ids, final int position) {
+        int history = order - 1;
+        long key = history;
+        for (int i = position - history; i < position; i++) {
+            key = 31 * key + ids[i];
+        }
+        // The key only hashes the history, so the cache compares the full
+        // history and counts a collision as a miss.
+        ContextState state = cache.get(key, new Filter<ContextState>() {
+            public boolean accept(ContextState cached) {
+                return cached.matches(ids, position);
+            }
+        });
+        if (state != null) {
+            return state;
+        }
+        state = new ContextState(ids, position, history);
+        for (int length = 1; length <= history; length++) {
+            int context = findContext(ids, position, length);
+            if (context < 0 || childTotals[length][context] == 0) {
+                break;
+            }
+            double total = childTotals[length][context];
+            state.longest = length;
+            state.nodes[length] = context;
+            state.totals[length] = total;
+            state.backoffs[length] = discounts[length + 1] * childTypes[length][context] / total;
+        }
+        cache.put(key, state);
+        return state;
+    }
+
+    private double getUnigramProbability(int word) {
+        double discount = discounts[1];
+        double backoff = discount * unigramTypes / unigramTotal;
+        return Math.max(counts[1][word] - discount, 0.0) / unigramTotal + backoff / vocabularySize;
+    }
+
+    @Override
+    public double getWordProbability(List<String> sentence, int index) {
+        int[] ids = unigramModel.getWordIds(sentence, order - 1);
+        return getWordProbability(ids, order - 1 + index);
+    }
+
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        int[] ids = unigramModel.getWordIds(sentence, order - 1);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordLogProbability = Math.log(getWordProbability(ids, order - 1 + i));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    @Override
+    public ScoringState getStartState() {
+        int[] history = new int[order - 1];
+        Arrays.fill(history, unigramModel.getWordIndex().indexOf(START));
+        return new ScoringState(history);
+    }
+
+    @Override
+    public ScoringState extend(ScoringState state, String word) {
+        int id = unigramModel.getWordId(word);
+        int[] ids = new int[order];
+        System.arraycopy(state.history, 0, ids, 0, order - 1);
+        ids[order - 1] = id;
+        double wordProbability = getWordProbability(ids, order - 1);
+        return new ScoringState(state, word, state.shiftHistory(id), Math.log(wordProbability));
+    }
+
+    @Override
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        if (probabilities == null || probabilities.length < vocabularySize) {
+            probabilities = new double[vocabularySize];
+        }
+        int[] ids = unigramModel.getWordIds(context, order - 1);
+        fillNextWordProbabilities(ids, order - 1 + context.size(), order - 1, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Writes the probability of each word following the context of at most
+     * maxLength words before ids[position] to probabilities[word].  Each
+     * order scales the whole array by its backoff weight and then adds the
+     * discounted counts of the context's children only.
+     */
+    private void fillNextWordProbabilities(int[] ids, int position, int maxLength, double[] probabilities) {
+        for (int word = 0; word < vocabularySize; word++) {
+            probabilities[word] = getUnigramProbability(word);
+        }
+        for (int length = 1; length <= maxLength; length++) {
+            int context = findContext(ids, position, length);
+            if (context < 0 || childTotals[length][context] == 0) {
+                break;
+            }
+            double discount = discounts[length + 1];
+            double total = childTotals[length][context];
+            double backoff = discount * childTypes[length][context] / total;
+            for (int word = 0; word < vocabularySize; word++) {
+                probabilities[word] = backoff * probabilities[word];
+            }
+            int[] childCounts = counts[length + 1];
+            int[] childWords = words[length + 1];
+            for (int child = firstChild[length][context]; child < firstChild[length][context + 1]; child++) {
+                if (childCounts[child] > 0) {
+                    probabilities[childWords[child]] += Math.max(childCounts[child] - discount, 0.0) / total;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<String> getVocabulary() {
+        return unigramModel.getVocabulary();
+    }
+
+    /**
+     * Generates each word from the model's distribution after the words
+     * before it, through a cached alias table per longest seen context.
+     */
+    @Override
+    public List<String> generateSentence() {
+        int history = order - 1;
+        List<String> sentence = new ArrayList<String>();
+        int[] ids = new int[history + 1];
+        Arrays.fill(ids, unigramModel.getWordIndex().indexOf(START));
+        int stopId = unigramModel.getWordId(STOP);
+        int word;
+        do {
+            // The distribution depends only on the longest seen context.
+            long key = 0;
+            for (int length = 1; length <= history; length++) {
+                int context = findContext(ids, history, length);
+                if (context < 0 || childTotals[length][context] == 0) {
+                    break;
+                }
+                key = ((long) length << 32) | context;
+            }
+            AliasSampler sampler = samplers.get(key);
+            word = sampler.sample(getRandom());
+            sentence.add(unigramModel.getWordIndex().get(word));
+            System.arraycopy(ids, 1, ids, 0, history);
+            ids[history] = word;
+        }
+        while (word != stopId);
+        return sentence;
+    }
+}
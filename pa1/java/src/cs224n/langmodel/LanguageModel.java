@@ -1,7 +1,13 @@
 package cs224n.langmodel;
 
+import cs224n.util.ClockCache;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Language models assign probabilities to sentences and generate sentences.
@@ -14,11 +20,45 @@ public abstract class LanguageModel {
     protected static final String STOP = "</S>";
     protected static final String UNK = "*UNKNOWN*";
 
+    private Random random = new Random();
+
     /**
      * Constructs a language model from a collection of sentences.
      */
     public abstract void train(Collection<List<String>> trainingSentences);
 
+    /**
+     * Folds more sentences into the counts of a trained model, so that it
+     * scores as if it had been trained on them too, without retraining from
+     * scratch.  The vocabulary is fixed by training, so new words are
+     * counted as UNK.  Models which support updates stay safe to use from
+     * other threads during one: each probability, and each sentence scored
+     * by getSentenceLogProbability() or scoreSentences(), comes wholly from
+     * the model before the update or wholly from the model after it.  This
+     * implementation throws UnsupportedOperationException: call it only on
+     * models for which isUpdatable() is true.
+     */
+    public void update(Collection<List<String>> sentences) {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be updated");
+    }
+
+    /**
+     * Returns whether update() folds sentences into this model.  This
+     * implementation returns false.
+     */
+    public boolean isUpdatable() {
+        return false;
+    }
+
+    /**
+     * Returns whether MappedNgramModel.Writer can write the model this one
+     * would train to straight from a count file, without training it (see
+     * NgramCounts.countToFile()).  This implementation returns false.
+     */
+    public boolean canWriteFromCounts() {
+        return false;
+    }
+
     /**
      * Returns the probability, according to the model, of the word specified
      * by the argument sentence and index. Index ranges from 0 to sentence.size(),
@@ -38,6 +78,21 @@ public abstract class LanguageModel {
      */
     public abstract List<String> generateSentence();
 
+    /**
+     * Returns the source of randomness of generateSentence().
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Sets the source of randomness of generateSentence(), so that a seeded
+     * Random makes generation repeatable.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
     //-----------------------------------------------------------------------
 
     /**
@@ -46,11 +101,162 @@ public abstract class LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-        double probability = 0.0;
+        return Math.exp(getSentenceLogProbability(sentence));
+    }
+
+    /**
+     * Returns the natural log of getSentenceProbability(sentence).  Long
+     * sentences whose probability underflows to zero still get a finite
+     * log probability here.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+        return scoreSentence(sentence, null, 0);
+    }
+
+    /**
+     * Scores a batch of sentences in one call, returning the log probability
+     * of every sentence and of every word within it.
+     */
+    public SentenceScores scoreSentences(Collection<List<String>> sentences) {
+        SentenceScores scores = new SentenceScores();
+        for (List<String> sentence : sentences) {
+            int offset = scores.startSentence(sentence.size());
+            double logProbability = scoreSentence(sentence, scores.tokenLogProbabilities, offset);
+            scores.endSentence(logProbability);
+        }
+        return scores;
+    }
+
+    /**
+     * Sums the log probabilities of the words of a sentence, as scored by
+     * getSentenceProbability().  Unless tokenLogProbabilities is null, the
+     * log probability of word i is also written to
+     * tokenLogProbabilities[offset + i].  Models which can resolve a whole
+     * sentence at once should override this; it is the single path used by
+     * getSentenceProbability(), getSentenceLogProbability() and
+     * scoreSentences().
+     */
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        double logProbability = 0.0;
         for (int i = 0; i < sentence.size(); i++) {
-            probability += Math.log(getWordProbability(sentence, i));
+            double wordLogProbability = Math.log(getWordProbability(sentence, i));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    /**
+     * Returns the state of the model before the first word of a sentence.
+     */
+    public ScoringState getStartState() {
+        return new ScoringState(null);
+    }
+
+    /**
+     * Scores one more word after the prefix of the given state, returning
+     * the state of the longer prefix.  The given state is unchanged, so it
+     * may be extended by other words too.  This implementation rescores the
+     * word within a copy of the whole prefix; n-gram models override it to
+     * keep only the history they condition on.
+     */
+    public ScoringState extend(ScoringState state, String word) {
+        List<String> sentence = state.getWords();
+        sentence.add(word);
+        double wordProbability = getWordProbability(sentence, sentence.size() - 1);
+        return new ScoringState(state, word, null, Math.log(wordProbability));
+    }
+
+    /**
+     * Scores a list of alternative sentences, such as the n best guesses of
+     * a decoder, with the same results as scoreSentences().  The sentences
+     * are threaded through a trie of their prefixes, and each trie node is
+     * scored once by extend(), so a prefix shared by several sentences costs
+     * one word score per word rather than one per sentence.
+     */
+    public SentenceScores scoreNBestList(List<List<String>> sentences) {
+        SentenceScores scores = new SentenceScores();
+        PrefixNode root = new PrefixNode(getStartState());
+        for (List<String> sentence : sentences) {
+            int offset = scores.startSentence(sentence.size());
+            PrefixNode node = root;
+            for (int i = 0; i < sentence.size(); i++) {
+                node = node.getChild(this, sentence.get(i));
+                scores.tokenLogProbabilities[offset + i] = node.state.getWordLogProbability();
+            }
+            scores.endSentence(node.state.getLogProbability());
+        }
+        return scores;
+    }
+
+    /**
+     * A node of the prefix trie of scoreNBestList(), holding the state after
+     * its prefix.  Children are created, and scored, on first use.
+     */
+    private static class PrefixNode {
+        final ScoringState state;
+        private Map<String, PrefixNode> children;
+
+        PrefixNode(ScoringState state) {
+            this.state = state;
+        }
+
+        PrefixNode getChild(LanguageModel model, String word) {
+            if (children == null) {
+                children = new HashMap<String, PrefixNode>();
+            }
+            PrefixNode child = children.get(word);
+            if (child == null) {
+                child = new PrefixNode(model.extend(state, word));
+                children.put(word, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Caches the looked-up state (such as the normalizer and backoff weight)
+     * of up to the given number of contexts, so that scoring many sentences
+     * which share contexts looks each one up once.  A size of zero turns
+     * the cache off.  Models whose contexts cost no more to look up than
+     * their words ignore this.
+     */
+    public void setContextCacheSize(int size) {
+    }
+
+    /**
+     * Returns the context cache, whose hit and miss counts show how well it
+     * works, or null if the model has none.
+     */
+    public ClockCache<?> getContextCache() {
+        return null;
+    }
+
+    /**
+     * Returns the probability of every word of the vocabulary following the
+     * given context (the words of a sentence so far): element i is the
+     * probability of the i-th word of getVocabulary().  The probabilities
+     * are written to the given array if it is long enough, and otherwise
+     * to a new one.  This implementation calls getWordProbability() once
+     * per word; models which can look up the context once, and then only
+     * the words seen after it, should override it.
+     */
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        Collection<String> vocabulary = getVocabulary();
+        if (probabilities == null || probabilities.length < vocabulary.size()) {
+            probabilities = new double[vocabulary.size()];
+        }
+        List<String> sentence = new ArrayList<String>(context);
+        int lastIndex = sentence.size();
+        sentence.add(null);
+        int i = 0;
+        for (String token : vocabulary) {
+            sentence.set(lastIndex, token);
+            probabilities[i++] = getWordProbability(sentence, lastIndex);
         }
-        return Math.exp(probability);
+        return probabilities;
     }
 
     /**
@@ -59,12 +265,11 @@ public abstract class LanguageModel {
      * distribution, this should always sum to 1.
      */
     public double checkProbability(List<String> context) {
+        int vocabularySize = getVocabulary().size();
+        double[] probabilities = getNextWordProbabilities(context, null);
         double modelsum = 0.0;
-        for (String token : getVocabulary()) {
-            context.add(token);
-            int lastIndex = context.size() - 1;
-            modelsum += getWordProbability(context, lastIndex);
-            context.remove(lastIndex);
+        for (int i = 0; i < vocabularySize; i++) {
+            modelsum += probabilities[i];
         }
         return modelsum;
     }
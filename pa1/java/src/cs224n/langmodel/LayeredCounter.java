@@ -0,0 +1,154 @@
+package cs224n.langmodel;
+
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
+
+import java.util.Arrays;
+
+/**
+ * An immutable map from packed n-grams or contexts to counts, for the
+ * tables of a model which is updated while it is read.  The counts are
+ * kept in two layers: a base counter, which is never changed once layered,
+ * and a delta counter holding the new count of every key changed since the
+ * base was built.  plus() returns a new LayeredCounter which shares the
+ * base and copies only the delta, so that an update costs time in the size
+ * of the delta rather than of the table.  When the delta outgrows
+ * 1 / DELTA_FRACTION of the base, the two are merged into a new base; the
+ * merge is amortized over the keys changed since the last one, so an
+ * update costs DELTA_FRACTION per key it changes plus the copy of a delta
+ * which never exceeds 1 / DELTA_FRACTION of the table.
+ */
+final class LayeredCounter {
+
+    static final int DELTA_FRACTION = 32;
+    static final int MIN_DELTA_SIZE = 1 << 12;
+
+    /**
+     * A base counter, with its keys sorted when first needed.  Layered
+     * counters which share the base share the sorted keys too.
+     */
+    private static final class Base {
+        final LongCounter counts;
+        private volatile long[] sortedKeys;
+
+        Base(LongCounter counts) {
+            this.counts = counts;
+        }
+
+        long[] getSortedKeys() {
+            long[] keys = sortedKeys;
+            if (keys == null) {
+                keys = counts.keys();
+                Arrays.sort(keys);
+                sortedKeys = keys;
+            }
+            return keys;
+        }
+    }
+
+    private final Base base;
+    private final LongCounter delta;
+    private final int size;
+    // The keys of the delta which are not in the base, sorted when first
+    // needed.
+    private volatile long[] sortedNewKeys;
+
+    /**
+     * Layers the given counts, which the caller must not change once the
+     * layered counter is shared with readers.
+     */
+    LayeredCounter(LongCounter counts) {
+        this(new Base(counts), new LongCounter(), counts.size());
+    }
+
+    private LayeredCounter(Base base, LongCounter delta, int size) {
+        this.base = base;
+        this.delta = delta;
+        this.size = size;
+    }
+
+    /**
+     * Returns the count of the key, or zero if it has none.
+     */
+    double getCount(long key) {
+        if (delta.isEmpty()) {
+            return base.counts.getCount(key);
+        }
+        double count = delta.getCount(key);
+        if (count != 0.0 || delta.containsKey(key)) {
+            return count;
+        }
+        return base.counts.getCount(key);
+    }
+
+    /**
+     * The number of keys with a count.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a layered counter with the given increments added to these
+     * counts, which are left unchanged.
+     */
+    LayeredCounter plus(LongCounter increments) {
+        LongCounter newDelta = new LongCounter(delta);
+        int newSize = size;
+        LongCounter.Cursor cursor = increments.cursor();
+        while (cursor.advance()) {
+            long key = cursor.key();
+            if (!newDelta.containsKey(key)) {
+                if (!base.counts.containsKey(key)) {
+                    newSize++;
+                }
+                newDelta.setCount(key, base.counts.getCount(key));
+            }
+            newDelta.incrementCount(key, cursor.count());
+        }
+        if (newDelta.size() <= Math.max(MIN_DELTA_SIZE, base.counts.size() / DELTA_FRACTION)) {
+            return new LayeredCounter(base, newDelta, newSize);
+        }
+        LongCounter merged = new LongCounter(base.counts);
+        LongCounter.Cursor changed = newDelta.cursor();
+        while (changed.advance()) {
+            merged.setCount(changed.key(), changed.count());
+        }
+        return new LayeredCounter(new Base(merged), new LongCounter(), newSize);
+    }
+
+    /**
+     * Returns the packed n-grams of this counter whose context is the given
+     * packed context: those of the base in increasing order, followed by
+     * those added since in increasing order.
+     */
+    long[] getSuccessors(long context) {
+        long[] baseKeys = base.getSortedKeys();
+        int baseStart = NgramCounter.findContext(baseKeys, context);
+        int baseEnd = NgramCounter.findContext(baseKeys, context + 1);
+        long[] newKeys = getSortedNewKeys();
+        int newStart = NgramCounter.findContext(newKeys, context);
+        int newEnd = NgramCounter.findContext(newKeys, context + 1);
+        long[] successors = new long[baseEnd - baseStart + newEnd - newStart];
+        System.arraycopy(baseKeys, baseStart, successors, 0, baseEnd - baseStart);
+        System.arraycopy(newKeys, newStart, successors, baseEnd - baseStart, newEnd - newStart);
+        return successors;
+    }
+
+    private long[] getSortedNewKeys() {
+        long[] keys = sortedNewKeys;
+        if (keys == null) {
+            keys = new long[size - base.counts.size()];
+            int i = 0;
+            LongCounter.Cursor cursor = delta.cursor();
+            while (cursor.advance()) {
+                if (!base.counts.containsKey(cursor.key())) {
+                    keys[i++] = cursor.key();
+                }
+            }
+            Arrays.sort(keys);
+            sortedNewKeys = keys;
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,1390 @@
+package cs224n.langmodel;
+
+import cs224n.util.AliasSampler;
+import cs224n.util.ClockCache;
+import cs224n.util.Codebook;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
+import cs224n.util.StringPool;
+import cs224n.util.SymbolTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A read-only n-gram model which answers queries straight from a binary
+ * model file mapped into memory.  Loading a model only maps the file, so it
+ * takes milliseconds however large the model is, and JVMs which map the
+ * same file share its pages through the operating system's page cache.
+ * <p/>
+ * Model files are written from a trained UnigramModel, BigramModel or
+ * TrigramModel by Writer.write().  The models of this package give every
+ * word which was not seen after a context the same probability, and every
+ * unseen context the same distribution, so a file holds:
+ * <ul>
+ * <li>the vocabulary (plus START), sorted by UTF-8 bytes, so that words are
+ * looked up by binary search in the mapped file;</li>
+ * <li>the sorted packed keys (see NgramCounter) of the seen contexts, each
+ * with the log probability of a word not seen after it, which is what the
+ * context backs off to;</li>
+ * <li>for each context, the sorted ids of the words seen after it and their
+ * log probabilities;</li>
+ * <li>the log probability of a word after an unseen context.</li>
+ * </ul>
+ * A unigram model is stored as a single empty context.  Log probabilities
+ * are stored as floats, so scores agree with the original model to about
+ * seven significant digits.
+ * <p/>
+ * Writer.writeCompressed() writes a smaller file, for deploying many
+ * models side by side.  It drops the n-grams (and then the contexts) whose
+ * removal changes the model least, by the relative entropy criterion of
+ * Stolcke (1998); it quantizes log probabilities and backoffs to one-byte
+ * codes; and it stores keys and word ids as variable-length differences.
+ * The compressed format is read by this class too.  Its lookups scan a
+ * block of contexts and then the context's words rather than binary
+ * searching them, so a context cache (see setContextCacheSize()) pays off
+ * more there.
+ */
+public class MappedNgramModel extends LanguageModel {
+
+    static final int MAGIC = 0x4e47524d;  // "NGRM"
+    static final int VERSION = 1;
+    static final int COMPRESSED_VERSION = 2;
+
+    /**
+     * The byte offsets of the sections of a model file.  The header is
+     * eleven ints: magic, version, order, numWords, startId, stopId, unkId,
+     * numContexts, numNgrams, the length of the word bytes, and the unseen
+     * context log probability (a float).  The sections follow, each aligned
+     * to eight bytes:
+     * <pre>
+     *   int[numWords + 1]     wordOffsets          into wordBytes
+     *   byte[]                wordBytes            UTF-8, in id order
+     *   long[numContexts]     contextKeys          sorted
+     *   float[numContexts]    contextBackoffs
+     *   int[numContexts + 1]  contextFirstNgrams   into the n-gram arrays
+     *   int[numNgrams]        ngramWords           sorted within a context
+     *   float[numNgrams]      ngramLogProbabilities
+     * </pre>
+     */
+    static class Layout {
+        static final int HEADER_SIZE = 48;
+
+        final int wordOffsets;
+        final int wordBytes;
+        final int contextKeys;
+        final int contextBackoffs;
+        final int contextFirstNgrams;
+        final int ngramWords;
+        final int ngramLogProbabilities;
+        final int size;
+
+        Layout(int numWords, int wordBytesLength, int numContexts, int numNgrams) throws IOException {
+            long position = HEADER_SIZE;
+            wordOffsets = (int) position;
+            position = align(position + 4L * (numWords + 1));
+            wordBytes = (int) position;
+            position = align(position + wordBytesLength);
+            contextKeys = (int) position;
+            position = align(position + 8L * numContexts);
+            contextBackoffs = (int) position;
+            position = align(position + 4L * numContexts);
+            contextFirstNgrams = (int) position;
+            position = align(position + 4L * (numContexts + 1));
+            ngramWords = (int) position;
+            position = align(position + 4L * numNgrams);
+            ngramLogProbabilities = (int) position;
+            position = align(position + 4L * numNgrams);
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Model files are limited to " + Integer.MAX_VALUE + " bytes");
+            }
+            size = (int) position;
+        }
+
+        static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+    }
+
+    /**
+     * The byte offsets of the sections of a compressed model file.  The
+     * header is that of Layout, with its version set to COMPRESSED_VERSION
+     * and two more ints, the lengths of the context bytes and the n-gram
+     * bytes; numContexts and numNgrams count what is left after pruning.
+     * Contexts are grouped into blocks of CONTEXT_BLOCK.  The sections
+     * follow, each aligned to eight bytes:
+     * <pre>
+     *   int[numWords + 1]     wordOffsets          into wordBytes
+     *   byte[]                wordBytes            UTF-8, in id order
+     *   float[256]            probabilityCodebook
+     *   float[256]            backoffCodebook
+     *   long[numBlocks]       blockKeys            key of a block's first context
+     *   int[numBlocks]        blockContexts        into contextBytes
+     *   int[numBlocks]        blockNgrams          into ngramBytes
+     *   byte[]                contextBytes
+     *   byte[]                ngramBytes
+     * </pre>
+     * A context is stored in contextBytes as the varint difference of its
+     * key from that of the context before it (left out for the first of a
+     * block), a backoff code, and the varint length of its n-grams in
+     * ngramBytes.  An n-gram is stored there as the varint difference of its
+     * word id from that of the n-gram before it in its context (the first
+     * id is stored as it is), followed by a probability code.  Varints hold
+     * seven bits per byte, low bits first, with the high bit set on all but
+     * the last byte.
+     */
+    static class CompressedLayout {
+        static final int HEADER_SIZE = 56;
+        static final int CONTEXT_BLOCK = 32;
+
+        final int numBlocks;
+        final int wordOffsets;
+        final int wordBytes;
+        final int probabilityCodebook;
+        final int backoffCodebook;
+        final int blockKeys;
+        final int blockContexts;
+        final int blockNgrams;
+        final int contextBytes;
+        final int ngramBytes;
+        final int size;
+
+        CompressedLayout(int numWords, int wordBytesLength, int numContexts,
+                         int contextBytesLength, int ngramBytesLength) throws IOException {
+            numBlocks = (numContexts + CONTEXT_BLOCK - 1) / CONTEXT_BLOCK;
+            long position = HEADER_SIZE;
+            wordOffsets = (int) position;
+            position = Layout.align(position + 4L * (numWords + 1));
+            wordBytes = (int) position;
+            position = Layout.align(position + wordBytesLength);
+            probabilityCodebook = (int) position;
+            position = Layout.align(position + 4L * Codebook.MAX_SIZE);
+            backoffCodebook = (int) position;
+            position = Layout.align(position + 4L * Codebook.MAX_SIZE);
+            blockKeys = (int) position;
+            position = Layout.align(position + 8L * numBlocks);
+            blockContexts = (int) position;
+            position = Layout.align(position + 4L * numBlocks);
+            blockNgrams = (int) position;
+            position = Layout.align(position + 4L * numBlocks);
+            contextBytes = (int) position;
+            position = Layout.align(position + contextBytesLength);
+            ngramBytes = (int) position;
+            position = Layout.align(position + ngramBytesLength);
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Model files are limited to " + Integer.MAX_VALUE + " bytes");
+            }
+            size = (int) position;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final Layout layout;
+    private final CompressedLayout compressedLayout;
+    private final StringPool words;
+    private final float[] probabilityCodebook;
+    private final float[] backoffCodebook;
+    private final int order;
+    private final int numWords;
+    private final int startId;
+    private final int stopId;
+    private final int unkId;
+    private final int numContexts;
+    private final float unseenContextLogProbability;
+    private final ContextSamplers samplers;
+    private volatile AliasSampler unseenContextSampler;
+    private volatile ClockCache<ContextState> contextCache;
+
+    /**
+     * The range of a context's n-grams and its backoff log probability.
+     * An unseen context has an empty range and the unseen-context backoff.
+     */
+    private static class ContextState {
+        final int first;
+        final int end;
+        final float backoff;
+
+        ContextState(int first, int end, float backoff) {
+            this.first = first;
+            this.end = end;
+            this.backoff = backoff;
+        }
+    }
+    private final ThreadLocal<int[]> idBuffers = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
+
+    /**
+     * Maps the model file at the given path.
+     */
+    public MappedNgramModel(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < Layout.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is not a binary n-gram model");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        int version = buffer.getInt(4);
+        if (buffer.getInt(0) != MAGIC || (version != VERSION && version != COMPRESSED_VERSION)) {
+            throw new IOException(path + " is not a binary n-gram model");
+        }
+        order = buffer.getInt(8);
+        numWords = buffer.getInt(12);
+        startId = buffer.getInt(16);
+        stopId = buffer.getInt(20);
+        unkId = buffer.getInt(24);
+        numContexts = buffer.getInt(28);
+        int numNgrams = buffer.getInt(32);
+        int wordBytesLength = buffer.getInt(36);
+        unseenContextLogProbability = buffer.getFloat(40);
+        int size;
+        int wordOffsets;
+        int wordBytes;
+        if (version == VERSION) {
+            layout = new Layout(numWords, wordBytesLength, numContexts, numNgrams);
+            compressedLayout = null;
+            wordOffsets = layout.wordOffsets;
+            wordBytes = layout.wordBytes;
+            probabilityCodebook = null;
+            backoffCodebook = null;
+            size = layout.size;
+        } else {
+            if (buffer.capacity() < CompressedLayout.HEADER_SIZE) {
+                throw new IOException(path + " is truncated");
+            }
+            layout = null;
+            compressedLayout = new CompressedLayout(numWords, wordBytesLength, numContexts,
+                                                    buffer.getInt(44), buffer.getInt(48));
+            wordOffsets = compressedLayout.wordOffsets;
+            wordBytes = compressedLayout.wordBytes;
+            probabilityCodebook = new float[Codebook.MAX_SIZE];
+            backoffCodebook = new float[Codebook.MAX_SIZE];
+            for (int code = 0; code < Codebook.MAX_SIZE; code++) {
+                probabilityCodebook[code] = buffer.getFloat(compressedLayout.probabilityCodebook + 4 * code);
+                backoffCodebook[code] = buffer.getFloat(compressedLayout.backoffCodebook + 4 * code);
+            }
+            size = compressedLayout.size;
+        }
+        if (size != buffer.capacity()) {
+            throw new IOException(path + " is truncated");
+        }
+        try {
+            words = StringPool.wrap(buffer, wordOffsets, wordBytes, numWords);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(path + " has a corrupt vocabulary");
+        }
+        samplers = new ContextSamplers(numWords) {
+            @Override
+            void getNextWordProbabilities(long context, double[] probabilities) {
+                fillNextWordProbabilities(context, probabilities, false);
+            }
+        };
+    }
+
+    /**
+     * A mapped model is trained by training a model of this package and
+     * writing it with Writer.write().
+     */
+    @Override
+    public void train(Collection<List<String>> trainingSentences) {
+        throw new UnsupportedOperationException("Mapped models are read-only");
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns whether the model was written by Writer.writeCompressed().
+     */
+    public boolean isCompressed() {
+        return compressedLayout != null;
+    }
+
+    @Override
+    public void setContextCacheSize(int size) {
+        contextCache = (size > 0) ? new ClockCache<ContextState>(size) : null;
+    }
+
+    @Override
+    public ClockCache<?> getContextCache() {
+        return contextCache;
+    }
+
+
+    // Vocabulary methods.
+
+    private String getWord(int id) {
+        return words.getString(id);
+    }
+
+    /**
+     * Returns the id of a word, or the id of UNK if the word is not in the
+     * vocabulary.  The word is binary searched for in the mapped words,
+     * which are compared with it as they are decoded, so it is not encoded.
+     */
+    public int getWordId(String word) {
+        int id = words.indexOf(word);
+        return id < 0 ? unkId : id;
+    }
+
+    private int getWordId(List<String> sentence, int index) {
+        if (index < 0) {
+            return startId;
+        }
+        if (index == sentence.size()) {
+            return stopId;
+        }
+        return getWordId(sentence.get(index));
+    }
+
+    /**
+     * Returns the vocabulary as a view of the mapped words, leaving out
+     * START, so the words after it move down one place.  Its get() builds
+     * a word's String.
+     */
+    @Override
+    public Collection<String> getVocabulary() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getWord(index < startId ? index : index + 1);
+            }
+
+            @Override
+            public int size() {
+                return numWords - 1;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                int id = words.indexOf(o);
+                return id >= 0 && id != startId;
+            }
+        };
+    }
+
+
+    // Word probability methods.
+
+    /**
+     * Returns the index of the context with the given packed key, or -1 if
+     * the context was never seen.
+     */
+    private int findContext(long context) {
+        int low = 0;
+        int high = numContexts - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long key = buffer.getLong(layout.contextKeys + 8 * middle);
+            if (key < context) {
+                low = middle + 1;
+            } else if (key > context) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the log probability of a word following the context with the
+     * given packed key.
+     */
+    public double getLogProbability(long context, int word) {
+        ClockCache<ContextState> cache = contextCache;
+        if (cache != null) {
+            ContextState state = cache.get(context);
+            if (state == null) {
+                state = getContextState(context);
+                cache.put(context, state);
+            }
+            return getLogProbability(state.first, state.end, state.backoff, word);
+        }
+        if (compressedLayout != null) {
+            ContextState state = getContextState(context);
+            return getLogProbability(state.first, state.end, state.backoff, word);
+        }
+        int c = findContext(context);
+        if (c < 0) {
+            return unseenContextLogProbability;
+        }
+        return getLogProbability(buffer.getInt(layout.contextFirstNgrams + 4 * c),
+                                 buffer.getInt(layout.contextFirstNgrams + 4 * (c + 1)),
+                                 buffer.getFloat(layout.contextBackoffs + 4 * c), word);
+    }
+
+    private ContextState getContextState(long context) {
+        if (compressedLayout != null) {
+            return findCompressedContext(context);
+        }
+        int c = findContext(context);
+        if (c < 0) {
+            return new ContextState(0, 0, unseenContextLogProbability);
+        }
+        return new ContextState(buffer.getInt(layout.contextFirstNgrams + 4 * c),
+                                buffer.getInt(layout.contextFirstNgrams + 4 * (c + 1)),
+                                buffer.getFloat(layout.contextBackoffs + 4 * c));
+    }
+
+    /**
+     * Returns the state of the context with the given packed key in a
+     * compressed model, whose range is that of its n-gram bytes.
+     */
+    private ContextState findCompressedContext(long context) {
+        int low = 0;
+        int high = compressedLayout.numBlocks - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(compressedLayout.blockKeys + 8 * middle) <= context) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block >= 0) {
+            long key = buffer.getLong(compressedLayout.blockKeys + 8 * block);
+            int position = compressedLayout.contextBytes + buffer.getInt(compressedLayout.blockContexts + 4 * block);
+            int ngrams = compressedLayout.ngramBytes + buffer.getInt(compressedLayout.blockNgrams + 4 * block);
+            int blockSize = Math.min(CompressedLayout.CONTEXT_BLOCK,
+                                     numContexts - block * CompressedLayout.CONTEXT_BLOCK);
+            for (int i = 0; i < blockSize && key <= context; i++) {
+                if (i > 0) {
+                    long difference = readVarint(position);
+                    position += getVarintLength(difference);
+                    key += difference;
+                }
+                int backoffCode = buffer.get(position++) & 0xff;
+                long length = readVarint(position);
+                position += getVarintLength(length);
+                if (key == context) {
+                    return new ContextState(ngrams, ngrams + (int) length, backoffCodebook[backoffCode]);
+                }
+                ngrams += (int) length;
+            }
+        }
+        return new ContextState(0, 0, unseenContextLogProbability);
+    }
+
+    private long readVarint(int position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(position++);
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        return value;
+    }
+
+    static int getVarintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the log probability of a word among the n-grams first to
+     * end - 1 of a context, or the context's backoff if it is not there.
+     * In a compressed model, first and end delimit the n-gram bytes.
+     */
+    private double getLogProbability(int first, int end, float backoff, int word) {
+        if (compressedLayout != null) {
+            int id = 0;
+            for (int position = first; position < end; position++) {
+                long difference = readVarint(position);
+                position += getVarintLength(difference);
+                id += (int) difference;
+                if (id >= word) {
+                    return (id == word) ? probabilityCodebook[buffer.get(position) & 0xff] : backoff;
+                }
+            }
+            return backoff;
+        }
+        int low = first;
+        int high = end - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = buffer.getInt(layout.ngramWords + 4 * middle);
+            if (id < word) {
+                low = middle + 1;
+            } else if (id > word) {
+                high = middle - 1;
+            } else {
+                return buffer.getFloat(layout.ngramLogProbabilities + 4 * middle);
+            }
+        }
+        return backoff;
+    }
+
+    @Override
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        if (probabilities == null || probabilities.length < numWords - 1) {
+            probabilities = new double[numWords - 1];
+        }
+        long key = 0;
+        for (int i = context.size() - order + 1; i < context.size(); i++) {
+            key = (key << NgramCounter.BITS_PER_WORD) | getWordId(context, i);
+        }
+        fillNextWordProbabilities(key, probabilities, true);
+        return probabilities;
+    }
+
+    /**
+     * Writes the probability of each word following a context to
+     * probabilities[id], reading the context's backoff once and then only
+     * its seen words.  If skipStart is set, START is left out and the words
+     * after it move down one place, as in getVocabulary(); otherwise START
+     * gets probability zero.
+     */
+    private void fillNextWordProbabilities(long context, double[] probabilities, boolean skipStart) {
+        ContextState state = getContextState(context);
+        int next = state.first;
+        int end = state.end;
+        double unseenProbability = Math.exp(state.backoff);
+        int length = skipStart ? numWords - 1 : numWords;
+        Arrays.fill(probabilities, 0, length, unseenProbability);
+        if (!skipStart) {
+            probabilities[startId] = 0.0;
+        }
+        if (compressedLayout != null) {
+            int id = 0;
+            for (int position = next; position < end; position++) {
+                long difference = readVarint(position);
+                position += getVarintLength(difference);
+                id += (int) difference;
+                if (id != startId) {
+                    int index = (skipStart && id > startId) ? id - 1 : id;
+                    probabilities[index] = Math.exp(probabilityCodebook[buffer.get(position) & 0xff]);
+                }
+            }
+            return;
+        }
+        for (; next < end; next++) {
+            int id = buffer.getInt(layout.ngramWords + 4 * next);
+            if (id == startId) {
+                continue;
+            }
+            int position = (skipStart && id > startId) ? id - 1 : id;
+            probabilities[position] = Math.exp(buffer.getFloat(layout.ngramLogProbabilities + 4 * next));
+        }
+    }
+
+    /**
+     * Packs the order - 1 ids before the given position into a context key.
+     */
+    private long getContext(int[] ids, int position) {
+        long context = 0;
+        for (int i = position - order + 1; i < position; i++) {
+            context = (context << NgramCounter.BITS_PER_WORD) | ids[i];
+        }
+        return context;
+    }
+
+    @Override
+    public double getWordProbability(List<String> sentence, int index) {
+        long context = 0;
+        for (int i = index - order + 1; i < index; i++) {
+            context = (context << NgramCounter.BITS_PER_WORD) | getWordId(sentence, i);
+        }
+        return Math.exp(getLogProbability(context, getWordId(sentence, index)));
+    }
+
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        int history = order - 1;
+        int size = sentence.size();
+        int[] ids = idBuffers.get();
+        if (ids.length < history + size) {
+            ids = new int[Math.max(history + size, 2 * ids.length)];
+            idBuffers.set(ids);
+        }
+        for (int i = 0; i < history; i++) {
+            ids[i] = startId;
+        }
+        for (int i = 0; i < size; i++) {
+            ids[history + i] = getWordId(sentence.get(i));
+        }
+        double logProbability = 0.0;
+        for (int i = 0; i < size; i++) {
+            int position = history + i;
+            double wordLogProbability = getLogProbability(getContext(ids, position), ids[position]);
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    @Override
+    public ScoringState getStartState() {
+        int[] history = new int[order - 1];
+        Arrays.fill(history, startId);
+        return new ScoringState(history);
+    }
+
+    @Override
+    public ScoringState extend(ScoringState state, String word) {
+        long context = 0;
+        for (int id : state.history) {
+            context = (context << NgramCounter.BITS_PER_WORD) | id;
+        }
+        int id = getWordId(word);
+        return new ScoringState(state, word, state.shiftHistory(id), getLogProbability(context, id));
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        int[] ids = new int[order - 1];
+        Arrays.fill(ids, startId);
+        List<String> sentence = new ArrayList<String>();
+        int word;
+        do {
+            long context = 0;
+            for (int id : ids) {
+                context = (context << NgramCounter.BITS_PER_WORD) | id;
+            }
+            AliasSampler sampler = samplers.get(context);
+            word = (sampler == null) ? getUnseenContextSampler().sample(getRandom()) : sampler.sample(getRandom());
+            sentence.add(getWord(word));
+            if (ids.length > 0) {
+                System.arraycopy(ids, 1, ids, 0, ids.length - 1);
+                ids[ids.length - 1] = word;
+            }
+        }
+        while (word != stopId);
+        return sentence;
+    }
+
+    /**
+     * Returns the sampler of the words after a context the model gives no
+     * word a positive probability after, as an unsmoothed model may: the
+     * distribution of an unseen context, every word but START equally
+     * likely.  (A mapped model keeps no word counts to back off to, as
+     * TrigramModel does.)  Built when first needed.
+     */
+    private AliasSampler getUnseenContextSampler() {
+        AliasSampler sampler = unseenContextSampler;
+        if (sampler == null) {
+            double[] weights = new double[numWords];
+            Arrays.fill(weights, 1.0);
+            weights[startId] = 0.0;
+            sampler = new AliasSampler(weights);
+            unseenContextSampler = sampler;
+        }
+        return sampler;
+    }
+
+
+    // =======================================================================
+
+    /**
+     * Writes trained models of this package in the format read by
+     * MappedNgramModel.
+     */
+    public static class Writer {
+
+        /**
+         * Returns whether the model is one write() and writeCompressed()
+         * take: a UnigramModel, BigramModel or TrigramModel.
+         */
+        public static boolean canWrite(LanguageModel model) {
+            return model instanceof UnigramModel || model instanceof BigramModel ||
+                model instanceof TrigramModel;
+        }
+
+        /**
+         * Writes a trained UnigramModel, BigramModel or TrigramModel to the
+         * given path.
+         */
+        public static void write(LanguageModel model, String path) throws IOException {
+            Ngrams ngrams = new Ngrams(model);
+            Layout layout = new Layout(ngrams.numWords, ngrams.wordBytesLength,
+                                       ngrams.numContexts, ngrams.keys.length);
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(0);
+                file.setLength(layout.size);
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+                putHeader(buffer, VERSION, ngrams.order, ngrams, ngrams.numContexts, ngrams.keys.length,
+                          ngrams.unseenContextLogProbability);
+                ngrams.words.write(buffer, layout.wordOffsets, layout.wordBytes, ngrams.modelIds);
+                for (int c = 0; c < ngrams.numContexts; c++) {
+                    buffer.putLong(layout.contextKeys + 8 * c, ngrams.contexts[c]);
+                    buffer.putFloat(layout.contextBackoffs + 4 * c, (float) ngrams.backoffs[c]);
+                    buffer.putInt(layout.contextFirstNgrams + 4 * c, ngrams.contextFirstNgrams[c]);
+                }
+                buffer.putInt(layout.contextFirstNgrams + 4 * ngrams.numContexts, ngrams.keys.length);
+                for (int i = 0; i < ngrams.keys.length; i++) {
+                    buffer.putInt(layout.ngramWords + 4 * i, NgramCounter.getLastWordId(ngrams.keys[i]));
+                    buffer.putFloat(layout.ngramLogProbabilities + 4 * i, (float) ngrams.logProbabilities[i]);
+                }
+                buffer.force();
+            } finally {
+                file.close();
+            }
+        }
+
+        /**
+         * Writes the model a UnigramModel, BigramModel or TrigramModel would
+         * train to from a count file, to the given path, without training
+         * it.  The n-grams are streamed from the count file a context at a
+         * time, so only the vocabulary and one context's words are in the
+         * heap, however many n-grams the file holds.  The model must give
+         * a ContextEstimator (see BigramModel.getContextEstimator()); a
+         * unigram model is trained from the word counts and written.
+         *
+         * @throws UnsupportedOperationException if the model's
+         * probabilities cannot be computed a context at a time, that is, if
+         * model.canWriteFromCounts() is false
+         */
+        public static void write(LanguageModel model, NgramCountFile counts, String path) throws IOException {
+            if (!model.canWriteFromCounts()) {
+                throw new UnsupportedOperationException(model.getClass().getName() + " cannot be written from a count file");
+            }
+            if (model instanceof UnigramModel) {
+                ((UnigramModel) model).train(counts.getWordCounts());
+                write(model, path);
+            } else if (model instanceof BigramModel) {
+                new ContextWriter(counts, 2, ((BigramModel) model).getContextEstimator(counts)).write(path);
+            } else if (model instanceof TrigramModel) {
+                new ContextWriter(counts, 3, ((TrigramModel) model).getContextEstimator(counts)).write(path);
+            } else {
+                throw new IllegalArgumentException("Cannot write a " + model.getClass().getName());
+            }
+        }
+
+        /**
+         * Writes a trained UnigramModel, BigramModel or TrigramModel to the
+         * given path in the compressed format.  Dropping an n-gram gives
+         * its probability mass to the words not seen after its context, and
+         * changes the model by the relative entropy D(p || p') of the
+         * context's distributions, weighted by the relative frequency of the
+         * context.  The n-grams of each context are dropped from the least
+         * probable up while each one raises that weighted relative entropy
+         * by less than pruningThreshold; pruning them one at a time rather
+         * than each against the full model (as Stolcke (1998) does) matters
+         * here, because backoffs are flat.  A context left without n-grams
+         * is dropped by the same test.  A threshold of zero prunes nothing.
+         */
+        public static void writeCompressed(LanguageModel model, String path, double pruningThreshold)
+            throws IOException {
+            Ngrams ngrams = new Ngrams(model);
+            if (pruningThreshold > 0.0) {
+                ngrams.prune(pruningThreshold);
+            }
+            Codebook probabilities = new Codebook(ngrams.logProbabilities, ngrams.keys.length, Codebook.MAX_SIZE);
+            Codebook backoffs = new Codebook(ngrams.backoffs, ngrams.numContexts, Codebook.MAX_SIZE);
+
+            int numBlocks = (ngrams.numContexts + CompressedLayout.CONTEXT_BLOCK - 1) / CompressedLayout.CONTEXT_BLOCK;
+            long[] blockKeys = new long[numBlocks];
+            int[] blockContexts = new int[numBlocks];
+            int[] blockNgrams = new int[numBlocks];
+            ByteArrayOutputStream contextBytes = new ByteArrayOutputStream();
+            ByteArrayOutputStream ngramBytes = new ByteArrayOutputStream();
+            for (int c = 0; c < ngrams.numContexts; c++) {
+                if (c % CompressedLayout.CONTEXT_BLOCK == 0) {
+                    int block = c / CompressedLayout.CONTEXT_BLOCK;
+                    blockKeys[block] = ngrams.contexts[c];
+                    blockContexts[block] = contextBytes.size();
+                    blockNgrams[block] = ngramBytes.size();
+                } else {
+                    writeVarint(contextBytes, ngrams.contexts[c] - ngrams.contexts[c - 1]);
+                }
+                contextBytes.write(backoffs.encode(ngrams.backoffs[c]));
+                int start = ngramBytes.size();
+                int previous = 0;
+                for (int i = ngrams.contextFirstNgrams[c]; i < ngrams.contextFirstNgrams[c + 1]; i++) {
+                    int id = NgramCounter.getLastWordId(ngrams.keys[i]);
+                    writeVarint(ngramBytes, id - previous);
+                    ngramBytes.write(probabilities.encode(ngrams.logProbabilities[i]));
+                    previous = id;
+                }
+                writeVarint(contextBytes, ngramBytes.size() - start);
+            }
+
+            CompressedLayout layout = new CompressedLayout(ngrams.numWords, ngrams.wordBytesLength, ngrams.numContexts,
+                                                           contextBytes.size(), ngramBytes.size());
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(0);
+                file.setLength(layout.size);
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+                putHeader(buffer, COMPRESSED_VERSION, ngrams.order, ngrams, ngrams.numContexts, ngrams.keys.length,
+                          ngrams.unseenContextLogProbability);
+                buffer.putInt(44, contextBytes.size());
+                buffer.putInt(48, ngramBytes.size());
+                ngrams.words.write(buffer, layout.wordOffsets, layout.wordBytes, ngrams.modelIds);
+                for (int code = 0; code < probabilities.size(); code++) {
+                    buffer.putFloat(layout.probabilityCodebook + 4 * code, probabilities.decode(code));
+                }
+                for (int code = 0; code < backoffs.size(); code++) {
+                    buffer.putFloat(layout.backoffCodebook + 4 * code, backoffs.decode(code));
+                }
+                for (int block = 0; block < numBlocks; block++) {
+                    buffer.putLong(layout.blockKeys + 8 * block, blockKeys[block]);
+                    buffer.putInt(layout.blockContexts + 4 * block, blockContexts[block]);
+                    buffer.putInt(layout.blockNgrams + 4 * block, blockNgrams[block]);
+                }
+                buffer.position(layout.contextBytes);
+                buffer.put(contextBytes.toByteArray());
+                buffer.position(layout.ngramBytes);
+                buffer.put(ngramBytes.toByteArray());
+                buffer.force();
+            } finally {
+                file.close();
+            }
+        }
+
+        private static void putHeader(ByteBuffer buffer, int version, int order, Vocabulary vocabulary,
+                                      int numContexts, int numNgrams, double unseenContextLogProbability) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, version);
+            buffer.putInt(8, order);
+            buffer.putInt(12, vocabulary.numWords);
+            buffer.putInt(16, vocabulary.fileIds[vocabulary.modelStartId]);
+            buffer.putInt(20, vocabulary.fileIds[vocabulary.index.indexOf(STOP)]);
+            buffer.putInt(24, vocabulary.fileIds[vocabulary.index.indexOf(UNK)]);
+            buffer.putInt(28, numContexts);
+            buffer.putInt(32, numNgrams);
+            buffer.putInt(36, vocabulary.wordBytesLength);
+            buffer.putFloat(40, (float) unseenContextLogProbability);
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        /**
+         * The vocabulary of a model, with the file id of each word.  File
+         * ids follow the UTF-8 order of the words.
+         */
+        private static class Vocabulary {
+            final SymbolTable<String> index;
+            final int numWords;
+            final int modelStartId;
+            final StringPool words;
+            final int[] modelIds;
+            final int[] fileIds;
+            final int wordBytesLength;
+
+            Vocabulary(SymbolTable<String> index) {
+                this.index = index;
+                numWords = index.size();
+                modelStartId = index.indexOf(START);
+
+                // The pool's ids are the model's.
+                words = new StringPool(numWords, 8 * numWords);
+                Integer[] sorted = new Integer[numWords];
+                for (int id = 0; id < numWords; id++) {
+                    words.add(index.get(id));
+                    sorted[id] = id;
+                }
+                wordBytesLength = words.getByteLength();
+                Arrays.sort(sorted, new Comparator<Integer>() {
+                    public int compare(Integer first, Integer second) {
+                        return words.compare(first, second);
+                    }
+                });
+                modelIds = new int[numWords];
+                fileIds = new int[numWords];
+                for (int fileId = 0; fileId < numWords; fileId++) {
+                    modelIds[fileId] = sorted[fileId];
+                    fileIds[sorted[fileId]] = fileId;
+                }
+            }
+        }
+
+        /**
+         * The n-grams of a trained model, keyed by file ids and sorted, with
+         * their log probabilities, their contexts, the log probability of a
+         * word not seen after each context, and the count of each context.
+         */
+        private static class Ngrams extends Vocabulary {
+            final int order;
+            final double unseenContextLogProbability;
+            long[] keys;
+            double[] logProbabilities;
+            int numContexts;
+            long[] contexts;
+            int[] contextFirstNgrams;
+            double[] backoffs;
+            double[] contextCounts;
+
+            Ngrams(LanguageModel model) {
+                super(getWordIndex(model));
+                NgramCounter counter = null;
+                if (model instanceof UnigramModel) {
+                    order = 1;
+                } else if (model instanceof BigramModel) {
+                    order = 2;
+                    counter = ((BigramModel) model).bigramCounter;
+                } else {
+                    order = 3;
+                    counter = ((TrigramModel) model).trigramCounter;
+                }
+
+                // Packed n-gram keys in file ids; sorting them groups each
+                // context's words together, in order.
+                if (order == 1) {
+                    keys = new long[numWords - 1];
+                    int i = 0;
+                    for (int fileId = 0; fileId < numWords; fileId++) {
+                        if (modelIds[fileId] != modelStartId) {
+                            keys[i++] = fileId;
+                        }
+                    }
+                } else {
+                    keys = new long[counter.size()];
+                    LongCounter.Cursor ngrams = counter.cursor();
+                    for (int i = 0; ngrams.advance(); i++) {
+                        keys[i] = toFileKey(ngrams.key(), order, fileIds);
+                    }
+                }
+                Arrays.sort(keys);
+                numContexts = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (i == 0 || NgramCounter.getContext(keys[i]) != NgramCounter.getContext(keys[i - 1])) {
+                        numContexts++;
+                    }
+                }
+
+                int[] ngram = new int[order];
+                Arrays.fill(ngram, modelStartId);
+                double unseenLogProbability = Double.NEGATIVE_INFINITY;
+                if (order > 1) {
+                    long unseenContext = findUnseenContext(keys, order, numWords);
+                    toModelIds(unseenContext << NgramCounter.BITS_PER_WORD, order, modelIds, ngram);
+                    ngram[order - 1] = index.indexOf(UNK);
+                    unseenLogProbability = Math.log(getWordProbability(model, ngram));
+                }
+                unseenContextLogProbability = unseenLogProbability;
+
+                logProbabilities = new double[keys.length];
+                contexts = new long[numContexts];
+                contextFirstNgrams = new int[numContexts + 1];
+                backoffs = new double[numContexts];
+                contextCounts = new double[numContexts];
+                int c = -1;
+                for (int i = 0; i < keys.length; i++) {
+                    long context = NgramCounter.getContext(keys[i]);
+                    if (i == 0 || context != NgramCounter.getContext(keys[i - 1])) {
+                        c++;
+                        contexts[c] = context;
+                        contextFirstNgrams[c] = i;
+                        int unseenWord = findUnseenWord(keys, i, modelIds, modelStartId);
+                        backoffs[c] = Double.NEGATIVE_INFINITY;
+                        if (unseenWord >= 0) {
+                            toModelIds(keys[i], order, modelIds, ngram);
+                            ngram[order - 1] = modelIds[unseenWord];
+                            backoffs[c] = Math.log(getWordProbability(model, ngram));
+                        }
+                    }
+                    toModelIds(keys[i], order, modelIds, ngram);
+                    logProbabilities[i] = Math.log(getWordProbability(model, ngram));
+                    if (counter != null) {
+                        long key = 0;
+                        for (int id : ngram) {
+                            key = (key << NgramCounter.BITS_PER_WORD) | id;
+                        }
+                        contextCounts[c] += Math.max(0.0, counter.getCount(key));
+                    }
+                }
+                contextFirstNgrams[numContexts] = keys.length;
+            }
+
+            /**
+             * Drops the n-grams, and then the contexts, whose removal
+             * changes the model by less than the threshold, as described at
+             * writeCompressed().  The mass of a context's dropped n-grams
+             * goes to its backoff, which the words not seen after it share.
+             */
+            void prune(double threshold) {
+                double totalCount = 0.0;
+                for (int c = 0; c < numContexts; c++) {
+                    totalCount += contextCounts[c];
+                }
+                double unseenContextProbability = Math.exp(unseenContextLogProbability);
+                int vocabularySize = numWords - 1;
+                boolean[] prunedNgrams = new boolean[keys.length];
+                boolean[] prunedContexts = new boolean[numContexts];
+                int numNgramsLeft = keys.length;
+                int numContextsLeft = numContexts;
+                for (int c = 0; c < numContexts; c++) {
+                    double contextProbability = (order == 1) ? 1.0 : contextCounts[c] / totalCount;
+                    int first = contextFirstNgrams[c];
+                    int end = contextFirstNgrams[c + 1];
+                    int numUnseen = vocabularySize - (end - first);
+                    double unseenMass = numUnseen * Math.exp(backoffs[c]);
+                    double unseenTerm = (unseenMass > 0.0) ? unseenMass * Math.log(unseenMass / numUnseen) : 0.0;
+
+                    // Try the n-grams from the least probable up, keeping
+                    // D(p || p') of the context for the pruned ones so far:
+                    // sum p log p over them and the unseen words, less
+                    // their total mass times the log of the new backoff.
+                    Integer[] candidates = new Integer[end - first];
+                    for (int i = first; i < end; i++) {
+                        candidates[i - first] = i;
+                    }
+                    Arrays.sort(candidates, new Comparator<Integer>() {
+                        public int compare(Integer i, Integer j) {
+                            return Double.compare(logProbabilities[i], logProbabilities[j]);
+                        }
+                    });
+                    double entropy = 0.0;
+                    double prunedMass = 0.0;
+                    double prunedTerm = 0.0;
+                    int numPruned = 0;
+                    for (int i : candidates) {
+                        double probability = Math.exp(logProbabilities[i]);
+                        double mass = unseenMass + prunedMass + probability;
+                        double backoff = mass / (numUnseen + numPruned + 1);
+                        double term = prunedTerm + probability * logProbabilities[i];
+                        double nextEntropy = unseenTerm + term - mass * Math.log(backoff);
+                        if (contextProbability * (nextEntropy - entropy) >= threshold) {
+                            break;
+                        }
+                        prunedNgrams[i] = true;
+                        entropy = nextEntropy;
+                        prunedMass += probability;
+                        prunedTerm = term;
+                        numPruned++;
+                    }
+                    if (numPruned == 0) {
+                        continue;
+                    }
+                    numNgramsLeft -= numPruned;
+                    double backoff = (unseenMass + prunedMass) / (numUnseen + numPruned);
+                    backoffs[c] = Math.log(backoff);
+                    if (order > 1 && numPruned == end - first) {
+                        // The rise in D(p || p') if the context went too,
+                        // and its words got the probability of an unseen
+                        // context instead of the backoff.
+                        double rise = vocabularySize * backoff * Math.log(backoff / unseenContextProbability);
+                        if (contextProbability * rise < threshold) {
+                            prunedContexts[c] = true;
+                            numContextsLeft--;
+                        }
+                    }
+                }
+
+                long[] keptKeys = new long[numNgramsLeft];
+                double[] keptLogProbabilities = new double[numNgramsLeft];
+                long[] keptContexts = new long[numContextsLeft];
+                int[] keptContextFirstNgrams = new int[numContextsLeft + 1];
+                double[] keptBackoffs = new double[numContextsLeft];
+                double[] keptContextCounts = new double[numContextsLeft];
+                int n = 0;
+                int k = 0;
+                for (int c = 0; c < numContexts; c++) {
+                    if (prunedContexts[c]) {
+                        continue;
+                    }
+                    keptContexts[k] = contexts[c];
+                    keptContextFirstNgrams[k] = n;
+                    keptBackoffs[k] = backoffs[c];
+                    keptContextCounts[k] = contextCounts[c];
+                    k++;
+                    for (int i = contextFirstNgrams[c]; i < contextFirstNgrams[c + 1]; i++) {
+                        if (!prunedNgrams[i]) {
+                            keptKeys[n] = keys[i];
+                            keptLogProbabilities[n] = logProbabilities[i];
+                            n++;
+                        }
+                    }
+                }
+                keptContextFirstNgrams[numContextsLeft] = numNgramsLeft;
+                keys = keptKeys;
+                logProbabilities = keptLogProbabilities;
+                numContexts = numContextsLeft;
+                contexts = keptContexts;
+                contextFirstNgrams = keptContextFirstNgrams;
+                backoffs = keptBackoffs;
+                contextCounts = keptContextCounts;
+            }
+        }
+
+        /**
+         * Writes a model from a count file a context at a time.  The count
+         * file is sorted by model ids, and the model file by file ids, so
+         * the records are split by their first word, in file id order, then
+         * each part by its second word, and so on down to the contexts,
+         * whose words are sorted as they are written.  Each split reads the
+         * records once, in order.
+         */
+        private static class ContextWriter {
+            final NgramCountFile counts;
+            final int order;
+            final ContextEstimator estimator;
+            final Vocabulary vocabulary;
+            final int[] words;
+            final double[] wordCounts;
+            final double[] probabilities;
+            final long[] sorted;
+            final int[] unseenContext;
+            boolean foundUnseenContext;
+            MappedByteBuffer buffer;
+            Layout layout;
+            int numContexts;
+            int numNgrams;
+
+            ContextWriter(NgramCountFile counts, int order, ContextEstimator estimator) {
+                this.counts = counts;
+                this.order = order;
+                this.estimator = estimator;
+                vocabulary = new Vocabulary(counts.getWordIndex());
+                words = new int[vocabulary.numWords];
+                wordCounts = new double[vocabulary.numWords];
+                probabilities = new double[vocabulary.numWords];
+                sorted = new long[vocabulary.numWords];
+                unseenContext = new int[order - 1];
+            }
+
+            void write(String path) throws IOException {
+                long size = counts.size(order);
+                long contexts = counts.getNumContexts(order);
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Model files are limited to " + Integer.MAX_VALUE + " n-grams");
+                }
+                layout = new Layout(vocabulary.numWords, vocabulary.wordBytesLength, (int) contexts, (int) size);
+                RandomAccessFile file = new RandomAccessFile(path, "rw");
+                try {
+                    file.setLength(0);
+                    file.setLength(layout.size);
+                    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+                    vocabulary.words.write(buffer, layout.wordOffsets, layout.wordBytes, vocabulary.modelIds);
+                    writeContexts(0, size, 0);
+                    buffer.putInt(layout.contextFirstNgrams + 4 * numContexts, numNgrams);
+
+                    int[] ngram = new int[order];
+                    toModelIds(toContextKey(unseenContext) << NgramCounter.BITS_PER_WORD, order,
+                               vocabulary.modelIds, ngram);
+                    long context = 0;
+                    for (int position = 0; position < order - 1; position++) {
+                        context = (context << NgramCounter.BITS_PER_WORD) | ngram[position];
+                    }
+                    double unseenContextLogProbability = Math.log(estimator.estimate(context, words, wordCounts, 0,
+                                                                                     probabilities));
+                    putHeader(buffer, VERSION, order, vocabulary, numContexts, numNgrams,
+                              unseenContextLogProbability);
+                    buffer.force();
+                } finally {
+                    buffer = null;
+                    file.close();
+                }
+            }
+
+            /**
+             * Writes the contexts of the records first to end, which share
+             * their first depth words, in file id order.
+             */
+            private void writeContexts(long first, long end, int depth) throws IOException {
+                if (depth == order - 1) {
+                    writeContext(first, end);
+                    return;
+                }
+                int shift = (order - 1 - depth) * NgramCounter.BITS_PER_WORD;
+                long[] parts = new long[16];
+                long[] starts = new long[16];
+                int numParts = 0;
+                int previous = -1;
+                for (long i = first; i < end; i++) {
+                    int id = NgramCounter.getLastWordId(counts.getKey(order, i) >>> shift);
+                    if (id != previous) {
+                        if (numParts == parts.length) {
+                            parts = Arrays.copyOf(parts, 2 * numParts);
+                            starts = Arrays.copyOf(starts, 2 * numParts);
+                        }
+                        parts[numParts] = ((long) vocabulary.fileIds[id] << 32) | numParts;
+                        starts[numParts] = i;
+                        numParts++;
+                        previous = id;
+                    }
+                }
+                Arrays.sort(parts, 0, numParts);
+                for (int p = 0; p < numParts; p++) {
+                    int part = (int) parts[p];
+                    long partEnd = (part + 1 < numParts) ? starts[part + 1] : end;
+                    writeContexts(starts[part], partEnd, depth + 1);
+                }
+            }
+
+            /**
+             * Writes the context of the records first to end, which are the
+             * n-grams seen after it.
+             */
+            private void writeContext(long first, long end) throws IOException {
+                int size = (int) (end - first);
+                long context = NgramCounter.getContext(counts.getKey(order, first));
+                for (int i = 0; i < size; i++) {
+                    words[i] = NgramCounter.getLastWordId(counts.getKey(order, first + i));
+                    wordCounts[i] = counts.getCount(order, first + i);
+                }
+                double unseenProbability = estimator.estimate(context, words, wordCounts, size, probabilities);
+
+                int numSeen = 0;
+                for (int i = 0; i < size; i++) {
+                    sorted[i] = ((long) vocabulary.fileIds[words[i]] << 32) | i;
+                    if (words[i] != vocabulary.modelStartId) {
+                        numSeen++;
+                    }
+                }
+                Arrays.sort(sorted, 0, size);
+                long fileContext = toFileKey(context, order - 1, vocabulary.fileIds);
+                double backoff = (numSeen == vocabulary.numWords - 1) ? Double.NEGATIVE_INFINITY
+                                                                       : Math.log(unseenProbability);
+                buffer.putLong(layout.contextKeys + 8 * numContexts, fileContext);
+                buffer.putFloat(layout.contextBackoffs + 4 * numContexts, (float) backoff);
+                buffer.putInt(layout.contextFirstNgrams + 4 * numContexts, numNgrams);
+                numContexts++;
+                for (int i = 0; i < size; i++) {
+                    buffer.putInt(layout.ngramWords + 4 * numNgrams, (int) (sorted[i] >>> 32));
+                    buffer.putFloat(layout.ngramLogProbabilities + 4 * numNgrams,
+                                    (float) Math.log(probabilities[(int) sorted[i]]));
+                    numNgrams++;
+                }
+
+                // Contexts come in order, so the smallest unseen one is
+                // found as findUnseenContext() finds it.
+                if (!foundUnseenContext) {
+                    long candidate = toContextKey(unseenContext);
+                    if (fileContext > candidate) {
+                        foundUnseenContext = true;
+                    } else if (fileContext == candidate) {
+                        int position = unseenContext.length - 1;
+                        while (position >= 0 && ++unseenContext[position] == vocabulary.numWords) {
+                            unseenContext[position--] = 0;
+                        }
+                    }
+                }
+            }
+
+            private static long toContextKey(int[] ids) {
+                long key = 0;
+                for (int id : ids) {
+                    key = (key << NgramCounter.BITS_PER_WORD) | id;
+                }
+                return key;
+            }
+        }
+
+        private static SymbolTable<String> getWordIndex(LanguageModel model) {
+            if (model instanceof UnigramModel) {
+                return ((UnigramModel) model).getWordIndex();
+            } else if (model instanceof BigramModel) {
+                return ((BigramModel) model).unigramModel.getWordIndex();
+            } else if (model instanceof TrigramModel) {
+                return ((TrigramModel) model).unigramModel.getWordIndex();
+            }
+            throw new IllegalArgumentException("Cannot write a " + model.getClass().getName());
+        }
+
+        private static double getWordProbability(LanguageModel model, int[] ngram) {
+            if (model instanceof UnigramModel) {
+                return ((UnigramModel) model).getWordProbability(ngram[0]);
+            } else if (model instanceof BigramModel) {
+                return ((BigramModel) model).getWordProbability(ngram[0], ngram[1]);
+            } else {
+                return ((TrigramModel) model).getWordProbability(ngram[0], ngram[1], ngram[2]);
+            }
+        }
+
+        private static long toFileKey(long key, int order, int[] fileIds) {
+            long fileKey = 0;
+            for (int position = 0; position < order; position++) {
+                int shift = (order - 1 - position) * NgramCounter.BITS_PER_WORD;
+                int id = NgramCounter.getLastWordId(key >>> shift);
+                fileKey = (fileKey << NgramCounter.BITS_PER_WORD) | fileIds[id];
+            }
+            return fileKey;
+        }
+
+        private static void toModelIds(long fileKey, int order, int[] modelIds, int[] ngram) {
+            for (int position = 0; position < order; position++) {
+                int shift = (order - 1 - position) * NgramCounter.BITS_PER_WORD;
+                ngram[position] = modelIds[NgramCounter.getLastWordId(fileKey >>> shift)];
+            }
+        }
+
+        /**
+         * Returns the smallest file id (other than START) which does not
+         * follow the context of keys[first], or -1 if every word does.
+         */
+        private static int findUnseenWord(long[] keys, int first, int[] modelIds, int modelStartId) {
+            long context = NgramCounter.getContext(keys[first]);
+            int candidate = skipStart(0, modelIds, modelStartId);
+            for (int i = first; i < keys.length && NgramCounter.getContext(keys[i]) == context; i++) {
+                int word = NgramCounter.getLastWordId(keys[i]);
+                if (word > candidate) {
+                    break;
+                }
+                if (word == candidate) {
+                    candidate = skipStart(candidate + 1, modelIds, modelStartId);
+                }
+            }
+            return candidate < modelIds.length ? candidate : -1;
+        }
+
+        private static int skipStart(int fileId, int[] modelIds, int modelStartId) {
+            if (fileId < modelIds.length && modelIds[fileId] == modelStartId) {
+                fileId++;
+            }
+            return fileId;
+        }
+
+        /**
+         * Returns the smallest packed context which no key has.  (If every
+         * context has been seen, the unseen context probability is never
+         * used, and any context will do.)
+         */
+        private static long findUnseenContext(long[] keys, int order, int numWords) {
+            int[] candidate = new int[order - 1];
+            for (int i = 0; i < keys.length; i++) {
+                long context = NgramCounter.getContext(keys[i]);
+                long candidateContext = 0;
+                for (int id : candidate) {
+                    candidateContext = (candidateContext << NgramCounter.BITS_PER_WORD) | id;
+                }
+                if (context > candidateContext) {
+                    return candidateContext;
+                }
+                if (context == candidateContext) {
+                    // Advance the candidate like an odometer over word ids.
+                    int position = candidate.length - 1;
+                    while (position >= 0 && ++candidate[position] == numWords) {
+                        candidate[position--] = 0;
+                    }
+                }
+            }
+            long candidateContext = 0;
+            for (int id : candidate) {
+                candidateContext = (candidateContext << NgramCounter.BITS_PER_WORD) | id;
+            }
+            return candidateContext;
+        }
+    }
+}
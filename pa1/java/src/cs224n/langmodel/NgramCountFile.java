@@ -0,0 +1,240 @@
+package cs224n.langmodel;
+
+import cs224n.util.NgramCounter;
+import cs224n.util.ObjectDoubleCounter;
+import cs224n.util.SymbolTable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A count file written by NgramCounts.countToFile(), read in place.  Only
+ * the word counts are loaded.  The n-grams of each order are fixed-size
+ * records (a packed key and a count) sorted by key, and are read from the
+ * file a block at a time as they are asked for, so a count file may hold
+ * more n-grams than fit in the heap.  MappedNgramModel.Writer writes models
+ * from one without training them; NgramCounts.read() loads one into the
+ * heap.
+ * <p/>
+ * A count file is not safe for use by several threads at once.
+ */
+public class NgramCountFile {
+
+    static final int RECORD_SIZE = 16;
+    static final int BLOCK_SIZE = 1 << 12;
+
+    private final File file;
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+    private final NgramCounts wordCounts;
+    private final long[] positions = new long[NgramCounter.MAX_ORDER + 1];
+    private final long[] sizes = new long[NgramCounter.MAX_ORDER + 1];
+    private final double[] totalCounts = new double[NgramCounter.MAX_ORDER + 1];
+    private final long[] numContexts = new long[NgramCounter.MAX_ORDER + 1];
+    private final ByteBuffer[] blocks = new ByteBuffer[NgramCounter.MAX_ORDER + 1];
+    private final long[] blockStarts = new long[NgramCounter.MAX_ORDER + 1];
+
+    /**
+     * Opens a count file and reads its word counts.
+     */
+    public NgramCountFile(File file) throws IOException {
+        this.file = file;
+        input = new RandomAccessFile(file, "r");
+        channel = input.getChannel();
+        try {
+            long position = 8;
+            int numOrders;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != NgramCounts.FILE_MAGIC || in.readInt() != NgramCounts.FILE_VERSION) {
+                    throw new IOException("Not an n-gram count file: " + file);
+                }
+                ObjectDoubleCounter<String> wordCounter = new ObjectDoubleCounter<String>();
+                int numWords = in.readInt();
+                position += 4;
+                List<String> words = new ArrayList<String>(numWords);
+                for (int i = 0; i < numWords; i++) {
+                    String word = in.readUTF();
+                    double count = in.readDouble();
+                    words.add(word);
+                    if (count > 0.0) {
+                        wordCounter.setCount(word, count);
+                    }
+                    position += 2 + getUtfLength(word) + 8;
+                }
+                wordCounts = NgramCounts.ofWordCounts(words, wordCounter);
+                numOrders = in.readInt();
+                position += 4;
+            } finally {
+                in.close();
+            }
+            // The n-grams are not read through the stream: each order's
+            // header is read where it lies, and its records skipped.
+            ByteBuffer header = ByteBuffer.allocate(12);
+            for (int o = 0; o < numOrders; o++) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, position + header.position()) < 0) {
+                        throw new EOFException(file + " is truncated");
+                    }
+                }
+                int order = header.getInt(0);
+                long size = header.getLong(4);
+                if (order < 2 || order > NgramCounter.MAX_ORDER || size < 0) {
+                    throw new IOException("Corrupt n-gram count file: " + file);
+                }
+                positions[order] = position + 12;
+                sizes[order] = size;
+                numContexts[order] = -1;
+                position = positions[order] + RECORD_SIZE * size;
+            }
+            if (position > channel.size()) {
+                throw new IOException(file + " is truncated");
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the word counts and word index of the file, as NgramCounts
+     * with no n-grams counted.
+     */
+    public NgramCounts getWordCounts() {
+        return wordCounts;
+    }
+
+    public SymbolTable<String> getWordIndex() {
+        return wordCounts.getWordIndex();
+    }
+
+    /**
+     * Returns whether the file holds n-grams of the given order.
+     */
+    public boolean hasOrder(int order) {
+        return order >= 2 && order <= NgramCounter.MAX_ORDER && positions[order] > 0;
+    }
+
+    /**
+     * Returns the number of distinct n-grams of the given order.
+     */
+    public long size(int order) {
+        checkOrder(order);
+        return sizes[order];
+    }
+
+    /**
+     * Returns the packed key of the i-th n-gram of the given order, in
+     * increasing order of keys.
+     */
+    public long getKey(int order, long i) throws IOException {
+        return getBlock(order, i).getLong((int) (i - blockStarts[order]) * RECORD_SIZE);
+    }
+
+    /**
+     * Returns the count of the i-th n-gram of the given order.
+     */
+    public double getCount(int order, long i) throws IOException {
+        return getBlock(order, i).getDouble((int) (i - blockStarts[order]) * RECORD_SIZE + 8);
+    }
+
+    /**
+     * Returns the total count of the n-grams of the given order, summed by a
+     * pass over them the first time it is asked for.
+     */
+    public double getTotalCount(int order) throws IOException {
+        scan(order);
+        return totalCounts[order];
+    }
+
+    /**
+     * Returns the number of distinct contexts of the n-grams of the given
+     * order, counted by a pass over them the first time it is asked for.
+     */
+    public long getNumContexts(int order) throws IOException {
+        scan(order);
+        return numContexts[order];
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private void scan(int order) throws IOException {
+        checkOrder(order);
+        if (numContexts[order] >= 0) {
+            return;
+        }
+        double totalCount = 0.0;
+        long contexts = 0;
+        long previous = -1;
+        for (long i = 0; i < sizes[order]; i++) {
+            long context = NgramCounter.getContext(getKey(order, i));
+            if (i == 0 || context != previous) {
+                contexts++;
+                previous = context;
+            }
+            totalCount += getCount(order, i);
+        }
+        totalCounts[order] = totalCount;
+        numContexts[order] = contexts;
+    }
+
+    /**
+     * Returns the block of records holding the i-th n-gram of the given
+     * order, reading it from the file if it is not the last one read.
+     */
+    private ByteBuffer getBlock(int order, long i) throws IOException {
+        checkOrder(order);
+        if (i < 0 || i >= sizes[order]) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + sizes[order]);
+        }
+        ByteBuffer block = blocks[order];
+        if (block == null) {
+            block = ByteBuffer.allocate(RECORD_SIZE * BLOCK_SIZE);
+            blocks[order] = block;
+        } else if (i >= blockStarts[order] && i - blockStarts[order] < block.limit() / RECORD_SIZE) {
+            return block;
+        }
+        long start = i - i % BLOCK_SIZE;
+        block.clear();
+        block.limit((int) Math.min(BLOCK_SIZE, sizes[order] - start) * RECORD_SIZE);
+        long position = positions[order] + RECORD_SIZE * start;
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                throw new EOFException(file + " is truncated");
+            }
+        }
+        blockStarts[order] = start;
+        return block;
+    }
+
+    private void checkOrder(int order) {
+        if (!hasOrder(order)) {
+            throw new IllegalArgumentException("Order " + order + " n-grams were not counted");
+        }
+    }
+
+    /**
+     * Returns the number of bytes DataOutput.writeUTF() writes for the
+     * chars of a string, not counting its two-byte length.
+     */
+    private static int getUtfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            } else if (c <= 0x07ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
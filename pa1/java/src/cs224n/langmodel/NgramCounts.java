@@ -0,0 +1,597 @@
+package cs224n.langmodel;
+
+import cs224n.util.ExternalNgramCounter;
+import cs224n.util.LongCounter;
+import cs224n.util.NgramCounter;
+import cs224n.util.ObjectDoubleCounter;
+import cs224n.util.Sentences;
+import cs224n.util.SymbolTable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The word and n-gram counts of a training corpus, from which the models
+ * of this package train.  Counting runs on several threads:
+ * <ol>
+ * <li>The corpus is split into one shard per thread.  A Sentences file is
+ * split by line range, each shard seeking to its own byte offset.</li>
+ * <li>Each thread looks the words of its shard up in a SymbolTable the
+ * threads share, once per occurrence, and from those ids counts the words
+ * into a private array and the n-grams into private LongCounters, one per
+ * hash partition (see LongCounter.partition()).  START is numbered after
+ * every word, so until then n-grams are packed with a placeholder in its
+ * place.</li>
+ * <li>The word arrays are summed into the word counts, START is numbered,
+ * and the table is frozen.</li>
+ * <li>The partitions are merged in parallel, one task per partition, and
+ * their keys sorted.</li>
+ * <li>The merged partitions are copied into one NgramCounter per order,
+ * partition by partition in key order, with the id of START put in.</li>
+ * </ol>
+ * The table is the word index of the counts and of the models trained from
+ * them, so a word is hashed once, as it is counted, and is an id from then
+ * on: in the n-gram counters, in model files, and in the counts of more
+ * sentences folded into a model, which are taken against the same table.
+ * <p/>
+ * Counts are sums of whole numbers, so they are exact whatever the order of
+ * summation.  With one thread, words are numbered in the order they first
+ * occur in the corpus; with more, in the order the threads first reach
+ * them, so that ids, and with them the layout of the counters, may differ
+ * from run to run, though no count does.
+ * <p/>
+ * For corpora with more distinct n-grams than fit in the heap,
+ * countToFile() counts them on disk into a sorted count file.  An
+ * NgramCountFile reads it in place, and MappedNgramModel.Writer writes a
+ * model from that without the n-grams ever being in the heap; read() loads
+ * it into the heap to train a model there.
+ */
+public class NgramCounts {
+
+    static final int NUM_PARTITIONS = 64;
+    static final int FILE_MAGIC = 0x4e47434e;
+    static final int FILE_VERSION = 2;
+
+    // The id packed for START until it is numbered.  It is above every word
+    // id, as the id of START then is, so putting that in keeps keys in order.
+    private static final int START_PLACEHOLDER = NgramCounter.MAX_VOCABULARY_SIZE - 1;
+
+    private static int defaultThreads = Runtime.getRuntime().availableProcessors();
+
+    private ObjectDoubleCounter<String> wordCounter;
+    private SymbolTable<String> wordIndex;
+    private NgramCounter[] counters = new NgramCounter[NgramCounter.MAX_ORDER + 1];
+
+    // How words are numbered while they are counted: added to an open table,
+    // or looked up in a closed one, with UNK for the words it lacks.
+    private boolean open;
+    private int startId;
+    private int stopId;
+    private int unkId;
+
+    /**
+     * Returns the count of every word of the corpus, and of STOP once per
+     * sentence.
+     */
+    public ObjectDoubleCounter<String> getWordCounter() {
+        return wordCounter;
+    }
+
+    /**
+     * Returns the table the words were numbered in as they were counted,
+     * frozen: the vocabulary (the counted words plus UNK) followed by START.
+     * N-gram keys are packed from these ids, and the models trained from the
+     * counts take the table as their word index.
+     */
+    public SymbolTable<String> getWordIndex() {
+        return wordIndex;
+    }
+
+    /**
+     * Returns the counts of the n-grams of the given order.  Models which
+     * change the counts they train from must copy them first.
+     */
+    public NgramCounter getCounter(int order) {
+        if (order < 2 || order > NgramCounter.MAX_ORDER || counters[order] == null) {
+            throw new IllegalArgumentException("Order " + order + " n-grams were not counted");
+        }
+        return counters[order];
+    }
+
+    /**
+     * Sets the number of threads used by count() when none is given.
+     */
+    public static void setDefaultThreads(int threads) {
+        defaultThreads = threads;
+    }
+
+    /**
+     * Counts the words of a corpus, and its n-grams of each of the given
+     * orders, on the default number of threads, numbering the words in a
+     * table of their own.
+     */
+    public static NgramCounts count(Collection<List<String>> sentences, int... orders) {
+        return count(sentences, new SymbolTable<String>(), orders, defaultThreads);
+    }
+
+    /**
+     * Counts the words of a corpus, and its n-grams of each of the given
+     * orders, on the given number of threads, numbering the words in a
+     * table of their own.
+     */
+    public static NgramCounts count(Collection<List<String>> sentences, int[] orders, int threads) {
+        return count(sentences, new SymbolTable<String>(), orders, threads);
+    }
+
+    /**
+     * Counts the words of a corpus, and its n-grams of each of the given
+     * orders, on the default number of threads, numbering the words in the
+     * given table, which becomes the word index of the counts.
+     * <p/>
+     * A table which holds START is the word index of earlier counts, as
+     * when more sentences are folded into a model trained on those (see
+     * LanguageModel.update()): it is only looked up, and words it lacks are
+     * counted as UNK, so that n-grams are packed from the same ids.  Any
+     * other table is added to, and then has START added and is frozen; each
+     * word it held before becomes part of the vocabulary, counted or not.
+     */
+    public static NgramCounts count(Collection<List<String>> sentences, SymbolTable<String> words,
+                                    int... orders) {
+        return count(sentences, words, orders, defaultThreads);
+    }
+
+    private static NgramCounts count(Collection<List<String>> sentences, SymbolTable<String> words,
+                                     int[] orders, int threads) {
+        checkOrders(orders);
+        ExecutorService executor = null;
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        try {
+            NgramCounts counts = new NgramCounts();
+            counts.useWordIndex(words);
+            List<ShardCounts> shardCounts = counts.countShards(shard(sentences, threads), orders, executor);
+            counts.sumWordCounts(shardCounts);
+            counts.closeWordIndex();
+            if (orders.length > 0) {
+                counts.mergeNgrams(shardCounts, orders, executor);
+            }
+            return counts;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Counts the words of a corpus, and its n-grams of each of the given
+     * orders, into a count file, which NgramCountFile reads in place and
+     * read() loads.  Only the word counts are held in memory: n-grams are
+     * counted by an ExternalNgramCounter per order, each buffering
+     * bufferSize keys and spilling sorted runs to tempDir (or to the
+     * system's temporary directory if it is null).  The corpus is read once,
+     * on this thread, so its words are numbered in the order they occur.
+     */
+    public static void countToFile(Collection<List<String>> sentences, File file,
+                                   File tempDir, int bufferSize, int... orders) throws IOException {
+        checkOrders(orders);
+        NgramCounts counts = new NgramCounts();
+        counts.useWordIndex(new SymbolTable<String>());
+        ShardCounts wordCounts = new ShardCounts(0);
+        ExternalNgramCounter[] counters = new ExternalNgramCounter[orders.length];
+        for (int o = 0; o < orders.length; o++) {
+            counters[o] = new ExternalNgramCounter(tempDir, bufferSize);
+        }
+        try {
+            int history = getMaxOrder(orders) - 1;
+            int[] ids = new int[64];
+            for (List<String> sentence : sentences) {
+                ids = counts.getIds(sentence, history, ids);
+                for (int i = 0; i <= sentence.size(); i++) {
+                    wordCounts.incrementWord(ids[history + i]);
+                }
+                for (int o = 0; o < orders.length; o++) {
+                    for (int i = 0; i <= sentence.size(); i++) {
+                        counters[o].incrementCount(pack(ids, history + i, orders[o]));
+                    }
+                }
+            }
+            counts.sumWordCounts(Collections.singletonList(wordCounts));
+            counts.closeWordIndex();
+            counts.write(file, orders, counters);
+        } finally {
+            for (ExternalNgramCounter counter : counters) {
+                counter.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the word counts and the merged n-gram counts.  The file holds:
+     * <ul>
+     * <li>FILE_MAGIC and FILE_VERSION;</li>
+     * <li>the number of words in the word index, then each word (in id
+     * order, so that the ids of the keys are theirs) and its count;</li>
+     * <li>the number of orders, then for each order the order, the number
+     * of n-grams, and each packed n-gram (in increasing order) and its
+     * count.</li>
+     * </ul>
+     * The number of n-grams is only known once they have been merged, so it
+     * is written as a placeholder and filled in afterwards.
+     */
+    private void write(File file, int[] orders, ExternalNgramCounter[] counters) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        long[] sizePositions = new long[orders.length];
+        long[] sizes = new long[orders.length];
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(wordIndex.size());
+            for (String word : wordIndex) {
+                out.writeUTF(word);
+                out.writeDouble(wordCounter.getCount(word));
+            }
+            out.writeInt(orders.length);
+            for (int o = 0; o < orders.length; o++) {
+                out.writeInt(orders[o]);
+                out.flush();
+                sizePositions[o] = stream.getChannel().position();
+                out.writeLong(0L);
+                ExternalNgramCounter.Cursor cursor = counters[o].cursor();
+                while (cursor.advance()) {
+                    out.writeLong(putStartId(cursor.key(), orders[o]));
+                    out.writeDouble(cursor.count());
+                    sizes[o]++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        RandomAccessFile patch = new RandomAccessFile(file, "rw");
+        try {
+            for (int o = 0; o < orders.length; o++) {
+                patch.seek(sizePositions[o]);
+                patch.writeLong(sizes[o]);
+            }
+        } finally {
+            patch.close();
+        }
+    }
+
+    /**
+     * Loads the counts written by countToFile() into the heap.
+     */
+    public static NgramCounts read(File file) throws IOException {
+        NgramCountFile countFile = new NgramCountFile(file);
+        try {
+            NgramCounts counts = countFile.getWordCounts();
+            for (int order = 2; order <= NgramCounter.MAX_ORDER; order++) {
+                if (!countFile.hasOrder(order)) {
+                    continue;
+                }
+                long size = countFile.size(order);
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Too many order " + order + " n-grams to load: " + size);
+                }
+                NgramCounter counter = new NgramCounter(order, counts.wordIndex, (int) size);
+                for (long i = 0; i < size; i++) {
+                    counter.setCount(countFile.getKey(order, i), countFile.getCount(order, i));
+                }
+                counts.counters[order] = counter;
+            }
+            return counts;
+        } finally {
+            countFile.close();
+        }
+    }
+
+    /**
+     * Returns counts of the given words, numbered in the order given (the
+     * vocabulary followed by START, as in getWordIndex()), with no n-grams
+     * counted.
+     */
+    static NgramCounts ofWordCounts(List<String> words, ObjectDoubleCounter<String> wordCounter) {
+        NgramCounts counts = new NgramCounts();
+        counts.wordCounter = wordCounter;
+        counts.wordIndex = new SymbolTable<String>(words);
+        counts.wordIndex.freeze();
+        return counts;
+    }
+
+    /**
+     * Splits a corpus into at most numShards contiguous shards.
+     */
+    static List<Iterable<List<String>>> shard(Collection<List<String>> sentences, int numShards) {
+        List<Iterable<List<String>>> shards = new ArrayList<Iterable<List<String>>>();
+        if (sentences instanceof Sentences) {
+            final Sentences file = (Sentences) sentences;
+            int size = file.size();
+            for (int shard = 0; shard < numShards; shard++) {
+                final int from = (int) ((long) size * shard / numShards);
+                final int to = (int) ((long) size * (shard + 1) / numShards);
+                shards.add(new Iterable<List<String>>() {
+                    public Iterator<List<String>> iterator() {
+                        return file.iterator(from, to);
+                    }
+                });
+            }
+        } else {
+            List<List<String>> list;
+            if (sentences instanceof List) {
+                list = (List<List<String>>) sentences;
+            } else {
+                list = new ArrayList<List<String>>(sentences);
+            }
+            int size = list.size();
+            for (int shard = 0; shard < numShards; shard++) {
+                int from = (int) ((long) size * shard / numShards);
+                int to = (int) ((long) size * (shard + 1) / numShards);
+                shards.add(list.subList(from, to));
+            }
+        }
+        return shards;
+    }
+
+    private static void checkOrders(int[] orders) {
+        for (int order : orders) {
+            if (order < 2 || order > NgramCounter.MAX_ORDER) {
+                throw new IllegalArgumentException("Unsupported n-gram order: " + order);
+            }
+        }
+    }
+
+    /**
+     * The counts of one shard: of its words by id, and of its n-grams by
+     * order and partition.
+     */
+    private static class ShardCounts {
+        double[] wordCounts = new double[1024];
+        final LongCounter[][] partitions;
+
+        ShardCounts(int numOrders) {
+            partitions = new LongCounter[numOrders][NUM_PARTITIONS];
+            for (LongCounter[] orderPartitions : partitions) {
+                for (int p = 0; p < NUM_PARTITIONS; p++) {
+                    orderPartitions[p] = new LongCounter();
+                }
+            }
+        }
+
+        void incrementWord(int id) {
+            if (id >= wordCounts.length) {
+                wordCounts = Arrays.copyOf(wordCounts, Math.max(2 * wordCounts.length, id + 1));
+            }
+            wordCounts[id] += 1.0;
+        }
+    }
+
+    /**
+     * Takes the table the words are to be numbered in (see count()).
+     */
+    private void useWordIndex(SymbolTable<String> words) {
+        wordIndex = words;
+        open = !words.contains(LanguageModel.START);
+        if (open && words.isFrozen()) {
+            throw new IllegalArgumentException("A frozen symbol table must hold " + LanguageModel.START);
+        }
+        startId = open ? START_PLACEHOLDER : words.indexOf(LanguageModel.START);
+        stopId = getId(LanguageModel.STOP);
+        unkId = getId(LanguageModel.UNK);
+        if (stopId < 0 || unkId < 0) {
+            throw new IllegalArgumentException("A word index must hold " + LanguageModel.STOP +
+                                               " and " + LanguageModel.UNK);
+        }
+    }
+
+    /**
+     * Returns the id of a word, numbering it if the table is open, or -1 if
+     * it is not in a closed table.  Hashes the word once.
+     */
+    private int getId(String word) {
+        return open ? wordIndex.addAndGetIndex(word) : wordIndex.indexOf(word);
+    }
+
+    /**
+     * Numbers START after every word of an open table, so that it comes
+     * last, and freezes the table.
+     */
+    private void closeWordIndex() {
+        if (open) {
+            startId = wordIndex.addAndGetIndex(LanguageModel.START);
+            wordIndex.freeze();
+        }
+        if (wordIndex.size() > NgramCounter.MAX_VOCABULARY_SIZE) {
+            throw new IllegalStateException("Vocabulary exceeds " + NgramCounter.MAX_VOCABULARY_SIZE + " words");
+        }
+    }
+
+    /**
+     * Returns a key packed while the table was open with the id of START in
+     * place of START_PLACEHOLDER.  Both are above every word id, so keys
+     * keep their order.
+     */
+    private long putStartId(long key, int order) {
+        if (!open) {
+            return key;
+        }
+        for (int shift = 0; shift < order * NgramCounter.BITS_PER_WORD; shift += NgramCounter.BITS_PER_WORD) {
+            if ((int) (key >>> shift & START_PLACEHOLDER) == START_PLACEHOLDER) {
+                key ^= (long) (START_PLACEHOLDER ^ startId) << shift;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Counts each shard on its own thread.
+     */
+    private List<ShardCounts> countShards(List<Iterable<List<String>>> shards, final int[] orders,
+                                          ExecutorService executor) {
+        final int history = getMaxOrder(orders) - 1;
+        List<Callable<ShardCounts>> tasks = new ArrayList<Callable<ShardCounts>>();
+        for (final Iterable<List<String>> shard : shards) {
+            tasks.add(new Callable<ShardCounts>() {
+                public ShardCounts call() {
+                    ShardCounts shardCounts = new ShardCounts(orders.length);
+                    int[] ids = new int[64];
+                    for (List<String> sentence : shard) {
+                        ids = getIds(sentence, history, ids);
+                        for (int i = 0; i <= sentence.size(); i++) {
+                            shardCounts.incrementWord(ids[history + i]);
+                        }
+                        for (int o = 0; o < orders.length; o++) {
+                            for (int i = 0; i <= sentence.size(); i++) {
+                                long key = pack(ids, history + i, orders[o]);
+                                shardCounts.partitions[o][LongCounter.partition(key, NUM_PARTITIONS)].incrementCount(key, 1.0);
+                            }
+                        }
+                    }
+                    return shardCounts;
+                }
+            });
+        }
+        return invokeAll(tasks, executor);
+    }
+
+    /**
+     * Sums the word counts of the shards by id.
+     */
+    private void sumWordCounts(List<ShardCounts> shardCounts) {
+        // Every id counted is below the size once the shards are counted; a
+        // table given by the caller may hold other words too, whose counts
+        // are zero.
+        int size = wordIndex.size();
+        wordCounter = new ObjectDoubleCounter<String>(size);
+        for (int id = 0; id < size; id++) {
+            double count = 0.0;
+            for (ShardCounts counts : shardCounts) {
+                if (id < counts.wordCounts.length) {
+                    count += counts.wordCounts[id];
+                }
+            }
+            if (count > 0.0) {
+                wordCounter.setCount(wordIndex.get(id), count);
+            }
+        }
+    }
+
+    /**
+     * Returns the highest of the orders, or 1 if none is given (words only).
+     */
+    private static int getMaxOrder(int[] orders) {
+        int maxOrder = 1;
+        for (int order : orders) {
+            maxOrder = Math.max(maxOrder, order);
+        }
+        return maxOrder;
+    }
+
+    /**
+     * Fills ids with the ids of history START symbols, the words of the
+     * sentence (UNK for words not in a closed table) and STOP, returning ids
+     * or a larger array if it was too short.
+     */
+    private int[] getIds(List<String> sentence, int history, int[] ids) {
+        int size = sentence.size();
+        if (ids.length < history + size + 1) {
+            ids = new int[Math.max(history + size + 1, 2 * ids.length)];
+        }
+        for (int i = 0; i < history; i++) {
+            ids[i] = startId;
+        }
+        for (int i = 0; i < size; i++) {
+            int id = getId(sentence.get(i));
+            ids[history + i] = id < 0 ? unkId : id;
+        }
+        ids[history + size] = stopId;
+        return ids;
+    }
+
+    /**
+     * Packs the n-gram of the given order which ends at ids[end].
+     */
+    private static long pack(int[] ids, int end, int order) {
+        long key = 0;
+        for (int position = end - order + 1; position <= end; position++) {
+            key = (key << NgramCounter.BITS_PER_WORD) | ids[position];
+        }
+        return key;
+    }
+
+    /**
+     * Merges the n-gram counts of the shards into one NgramCounter per order.
+     */
+    private void mergeNgrams(final List<ShardCounts> shardCounts, int[] orders, ExecutorService executor) {
+        for (int o = 0; o < orders.length; o++) {
+            final int orderIndex = o;
+
+            // Merge each partition across shards, and sort its keys.
+            List<Callable<LongCounter>> mergeTasks = new ArrayList<Callable<LongCounter>>();
+            final long[][] sortedKeys = new long[NUM_PARTITIONS][];
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                final int partition = p;
+                mergeTasks.add(new Callable<LongCounter>() {
+                    public LongCounter call() {
+                        int expectedSize = 0;
+                        for (ShardCounts counts : shardCounts) {
+                            expectedSize = Math.max(expectedSize, counts.partitions[orderIndex][partition].size());
+                        }
+                        LongCounter merged = new LongCounter(expectedSize);
+                        for (ShardCounts counts : shardCounts) {
+                            merged.incrementAll(counts.partitions[orderIndex][partition]);
+                            counts.partitions[orderIndex][partition] = null;
+                        }
+                        sortedKeys[partition] = merged.keys();
+                        Arrays.sort(sortedKeys[partition]);
+                        return merged;
+                    }
+                });
+            }
+            List<LongCounter> merged = invokeAll(mergeTasks, executor);
+
+            int size = 0;
+            for (LongCounter partition : merged) {
+                size += partition.size();
+            }
+            NgramCounter counter = new NgramCounter(orders[o], wordIndex, size);
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                LongCounter partition = merged.get(p);
+                for (long key : sortedKeys[p]) {
+                    counter.setCount(putStartId(key, orders[o]), partition.getCount(key));
+                }
+            }
+            counters[orders[o]] = counter;
+        }
+    }
+
+    /**
+     * Runs the tasks on the executor (or on this thread if it is null) and
+     * returns their results in order.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,100 @@
+package cs224n.langmodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a language model after scoring a prefix of a sentence, as
+ * returned by LanguageModel.getStartState() and LanguageModel.extend().
+ * States are immutable, so any number of extensions may share one prefix.
+ * Besides the log probabilities, a state holds whatever the model needs to
+ * score the next word; for an n-gram model that is the ids of the last
+ * n - 1 words.
+ */
+public class ScoringState {
+
+    private final ScoringState previous;
+    private final String word;
+    final int[] history;
+    private final int length;
+    private final double wordLogProbability;
+    private final double logProbability;
+
+    /**
+     * Constructs the state of the empty prefix.
+     */
+    ScoringState(int[] history) {
+        this.previous = null;
+        this.word = null;
+        this.history = history;
+        this.length = 0;
+        this.wordLogProbability = 0.0;
+        this.logProbability = 0.0;
+    }
+
+    /**
+     * Constructs the state of the previous prefix followed by a word of the
+     * given log probability.
+     */
+    ScoringState(ScoringState previous, String word, int[] history, double wordLogProbability) {
+        this.previous = previous;
+        this.word = word;
+        this.history = history;
+        this.length = previous.length + 1;
+        this.wordLogProbability = wordLogProbability;
+        this.logProbability = previous.logProbability + wordLogProbability;
+    }
+
+    /**
+     * Returns the history of the next state: this one's history without its
+     * first id, followed by the given id.
+     */
+    int[] shiftHistory(int id) {
+        int[] next = new int[history.length];
+        if (next.length > 0) {
+            System.arraycopy(history, 1, next, 0, next.length - 1);
+            next[next.length - 1] = id;
+        }
+        return next;
+    }
+
+    /**
+     * The number of words scored.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * The log probability of the last word scored, or zero for the empty
+     * prefix.
+     */
+    public double getWordLogProbability() {
+        return wordLogProbability;
+    }
+
+    /**
+     * The log probability of the prefix: the sum of the log probabilities of
+     * its words, added in order, so that it equals the score of the same
+     * words by LanguageModel.getSentenceLogProbability().
+     */
+    public double getLogProbability() {
+        return logProbability;
+    }
+
+    /**
+     * Returns a new list of the words of the prefix.
+     */
+    public List<String> getWords() {
+        List<String> words = new ArrayList<String>(length + 1);
+        for (int i = 0; i < length; i++) {
+            words.add(null);
+        }
+        ScoringState state = this;
+        for (int i = length - 1; i >= 0; i--) {
+            words.set(i, state.word);
+            state = state.previous;
+        }
+        return words;
+    }
+}
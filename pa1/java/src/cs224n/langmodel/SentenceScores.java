@@ -0,0 +1,96 @@
+package cs224n.langmodel;
+
+/**
+ * The result of LanguageModel.scoreSentences(): the natural log probability
+ * of each sentence in a batch and of each word within it.  Word scores are
+ * kept in one flat array, with each sentence's words stored contiguously.
+ */
+public class SentenceScores {
+
+    double[] tokenLogProbabilities = new double[256];
+    private int[] offsets = new int[17];
+    private double[] sentenceLogProbabilities = new double[16];
+    private int size;
+
+    /**
+     * Reserves room for a sentence of the given length and returns the offset
+     * of its first word in tokenLogProbabilities.
+     */
+    int startSentence(int length) {
+        int offset = offsets[size];
+        if (offset + length > tokenLogProbabilities.length) {
+            double[] grown = new double[Math.max(offset + length, 2 * tokenLogProbabilities.length)];
+            System.arraycopy(tokenLogProbabilities, 0, grown, 0, offset);
+            tokenLogProbabilities = grown;
+        }
+        if (size == sentenceLogProbabilities.length) {
+            int[] grownOffsets = new int[2 * size + 1];
+            System.arraycopy(offsets, 0, grownOffsets, 0, size + 1);
+            offsets = grownOffsets;
+            double[] grown = new double[2 * size];
+            System.arraycopy(sentenceLogProbabilities, 0, grown, 0, size);
+            sentenceLogProbabilities = grown;
+        }
+        offsets[size + 1] = offset + length;
+        return offset;
+    }
+
+    void endSentence(double logProbability) {
+        sentenceLogProbabilities[size] = logProbability;
+        size++;
+    }
+
+    /**
+     * The number of sentences scored.
+     */
+    public int size() {
+        return size;
+    }
+
+    public double getSentenceLogProbability(int sentence) {
+        return sentenceLogProbabilities[sentence];
+    }
+
+    /**
+     * The number of words scored in the given sentence.
+     */
+    public int getTokenCount(int sentence) {
+        return offsets[sentence + 1] - offsets[sentence];
+    }
+
+    public double getTokenLogProbability(int sentence, int token) {
+        return tokenLogProbabilities[offsets[sentence] + token];
+    }
+
+    /**
+     * Returns the index of the highest scoring sentence (the first one, if
+     * several tie), or -1 if no sentences were scored.
+     */
+    public int argMax() {
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (best < 0 || sentenceLogProbabilities[i] > sentenceLogProbabilities[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The sum of the log probabilities of all sentences.
+     */
+    public double totalLogProbability() {
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += sentenceLogProbabilities[i];
+        }
+        return total;
+    }
+
+    /**
+     * The number of words scored over all sentences.
+     */
+    public int totalTokenCount() {
+        return offsets[size];
+    }
+}
@@ -3,26 +3,66 @@ package cs224n.langmodel;
 
 import cs224n.util.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 public abstract class TrigramModel extends LanguageModel {
+    // The model as trained, which subclasses compute their probabilities
+    // from.  update() leaves these alone, and publishes a new snapshot.
     protected UnigramModel unigramModel;
 //    protected BigramModel bigramModel;
 
-    protected Counter<Pair<Pair<String, String>, String>> trigramCounter;
+    protected NgramCounter trigramCounter;
 //    protected FastTriCounter fastTriCounter;
     protected double totalTrigramCount;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Everything the methods of this class read of the model: the unigram
+     * model, the trigram counts and their total, and the samplers of
+     * generateSentence().  A snapshot is never changed once published (its
+     * caches only fill), and it is published by one volatile write, so a
+     * reader which takes one sees one consistent model whatever updates
+     * follow.  Models which support updates extend it with the tables their
+     * probabilities are computed from.
+     */
+    class Snapshot {
+        final UnigramModel unigramModel;
+        final LayeredCounter trigrams;
+        final double totalCount;
+        final ContextSamplers samplers;
+
+        Snapshot(UnigramModel unigramModel, LayeredCounter trigrams, double totalCount) {
+            this.unigramModel = unigramModel;
+            this.trigrams = trigrams;
+            this.totalCount = totalCount;
+            this.samplers = new ContextSamplers(unigramModel.getWordIndex().size() - 1) {
+                @Override
+                void getNextWordProbabilities(long context, double[] probabilities) {
+                    TrigramModel.this.getNextWordProbabilities(Snapshot.this, (int) NgramCounter.getContext(context),
+                                                               NgramCounter.getLastWordId(context), probabilities);
+                }
+            };
+        }
+    }
 
     @Override
     public void train(Collection<List<String>> sentences) {
-        unigramModel = new UnigramModel() {
-            @Override
-            public double getWordProbability(List<String> sentence, int index) {
-                throw new RuntimeException("Not implemented.");
-            }
-        };
-        unigramModel.train(sentences);
+        train(NgramCounts.count(sentences, 3));
+    }
+
+    /**
+     * Trains the model from the word and trigram counts of a corpus.  The
+     * trigram counts are copied, so subclasses may change them.
+     */
+    public void train(NgramCounts counts) {
+        unigramModel = UnigramModel.trainWordCounts(counts);
+        trigramCounter = new NgramCounter(counts.getCounter(3));
+        totalTrigramCount = trigramCounter.totalCount();
+        publish(new Snapshot(unigramModel, new LayeredCounter(trigramCounter.getCounts()), totalTrigramCount));
 
         // XXX  Needed for back-off.
 //        bigramModel = new BigramModel() {
@@ -33,55 +73,191 @@ public abstract class TrigramModel extends LanguageModel {
 //        };
 //        bigramModel.train(sentences);
 
-        trigramCounter = new Counter<Pair<Pair<String, String>, String>>();
 //        fastTriCounter = new FastTriCounter();
-
-        for (List<String> sentence : sentences) {
-            for (int i=0; i<=sentence.size(); i++) {
-                String first = unigramModel.getWord(sentence, i-2);
-                String second = unigramModel.getWord(sentence, i-1);
-                String third = unigramModel.getWord(sentence, i);
-                trigramCounter.incrementCount(new Pair<Pair<String, String>, String>(new Pair<String, String>(first, second), third), 1.0);
-//                fastTriCounter.increment(first, second, third);
-            }
-        }
-        totalTrigramCount = trigramCounter.totalCount();
 //        totalTrigramCount = fastTriCounter.getTotalCount();
     }
 
+    /**
+     * Returns the snapshot of the model last published.
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the model, on training or update, to the
+     * readers which follow.
+     */
+    void publish(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     @Override
     public Collection<String> getVocabulary() {
-        return unigramModel.getVocabulary();
+        return snapshot.unigramModel.getVocabulary();
     }
 
+    /**
+     * Generates each word from the model's distribution following the two
+     * previous words, through a cached alias table per context.  A context
+     * after which the model gives no word a positive probability falls back
+     * to the unigram counts.
+     */
     @Override
     public List<String> generateSentence() {
-        return unigramModel.generateSentence();
+        Snapshot snapshot = this.snapshot;
+        UnigramModel unigramModel = snapshot.unigramModel;
+        List<String> sentence = new ArrayList<String>();
+        int stopId = unigramModel.getWordId(STOP);
+        int first = unigramModel.getWordIndex().indexOf(START);
+        int second = first;
+        int word;
+        do {
+            AliasSampler sampler = snapshot.samplers.get(NgramCounter.pack(first, second));
+            word = (sampler == null) ? unigramModel.generateWordId(getRandom()) : sampler.sample(getRandom());
+            sentence.add(unigramModel.getWordIndex().get(word));
+            first = second;
+            second = word;
+        }
+        while (word != stopId);
+        return sentence;
     }
 
 
     // Word probability methods.
 
-    private double getJointProbability(String first, String second, String third) {
-        double trigramCount = trigramCounter.getCount(new Pair<Pair<String, String>, String>(new Pair<String, String>(first, second), third));
+    /**
+     * Returns the probability of the word with id third following the words
+     * with ids first and second.  Ids are those of
+     * unigramModel.getWordIndex().
+     */
+    public abstract double getWordProbability(int first, int second, int third);
+
+    @Override
+    public double getWordProbability(List<String> sentence, int index) {
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 2);
+        int second = unigramModel.getWordId(sentence, index - 1);
+        int third = unigramModel.getWordId(sentence, index);
+        return getWordProbability(first, second, third);
+    }
+
+    @Override
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int vocabularySize = unigramModel.getWordIndex().size() - 1;
+        if (probabilities == null || probabilities.length < vocabularySize) {
+            probabilities = new double[vocabularySize];
+        }
+        int first = unigramModel.getWordId(context, context.size() - 2);
+        int second = unigramModel.getWordId(context, context.size() - 1);
+        getNextWordProbabilities(first, second, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Fills probabilities[word] with the probability of each word following
+     * the words with ids first and second.  This implementation calls
+     * getWordProbability(first, second, word) once per word.  Subclasses
+     * which give every unseen trigram of a context the same probability
+     * should override it to call fillNextWordProbabilities().
+     */
+    public void getNextWordProbabilities(int first, int second, double[] probabilities) {
+        int vocabularySize = snapshot.unigramModel.getWordIndex().size() - 1;
+        for (int word = 0; word < vocabularySize; word++) {
+            probabilities[word] = getWordProbability(first, second, word);
+        }
+    }
+
+    /**
+     * Fills probabilities as getNextWordProbabilities(first, second,
+     * probabilities) does, from the given snapshot; the samplers of a
+     * snapshot fill their tables through it.  This implementation ignores
+     * the snapshot, which is right for models which are never updated;
+     * models which are override it.
+     */
+    void getNextWordProbabilities(Snapshot snapshot, int first, int second, double[] probabilities) {
+        getNextWordProbabilities(first, second, probabilities);
+    }
+
+    /**
+     * Returns an estimator of the probabilities this model would have if it
+     * were trained on the counts of a count file, so that it can be written
+     * from the file without being trained (see ContextEstimator).  This
+     * implementation throws UnsupportedOperationException; models whose
+     * probabilities after two words depend only on the trigrams seen after
+     * them and on totals override it, and canWriteFromCounts().
+     */
+    ContextEstimator getContextEstimator(NgramCountFile countFile) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be written from a count file");
+    }
+
+    /**
+     * Fills probabilities with unseenProbability, and then with
+     * getWordProbability(first, second, word) for each word seen after
+     * first and second.  This costs one probability per seen trigram
+     * instead of one per word.
+     */
+    protected void fillNextWordProbabilities(int first, int second, double unseenProbability,
+                                             double[] probabilities) {
+        Snapshot snapshot = this.snapshot;
+        Arrays.fill(probabilities, 0, snapshot.unigramModel.getWordIndex().size() - 1, unseenProbability);
+        for (long trigram : snapshot.trigrams.getSuccessors(NgramCounter.pack(first, second))) {
+            int word = NgramCounter.getLastWordId(trigram);
+            probabilities[word] = getWordProbability(first, second, word);
+        }
+    }
+
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        int[] ids = snapshot.unigramModel.getWordIds(sentence, 2);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordLogProbability = Math.log(getWordProbability(ids[i], ids[i + 1], ids[i + 2]));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    @Override
+    public ScoringState getStartState() {
+        int startId = snapshot.unigramModel.getWordIndex().indexOf(START);
+        return new ScoringState(new int[] { startId, startId });
+    }
+
+    @Override
+    public ScoringState extend(ScoringState state, String word) {
+        int id = snapshot.unigramModel.getWordId(word);
+        double wordProbability = getWordProbability(state.history[0], state.history[1], id);
+        return new ScoringState(state, word, state.shiftHistory(id), Math.log(wordProbability));
+    }
+
+    private double getJointProbability(Snapshot snapshot, int first, int second, int third) {
+        double trigramCount = snapshot.trigrams.getCount(NgramCounter.pack(first, second, third));
 //        double trigramCount = fastTriCounter.get(first, second, third);
-        return trigramCount / totalTrigramCount;
+        return trigramCount / snapshot.totalCount;
     }
 
-    private double getMarginalProbability(String word) {
-        double unigramCount = unigramModel.getWordCount(word);
-        return unigramCount / totalTrigramCount;
+    private double getMarginalProbability(Snapshot snapshot, int word) {
+        double unigramCount = snapshot.unigramModel.getWordCount(word);
+        return unigramCount / snapshot.totalCount;
     }
 
     public double getMleWordProbability(List<String> sentence, int index) {
-        String first = unigramModel.getWord(sentence, index - 2);
-        String second = unigramModel.getWord(sentence, index - 1);
-        String third = unigramModel.getWord(sentence, index);
-        double joint = getJointProbability(first, second, third);
-        double marginal = getMarginalProbability(third);
+        UnigramModel unigramModel = snapshot.unigramModel;
+        int first = unigramModel.getWordId(sentence, index - 2);
+        int second = unigramModel.getWordId(sentence, index - 1);
+        int third = unigramModel.getWordId(sentence, index);
+        return getMleWordProbability(first, second, third);
+    }
+
+    public double getMleWordProbability(int first, int second, int third) {
+        Snapshot snapshot = this.snapshot;
+        double joint = getJointProbability(snapshot, first, second, third);
+        double marginal = getMarginalProbability(snapshot, third);
         return joint / marginal;
     }
 }
-
-
-
@@ -1,30 +1,171 @@
 package cs224n.langmodel;
 
-import cs224n.util.Counter;
+import cs224n.util.AliasSampler;
+import cs224n.util.ObjectDoubleCounter;
+import cs224n.util.StringPool;
+import cs224n.util.SymbolTable;
 
 import java.util.*;
 
 public abstract class UnigramModel extends LanguageModel {
 
-    private Counter<String> wordCounter;
     private double totalCount;
     private Set<String> vocabulary;
 
+    // Vocabulary words get ids 0..V-1 in vocabulary order, and START gets V.
+    // The words are also pooled under the same ids, for the vocabulary view.
+    private SymbolTable<String> wordIndex;
+    private StringPool words;
+    private double[] wordCounts;
+    private int startId;
+    private int stopId;
+    private int unkId;
+    private volatile AliasSampler sampler;
+    private final ThreadLocal<int[]> idBuffers = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
+
     @Override
     public void train(Collection<List<String>> sentences) {
-        wordCounter = new Counter<String>();
-        for (List<String> sentence : sentences) {
-            for (String word : sentence) {
-                wordCounter.incrementCount(word, 1.0);
+        train(NgramCounts.count(sentences));
+    }
+
+    /**
+     * Trains the model from the word counts of a corpus.
+     */
+    public void train(NgramCounts counts) {
+        ObjectDoubleCounter<String> wordCounter = counts.getWordCounter();
+        totalCount = wordCounter.totalCount();
+
+        wordIndex = counts.getWordIndex();
+        startId = wordIndex.indexOf(START);
+        stopId = wordIndex.indexOf(STOP);
+        unkId = wordIndex.indexOf(UNK);
+        wordCounts = new double[wordIndex.size()];
+        words = new StringPool(wordIndex.size(), 8 * wordIndex.size());
+        for (int id = 0; id < wordCounts.length; id++) {
+            wordCounts[id] = wordCounter.getCount(wordIndex.get(id));
+            words.add(wordIndex.get(id));
+        }
+        words.trimToSize();
+        vocabulary = new Vocabulary();
+        sampler = buildSampler();
+    }
+
+    /**
+     * Builds the sampler of generateWordId(): words are generated in
+     * proportion to their counts, with a count of one reserved for unknown
+     * words.
+     */
+    private AliasSampler buildSampler() {
+        double[] weights = new double[startId];
+        System.arraycopy(wordCounts, 0, weights, 0, startId);
+        weights[unkId] += 1.0;
+        return new AliasSampler(weights);
+    }
+
+    /**
+     * Trains a unigram model which only maps words to ids and holds the
+     * word counts, as the n-gram models of this package need.
+     */
+    static UnigramModel trainWordCounts(NgramCounts counts) {
+        UnigramModel unigramModel = newWordCountModel();
+        unigramModel.train(counts);
+        return unigramModel;
+    }
+
+    private static UnigramModel newWordCountModel() {
+        return new UnigramModel() {
+            @Override
+            public double getWordProbability(int word) {
+                throw new RuntimeException("Not implemented.");
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of this word count model (see trainWordCounts()) with
+     * the word counts of more sentences, counted against its word index,
+     * added, for the unigram model of an updated n-gram model.  This model
+     * is left unchanged.  The copy shares its word index, pool and
+     * vocabulary, which an update never changes, so it costs one pass over
+     * the word counts; its sampler is only built if it generates a word.
+     */
+    UnigramModel addWordCounts(NgramCounts more) {
+        UnigramModel updated = newWordCountModel();
+        updated.wordIndex = wordIndex;
+        updated.words = words;
+        updated.vocabulary = vocabulary;
+        updated.startId = startId;
+        updated.stopId = stopId;
+        updated.unkId = unkId;
+        updated.wordCounts = wordCounts.clone();
+        ObjectDoubleCounter<String> moreCounts = more.getWordCounter();
+        ObjectDoubleCounter<String>.Cursor cursor = moreCounts.cursor();
+        while (cursor.advance()) {
+            int id = wordIndex.indexOf(cursor.key());
+            if (id >= 0) {
+                updated.wordCounts[id] += cursor.count();
             }
-            wordCounter.incrementCount(STOP, 1.0);
         }
-        totalCount = wordCounter.totalCount();
+        updated.totalCount = totalCount + moreCounts.totalCount();
+        return updated;
+    }
 
-        vocabulary = new TreeSet<String>();
-        vocabulary.addAll(wordCounter.keySet());
-        vocabulary.add(UNK);
-        vocabulary = Collections.unmodifiableSet(vocabulary);
+    /**
+     * The vocabulary (the words of the word index but START), as a view of
+     * the word pool rather than a set of its own.  Iteration is in id
+     * order, and builds each word's String.
+     */
+    private class Vocabulary extends AbstractSet<String> {
+        @Override
+        public int size() {
+            return words.size() - 1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            int id = words.indexOf(o);
+            return id >= 0 && id != startId;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = (startId == 0) ? 1 : 0;
+
+                public boolean hasNext() {
+                    return next < words.size();
+                }
+
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String word = words.getString(next++);
+                    if (next == startId) {
+                        next++;
+                    }
+                    return word;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns true: a unigram model trains from the word counts alone, which
+     * MappedNgramModel.Writer reads from a count file.
+     */
+    @Override
+    public boolean canWriteFromCounts() {
+        return true;
     }
 
     @Override
@@ -37,32 +178,37 @@ public abstract class UnigramModel extends LanguageModel {
     }
 
     public double getWordCount(String word) {
-        return wordCounter.getCount(word);
+        int id = wordIndex.indexOf(word);
+        return id < 0 ? 0.0 : wordCounts[id];
+    }
+
+    public double getWordCount(int word) {
+        return wordCounts[word];
     }
 
     @Override
     public List<String> generateSentence() {
         List<String> sentence = new ArrayList<String>();
-        String word;
+        int word;
         do {
-            word = generateWord();
-            sentence.add(word);
+            word = generateWordId(getRandom());
+            sentence.add(wordIndex.get(word));
         }
-        while (!word.equals(STOP));
+        while (word != stopId);
         return sentence;
     }
 
-    private String generateWord() {
-        double sample = Math.random();
-        double sum = 0.0;
-        for (String word : wordCounter.keySet()) {
-            sum += wordCounter.getCount(word) / (totalCount + 1.0);
-            if (sum > sample) {
-                return word;
-            }
+    /**
+     * Draws the id of a word with probability proportional to its count,
+     * or UNK with probability 1 / (totalCount + 1), in constant time.
+     */
+    int generateWordId(Random random) {
+        AliasSampler sampler = this.sampler;
+        if (sampler == null) {
+            sampler = buildSampler();
+            this.sampler = sampler;
         }
-        // Some mass reserved for unknown words: 1 / (totalCount+1)
-        return LanguageModel.UNK;
+        return sampler.sample(random);
     }
 
     protected String getWord(List<String> sentence, int index) {
@@ -82,16 +228,118 @@ public abstract class UnigramModel extends LanguageModel {
     }
 
 
+    // Word id methods.
+
+    /**
+     * Returns the index which maps the vocabulary (plus START) to the ids
+     * used by the id-based probability methods of this model family: the
+     * frozen table the training words were numbered in as they were counted
+     * (see NgramCounts.getWordIndex()).
+     */
+    public SymbolTable<String> getWordIndex() {
+        return wordIndex;
+    }
+
+    /**
+     * Returns the id of a word, or the id of UNK if the word is not in the
+     * vocabulary.
+     */
+    public int getWordId(String word) {
+        int id = wordIndex.indexOf(word);
+        return id < 0 ? unkId : id;
+    }
+
+    /**
+     * Id counterpart of getWord(sentence, index).
+     */
+    protected int getWordId(List<String> sentence, int index) {
+        if (index < 0) {
+            return startId;
+        }
+        if (index == sentence.size()) {
+            return stopId;
+        }
+        return getWordId(sentence.get(index));
+    }
+
+    /**
+     * Maps a sentence to word ids in one pass.  The returned array holds
+     * history START ids, then the ids of the sentence's words, then the id
+     * of STOP; the id of word i is therefore at position history + i.  The
+     * array is a per-thread scratch buffer which is reused by the next call
+     * on the same thread.
+     */
+    protected int[] getWordIds(List<String> sentence, int history) {
+        int size = sentence.size();
+        int[] ids = idBuffers.get();
+        if (ids.length < history + size + 1) {
+            ids = new int[Math.max(history + size + 1, 2 * ids.length)];
+            idBuffers.set(ids);
+        }
+        for (int i = 0; i < history; i++) {
+            ids[i] = startId;
+        }
+        for (int i = 0; i < size; i++) {
+            ids[history + i] = getWordId(sentence.get(i));
+        }
+        ids[history + size] = stopId;
+        return ids;
+    }
+
+
     // Word probability methods.
 
+    /**
+     * Returns the probability of the word with the given id.
+     */
+    public abstract double getWordProbability(int word);
+
+    @Override
+    public double getWordProbability(List<String> sentence, int index) {
+        return getWordProbability(getWordId(sentence, index));
+    }
+
+    @Override
+    public double[] getNextWordProbabilities(List<String> context, double[] probabilities) {
+        if (probabilities == null || probabilities.length < startId) {
+            probabilities = new double[startId];
+        }
+        for (int word = 0; word < startId; word++) {
+            probabilities[word] = getWordProbability(word);
+        }
+        return probabilities;
+    }
+
+    @Override
+    protected double scoreSentence(List<String> sentence, double[] tokenLogProbabilities, int offset) {
+        int[] ids = getWordIds(sentence, 0);
+        double logProbability = 0.0;
+        for (int i = 0; i < sentence.size(); i++) {
+            double wordLogProbability = Math.log(getWordProbability(ids[i]));
+            if (tokenLogProbabilities != null) {
+                tokenLogProbabilities[offset + i] = wordLogProbability;
+            }
+            logProbability += wordLogProbability;
+        }
+        return logProbability;
+    }
+
+    @Override
+    public ScoringState extend(ScoringState state, String word) {
+        return new ScoringState(state, word, null, Math.log(getWordProbability(getWordId(word))));
+    }
+
     public double getMleWordProbability(List<String> sentence, int index) {
-        String word = getWord(sentence, index);
-        return getMleWordProbability(word);
+        return getMleWordProbability(getWordId(sentence, index));
     }
 
     public double getMleWordProbability(String word) {
+        return getMleWordProbability(getWordId(word));
+    }
+
+    public double getMleWordProbability(int word) {
         // Some mass reserved for unknown words: 1 / (totalCount+1)
-        double count = Math.max(1.0, wordCounter.getCount(word));
+        double count = Math.max(1.0, wordCounts[word]);
         return count / (totalCount + 1.0);
     }
 
@@ -0,0 +1,117 @@
+package cs224n.util;
+
+import java.util.Random;
+
+/**
+ * Samples indices from a fixed discrete distribution in constant time,
+ * using Walker's alias method as constructed by Vose.  The distribution is
+ * laid out as n columns of equal height 1/n; column i keeps probability[i]
+ * of its height for index i and gives the rest to index alias[i].  A sample
+ * picks a column uniformly and then one of its two indices, so it costs one
+ * random number however large n is.  Construction takes O(n) time.
+ */
+public class AliasSampler {
+
+  private final float[] probabilities;
+  private final int[] aliases;
+
+  /**
+   * Draws an index with probability proportional to its weight.
+   */
+  public int sample(Random random) {
+    double u = random.nextDouble() * probabilities.length;
+    int column = (int) u;
+    if (column == probabilities.length) column--;
+    return (u - column < probabilities[column]) ? column : aliases[column];
+  }
+
+  /**
+   * The number of indices, including those of weight zero.
+   */
+  public int size() {
+    return probabilities.length;
+  }
+
+  /**
+   * Constructs a sampler for indices 0..weights.length-1.
+   */
+  public AliasSampler(double[] weights) {
+    this(weights, weights.length);
+  }
+
+  /**
+   * Constructs a sampler for indices 0..size-1, drawn with probability
+   * proportional to weights[0, size).  The weights must be non-negative and
+   * have a positive, finite sum.
+   */
+  public AliasSampler(double[] weights, int size) {
+    double total = 0.0;
+    for (int i = 0; i < size; i++) {
+      if (!(weights[i] >= 0.0)) {
+        throw new IllegalArgumentException("Bad weight for index " + i + ": " + weights[i]);
+      }
+      total += weights[i];
+    }
+    if (!(total > 0.0) || Double.isInfinite(total)) {
+      throw new IllegalArgumentException("Weights must have a positive, finite sum: " + total);
+    }
+    probabilities = new float[size];
+    aliases = new int[size];
+
+    // Scale the weights to average one, and split the columns into those
+    // below and those at or above the average.
+    double[] scaled = new double[size];
+    int[] small = new int[size];
+    int[] large = new int[size];
+    int numSmall = 0;
+    int numLarge = 0;
+    for (int i = 0; i < size; i++) {
+      scaled[i] = weights[i] * size / total;
+      if (scaled[i] < 1.0) {
+        small[numSmall++] = i;
+      } else {
+        large[numLarge++] = i;
+      }
+    }
+
+    // Fill each short column from a tall one, which may become short.
+    while (numSmall > 0 && numLarge > 0) {
+      int less = small[--numSmall];
+      int more = large[--numLarge];
+      probabilities[less] = (float) scaled[less];
+      aliases[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small[numSmall++] = more;
+      } else {
+        large[numLarge++] = more;
+      }
+    }
+
+    // The remaining columns are full, up to rounding error.
+    while (numLarge > 0) {
+      int more = large[--numLarge];
+      probabilities[more] = 1.0f;
+      aliases[more] = more;
+    }
+    while (numSmall > 0) {
+      int less = small[--numSmall];
+      probabilities[less] = 1.0f;
+      aliases[less] = less;
+    }
+  }
+
+  public static void main(String[] args) {
+    double[] weights = { 1.0, 0.0, 3.0, 6.0 };
+    AliasSampler sampler = new AliasSampler(weights);
+    Random random = new Random(0);
+    int numSamples = 1000000;
+    int[] counts = new int[weights.length];
+    for (int i = 0; i < numSamples; i++) {
+      counts[sampler.sample(random)]++;
+    }
+    for (int i = 0; i < weights.length; i++) {
+      System.out.println(i + " : weight " + weights[i] + ", sampled " + ((double) counts[i] / numSamples));
+    }
+  }
+}
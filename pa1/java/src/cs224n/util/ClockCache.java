@@ -0,0 +1,203 @@
+package cs224n.util;
+
+/**
+ * A bounded cache from long keys to values, safe for use by several threads,
+ * which keeps count of its hits and misses.  The cache is set-associative:
+ * a key hashes to one set of WAYS slots, and when the set is full a new
+ * entry replaces a victim chosen by the Clock (second chance) policy, which
+ * approximates least-recently-used eviction with one reference bit per
+ * slot.  Sets are guarded by STRIPES locks, so threads working on different
+ * sets rarely contend, and neither get() nor put() of an existing key
+ * allocates.
+ */
+public class ClockCache<V> {
+
+  static final int WAYS = 8;
+  static final int STRIPES = 64;
+
+  /**
+   * The largest capacity a cache may be asked for.
+   */
+  public static final int MAX_CAPACITY = 1 << 30;
+
+  private final long[] keys;
+  private final Object[] values;
+  private final boolean[] referenced;
+  private final int[] hands;
+  private final int setMask;
+  private final Object[] locks;
+  private final long[] hits;
+  private final long[] misses;
+
+  /**
+   * Returns the value cached for the key, or null if there is none.
+   */
+  public V get(long key) {
+    return get(key, null);
+  }
+
+  /**
+   * Returns the value cached for the key if the filter accepts it, or null
+   * if there is none or the filter rejects it.  A rejected value counts as
+   * a miss, so callers whose keys are hashes of larger keys can check the
+   * full key here and keep the hit rate honest.  A null filter accepts
+   * every value.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key, Filter<? super V> filter) {
+    int set = hash(key) & setMask;
+    int stripe = set & (locks.length - 1);
+    synchronized (locks[stripe]) {
+      int first = set * WAYS;
+      for (int slot = first; slot < first + WAYS; slot++) {
+        if (keys[slot] == key && values[slot] != null) {
+          V value = (V) values[slot];
+          if (filter != null && !filter.accept(value)) {
+            break;
+          }
+          referenced[slot] = true;
+          hits[stripe]++;
+          return value;
+        }
+      }
+      misses[stripe]++;
+      return null;
+    }
+  }
+
+  /**
+   * Caches a value for the key, evicting another entry of its set if the
+   * set is full.  The value must not be null.
+   */
+  public void put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Cannot cache a null value");
+    }
+    int set = hash(key) & setMask;
+    int stripe = set & (locks.length - 1);
+    synchronized (locks[stripe]) {
+      int first = set * WAYS;
+      int victim = -1;
+      for (int slot = first; slot < first + WAYS; slot++) {
+        if (keys[slot] == key && values[slot] != null) {
+          victim = slot;
+          break;
+        }
+        if (victim < 0 && values[slot] == null) {
+          victim = slot;
+        }
+      }
+      if (victim < 0) {
+        int hand = hands[set];
+        while (referenced[first + hand]) {
+          referenced[first + hand] = false;
+          hand = (hand + 1) % WAYS;
+        }
+        victim = first + hand;
+        hands[set] = (hand + 1) % WAYS;
+      }
+      keys[victim] = key;
+      values[victim] = value;
+      referenced[victim] = false;
+    }
+  }
+
+  /**
+   * Removes every entry, keeping the hit and miss counts.
+   */
+  public void clear() {
+    for (int stripe = 0; stripe < locks.length; stripe++) {
+      synchronized (locks[stripe]) {
+        for (int set = stripe; set <= setMask; set += locks.length) {
+          for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+            values[slot] = null;
+            referenced[slot] = false;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The number of entries the cache can hold.
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  public long getHits() {
+    return sum(hits);
+  }
+
+  public long getMisses() {
+    return sum(misses);
+  }
+
+  /**
+   * The fraction of lookups which were hits, or zero if there were none.
+   */
+  public double getHitRate() {
+    long hitCount = getHits();
+    long lookups = hitCount + getMisses();
+    return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+  }
+
+  private long sum(long[] stripeCounts) {
+    long total = 0;
+    for (int stripe = 0; stripe < locks.length; stripe++) {
+      synchronized (locks[stripe]) {
+        total += stripeCounts[stripe];
+      }
+    }
+    return total;
+  }
+
+  private static int hash(long key) {
+    key *= 0x9e3779b97f4a7c15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  /**
+   * Constructs a cache holding at least the given number of entries (the
+   * capacity is rounded up to a power of two, and to at least WAYS).
+   * Capacities above MAX_CAPACITY are rejected.
+   */
+  public ClockCache(int capacity) {
+    if (capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("Cache capacity " + capacity +
+                                         " exceeds the maximum of " + MAX_CAPACITY);
+    }
+    int numSets = 1;
+    while ((long) numSets * WAYS < capacity) {
+      numSets *= 2;
+    }
+    setMask = numSets - 1;
+    keys = new long[numSets * WAYS];
+    values = new Object[numSets * WAYS];
+    referenced = new boolean[numSets * WAYS];
+    hands = new int[numSets];
+    locks = new Object[Math.min(STRIPES, numSets)];
+    for (int stripe = 0; stripe < locks.length; stripe++) {
+      locks[stripe] = new Object();
+    }
+    hits = new long[locks.length];
+    misses = new long[locks.length];
+  }
+
+  public String toString() {
+    return "ClockCache(capacity " + capacity() + ", hits " + getHits() +
+      ", misses " + getMisses() + ")";
+  }
+
+  public static void main(String[] args) {
+    ClockCache<String> cache = new ClockCache<String>(8);
+    for (long key = 0; key < 12; key++) {
+      cache.put(key, "value " + key);
+    }
+    cache.get(11);
+    for (long key = 0; key < 12; key++) {
+      System.out.println(key + " : " + cache.get(key));
+    }
+    System.out.println(cache + ", hit rate " + cache.getHitRate());
+  }
+}
@@ -0,0 +1,186 @@
+package cs224n.util;
+
+import java.util.Arrays;
+
+/**
+ * Quantizes doubles to one-byte codes.  The codebook holds up to MAX_SIZE
+ * float values in ascending order, and a value is encoded as the index of
+ * the nearest one.  If the data has no more distinct values than that, the
+ * codebook holds them all and coding is exact (up to float precision);
+ * otherwise the values are found by Lloyd's algorithm (one-dimensional
+ * k-means), started from equal-count bins of the sorted data, which
+ * minimizes the mean squared coding error.  Negative infinity, such as the
+ * log of a zero probability, gets a code of its own.
+ */
+public class Codebook {
+
+  public static final int MAX_SIZE = 256;
+  static final int MAX_ITERATIONS = 50;
+
+  private final float[] values;
+
+  /**
+   * Returns the code of the nearest value in the codebook.
+   */
+  public int encode(double value) {
+    int low = 0;
+    int high = values.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (value <= values[middle]) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    if (low > 0 && value - values[low - 1] <= values[low] - value) {
+      low--;
+    }
+    return low;
+  }
+
+  public float decode(int code) {
+    return values[code];
+  }
+
+  /**
+   * The number of codes in use.
+   */
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * Returns the codebook values, indexed by code.
+   */
+  public float[] getValues() {
+    return values.clone();
+  }
+
+  /**
+   * Builds a codebook for data[0, length) with at most size codes.
+   */
+  public Codebook(double[] data, int length, int size) {
+    if (size < 1 || size > MAX_SIZE) {
+      throw new IllegalArgumentException("Bad codebook size: " + size);
+    }
+    double[] sorted = new double[length];
+    int numFinite = 0;
+    boolean hasNegativeInfinity = false;
+    for (int i = 0; i < length; i++) {
+      if (data[i] == Double.NEGATIVE_INFINITY) {
+        hasNegativeInfinity = true;
+      } else {
+        sorted[numFinite++] = data[i];
+      }
+    }
+    Arrays.sort(sorted, 0, numFinite);
+    int numCentroids = hasNegativeInfinity ? size - 1 : size;
+    double[] centroids = getCentroids(sorted, numFinite, numCentroids);
+    int offset = hasNegativeInfinity ? 1 : 0;
+    values = new float[offset + centroids.length];
+    if (hasNegativeInfinity) {
+      values[0] = Float.NEGATIVE_INFINITY;
+    }
+    for (int i = 0; i < centroids.length; i++) {
+      values[offset + i] = (float) centroids[i];
+    }
+  }
+
+  /**
+   * Returns at most numCentroids ascending values for the sorted data.
+   */
+  private static double[] getCentroids(double[] sorted, int length, int numCentroids) {
+    int numDistinct = 0;
+    for (int i = 0; i < length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        numDistinct++;
+      }
+    }
+    if (numDistinct <= numCentroids) {
+      double[] centroids = new double[numDistinct];
+      int j = 0;
+      for (int i = 0; i < length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          centroids[j++] = sorted[i];
+        }
+      }
+      return centroids;
+    }
+
+    // Prefix sums give the mean of any run of the sorted data in O(1).
+    double[] sums = new double[length + 1];
+    for (int i = 0; i < length; i++) {
+      sums[i + 1] = sums[i] + sorted[i];
+    }
+    double[] centroids = new double[numCentroids];
+    for (int j = 0; j < numCentroids; j++) {
+      int start = (int) ((long) j * length / numCentroids);
+      int end = (int) ((long) (j + 1) * length / numCentroids);
+      centroids[j] = (sums[end] - sums[start]) / (end - start);
+    }
+
+    // Each centroid takes the data nearer to it than to its neighbours,
+    // and moves to their mean, until no centroid moves.
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      boolean moved = false;
+      int start = 0;
+      for (int j = 0; j < numCentroids; j++) {
+        int end = length;
+        if (j + 1 < numCentroids) {
+          end = upperBound(sorted, start, length, (centroids[j] + centroids[j + 1]) / 2.0);
+        }
+        if (end > start) {
+          double mean = (sums[end] - sums[start]) / (end - start);
+          if (mean != centroids[j]) {
+            centroids[j] = mean;
+            moved = true;
+          }
+        }
+        start = end;
+      }
+      if (!moved) {
+        break;
+      }
+    }
+    return centroids;
+  }
+
+  /**
+   * Returns the first index in sorted[from, to) of a value above the given
+   * one, or to if there is none.
+   */
+  private static int upperBound(double[] sorted, int from, int to, double value) {
+    while (from < to) {
+      int middle = (from + to) >>> 1;
+      if (sorted[middle] <= value) {
+        from = middle + 1;
+      } else {
+        to = middle;
+      }
+    }
+    return from;
+  }
+
+  public String toString() {
+    return "Codebook" + Arrays.toString(values);
+  }
+
+  public static void main(String[] args) {
+    java.util.Random random = new java.util.Random(0);
+    double[] data = new double[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = Math.log(random.nextDouble());
+    }
+    data[0] = Double.NEGATIVE_INFINITY;
+    Codebook codebook = new Codebook(data, data.length, 16);
+    System.out.println(codebook);
+    double squaredError = 0.0;
+    for (int i = 1; i < data.length; i++) {
+      double error = codebook.decode(codebook.encode(data[i])) - data[i];
+      squaredError += error * error;
+    }
+    System.out.println("RMS error " + Math.sqrt(squaredError / (data.length - 1)));
+    System.out.println("-Infinity decodes to " + codebook.decode(codebook.encode(Double.NEGATIVE_INFINITY)));
+  }
+}
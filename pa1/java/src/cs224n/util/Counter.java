@@ -1,6 +1,7 @@
 package cs224n.util;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collection;
@@ -133,6 +134,21 @@ public class Counter <E> implements Serializable {
     return maxKey;
   }
 
+  /**
+   * Finds the k keys with largest counts, in decreasing order of count (or
+   * all keys, if there are fewer).  This takes O(n log k) time, and ties are
+   * broken arbitrarily.
+   *
+   * @return the keys with the k largest counts, largest first
+   */
+  public List<E> topK(int k) {
+    TopK<E> topK = new TopK<E>(Math.min(k, entries.size()));
+    for (Map.Entry<E, Double> entry : entries.entrySet()) {
+      topK.add(entry.getKey(), entry.getValue());
+    }
+    return topK.toList();
+  }
+
   /**
    * Returns a string representation with the keys ordered by decreasing
    * counts.
@@ -0,0 +1,250 @@
+package cs224n.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counts packed n-gram keys (see NgramCounter) in bounded memory.  Keys are
+ * appended to a fixed-size buffer; when it fills, the buffer is sorted and
+ * spilled to a temporary file as a run of distinct keys and their counts.
+ * cursor() then merges the runs (k ways, in several passes if there are
+ * more than MAX_MERGE_WIDTH of them) into one stream of keys in increasing
+ * order.  Memory use is therefore fixed by the buffer size, and the number
+ * of distinct n-grams is limited only by the space in the temporary
+ * directory.
+ */
+public class ExternalNgramCounter {
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+  static final int MAX_MERGE_WIDTH = 64;
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private final File tempDir;
+  private final long[] buffer;
+  private int bufferedKeys = 0;
+  private final List<File> runs = new ArrayList<File>();
+
+  /**
+   * A sorted run file being read, positioned at its next entry.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    final DataInputStream in;
+    long key;
+    long count;
+
+    RunReader(File run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+    }
+
+    /**
+     * Reads the next entry, returning false (and closing the file) at the end
+     * of the run.
+     */
+    boolean next() throws IOException {
+      try {
+        key = in.readLong();
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+      count = in.readLong();
+      return true;
+    }
+
+    public int compareTo(RunReader other) {
+      return key < other.key ? -1 : (key == other.key ? 0 : 1);
+    }
+  }
+
+  /**
+   * Walks over the merged entries in increasing key order.  Usage follows
+   * LongCounter.Cursor:
+   * <pre>
+   *   ExternalNgramCounter.Cursor cursor = counter.cursor();
+   *   while (cursor.advance()) {
+   *     long key = cursor.key();
+   *     long count = cursor.count();
+   *   }
+   * </pre>
+   */
+  public static class Cursor {
+    private final java.util.PriorityQueue<RunReader> queue = new java.util.PriorityQueue<RunReader>();
+    private long key;
+    private long count;
+
+    Cursor(List<File> runs) throws IOException {
+      for (File run : runs) {
+        RunReader reader = new RunReader(run);
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+    }
+
+    /**
+     * Moves to the next key, summing its counts across the runs.  Returns
+     * false if there are no more keys.
+     */
+    public boolean advance() throws IOException {
+      if (queue.isEmpty()) return false;
+      RunReader reader = queue.poll();
+      key = reader.key;
+      count = reader.count;
+      while (true) {
+        if (reader.next()) {
+          queue.add(reader);
+        }
+        reader = queue.peek();
+        if (reader == null || reader.key != key) break;
+        count += reader.count;
+        queue.poll();
+      }
+      return true;
+    }
+
+    public long key() {
+      return key;
+    }
+
+    public long count() {
+      return count;
+    }
+
+    /**
+     * Closes the run files, for a cursor abandoned before its end.
+     */
+    public void close() {
+      for (RunReader reader : queue) {
+        try {
+          reader.in.close();
+        } catch (IOException e) {
+          // Nothing more will be read.
+        }
+      }
+      queue.clear();
+    }
+  }
+
+  /**
+   * Counts one occurrence of the key, spilling the buffer if it is full.
+   */
+  public void incrementCount(long key) throws IOException {
+    if (bufferedKeys == buffer.length) {
+      spill();
+    }
+    buffer[bufferedKeys++] = key;
+  }
+
+  /**
+   * The number of runs spilled so far.
+   */
+  public int getNumRuns() {
+    return runs.size();
+  }
+
+  /**
+   * Spills the buffer, merges the runs down to at most MAX_MERGE_WIDTH and
+   * returns a cursor over their merge.  No more keys may be counted
+   * afterwards.
+   */
+  public Cursor cursor() throws IOException {
+    spill();
+    while (runs.size() > MAX_MERGE_WIDTH) {
+      List<File> merging = new ArrayList<File>(runs.subList(0, MAX_MERGE_WIDTH));
+      runs.subList(0, MAX_MERGE_WIDTH).clear();
+      Cursor cursor = new Cursor(merging);
+      File run = createRun();
+      DataOutputStream out = openRun(run);
+      try {
+        while (cursor.advance()) {
+          out.writeLong(cursor.key());
+          out.writeLong(cursor.count());
+        }
+      } finally {
+        out.close();
+      }
+      for (File merged : merging) {
+        merged.delete();
+      }
+      runs.add(run);
+    }
+    return new Cursor(runs);
+  }
+
+  /**
+   * Deletes the run files.
+   */
+  public void delete() {
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  /**
+   * Sorts the buffered keys and writes them to a new run, one entry per
+   * distinct key.
+   */
+  private void spill() throws IOException {
+    if (bufferedKeys == 0) return;
+    Arrays.sort(buffer, 0, bufferedKeys);
+    File run = createRun();
+    DataOutputStream out = openRun(run);
+    try {
+      int i = 0;
+      while (i < bufferedKeys) {
+        long key = buffer[i];
+        int end = i + 1;
+        while (end < bufferedKeys && buffer[end] == key) end++;
+        out.writeLong(key);
+        out.writeLong(end - i);
+        i = end;
+      }
+    } finally {
+      out.close();
+    }
+    runs.add(run);
+    bufferedKeys = 0;
+  }
+
+  private File createRun() throws IOException {
+    File run = File.createTempFile("ngrams", ".run", tempDir);
+    run.deleteOnExit();
+    return run;
+  }
+
+  private static DataOutputStream openRun(File run) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE));
+  }
+
+  public ExternalNgramCounter() {
+    this(null, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs a counter which buffers up to bufferSize keys in memory and
+   * spills runs to tempDir (or to the system's temporary directory if it is
+   * null).
+   */
+  public ExternalNgramCounter(File tempDir, int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+    }
+    this.tempDir = tempDir;
+    this.buffer = new long[bufferSize];
+  }
+
+  public static void main(String[] args) throws IOException {
+    ExternalNgramCounter counter = new ExternalNgramCounter(null, 4);
+    long[] keys = { 5, 3, 5, 1, 3, 5, 9, 1, 5, 2 };
+    for (long key : keys) {
+      counter.incrementCount(key);
+    }
+    System.out.println("Runs: " + counter.getNumRuns());
+    Cursor cursor = counter.cursor();
+    while (cursor.advance()) {
+      System.out.println(cursor.key() + " : " + cursor.count());
+    }
+    counter.delete();
+  }
+}
@@ -1,75 +1,586 @@
-package cs224n.util;
-
-
-import java.util.Hashtable;
-import java.util.Map;
-
-public class FastTriCounter {
-    Hashtable<String, Hashtable<String, Hashtable<String, Double>>> firstMap;
-    private double totalCount;
-
-    public FastTriCounter() {
-        this.firstMap = new Hashtable<String, Hashtable<String, Hashtable<String, Double>>>();
-    }
-
-    public void increment(String first, String second, String third) {
-        Hashtable<String, Hashtable<String, Double>> secondMap = firstMap.get(first);
-        if (secondMap == null) {
-            secondMap = new Hashtable<String, Hashtable<String, Double>>();
-            firstMap.put(first, secondMap);
-        }
-        Hashtable<String, Double> thirdMap = secondMap.get(second);
-        if (thirdMap == null) {
-            thirdMap = new Hashtable<String, Double>();
-            secondMap.put(second, thirdMap);
-        }
-        Double d = thirdMap.get(third);
-        if (d == null) {
-            thirdMap.put(third, 1.0);
-        }
-        else {
-            thirdMap.put(third, d + 1.0);
-        }
-        totalCount++;
-    }
-
-    public void subtract(double value) {
-        for (Hashtable<String, Hashtable<String, Double>> secondMap : firstMap.values()) {
-            for (Hashtable<String, Double> thirdMap : secondMap.values()) {
-                for (Map.Entry<String, Double> entry : thirdMap.entrySet()) {
-                    thirdMap.put(entry.getKey(), entry.getValue() - value);
-                }
-            }
-        }
-        totalCount -= totalCount * value;
-    }
-
-    public Double get(String first, String second, String third) {
-        try {
-            Double d = firstMap.get(first).get(second).get(third);
-            if (d == null) {
-                return 0.0;
-            }
-            return d;
-        }
-        catch (NullPointerException e) {
-            return 0.0;
-        }
-    }
-
-    public double getTotalCount() {
-        return totalCount;
-    }
-
-
-    public static void main(String[] args) {
-        FastTriCounter counter = new FastTriCounter();
-        counter.increment("a", "b", "c");
-        counter.increment("a", "b", "c");
-        counter.increment("a", "b", "e");
-        counter.subtract(0.5);
-        System.out.println(counter.get("a", "b", "c"));
-        System.out.println(counter.get("a", "b", "d"));
-        System.out.println(counter.get("a", "b", "e"));
-    }
-}
+package cs224n.util;
+
+import java.util.Arrays;
+
+/**
+ * Trigram counts nested by context: for each context (first, second), a row
+ * of the third words seen after it and their counts.  Words are given int
+ * ids by a SymbolIndex, as in NgramCounter, and contexts are packed into
+ * longs by NgramCounter.pack(), so a FastTriCounter can share the ids (and
+ * the Index or SymbolTable) of the other counters of a model.
+ * <p>
+ * While counting, the counter is a hash of rows: an open-addressing table
+ * from context to row, and for each row a small open-addressing table of
+ * third-word ids and counts.  An increment so probes two short tables and
+ * allocates only to grow one.  freeze() compacts the rows into compressed
+ * sparse rows (CSR): the sorted contexts, the start of each context's row,
+ * and the third-word ids (sorted within a row) and counts of all rows, in
+ * four flat arrays, and the context table is rebuilt over them.  A frozen
+ * counter finds a word by binary search within its context's row, takes
+ * well under half the memory, and visits a context's words in id order;
+ * it can no longer have trigrams added, but its counts can still be
+ * changed.
+ * <p>
+ * Each row keeps its total, and the counter its grand total, so context
+ * counts and totalCount() are constant time.  subtract() and discount()
+ * change every count in place, in either layout.
+ */
+public class FastTriCounter {
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+  private static final int INITIAL_ROW_CAPACITY = 2;
+
+  private final SymbolIndex<String> index;
+  private double totalCount;
+  private int size;
+  private int numContexts;
+  private boolean frozen;
+
+  // Row r holds the context contexts[r], whose counts sum to rowTotals[r].
+  // Once frozen, the rows are in context order.
+  private long[] contexts;
+  private double[] rowTotals;
+
+  // contextTable holds row + 1 in the slot of each context (zero is empty).
+  private int[] contextTable;
+
+  // The counting layout: row r is the table rowWords[r] of word id + 1 per
+  // slot, with the counts in rowCounts[r].
+  private int[][] rowWords;
+  private double[][] rowCounts;
+  private int[] rowSizes;
+
+  // The frozen (CSR) layout: row r is words and counts from rowStarts[r]
+  // to rowStarts[r + 1].
+  private int[] rowStarts;
+  private int[] words;
+  private double[] counts;
+
+  /**
+   * Walks over trigrams and their counts, a row at a time, without
+   * allocating an object per trigram.  Typical usage:
+   * <pre>
+   *   FastTriCounter.Cursor cursor = counter.cursor(first, second);
+   *   while (cursor.advance()) {
+   *     int third = cursor.third();
+   *     double count = cursor.count();
+   *   }
+   * </pre>
+   * The counter must not have trigrams added, or be frozen, while a cursor
+   * is in use, though counts may be changed through setCount().
+   */
+  public class Cursor {
+    private int row;
+    private final int endRow;
+    private int position = -1;
+
+    Cursor(int row, int endRow) {
+      this.row = row;
+      this.endRow = endRow;
+    }
+
+    /**
+     * Moves to the next trigram, returning false if there are no more.
+     */
+    public boolean advance() {
+      while (row < endRow) {
+        if (frozen) {
+          position = (position < 0) ? rowStarts[row] : position + 1;
+          if (position < rowStarts[row + 1]) return true;
+        } else {
+          int[] slots = rowWords[row];
+          for (position++; position < slots.length; position++) {
+            if (slots[position] != 0) return true;
+          }
+        }
+        row++;
+        position = -1;
+      }
+      return false;
+    }
+
+    /**
+     * Returns the packed context (see NgramCounter.pack()) of the current
+     * trigram.
+     */
+    public long context() {
+      return contexts[row];
+    }
+
+    public int first() {
+      return (int) NgramCounter.getContext(contexts[row]);
+    }
+
+    public int second() {
+      return NgramCounter.getLastWordId(contexts[row]);
+    }
+
+    public int third() {
+      return frozen ? words[position] : rowWords[row][position] - 1;
+    }
+
+    public double count() {
+      return frozen ? counts[position] : rowCounts[row][position];
+    }
+
+    /**
+     * Sets the count of the current trigram, keeping the totals up to date.
+     */
+    public void setCount(double count) {
+      double[] rowCounts = frozen ? counts : FastTriCounter.this.rowCounts[row];
+      double difference = count - rowCounts[position];
+      rowCounts[position] = count;
+      rowTotals[row] += difference;
+      totalCount += difference;
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns the id of a word, adding it to the index if necessary.
+   */
+  public int intern(String word) {
+    int id = index.indexOf(word);
+    if (id < 0) {
+      if (index.size() >= NgramCounter.MAX_VOCABULARY_SIZE) {
+        throw new IllegalStateException("Vocabulary exceeds " + NgramCounter.MAX_VOCABULARY_SIZE + " words");
+      }
+      id = index.addAndGetIndex(word);
+      if (id < 0) {
+        throw new UnsupportedOperationException("Cannot add " + word + " to a read-only index");
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Returns the id of a word, or -1 if the word has never been counted.
+   */
+  public int getWordId(String word) {
+    return index.indexOf(word);
+  }
+
+  public SymbolIndex<String> getIndex() {
+    return index;
+  }
+
+  /**
+   * The number of distinct trigrams counted.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The number of distinct contexts (first, second) counted.
+   */
+  public int getNumContexts() {
+    return numContexts;
+  }
+
+  /**
+   * Returns the total of all counts, in constant time.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  // -----------------------------------------------------------------------
+
+  public void incrementCount(String first, String second, String third, double increment) {
+    incrementCount(intern(first), intern(second), intern(third), increment);
+  }
+
+  /**
+   * Increment a trigram's count by the given amount, returning the new
+   * count.
+   *
+   * @throws UnsupportedOperationException if the trigram is new and the
+   * counter is frozen
+   */
+  public double incrementCount(int first, int second, int third, double increment) {
+    return addToCount(first, second, third, increment, false);
+  }
+
+  /**
+   * Set the count of a trigram, clobbering any previous count.
+   *
+   * @throws UnsupportedOperationException if the trigram is new and the
+   * counter is frozen
+   */
+  public void setCount(int first, int second, int third, double count) {
+    addToCount(first, second, third, count, true);
+  }
+
+  private double addToCount(int first, int second, int third, double amount, boolean set) {
+    long context = NgramCounter.pack(first, second);
+    double[] rowCounts;
+    int row;
+    int position;
+    if (frozen) {
+      row = findRow(context);
+      position = (row < 0) ? -1 : Arrays.binarySearch(words, rowStarts[row], rowStarts[row + 1], third);
+      if (position < 0) {
+        throw new UnsupportedOperationException("Cannot add a trigram to a frozen counter");
+      }
+      rowCounts = counts;
+    } else {
+      row = addRow(context);
+      position = addWord(row, third);
+      rowCounts = this.rowCounts[row];
+    }
+    double difference = set ? amount - rowCounts[position] : amount;
+    rowCounts[position] += difference;
+    rowTotals[row] += difference;
+    totalCount += difference;
+    return rowCounts[position];
+  }
+
+  public double getCount(String first, String second, String third) {
+    int firstId = getWordId(first);
+    int secondId = getWordId(second);
+    int thirdId = getWordId(third);
+    if (firstId < 0 || secondId < 0 || thirdId < 0) {
+      return 0.0;
+    }
+    return getCount(firstId, secondId, thirdId);
+  }
+
+  /**
+   * Get the count of a trigram, or zero if it was never counted.
+   */
+  public double getCount(int first, int second, int third) {
+    int row = findRow(NgramCounter.pack(first, second));
+    if (row < 0) {
+      return 0.0;
+    }
+    if (frozen) {
+      int position = Arrays.binarySearch(words, rowStarts[row], rowStarts[row + 1], third);
+      return position < 0 ? 0.0 : counts[position];
+    }
+    int slot = findWordSlot(rowWords[row], third);
+    return rowWords[row][slot] == 0 ? 0.0 : rowCounts[row][slot];
+  }
+
+  /**
+   * Returns the total count of the trigrams with the given context, which
+   * is the count of the context as a bigram if every one was counted.
+   */
+  public double getContextCount(int first, int second) {
+    int row = findRow(NgramCounter.pack(first, second));
+    return row < 0 ? 0.0 : rowTotals[row];
+  }
+
+  /**
+   * Returns the number of distinct words counted after the given context.
+   */
+  public int getContextSize(int first, int second) {
+    int row = findRow(NgramCounter.pack(first, second));
+    if (row < 0) {
+      return 0;
+    }
+    return frozen ? rowStarts[row + 1] - rowStarts[row] : rowSizes[row];
+  }
+
+  /**
+   * Returns a cursor over all the trigrams, a context at a time; once
+   * frozen, in order of their packed keys.
+   */
+  public Cursor cursor() {
+    return new Cursor(0, numContexts);
+  }
+
+  /**
+   * Returns a cursor over the trigrams with the given context; once
+   * frozen, in order of the third word's id.
+   */
+  public Cursor cursor(int first, int second) {
+    int row = findRow(NgramCounter.pack(first, second));
+    return row < 0 ? new Cursor(0, 0) : new Cursor(row, row + 1);
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Subtracts the given value from every count, in place.
+   */
+  public void subtract(double value) {
+    for (int row = 0; row < numContexts; row++) {
+      int rowSize = frozen ? rowStarts[row + 1] - rowStarts[row] : rowSizes[row];
+      rowTotals[row] -= value * rowSize;
+    }
+    if (frozen) {
+      for (int i = 0; i < size; i++) {
+        counts[i] -= value;
+      }
+    } else {
+      for (int row = 0; row < numContexts; row++) {
+        int[] slots = rowWords[row];
+        double[] rowCounts = this.rowCounts[row];
+        for (int slot = 0; slot < slots.length; slot++) {
+          if (slots[slot] != 0) rowCounts[slot] -= value;
+        }
+      }
+    }
+    totalCount -= value * size;
+  }
+
+  /**
+   * Subtracts the discount from every count, in place, but takes no count
+   * below zero, as in absolute discounting.  Returns the total count
+   * removed.
+   */
+  public double discount(double discount) {
+    double removed = 0.0;
+    if (frozen) {
+      for (int row = 0; row < numContexts; row++) {
+        double rowRemoved = 0.0;
+        for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++) {
+          double taken = Math.min(discount, counts[i]);
+          counts[i] -= taken;
+          rowRemoved += taken;
+        }
+        rowTotals[row] -= rowRemoved;
+        removed += rowRemoved;
+      }
+    } else {
+      for (int row = 0; row < numContexts; row++) {
+        int[] slots = rowWords[row];
+        double[] rowCounts = this.rowCounts[row];
+        double rowRemoved = 0.0;
+        for (int slot = 0; slot < slots.length; slot++) {
+          if (slots[slot] != 0) {
+            double taken = Math.min(discount, rowCounts[slot]);
+            rowCounts[slot] -= taken;
+            rowRemoved += taken;
+          }
+        }
+        rowTotals[row] -= rowRemoved;
+        removed += rowRemoved;
+      }
+    }
+    totalCount -= removed;
+    return removed;
+  }
+
+  /**
+   * Compacts the counter into compressed sparse rows.  The counting tables
+   * are dropped, so a frozen counter can not be thawed.
+   */
+  public void freeze() {
+    if (frozen) return;
+    long[] sortedContexts = Arrays.copyOf(contexts, numContexts);
+    Arrays.sort(sortedContexts);
+    double[] sortedTotals = new double[numContexts];
+    rowStarts = new int[numContexts + 1];
+    words = new int[size];
+    counts = new double[size];
+    int position = 0;
+    for (int i = 0; i < numContexts; i++) {
+      int row = contextTable[findContextSlot(sortedContexts[i])] - 1;
+      int[] slots = rowWords[row];
+      rowStarts[i] = position;
+      for (int slot = 0; slot < slots.length; slot++) {
+        if (slots[slot] != 0) words[position++] = slots[slot] - 1;
+      }
+      Arrays.sort(words, rowStarts[i], position);
+      for (int j = rowStarts[i]; j < position; j++) {
+        counts[j] = rowCounts[row][findWordSlot(slots, words[j])];
+      }
+      sortedTotals[i] = rowTotals[row];
+    }
+    rowStarts[numContexts] = position;
+    contexts = sortedContexts;
+    rowTotals = sortedTotals;
+    rehashContexts(contextTable.length);
+    rowWords = null;
+    rowCounts = null;
+    rowSizes = null;
+    frozen = true;
+  }
+
+  /**
+   * Returns the approximate number of bytes the counter's arrays take,
+   * counting array headers but not the word index.
+   */
+  public long getMemoryUsage() {
+    long bytes = arrayBytes(contexts.length, 8) + arrayBytes(rowTotals.length, 8)
+      + arrayBytes(contextTable.length, 4);
+    if (frozen) {
+      return bytes + arrayBytes(rowStarts.length, 4) + arrayBytes(words.length, 4)
+        + arrayBytes(counts.length, 8);
+    }
+    bytes += arrayBytes(rowSizes.length, 4)
+      + arrayBytes(rowWords.length, 4) + arrayBytes(rowCounts.length, 4);
+    for (int row = 0; row < numContexts; row++) {
+      bytes += arrayBytes(rowWords[row].length, 4) + arrayBytes(rowCounts[row].length, 8);
+    }
+    return bytes;
+  }
+
+  private static long arrayBytes(int length, int elementSize) {
+    return 16 + (((long) length * elementSize + 7) & ~7L);
+  }
+
+  // -----------------------------------------------------------------------
+
+  private int findRow(long context) {
+    return contextTable[findContextSlot(context)] - 1;
+  }
+
+  /**
+   * Returns the slot of the context in the context table, or the empty
+   * slot where it would go.
+   */
+  private int findContextSlot(long context) {
+    int mask = contextTable.length - 1;
+    int slot = LongCounter.hash(context) & mask;
+    int entry;
+    while ((entry = contextTable[slot]) != 0 && contexts[entry - 1] != context) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the row of the context, adding an empty row if it is new.
+   */
+  private int addRow(long context) {
+    int slot = findContextSlot(context);
+    if (contextTable[slot] != 0) {
+      return contextTable[slot] - 1;
+    }
+    if (numContexts + 1 > MAX_LOAD_FACTOR * contextTable.length) {
+      rehashContexts(2 * contextTable.length);
+      slot = findContextSlot(context);
+    }
+    if (numContexts == contexts.length) {
+      int capacity = 2 * contexts.length;
+      contexts = Arrays.copyOf(contexts, capacity);
+      rowTotals = Arrays.copyOf(rowTotals, capacity);
+      rowWords = Arrays.copyOf(rowWords, capacity);
+      rowCounts = Arrays.copyOf(rowCounts, capacity);
+      rowSizes = Arrays.copyOf(rowSizes, capacity);
+    }
+    int row = numContexts++;
+    contexts[row] = context;
+    rowWords[row] = new int[INITIAL_ROW_CAPACITY];
+    rowCounts[row] = new double[INITIAL_ROW_CAPACITY];
+    contextTable[slot] = row + 1;
+    return row;
+  }
+
+  private void rehashContexts(int newCapacity) {
+    contextTable = new int[newCapacity];
+    int mask = newCapacity - 1;
+    for (int row = 0; row < numContexts; row++) {
+      int slot = LongCounter.hash(contexts[row]) & mask;
+      while (contextTable[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      contextTable[slot] = row + 1;
+    }
+  }
+
+  private static int hash(int word) {
+    int h = word * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot of the word in a row's table, or the empty slot where
+   * it would go.
+   */
+  private static int findWordSlot(int[] slots, int word) {
+    int mask = slots.length - 1;
+    int slot = hash(word) & mask;
+    int entry;
+    while ((entry = slots[slot]) != 0 && entry != word + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the slot of the word in the row, adding the word with a count
+   * of zero if it is new.
+   */
+  private int addWord(int row, int word) {
+    int[] slots = rowWords[row];
+    int slot = findWordSlot(slots, word);
+    if (slots[slot] != 0) {
+      return slot;
+    }
+    if (rowSizes[row] + 1 > MAX_LOAD_FACTOR * slots.length) {
+      rehashRow(row, 2 * slots.length);
+      slots = rowWords[row];
+      slot = findWordSlot(slots, word);
+    }
+    slots[slot] = word + 1;
+    rowSizes[row]++;
+    size++;
+    return slot;
+  }
+
+  private void rehashRow(int row, int newCapacity) {
+    int[] oldSlots = rowWords[row];
+    double[] oldCounts = rowCounts[row];
+    int[] slots = new int[newCapacity];
+    double[] rowCounts = new double[newCapacity];
+    for (int oldSlot = 0; oldSlot < oldSlots.length; oldSlot++) {
+      if (oldSlots[oldSlot] != 0) {
+        int slot = findWordSlot(slots, oldSlots[oldSlot] - 1);
+        slots[slot] = oldSlots[oldSlot];
+        rowCounts[slot] = oldCounts[oldSlot];
+      }
+    }
+    rowWords[row] = slots;
+    this.rowCounts[row] = rowCounts;
+  }
+
+  public FastTriCounter() {
+    this(new Index<String>());
+  }
+
+  /**
+   * Constructs a counter which numbers words with the given index, which
+   * may be shared with other counters.
+   */
+  public FastTriCounter(SymbolIndex<String> index) {
+    this.index = index;
+    contexts = new long[16];
+    rowTotals = new double[16];
+    contextTable = new int[32];
+    rowWords = new int[16][];
+    rowCounts = new double[16][];
+    rowSizes = new int[16];
+  }
+
+  public static void main(String[] args) {
+    FastTriCounter counter = new FastTriCounter();
+    counter.incrementCount("a", "b", "c", 1.0);
+    counter.incrementCount("a", "b", "c", 1.0);
+    counter.incrementCount("a", "b", "e", 1.0);
+    counter.incrementCount("b", "c", "a", 1.0);
+    counter.subtract(0.5);
+    System.out.println(counter.getCount("a", "b", "c"));
+    System.out.println(counter.getCount("a", "b", "d"));
+    System.out.println(counter.getCount("a", "b", "e"));
+    System.out.println("Total: " + counter.totalCount());
+    counter.freeze();
+    int a = counter.getWordId("a");
+    int b = counter.getWordId("b");
+    System.out.println("Frozen, count of a b: " + counter.getContextCount(a, b));
+    FastTriCounter.Cursor cursor = counter.cursor(a, b);
+    while (cursor.advance()) {
+      System.out.println("  a b " + counter.getIndex().get(cursor.third()) + " : " + cursor.count());
+    }
+    System.out.println("Removed by discounting 0.75: " + counter.discount(0.75));
+    System.out.println("Total: " + counter.totalCount());
+  }
+}
@@ -0,0 +1,290 @@
+package cs224n.util;
+
+import java.io.Serializable;
+
+/**
+ * A map from ints, such as word or tag ids, to doubles.  This is the int
+ * counterpart of LongCounter, which it mirrors in 12 rather than 16 bytes
+ * per slot: keys and counts are stored unboxed in parallel arrays of an
+ * open-addressing (linear probing) hash table, so getCount() and
+ * incrementCount() never allocate, and the total count is maintained
+ * incrementally, so totalCount() is a constant time operation.  Keys not in
+ * the counter return a count of zero.
+ */
+public class IntDoubleCounter implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  int[] keys;
+  double[] counts;
+  boolean[] used;
+  int size;
+  int mask;
+  double totalCount;
+
+  /**
+   * Walks over the entries of an IntDoubleCounter without allocating an
+   * object per entry.  Typical usage:
+   * <pre>
+   *   IntDoubleCounter.Cursor cursor = counter.cursor();
+   *   while (cursor.advance()) {
+   *     int key = cursor.key();
+   *     double count = cursor.count();
+   *   }
+   * </pre>
+   * The counter must not have keys added while a cursor is in use, though
+   * counts of existing keys may be changed through setCount().
+   */
+  public class Cursor {
+    int slot = -1;
+
+    /**
+     * Moves to the next entry, returning false if there are no more.
+     */
+    public boolean advance() {
+      int capacity = keys.length;
+      for (slot++; slot < capacity; slot++) {
+        if (used[slot]) return true;
+      }
+      return false;
+    }
+
+    public int key() {
+      return keys[slot];
+    }
+
+    public double count() {
+      return counts[slot];
+    }
+
+    /**
+     * Sets the count of the current entry, keeping the counter's total up to
+     * date.
+     */
+    public void setCount(double count) {
+      totalCount += count - counts[slot];
+      counts[slot] = count;
+    }
+  }
+
+  /**
+   * Returns a cursor positioned before the first entry.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use
+   * totalCount() instead).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the counter.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns whether the counter contains the given key, which distinguishes
+   * keys stored with count zero from keys which are not present.
+   */
+  public boolean containsKey(int key) {
+    return used[find(key)];
+  }
+
+  /**
+   * Get the count of the key, or zero if the key is not in the counter.
+   */
+  public double getCount(int key) {
+    int slot = find(key);
+    return used[slot] ? counts[slot] : 0.0;
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(int key, double count) {
+    int slot = insert(key);
+    totalCount += count - counts[slot];
+    counts[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount, returning the new count.
+   */
+  public double incrementCount(int key, double increment) {
+    int slot = insert(key);
+    counts[slot] += increment;
+    totalCount += increment;
+    return counts[slot];
+  }
+
+  /**
+   * Increment the count of every key in the given counter by its count there.
+   */
+  public void incrementAll(IntDoubleCounter counter) {
+    Cursor cursor = counter.cursor();
+    while (cursor.advance()) {
+      incrementCount(cursor.key(), cursor.count());
+    }
+  }
+
+  /**
+   * Returns the total of all counts in the counter.  The total is maintained
+   * as counts are changed, so this is a constant time operation.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the keys of the counter in an unspecified order.
+   */
+  public int[] keys() {
+    int[] result = new int[size];
+    int i = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (used[slot]) result[i++] = keys[slot];
+    }
+    return result;
+  }
+
+  /**
+   * Finds the key with maximum count, or -1 if the counter is empty.  This
+   * is a linear operation, and ties are broken arbitrarily.
+   */
+  public int argMax() {
+    double maxCount = Double.NEGATIVE_INFINITY;
+    int maxKey = -1;
+    boolean found = false;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (used[slot] && (counts[slot] > maxCount || !found)) {
+        maxKey = keys[slot];
+        maxCount = counts[slot];
+        found = true;
+      }
+    }
+    return maxKey;
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Spreads the bits of a key, so that ids which differ in a few low bits
+   * do not fill runs of adjacent slots.
+   */
+  static int hash(int key) {
+    key *= 0x9e3779b9;
+    return key ^ (key >>> 16);
+  }
+
+  /**
+   * Returns the slot holding the key, or the empty slot where it would go.
+   */
+  int find(int key) {
+    int slot = hash(key) & mask;
+    while (used[slot] && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  int insert(int key) {
+    int slot = find(key);
+    if (!used[slot]) {
+      if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+        rehash(2 * keys.length);
+        slot = find(key);
+      }
+      used[slot] = true;
+      keys[slot] = key;
+      counts[slot] = 0.0;
+      size++;
+    }
+    return slot;
+  }
+
+  void rehash(int newCapacity) {
+    int[] oldKeys = keys;
+    double[] oldCounts = counts;
+    boolean[] oldUsed = used;
+    allocate(newCapacity);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldUsed[slot]) {
+        int newSlot = find(oldKeys[slot]);
+        used[newSlot] = true;
+        keys[newSlot] = oldKeys[slot];
+        counts[newSlot] = oldCounts[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    counts = new double[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  public IntDoubleCounter() {
+    this(16);
+  }
+
+  /**
+   * Constructs a counter which can hold the given number of keys before it
+   * needs to grow.
+   */
+  public IntDoubleCounter(int expectedSize) {
+    int capacity = 16;
+    while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * Constructs a copy of the given counter.
+   */
+  public IntDoubleCounter(IntDoubleCounter counter) {
+    keys = counter.keys.clone();
+    counts = counter.counts.clone();
+    used = counter.used.clone();
+    size = counter.size;
+    mask = counter.mask;
+    totalCount = counter.totalCount;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    Cursor cursor = cursor();
+    boolean first = true;
+    while (cursor.advance()) {
+      if (!first) sb.append(", ");
+      sb.append(cursor.key());
+      sb.append(" : ");
+      sb.append(cursor.count());
+      first = false;
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) {
+    IntDoubleCounter counter = new IntDoubleCounter();
+    counter.incrementCount(7, 7);
+    counter.incrementCount(7, 1);
+    counter.setCount(3, 1);
+    counter.setCount(-1, 0);
+    System.out.println(counter);
+    System.out.println("Count of 7: " + counter.getCount(7));
+    System.out.println("Count of 5: " + counter.getCount(5));
+    System.out.println("Total: " + counter.totalCount());
+    System.out.println("Argmax: " + counter.argMax());
+  }
+}
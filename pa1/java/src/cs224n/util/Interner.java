@@ -1,20 +1,25 @@
 package cs224n.util;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Canonicalizes objects.  Given an object, the intern() method returns a
  * canonical representation of that object, that is, an object which equals()
  * the input.  Furthermore, given two objects x and y, it is guaranteed that if
  * x.equals(y), then intern(x) == intern(y).  The default behavior is that the
- * interner is backed by a HashMap and the canonical version of an object x is
- * simply the first object that equals(x) which is passed to the interner.  In
- * this case, it can be true that intern(x) == x.  The backing map can be
- * specified by passing a MapFactory on construction (though the only standard
- * option which makes much sense is the WeakHashMap, which is slower than a
- * HashMap, but which allows unneeded keys to be reclaimed by the garbage
- * collector).  The source of canonical elements can be changed by specifying an
+ * interner is backed by a ConcurrentHashMap and the canonical version of an
+ * object x is simply the first object that equals(x) which is passed to the
+ * interner.  In this case, it can be true that intern(x) == x.  The backing map
+ * can be specified by passing a MapFactory on construction.  (A WeakHashMap
+ * does not let its keys be reclaimed here, since each is its own value.)  The
+ * source of canonical elements can be changed by specifying an
  * Interner.Factory on construction.
+ * <p>
+ * Interners are thread-safe: a concurrent backing map is used through
+ * putIfAbsent(), so lookups take no lock, and any other map is locked.  If
+ * two threads intern equal new objects at once, the factory may build two
+ * canonical candidates, but both threads get the same one.
  *
  * @author Dan Klein
  */
@@ -46,16 +51,30 @@ public class Interner <T> {
    * @return a canonical representation of that object
    */
   public T intern(T object) {
-    T canonical = canonicalMap.get(object);
-    if (canonical == null) {
-      canonical = cf.build(object);
-      canonicalMap.put(canonical, canonical);
+    if (canonicalMap instanceof ConcurrentMap) {
+      ConcurrentMap<T, T> concurrentMap = (ConcurrentMap<T, T>) canonicalMap;
+      T canonical = concurrentMap.get(object);
+      if (canonical == null) {
+        T built = cf.build(object);
+        canonical = concurrentMap.putIfAbsent(built, built);
+        if (canonical == null) {
+          canonical = built;
+        }
+      }
+      return canonical;
+    }
+    synchronized (canonicalMap) {
+      T canonical = canonicalMap.get(object);
+      if (canonical == null) {
+        canonical = cf.build(object);
+        canonicalMap.put(canonical, canonical);
+      }
+      return canonical;
     }
-    return canonical;
   }
 
   public Interner() {
-    this(new MapFactory.HashMapFactory<T,T>(), new IdentityCanonicalFactory<T>());
+    this(new MapFactory.ConcurrentHashMapFactory<T,T>(), new IdentityCanonicalFactory<T>());
   }
 
   public Interner(MapFactory<T,T> mf) {
@@ -63,7 +82,7 @@ public class Interner <T> {
   }
 
   public Interner(CanonicalFactory<T> f) {
-    this(new MapFactory.HashMapFactory<T,T>(), f);
+    this(new MapFactory.ConcurrentHashMapFactory<T,T>(), f);
   }
 
   public Interner(MapFactory<T,T> mf, CanonicalFactory<T> cf) {
@@ -1,6 +1,7 @@
 package cs224n.util;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Serializable;
 
 /**
@@ -42,6 +43,13 @@ public abstract class MapFactory<K,V> implements Serializable {
     }
   }
 
+  public static class ConcurrentHashMapFactory<K,V> extends MapFactory<K,V> {
+    static final long serialVersionUID = 1L;
+    public Map<K,V> buildMap() {
+      return new ConcurrentHashMap<K,V>();
+    }
+  }
+
   public abstract Map<K,V> buildMap();
 }
 
@@ -0,0 +1,289 @@
+package cs224n.util;
+
+/**
+ * Counts n-grams of a fixed order.  Words are interned to dense integer ids
+ * through an Index (or a SymbolTable), and each n-gram is packed into a single long key (the
+ * first word in the highest bits) held in a LongCounter.  Lookups therefore
+ * hash one long instead of building nested Pair objects, and neither
+ * getCount() nor incrementCount() allocates.
+ *
+ * Packing gives each word BITS_PER_WORD bits, so the vocabulary is limited to
+ * MAX_VOCABULARY_SIZE words and the order to three.  Because the first words
+ * sit in the high bits, dropping the last word of a packed n-gram (see
+ * getContext()) yields the packed key of its context.
+ */
+public class NgramCounter {
+
+  public static final int BITS_PER_WORD = 21;
+  public static final int MAX_VOCABULARY_SIZE = 1 << BITS_PER_WORD;
+  public static final int MAX_ORDER = 3;
+  private static final long WORD_MASK = MAX_VOCABULARY_SIZE - 1;
+
+  private final int order;
+  private final SymbolIndex<String> index;
+  private final LongCounter counts;
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Packs two word ids into a bigram key.
+   */
+  public static long pack(int first, int second) {
+    return ((long) first << BITS_PER_WORD) | second;
+  }
+
+  /**
+   * Packs three word ids into a trigram key.
+   */
+  public static long pack(int first, int second, int third) {
+    return ((((long) first << BITS_PER_WORD) | second) << BITS_PER_WORD) | third;
+  }
+
+  /**
+   * Returns the key of the (n-1)-gram context of a packed n-gram, that is,
+   * the key with its last word dropped.
+   */
+  public static long getContext(long key) {
+    return key >>> BITS_PER_WORD;
+  }
+
+  /**
+   * Returns the id of the last word of a packed n-gram.
+   */
+  public static int getLastWordId(long key) {
+    return (int) (key & WORD_MASK);
+  }
+
+  /**
+   * Returns the id of the word at the given position (0 is the first word)
+   * of a key packed by this counter.
+   */
+  public int getWordId(long key, int position) {
+    return (int) ((key >>> ((order - 1 - position) * BITS_PER_WORD)) & WORD_MASK);
+  }
+
+  /**
+   * Returns the word at the given position of a key packed by this counter.
+   */
+  public String getWord(long key, int position) {
+    return index.get(getWordId(key, position));
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns the id of a word, adding it to the index if necessary.
+   */
+  public int intern(String word) {
+    int id = index.indexOf(word);
+    if (id < 0) {
+      if (index.size() >= MAX_VOCABULARY_SIZE) {
+        throw new IllegalStateException("Vocabulary exceeds " + MAX_VOCABULARY_SIZE + " words");
+      }
+      id = index.addAndGetIndex(word);
+      if (id < 0) {
+        throw new UnsupportedOperationException("Cannot add " + word + " to a read-only index");
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Returns the id of a word, or -1 if the word has never been counted.
+   */
+  public int getWordId(String word) {
+    return index.indexOf(word);
+  }
+
+  public SymbolIndex<String> getIndex() {
+    return index;
+  }
+
+  public int getOrder() {
+    return order;
+  }
+
+  // -----------------------------------------------------------------------
+
+  public void incrementCount(String word, double increment) {
+    checkOrder(1);
+    counts.incrementCount(intern(word), increment);
+  }
+
+  public void incrementCount(String first, String second, double increment) {
+    checkOrder(2);
+    counts.incrementCount(pack(intern(first), intern(second)), increment);
+  }
+
+  public void incrementCount(String first, String second, String third, double increment) {
+    checkOrder(3);
+    counts.incrementCount(pack(intern(first), intern(second), intern(third)), increment);
+  }
+
+  public void incrementCount(long key, double increment) {
+    counts.incrementCount(key, increment);
+  }
+
+  public void setCount(long key, double count) {
+    counts.setCount(key, count);
+  }
+
+  public double getCount(String word) {
+    checkOrder(1);
+    int id = index.indexOf(word);
+    if (id < 0) return 0.0;
+    return counts.getCount(id);
+  }
+
+  public double getCount(String first, String second) {
+    checkOrder(2);
+    int firstId = index.indexOf(first);
+    int secondId = index.indexOf(second);
+    if (firstId < 0 || secondId < 0) return 0.0;
+    return counts.getCount(pack(firstId, secondId));
+  }
+
+  public double getCount(String first, String second, String third) {
+    checkOrder(3);
+    int firstId = index.indexOf(first);
+    int secondId = index.indexOf(second);
+    int thirdId = index.indexOf(third);
+    if (firstId < 0 || secondId < 0 || thirdId < 0) return 0.0;
+    return counts.getCount(pack(firstId, secondId, thirdId));
+  }
+
+  public double getCount(long key) {
+    return counts.getCount(key);
+  }
+
+  /**
+   * The number of distinct n-grams counted.
+   */
+  public int size() {
+    return counts.size();
+  }
+
+  /**
+   * The total count of all n-grams.  This is a constant time operation.
+   */
+  public double totalCount() {
+    return counts.totalCount();
+  }
+
+  /**
+   * Returns the packed n-grams counted, in increasing order.  Because the
+   * first words sit in the high bits, the n-grams which share a context
+   * form one contiguous run of the array (see findContext()).
+   */
+  public long[] sortedKeys() {
+    long[] keys = counts.keys();
+    java.util.Arrays.sort(keys);
+    return keys;
+  }
+
+  /**
+   * Returns the position in sortedKeys of the first n-gram whose context is
+   * at least the given context key.  The successors of a context therefore
+   * run from findContext(sortedKeys, context) to
+   * findContext(sortedKeys, context + 1).
+   */
+  public static int findContext(long[] sortedKeys, long context) {
+    long key = context << BITS_PER_WORD;
+    int low = 0;
+    int high = sortedKeys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sortedKeys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the LongCounter holding the counts of the packed n-grams.  It is
+   * this counter's own, not a copy, so changing it changes this counter.
+   */
+  public LongCounter getCounts() {
+    return counts;
+  }
+
+  /**
+   * Returns a cursor over the packed n-grams and their counts.
+   */
+  public LongCounter.Cursor cursor() {
+    return counts.cursor();
+  }
+
+  private void checkOrder(int numWords) {
+    if (order != numWords) {
+      throw new IllegalArgumentException("Expected " + order + " words, got " + numWords);
+    }
+  }
+
+  public NgramCounter(int order) {
+    this(order, new Index<String>());
+  }
+
+  /**
+   * Constructs a counter which interns words through the given index, so
+   * that several counters can share one id space.
+   */
+  public NgramCounter(int order, SymbolIndex<String> index) {
+    this(order, index, 0);
+  }
+
+  /**
+   * Constructs a counter which interns words through the given index and
+   * can hold the given number of n-grams before it needs to grow.
+   */
+  public NgramCounter(int order, SymbolIndex<String> index, int expectedSize) {
+    if (order < 1 || order > MAX_ORDER) {
+      throw new IllegalArgumentException("Unsupported n-gram order: " + order);
+    }
+    this.order = order;
+    this.index = index;
+    this.counts = new LongCounter(expectedSize);
+  }
+
+  /**
+   * Constructs a copy of the given counter, which shares its index.
+   */
+  public NgramCounter(NgramCounter counter) {
+    this.order = counter.order;
+    this.index = counter.index;
+    this.counts = new LongCounter(counter.counts);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    LongCounter.Cursor cursor = cursor();
+    boolean first = true;
+    while (cursor.advance()) {
+      if (!first) sb.append(", ");
+      sb.append("(");
+      for (int position = 0; position < order; position++) {
+        if (position > 0) sb.append(", ");
+        sb.append(getWord(cursor.key(), position));
+      }
+      sb.append(") : ");
+      sb.append(cursor.count());
+      first = false;
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) {
+    NgramCounter counter = new NgramCounter(3);
+    counter.incrementCount("a", "b", "c", 1.0);
+    counter.incrementCount("a", "b", "c", 1.0);
+    counter.incrementCount("a", "b", "e", 1.0);
+    System.out.println(counter);
+    System.out.println(counter.getCount("a", "b", "c"));
+    System.out.println(counter.getCount("a", "b", "d"));
+    System.out.println("Total: " + counter.totalCount());
+  }
+}
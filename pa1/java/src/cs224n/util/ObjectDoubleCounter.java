@@ -0,0 +1,423 @@
+package cs224n.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from objects to doubles, with the API of Counter.  Keys and counts
+ * are stored in parallel arrays of an open-addressing (linear probing) hash
+ * table, so counts are not boxed and getCount() and incrementCount() of an
+ * existing key never allocate.  As in LongCounter, the total count is
+ * maintained as counts change, so totalCount() is a constant time
+ * operation; being summed in a different order, it may differ from
+ * Counter's total in the last bits.  Keys can not be removed, and keys must
+ * not be added while keySet() or a cursor is being iterated over.
+ */
+public class ObjectDoubleCounter <E> implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  /**
+   * Stands for the null key, since a null slot is an empty one.
+   */
+  private static final Object NULL_KEY = new Object();
+
+  // The table is written as its entries (see writeObject()), since its
+  // slots hold NULL_KEY, which is not the same object in another JVM.
+  transient Object[] keys;
+  transient double[] counts;
+  transient int size;
+  transient int mask;
+  double totalCount;
+  /**
+   * The counter map this counter belongs to, if any, which is told of
+   * every change to the total and the size.  A map restores it when it is
+   * read; a counter read on its own belongs to no map.
+   */
+  transient ObjectDoubleCounterMap<?, ?> owner;
+
+  /**
+   * Walks over the entries of a counter without allocating an object per
+   * entry, as LongCounter.Cursor does.
+   */
+  public class Cursor {
+    int slot = -1;
+
+    /**
+     * Moves to the next entry, returning false if there are no more.
+     */
+    public boolean advance() {
+      int capacity = keys.length;
+      for (slot++; slot < capacity; slot++) {
+        if (keys[slot] != null) return true;
+      }
+      return false;
+    }
+
+    public E key() {
+      return unmask(keys[slot]);
+    }
+
+    public double count() {
+      return counts[slot];
+    }
+
+    /**
+     * Sets the count of the current entry, keeping the counter's total up
+     * to date.
+     */
+    public void setCount(double count) {
+      addToTotal(count - counts[slot]);
+      counts[slot] = count;
+    }
+  }
+
+  /**
+   * Returns a cursor positioned before the first entry.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * The elements in the counter, as a view which changes with it.
+   *
+   * @return set of keys
+   */
+  public Set<E> keySet() {
+    return new AbstractSet<E>() {
+      public Iterator<E> iterator() {
+        return new Iterator<E>() {
+          Cursor cursor = cursor();
+          boolean advanced;
+          boolean hasNext;
+
+          public boolean hasNext() {
+            if (!advanced) {
+              hasNext = cursor.advance();
+              advanced = true;
+            }
+            return hasNext;
+          }
+
+          public E next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            advanced = false;
+            return cursor.key();
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      public int size() {
+        return size;
+      }
+
+      @SuppressWarnings("unchecked")
+      public boolean contains(Object o) {
+        return containsKey((E) o);
+      }
+    };
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use totalCount() instead).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the counter (false does not mean totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns whether the counter contains the given key, which distinguishes
+   * keys stored with count zero from keys which are not present.
+   */
+  public boolean containsKey(E key) {
+    return keys[find(mask(key))] != null;
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   */
+  public double getCount(E key) {
+    int slot = find(mask(key));
+    return keys[slot] != null ? counts[slot] : 0.0;
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(E key, double count) {
+    int slot = insert(mask(key));
+    addToTotal(count - counts[slot]);
+    counts[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount.
+   */
+  public void incrementCount(E key, double increment) {
+    int slot = insert(mask(key));
+    counts[slot] += increment;
+    addToTotal(increment);
+  }
+
+  /**
+   * Increment each element in a given collection by a given amount.
+   */
+  public void incrementAll(Collection<? extends E> collection, double count) {
+    for (E key : collection) {
+      incrementCount(key, count);
+    }
+  }
+
+  public <T extends E> void incrementAll(ObjectDoubleCounter<T> counter) {
+    ObjectDoubleCounter<T>.Cursor cursor = counter.cursor();
+    while (cursor.advance()) {
+      incrementCount(cursor.key(), cursor.count());
+    }
+  }
+
+  public <T extends E> void incrementAll(Counter<T> counter) {
+    for (T key : counter.keySet()) {
+      incrementCount(key, counter.getCount(key));
+    }
+  }
+
+  /**
+   * Returns the total of all counts in the counter.  The total is
+   * maintained as counts are changed, so this is a constant time operation.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Finds the key with maximum count.  This is a linear operation, and ties are broken arbitrarily.
+   *
+   * @return a key with maximum count
+   */
+  public E argMax() {
+    double maxCount = Double.NEGATIVE_INFINITY;
+    int maxSlot = -1;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null && (counts[slot] > maxCount || maxSlot < 0)) {
+        maxSlot = slot;
+        maxCount = counts[slot];
+      }
+    }
+    return maxSlot < 0 ? null : unmask(keys[maxSlot]);
+  }
+
+  /**
+   * Finds the k keys with largest counts, in decreasing order of count (or
+   * all keys, if there are fewer).  This takes O(n log k) time, and ties are
+   * broken arbitrarily.
+   */
+  public List<E> topK(int k) {
+    TopK<E> topK = new TopK<E>(Math.min(k, size));
+    Cursor cursor = cursor();
+    while (cursor.advance()) {
+      topK.add(cursor.key(), cursor.count());
+    }
+    return topK.toList();
+  }
+
+  /**
+   * Returns a string representation with the keys ordered by decreasing
+   * counts.
+   */
+  public String toString() {
+    return toString(size);
+  }
+
+  /**
+   * Returns a string representation which includes no more than the
+   * maxKeysToPrint elements with largest counts.
+   */
+  public String toString(int maxKeysToPrint) {
+    return asPriorityQueue().toString(maxKeysToPrint);
+  }
+
+  /**
+   * Builds a priority queue whose elements are the counter's elements, and
+   * whose priorities are those elements' counts in the counter.
+   */
+  public PriorityQueue<E> asPriorityQueue() {
+    PriorityQueue<E> pq = new PriorityQueue<E>(size);
+    Cursor cursor = cursor();
+    while (cursor.advance()) {
+      pq.add(cursor.key(), cursor.count());
+    }
+    return pq;
+  }
+
+  // -----------------------------------------------------------------------
+
+  private void addToTotal(double increment) {
+    totalCount += increment;
+    if (owner != null) {
+      owner.totalCount += increment;
+    }
+  }
+
+  private static Object mask(Object key) {
+    return key == null ? NULL_KEY : key;
+  }
+
+  @SuppressWarnings("unchecked")
+  private E unmask(Object key) {
+    return key == NULL_KEY ? null : (E) key;
+  }
+
+  /**
+   * Spreads the hash code's high bits to the low bits, which pick the slot.
+   */
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot holding the (masked) key, or the empty slot where it
+   * would go.
+   */
+  int find(Object key) {
+    int slot = hash(key) & mask;
+    Object stored;
+    while ((stored = keys[slot]) != null && stored != key && !stored.equals(key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  int insert(Object key) {
+    int slot = find(key);
+    if (keys[slot] == null) {
+      if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+        rehash(2 * keys.length);
+        slot = find(key);
+      }
+      keys[slot] = key;
+      counts[slot] = 0.0;
+      size++;
+      if (owner != null) {
+        owner.totalSize++;
+      }
+    }
+    return slot;
+  }
+
+  void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    double[] oldCounts = counts;
+    allocate(newCapacity);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != null) {
+        int newSlot = find(oldKeys[slot]);
+        keys[newSlot] = oldKeys[slot];
+        counts[newSlot] = oldCounts[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new Object[capacity];
+    counts = new double[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = 16;
+    while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  /**
+   * Writes the total, the number of entries, and each key (null for the
+   * null key) and count.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    Cursor cursor = cursor();
+    while (cursor.advance()) {
+      out.writeObject(cursor.key());
+      out.writeDouble(cursor.count());
+    }
+  }
+
+  /**
+   * Rebuilds the table from the entries written by writeObject(), hashing
+   * the keys afresh and standing this JVM's NULL_KEY in for the null key.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int numEntries = in.readInt();
+    allocate(capacityFor(numEntries));
+    for (int i = 0; i < numEntries; i++) {
+      int slot = insert(mask(in.readObject()));
+      counts[slot] = in.readDouble();
+    }
+  }
+
+  public ObjectDoubleCounter() {
+    this(16);
+  }
+
+  /**
+   * Constructs a counter which can hold the given number of keys before it
+   * needs to grow.
+   */
+  public ObjectDoubleCounter(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  /**
+   * Constructs a copy of the given counter, which belongs to no counter map.
+   */
+  public ObjectDoubleCounter(ObjectDoubleCounter<? extends E> counter) {
+    keys = counter.keys.clone();
+    counts = counter.counts.clone();
+    size = counter.size;
+    mask = counter.mask;
+    totalCount = counter.totalCount;
+  }
+
+  public static void main(String[] args) {
+    ObjectDoubleCounter<String> counter = new ObjectDoubleCounter<String>();
+    System.out.println(counter);
+    counter.incrementCount("planets", 7);
+    System.out.println(counter);
+    counter.incrementCount("planets", 1);
+    System.out.println(counter);
+    counter.setCount("suns", 1);
+    System.out.println(counter);
+    counter.setCount("aliens", 0);
+    System.out.println(counter);
+    System.out.println(counter.toString(2));
+    System.out.println("Total: " + counter.totalCount());
+    System.out.println("Keys: " + counter.keySet());
+  }
+}
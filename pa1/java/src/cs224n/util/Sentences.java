@@ -1,79 +1,343 @@
 package cs224n.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
 import java.util.*;
 
 /**
  * @author Dan Klein
- */ 
+ */
 
  /** A <code>Sentences</code> object is a <code>Collection</code> of
    *  sentences backed by a text file containing one sentence per line.  It
    *  provides an iterator over the sentences.  Because the collection is
-   *  disk-backed, any operation other than iterating is likely to be slow.
+   *  disk-backed, any operation other than iterating and size() is likely
+   *  to be slow.
+   *  <p/>
+   *  The line count, and the byte offset of every OFFSET_INTERVAL-th line,
+   *  are computed once and cached in a sidecar file (the file name plus
+   *  ".lines"), which is rebuilt whenever the text file changes.  This
+   *  makes size() constant time and lets iterator(from, to) start partway
+   *  through the file.  The text file's encoding (the platform default)
+   *  must be ASCII-compatible for the offsets to be used; otherwise lines
+   *  are counted by iterating.
    */
   public class Sentences extends AbstractCollection<List<String>> {
 
-    /** 
-     * An <code>Iterator</code> wrapped around a
-     * <code>BufferedReader</code>.  Each call to <code>next()</code> reads
-     * a line, lowercases it, splits it (on whitespace) into words, and
-     * returns a list of the words.
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int OFFSET_INTERVAL = 1024;
+    static final String INDEX_SUFFIX = ".lines";
+    static final int INDEX_VERSION = 1;
+
+    /**
+     * An <code>Iterator</code> which decodes a file channel in large
+     * buffers.  Each call to <code>next()</code> scans a line into a
+     * reused character buffer and hands it to the tokenizer, which returns
+     * the list of words.  Lines end at "\n", "\r" or "\r\n", as for
+     * <code>BufferedReader.readLine()</code>.  The channel is closed once
+     * it has been read to the end or the last sentence of the range has
+     * been read, and a read error is thrown as a RuntimeException rather
+     * than taken for the end of the file.
      */
     static class SentenceIterator implements Iterator<List<String>> {
 
-      BufferedReader reader;
+      FileChannel channel;
+      CharsetDecoder decoder;
+      Tokenizer tokenizer;
+      ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+      CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+      boolean endOfInput = false;
+      boolean flushed = false;
+      boolean skipLineFeed = false;
+      char[] line = new char[256];
+      int lineLength = 0;
+      boolean hasLine = false;
+      int remaining;
 
       public boolean hasNext() {
-        try {
-          return reader.ready();
-        } catch (IOException e) {
-          return false;
+        if (!hasLine && remaining > 0) {
+          try {
+            hasLine = readLine();
+          } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+          }
+          if (hasLine) {
+            remaining--;
+          }
+          if (remaining == 0 || !hasLine) {
+            close();
+          }
         }
+        return hasLine;
       }
 
       public List<String> next() {
-        try {
-          String line = reader.readLine();
-          String[] words = line.split("\\s+");
-          List<String> sentence = new ArrayList<String>();
-          for (int i = 0; i < words.length; i++) {
-            String word = words[i];
-            sentence.add(word.toLowerCase());
-          }
-          return sentence;
-        } catch (IOException e) {
+        if (!hasNext()) {
           throw new NoSuchElementException();
         }
+        hasLine = false;
+        List<String> sentence = new ArrayList<String>();
+        tokenizer.tokenize(line, lineLength, sentence);
+        return sentence;
       }
 
       public void remove() {
         throw new UnsupportedOperationException();
       }
 
-      public SentenceIterator(BufferedReader reader) {
-        this.reader = reader;
+      /**
+       * Scans the next line into line[0, lineLength), returning false at
+       * the end of the file.
+       */
+      boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean started = false;
+        while (true) {
+          if (!chars.hasRemaining() && !fill()) {
+            return started;
+          }
+          char c = chars.get();
+          if (skipLineFeed) {
+            skipLineFeed = false;
+            if (c == '\n') continue;
+          }
+          if (c == '\n' || c == '\r') {
+            skipLineFeed = (c == '\r');
+            return true;
+          }
+          if (lineLength == line.length) {
+            char[] longerLine = new char[2 * line.length];
+            System.arraycopy(line, 0, longerLine, 0, lineLength);
+            line = longerLine;
+          }
+          line[lineLength++] = c;
+          started = true;
+        }
+      }
+
+      /**
+       * Decodes the next buffer of characters, returning false at the end
+       * of the file.
+       */
+      boolean fill() throws IOException {
+        chars.clear();
+        while (!flushed) {
+          if (!endOfInput && channel.read(bytes) < 0) {
+            endOfInput = true;
+          }
+          bytes.flip();
+          CoderResult result = decoder.decode(bytes, chars, endOfInput);
+          bytes.compact();
+          if (result.isError()) {
+            result.throwException();
+          }
+          if (result.isOverflow()) {
+            break;
+          }
+          if (endOfInput) {
+            decoder.flush(chars);
+            flushed = true;
+            break;
+          }
+          if (chars.position() > 0) {
+            break;
+          }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+      }
+
+      void close() {
+        remaining = 0;
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nothing more will be read.
+        }
+      }
+
+      /**
+       * Skips skipSentences lines from the channel's current position and
+       * then reads at most maxSentences sentences.
+       */
+      public SentenceIterator(FileChannel channel, Tokenizer tokenizer,
+                              int skipSentences, int maxSentences) throws IOException {
+        this.channel = channel;
+        this.tokenizer = tokenizer;
+        this.decoder = Charset.defaultCharset().newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars.flip();
+        this.remaining = maxSentences;
+        try {
+          for (int i = 0; i < skipSentences && readLine(); i++) { }
+        } catch (IOException e) {
+          close();
+          throw e;
+        }
+        if (remaining == 0) {
+          close();
+        }
       }
 
     } // end SentenceIterator
 
+    /**
+     * The cached line count of a file and the byte offsets of lines 0,
+     * OFFSET_INTERVAL, 2 * OFFSET_INTERVAL, ...
+     */
+    static class LineIndex {
+      long fileLength;
+      long lastModified;
+      int size;
+      long[] offsets;
+
+      boolean matches(File file) {
+        return fileLength == file.length() && lastModified == file.lastModified();
+      }
+
+      /**
+       * Counts the lines of a file by scanning its bytes for line ends.
+       */
+      static LineIndex build(File file) throws IOException {
+        LineIndex index = new LineIndex();
+        index.fileLength = file.length();
+        index.lastModified = file.lastModified();
+        List<Long> offsets = new ArrayList<Long>();
+        FileInputStream in = new FileInputStream(file);
+        try {
+          FileChannel channel = in.getChannel();
+          ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+          long position = 0;
+          boolean inLine = false;
+          boolean afterCarriageReturn = false;
+          while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              byte b = buffer.get();
+              if (afterCarriageReturn) {
+                afterCarriageReturn = false;
+                if (b == '\n') {
+                  position++;
+                  continue;
+                }
+              }
+              if (!inLine) {
+                if (index.size % OFFSET_INTERVAL == 0) offsets.add(position);
+                inLine = true;
+              }
+              if (b == '\n' || b == '\r') {
+                afterCarriageReturn = (b == '\r');
+                inLine = false;
+                index.size++;
+              }
+              position++;
+            }
+            buffer.clear();
+          }
+          if (inLine) {
+            index.size++;
+          }
+        } finally {
+          in.close();
+        }
+        index.offsets = new long[offsets.size()];
+        for (int i = 0; i < index.offsets.length; i++) {
+          index.offsets[i] = offsets.get(i);
+        }
+        return index;
+      }
+
+      static LineIndex read(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+          if (in.readInt() != INDEX_VERSION) {
+            throw new IOException("Unknown line index version in " + indexFile);
+          }
+          LineIndex index = new LineIndex();
+          index.fileLength = in.readLong();
+          index.lastModified = in.readLong();
+          index.size = in.readInt();
+          index.offsets = new long[in.readInt()];
+          for (int i = 0; i < index.offsets.length; i++) {
+            index.offsets[i] = in.readLong();
+          }
+          return index;
+        } finally {
+          in.close();
+        }
+      }
+
+      void write(File indexFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+          out.writeInt(INDEX_VERSION);
+          out.writeLong(fileLength);
+          out.writeLong(lastModified);
+          out.writeInt(size);
+          out.writeInt(offsets.length);
+          for (long offset : offsets) {
+            out.writeLong(offset);
+          }
+        } finally {
+          out.close();
+        }
+      }
+    }
+
     String filename;
+    Tokenizer tokenizer;
+    LineIndex lineIndex;
 
-    /** Returns an iterator over the sentences in this collection. 
+    /** Returns an iterator over the sentences in this collection.
      */
     public Iterator<List<String>> iterator() {
+      return iterator(0, Integer.MAX_VALUE);
+    }
+
+    /** Returns an iterator over the sentences from index from (inclusive)
+     *  to index to (exclusive).  The iterator seeks close to the first
+     *  sentence rather than reading the file from its start, so disjoint
+     *  ranges of a large file can be read by separate threads.
+     */
+    public Iterator<List<String>> iterator(int from, int to) {
+      LineIndex index = getLineIndex();
+      FileChannel channel;
       try {
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        return new SentenceIterator(reader);
+        channel = new FileInputStream(filename).getChannel();
       } catch (FileNotFoundException e) {
         throw new RuntimeException("File not found: " + filename);
       }
+      try {
+        int skip = from;
+        if (index != null && from > 0 && from < index.size) {
+          channel.position(index.offsets[from / OFFSET_INTERVAL]);
+          skip = from % OFFSET_INTERVAL;
+        }
+        return new SentenceIterator(channel, tokenizer, skip, Math.max(0, to - from));
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // The first error is the one reported.
+        }
+        throw new RuntimeException(e);
+      }
     }
 
-    /** Returns the numbers of sentences in this collection.  (This
-     *  iterates through all sentences, so it may be slow.)
+    /** Returns the numbers of sentences in this collection.  The count is
+     *  read from the sidecar line index, which is built by a single scan of
+     *  the file the first time it is needed.
      */
     public int size() {
+      LineIndex index = getLineIndex();
+      if (index != null) {
+        return index.size;
+      }
       int size = 0;
       Iterator<List<String>> i = iterator();
       while (i.hasNext()) {
@@ -83,12 +347,74 @@ import java.util.*;
       return size;
     }
 
+    /**
+     * Returns the line index of the file, reading it from the sidecar file
+     * if that is up to date and otherwise building it (and writing the
+     * sidecar file if possible).  Returns null if the platform encoding is
+     * not ASCII-compatible, in which case byte offsets cannot be found by
+     * scanning for line ends.
+     */
+    synchronized LineIndex getLineIndex() {
+      if (!isAsciiCompatible(Charset.defaultCharset())) {
+        return null;
+      }
+      File file = new File(filename);
+      if (lineIndex != null && lineIndex.matches(file)) {
+        return lineIndex;
+      }
+      File indexFile = new File(filename + INDEX_SUFFIX);
+      lineIndex = null;
+      if (indexFile.exists()) {
+        try {
+          lineIndex = LineIndex.read(indexFile);
+        } catch (IOException e) {
+          lineIndex = null;
+        }
+      }
+      if (lineIndex == null || !lineIndex.matches(file)) {
+        try {
+          lineIndex = LineIndex.build(file);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        try {
+          lineIndex.write(indexFile);
+        } catch (IOException e) {
+          // The index is kept in memory only.
+          indexFile.delete();
+        }
+      }
+      return lineIndex;
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+      try {
+        byte[] bytes = "\n\r azAZ09".getBytes(charset.name());
+        return Arrays.equals(bytes, "\n\r azAZ09".getBytes("US-ASCII"));
+      } catch (UnsupportedEncodingException e) {
+        return false;
+      }
+    }
+
     /** Constructs a new sentence collection from the name of the file
-     *  containing the sentences.
+     *  containing the sentences, which are split on whitespace and
+     *  lowercased.
      */
     public Sentences(String filename) {
+      this(filename, new WhitespaceTokenizer());
+    }
+
+    /** Constructs a new sentence collection from the name of the file
+     *  containing the sentences and the tokenizer which splits them into
+     *  words.
+     */
+    public Sentences(String filename, Tokenizer tokenizer) {
       this.filename = filename;
-      iterator();                       // causes error to be thrown if file not readable
+      this.tokenizer = tokenizer;
+      if (!new File(filename).canRead()) {
+        // causes error to be thrown if file not readable
+        throw new RuntimeException("File not found: " + filename);
+      }
     }
 
     /** Takes the name of a file containing sentences and returns a new
@@ -99,6 +425,11 @@ import java.util.*;
         throws FileNotFoundException {
         return new Sentences(filename);
       }
+
+      public static Collection<List<String>> readSentences(String filename, Tokenizer tokenizer)
+        throws FileNotFoundException {
+        return new Sentences(filename, tokenizer);
+      }
     }
 
   } // end SentenceCollection
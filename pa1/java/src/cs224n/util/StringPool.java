@@ -0,0 +1,589 @@
+package cs224n.util;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A pool of strings, such as the vocabulary of a model, which are numbered
+ * from 0 in the order they are added and stored as UTF-8 in one contiguous
+ * arena rather than as String objects.  The arena is a direct (off-heap)
+ * ByteBuffer; the heap holds only three ints per string: its offset in the
+ * arena, its hash code, and its slot in an open-addressing (linear probing)
+ * hash index.  A vocabulary of short words so takes several times less
+ * memory than a set of Strings.
+ * <p>
+ * Strings are looked up by any CharSequence, which is compared with the
+ * arena's bytes as they are decoded, so looking up a word never builds a
+ * String.  get() returns a CharSequence view of a pooled string for
+ * printing, and getString() builds the String.  Hash codes are those of
+ * String, so a String's cached hash code is reused.
+ * <p>
+ * write() dumps the offsets and bytes of the pool (or of some of its
+ * strings, in any order) in the layout of the word sections of the binary
+ * model formats.  wrap() makes a read-only pool over such sections whose
+ * strings are sorted by their UTF-8 bytes, as the vocabulary of a model
+ * file is.  A wrapped pool reads the offsets and bytes where they lie, as
+ * in a mapped file, and finds strings by binary search instead of a hash
+ * index, so wrapping takes constant time and nothing on the heap.  A pool
+ * which is no longer added to may be read by many threads at once.
+ * <p>
+ * Unpaired surrogates are stored as three-byte sequences, as in Java's
+ * modified UTF-8, so that every CharSequence comes back as it went in.
+ */
+public class StringPool {
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  private ByteBuffer bytes;
+  private int byteLength;
+  private int[] offsets;
+  private int[] hashes;
+  // Ids plus one, so that an empty slot is zero.
+  private int[] table;
+  // Where the offsets of a wrapped pool are read from; such a pool has no
+  // offsets, hashes or table.
+  private ByteBuffer offsetBuffer;
+  private int offsetsPosition;
+  private int size;
+  private final boolean readOnly;
+
+  /**
+   * A read-only CharSequence over the bytes of a pooled string.  Its chars
+   * are read from the arena if the string is ASCII, and decoded into a
+   * String on first use otherwise.
+   */
+  private class Word implements CharSequence {
+    private final int start;
+    private final int end;
+    private final int length;
+    private String decoded;
+
+    Word(int id) {
+      start = offset(id);
+      end = offset(id + 1);
+      length = getCharLength(start, end);
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public char charAt(int index) {
+      if (index < 0 || index >= length) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+      }
+      if (length == end - start) {
+        return (char) bytes.get(start + index);
+      }
+      return toString().charAt(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return toString().subSequence(start, end);
+    }
+
+    public String toString() {
+      if (decoded == null) {
+        decoded = decode(start, end);
+      }
+      return decoded;
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns the number of strings in the pool.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the total length of the pooled strings in UTF-8 bytes.
+   */
+  public int getByteLength() {
+    return byteLength;
+  }
+
+  /**
+   * Returns the number of bytes the pool takes, on and off the heap, not
+   * counting object headers.  A wrapped pool's offsets and bytes are
+   * counted, though they are the mapped file.
+   */
+  public long getMemoryUsage() {
+    if (offsets == null) {
+      return byteLength + 4L * (size + 1);
+    }
+    return bytes.capacity() + 4L * (offsets.length + hashes.length + table.length);
+  }
+
+  /**
+   * Adds a string to the pool if it is not there already, and returns its
+   * id.
+   *
+   * @throws UnsupportedOperationException if the string is new and the
+   * pool is read-only
+   */
+  public int add(CharSequence s) {
+    if (readOnly) {
+      int id = indexOf(s);
+      if (id < 0) {
+        throw new UnsupportedOperationException("Cannot add " + s + " to a read-only pool");
+      }
+      return id;
+    }
+    int hash = hashCode(s);
+    int slot = find(s, hash);
+    if (table[slot] != 0) {
+      return table[slot] - 1;
+    }
+    if (size + 1 > MAX_LOAD_FACTOR * table.length) {
+      rehash(2 * table.length);
+      slot = find(s, hash);
+    }
+    if (size + 1 == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      hashes = Arrays.copyOf(hashes, offsets.length);
+    }
+    append(s);
+    hashes[size] = hash;
+    offsets[size + 1] = byteLength;
+    table[slot] = ++size;
+    return size - 1;
+  }
+
+  /**
+   * Returns the id of the given string, or -1 if it is not in the pool.  The
+   * string may be any CharSequence.
+   */
+  public int indexOf(Object o) {
+    if (!(o instanceof CharSequence)) {
+      return -1;
+    }
+    CharSequence s = (CharSequence) o;
+    if (table == null) {
+      return search(s);
+    }
+    return table[find(s, hashCode(s))] - 1;
+  }
+
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  /**
+   * Returns a view of the string with the given id.
+   */
+  public CharSequence get(int id) {
+    checkId(id);
+    return new Word(id);
+  }
+
+  /**
+   * Returns the string with the given id as a String.
+   */
+  public String getString(int id) {
+    checkId(id);
+    return decode(offset(id), offset(id + 1));
+  }
+
+  /**
+   * Compares the UTF-8 bytes of two pooled strings, as unsigned bytes.
+   * This is the order of the vocabulary of a binary model file.
+   */
+  public int compare(int first, int second) {
+    checkId(first);
+    checkId(second);
+    int firstStart = offset(first);
+    int firstLength = offset(first + 1) - firstStart;
+    int secondStart = offset(second);
+    int secondLength = offset(second + 1) - secondStart;
+    for (int i = 0; i < firstLength && i < secondLength; i++) {
+      int difference = (bytes.get(firstStart + i) & 0xff) - (bytes.get(secondStart + i) & 0xff);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return firstLength - secondLength;
+  }
+
+  /**
+   * Returns an unmodifiable list view of the pool, whose index is the id.
+   * Its get() builds a String; its indexOf() and contains() are the
+   * pool's.
+   */
+  public List<String> asList() {
+    return new AbstractList<String>() {
+      public String get(int id) {
+        return getString(id);
+      }
+
+      public int size() {
+        return size;
+      }
+
+      public int indexOf(Object o) {
+        return StringPool.this.indexOf(o);
+      }
+
+      public int lastIndexOf(Object o) {
+        return StringPool.this.indexOf(o);
+      }
+
+      public boolean contains(Object o) {
+        return StringPool.this.contains(o);
+      }
+    };
+  }
+
+  /**
+   * Shrinks the arena and arrays to the strings the pool holds, for a pool
+   * which is done being added to.  A wrapped pool is left as it is.
+   */
+  public void trimToSize() {
+    if (readOnly) {
+      return;
+    }
+    if (bytes.capacity() > byteLength) {
+      bytes = copyOf(bytes, byteLength);
+    }
+    offsets = Arrays.copyOf(offsets, size + 1);
+    hashes = Arrays.copyOf(hashes, size + 1);
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Writes the offsets and bytes of all the strings, in id order, at the
+   * given positions of the buffer; see write(ByteBuffer, int, int, int[]).
+   */
+  public void write(ByteBuffer buffer, int offsetsPosition, int bytesPosition) {
+    int[] ids = new int[size];
+    for (int id = 0; id < size; id++) {
+      ids[id] = id;
+    }
+    write(buffer, offsetsPosition, bytesPosition, ids);
+  }
+
+  /**
+   * Writes the strings with the given ids, in the given order, as the word
+   * sections of a binary model file: at offsetsPosition, ids.length + 1
+   * ints, the offset of each string's bytes from bytesPosition and then the
+   * total length; at bytesPosition, the UTF-8 bytes of the strings.  The
+   * bytes are copied from the arena in bulk.  Returns the number of bytes
+   * written at bytesPosition.
+   */
+  public int write(ByteBuffer buffer, int offsetsPosition, int bytesPosition, int[] ids) {
+    ByteBuffer source = bytes.duplicate();
+    ByteBuffer target = buffer.duplicate();
+    int offset = 0;
+    for (int i = 0; i < ids.length; i++) {
+      int id = ids[i];
+      checkId(id);
+      buffer.putInt(offsetsPosition + 4 * i, offset);
+      source.limit(offset(id + 1)).position(offset(id));
+      target.position(bytesPosition + offset);
+      target.put(source);
+      offset += offset(id + 1) - offset(id);
+    }
+    buffer.putInt(offsetsPosition + 4 * ids.length, offset);
+    return offset;
+  }
+
+  /**
+   * Returns a read-only pool of the strings in the word sections of a
+   * binary model file, as written by write(): size + 1 offsets at
+   * offsetsPosition into the bytes at bytesPosition.  The strings must be
+   * sorted by their UTF-8 bytes, as compare() orders them.  Nothing is
+   * read or copied: the pool's lookups read the offsets and bytes from the
+   * buffer, so many pools (and processes) may share one mapped file.
+   */
+  public static StringPool wrap(ByteBuffer buffer, int offsetsPosition, int bytesPosition, int size) {
+    int byteLength = buffer.getInt(offsetsPosition + 4 * size);
+    if (buffer.getInt(offsetsPosition) != 0 || byteLength < 0
+        || bytesPosition + (long) byteLength > buffer.capacity()) {
+      throw new IllegalArgumentException("Offsets do not fit the buffer");
+    }
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(bytesPosition + byteLength).position(bytesPosition);
+    return new StringPool(bytes.slice(), buffer, offsetsPosition, size);
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * The hash code String would give the same chars.
+   */
+  private static int hashCode(CharSequence s) {
+    if (s instanceof String) {
+      return s.hashCode();
+    }
+    int hash = 0;
+    for (int i = 0; i < s.length(); i++) {
+      hash = 31 * hash + s.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the slot of the string in the hash index, or the empty slot
+   * where it would go.
+   */
+  private int find(CharSequence s, int hash) {
+    int mask = table.length - 1;
+    int h = hash * 0x9e3779b9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    int entry;
+    while ((entry = table[slot]) != 0
+           && (hashes[entry - 1] != hash || compare(entry - 1, s) != 0)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the id of the string in a wrapped pool, whose strings are
+   * sorted, by binary search, or -1 if it is not in the pool.
+   */
+  private int search(CharSequence s) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compare(middle, s);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private void rehash(int newCapacity) {
+    table = new int[newCapacity];
+    int mask = newCapacity - 1;
+    for (int id = 0; id < size; id++) {
+      int h = hashes[id] * 0x9e3779b9;
+      int slot = (h ^ (h >>> 16)) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id + 1;
+    }
+  }
+
+  /**
+   * Compares the pooled string with the given string as their UTF-8 bytes
+   * compare, which is the order of their code points.  The pooled bytes
+   * are decoded as they are compared.  An unpaired surrogate counts as its
+   * own value, as it is stored.
+   */
+  private int compare(int id, CharSequence s) {
+    int position = offset(id);
+    int end = offset(id + 1);
+    int length = s.length();
+    int i = 0;
+    while (position < end) {
+      if (i == length) {
+        return 1;
+      }
+      int lead = bytes.get(position);
+      int codePoint;
+      if (lead >= 0) {
+        codePoint = lead;
+        position++;
+      } else {
+        codePoint = codePointAt(position, lead);
+        position += getSequenceLength(lead);
+      }
+      int c = Character.codePointAt(s, i);
+      if (codePoint != c) {
+        return codePoint - c;
+      }
+      i += Character.charCount(c);
+    }
+    return i == length ? 0 : -1;
+  }
+
+  /**
+   * Encodes the string onto the end of the arena.
+   */
+  private void append(CharSequence s) {
+    int length = s.length();
+    // At most three bytes per char, as a pair of surrogates takes four.
+    if (byteLength + 3L * length > bytes.capacity()) {
+      long capacity = Math.max(byteLength + 3L * length, 2L * bytes.capacity());
+      if (capacity > Integer.MAX_VALUE) {
+        throw new IllegalStateException("String pools are limited to " + Integer.MAX_VALUE + " bytes");
+      }
+      bytes = copyOf(bytes, (int) capacity);
+    }
+    int position = byteLength;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        bytes.put(position++, (byte) c);
+      } else if (c < 0x800) {
+        bytes.put(position++, (byte) (0xc0 | (c >> 6)));
+        bytes.put(position++, (byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        bytes.put(position++, (byte) (0xf0 | (codePoint >> 18)));
+        bytes.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        bytes.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        bytes.put(position++, (byte) (0x80 | (codePoint & 0x3f)));
+      } else {
+        bytes.put(position++, (byte) (0xe0 | (c >> 12)));
+        bytes.put(position++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        bytes.put(position++, (byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    byteLength = position;
+  }
+
+  private String decode(int start, int end) {
+    char[] chars = new char[end - start];
+    int length = 0;
+    for (int position = start; position < end; ) {
+      int lead = bytes.get(position);
+      if (lead >= 0) {
+        chars[length++] = (char) lead;
+        position++;
+        continue;
+      }
+      length += Character.toChars(codePointAt(position, lead), chars, length);
+      position += getSequenceLength(lead);
+    }
+    return new String(chars, 0, length);
+  }
+
+  /**
+   * Returns the number of chars (UTF-16 code units) the bytes decode to.
+   */
+  private int getCharLength(int start, int end) {
+    int length = 0;
+    for (int position = start; position < end; ) {
+      int lead = bytes.get(position);
+      int sequenceLength = lead >= 0 ? 1 : getSequenceLength(lead);
+      length += sequenceLength == 4 ? 2 : 1;
+      position += sequenceLength;
+    }
+    return length;
+  }
+
+  private static int getSequenceLength(int lead) {
+    if ((lead & 0xe0) == 0xc0) return 2;
+    if ((lead & 0xf0) == 0xe0) return 3;
+    return 4;
+  }
+
+  /**
+   * Decodes the multi-byte sequence starting at the given position.
+   */
+  private int codePointAt(int position, int lead) {
+    switch (getSequenceLength(lead)) {
+    case 2:
+      return ((lead & 0x1f) << 6) | (bytes.get(position + 1) & 0x3f);
+    case 3:
+      return ((lead & 0x0f) << 12) | ((bytes.get(position + 1) & 0x3f) << 6)
+        | (bytes.get(position + 2) & 0x3f);
+    default:
+      return ((lead & 0x07) << 18) | ((bytes.get(position + 1) & 0x3f) << 12)
+        | ((bytes.get(position + 2) & 0x3f) << 6) | (bytes.get(position + 3) & 0x3f);
+    }
+  }
+
+  private int offset(int id) {
+    return offsets != null ? offsets[id] : offsetBuffer.getInt(offsetsPosition + 4 * id);
+  }
+
+  private void checkId(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("Id: " + id + ", Size: " + size);
+    }
+  }
+
+  private static ByteBuffer copyOf(ByteBuffer buffer, int capacity) {
+    ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+    ByteBuffer source = buffer.duplicate();
+    source.limit(Math.min(capacity, source.capacity())).position(0);
+    copy.put(source);
+    return copy;
+  }
+
+  private static int getTableCapacity(int size) {
+    int capacity = 16;
+    while (size > MAX_LOAD_FACTOR * capacity) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  public StringPool() {
+    this(16, 256);
+  }
+
+  /**
+   * Constructs a pool with room for the given number of strings and UTF-8
+   * bytes before it grows.
+   */
+  public StringPool(int expectedSize, int expectedBytes) {
+    bytes = ByteBuffer.allocateDirect(Math.max(expectedBytes, 16));
+    offsets = new int[Math.max(expectedSize, 16) + 1];
+    hashes = new int[offsets.length];
+    table = new int[getTableCapacity(expectedSize)];
+    readOnly = false;
+  }
+
+  /**
+   * Constructs a read-only pool over the offsets and bytes of sorted
+   * strings, which are left where they are.
+   */
+  private StringPool(ByteBuffer bytes, ByteBuffer offsetBuffer, int offsetsPosition, int size) {
+    this.bytes = bytes;
+    this.offsetBuffer = offsetBuffer;
+    this.offsetsPosition = offsetsPosition;
+    this.size = size;
+    byteLength = offset(size);
+    readOnly = true;
+  }
+
+  public static void main(String[] args) {
+    StringPool pool = new StringPool();
+    String[] words = {"the", "caf\u00e9", "\ud83d\ude00", "the", "dog"};
+    for (String word : words) {
+      System.out.println(word + " -> " + pool.add(word));
+    }
+    System.out.println("Size: " + pool.size() + ", UTF-8 bytes: " + pool.getByteLength());
+    System.out.println("Id of \"dog\" from a StringBuilder: " + pool.indexOf(new StringBuilder("do").append('g')));
+    System.out.println("Id of \"cat\": " + pool.indexOf("cat"));
+    System.out.println("Word 1: " + pool.get(1) + " (" + pool.get(1).length() + " chars)");
+    // A pool is wrapped over its strings sorted by their bytes.
+    final StringPool unsorted = pool;
+    Integer[] order = new Integer[pool.size()];
+    for (int id = 0; id < order.length; id++) {
+      order[id] = id;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer first, Integer second) {
+        return unsorted.compare(first, second);
+      }
+    });
+    int[] ids = new int[order.length];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = order[i];
+    }
+    ByteBuffer file = ByteBuffer.allocate(4 * (pool.size() + 1) + pool.getByteLength());
+    pool.write(file, 0, 4 * (pool.size() + 1), ids);
+    StringPool wrapped = StringPool.wrap(file, 0, 4 * (pool.size() + 1), pool.size());
+    System.out.println("Wrapped: " + wrapped.asList() + ", id of \"caf\u00e9\": " + wrapped.indexOf("caf\u00e9"));
+  }
+}
@@ -0,0 +1,18 @@
+package cs224n.util;
+
+import java.util.List;
+
+/**
+ * Splits a line of text into tokens.  Tokenizers are handed the characters
+ * of a line in a buffer which is reused for the next line, so they must
+ * copy out whatever they keep.  A Tokenizer may be used by several threads
+ * at once.
+ */
+public interface Tokenizer {
+
+  /**
+   * Appends the tokens of the characters line[0, length) to tokens.
+   */
+  public void tokenize(char[] line, int length, List<String> tokens);
+
+}
@@ -0,0 +1,113 @@
+package cs224n.util;
+
+import java.util.*;
+
+/**
+ * A hand-written scanner which splits lines on whitespace and lowercases
+ * each token.  It produces exactly the tokens of
+ * <code>line.split("\\s+")</code> followed by <code>toLowerCase()</code>:
+ * a line starting with whitespace yields a leading empty token, an empty
+ * line yields a single empty token, and a line of whitespace alone yields
+ * none.  Tokens are interned in a per-thread table, so a token which has
+ * been seen recently is returned as the same String instance without
+ * allocating, and its hash code is computed only once.
+ */
+public class WhitespaceTokenizer implements Tokenizer {
+
+  private static final int TABLE_SIZE = 1 << 16;
+
+  // Under some default locales (Turkish, for example) ASCII letters do not
+  // lowercase to ASCII letters, and only String.toLowerCase() is right.
+  private static final boolean ASCII_LOWERCASE =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+
+  /**
+   * A direct-mapped cache from the lowercased characters of a token to its
+   * String.  A colliding token simply replaces the previous one.
+   */
+  private static class TokenTable {
+    final String[] tokens = new String[TABLE_SIZE];
+    char[] scratch = new char[64];
+
+    String intern(char[] chars, int start, int end) {
+      int length = end - start;
+      if (scratch.length < length) {
+        scratch = new char[Math.max(length, 2 * scratch.length)];
+      }
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        char c = chars[start + i];
+        if (c >= 0x80) {
+          return new String(chars, start, length).toLowerCase();
+        }
+        if (c >= 'A' && c <= 'Z') {
+          if (!ASCII_LOWERCASE) {
+            return new String(chars, start, length).toLowerCase();
+          }
+          c += 'a' - 'A';
+        }
+        scratch[i] = c;
+        hash = 31 * hash + c;
+      }
+      int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+      String token = tokens[slot];
+      if (token == null || !matches(token, scratch, length)) {
+        token = new String(scratch, 0, length);
+        tokens[slot] = token;
+      }
+      return token;
+    }
+
+    private static boolean matches(String token, char[] chars, int length) {
+      if (token.length() != length) return false;
+      for (int i = 0; i < length; i++) {
+        if (token.charAt(i) != chars[i]) return false;
+      }
+      return true;
+    }
+  }
+
+  private final ThreadLocal<TokenTable> tables = new ThreadLocal<TokenTable>() {
+    protected TokenTable initialValue() {
+      return new TokenTable();
+    }
+  };
+
+  /**
+   * The characters matched by the regular expression \s.
+   */
+  static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  public void tokenize(char[] line, int length, List<String> tokens) {
+    TokenTable table = tables.get();
+    if (length == 0) {
+      tokens.add("");
+      return;
+    }
+    int start = 0;
+    if (isWhitespace(line[0])) {
+      while (start < length && isWhitespace(line[start])) start++;
+      if (start == length) return;
+      tokens.add("");
+    }
+    while (start < length) {
+      int end = start;
+      while (end < length && !isWhitespace(line[end])) end++;
+      tokens.add(table.intern(line, start, end));
+      start = end;
+      while (start < length && isWhitespace(line[start])) start++;
+    }
+  }
+
+  public static void main(String[] args) {
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    String[] lines = { "The quick  brown FOX", " leading space", "", "   ", "tab\tand\fform feed " };
+    for (String line : lines) {
+      List<String> tokens = new ArrayList<String>();
+      tokenizer.tokenize(line.toCharArray(), line.length(), tokens);
+      System.out.println("[" + line + "] -> " + tokens);
+    }
+  }
+}
@@ -102,6 +102,11 @@ public class DecoderTester {
     */
   @SuppressWarnings({"unchecked"})
   public static <E extends LanguageModel> E createLanguageModel(Map<String, String> options, final Collection<List<String>> lmTrainingSentences) throws IOException{
+    //--Map a binary model rather than training one
+    if(options.get("-lmfile") != null){
+      System.out.println("Mapping language model: " + options.get("-lmfile"));
+      return (E) new MappedNgramModel(options.get("-lmfile"));
+    }
     try {
       System.out.println("Ensuring language model: " + options.get("-lmmodel"));
       Class<E> clazz = (Class<E>) Class.forName(options.get("-lmmodel"));
@@ -183,6 +188,9 @@ public class DecoderTester {
 
     System.out.println("**********\nCreating / Training Language Model ... ");
     LanguageModel langmodel = createLanguageModel(options, lmTrainingSentences);
+    if (options.get("-lmcache") != null) {
+      langmodel.setContextCacheSize(Integer.parseInt(options.get("-lmcache")));
+    }
     System.out.println("..done\n**********\n");
 
     System.out.println("**********\nCreating / Training Word Aligner ... ");
@@ -209,6 +217,11 @@ public class DecoderTester {
 		}
     Decoder decoder = new GreedyDecoder(langmodel, wordaligner, reverse_wordaligner, lmweight, transweight, lengthweight, ZFERTS+"."+GetLanguageExtension(languages.getSecond()));
     test(decoder, testSentencePairs, languages);
+    if (langmodel.getContextCache() != null) {
+      ClockCache<?> cache = langmodel.getContextCache();
+      System.out.printf("Language model context cache: %.2f%% hit rate (%d hits, %d misses)%n",
+                        100 * cache.getHitRate(), cache.getHits(), cache.getMisses());
+    }
     System.out.println("...done\n**********\n");
   }
 
@@ -189,13 +189,11 @@ public class LanguageModelTester {
 			wordProbabilities.incrementCount(token, model.getWordProbability(context, lastIndex));
 			context.remove(lastIndex);
 		}
-		cs224n.util.PriorityQueue<String> pq = wordProbabilities.asPriorityQueue();
 		NumberFormat nf = new DecimalFormat("0.0000");
 		System.err.println("Most likely completions:");
-		for(int i=0; i<5 && pq.hasNext(); i++) {
-			double probability = pq.getPriority();
-			System.err.printf("  %-20s",pq.next());
-			System.err.println(nf.format(probability));
+		for (String word : wordProbabilities.topK(5)) {
+			System.err.printf("  %-20s",word);
+			System.err.println(nf.format(wordProbabilities.getCount(word)));
 		}
 		System.err.println("Random completions:");
 		List<String> vocab = new ArrayList<String>(wordProbabilities.keySet());
@@ -112,18 +112,27 @@ public class POSTaggerTester {
       this.position = position;
     }
 
+    // States are only needed while the sentences which use them are being
+    // tagged, so they are interned weakly rather than kept for good.
     private static transient Interner<State> stateInterner = 
-      new Interner<State>(new Interner.CanonicalFactory<State>() {
+      new WeakInterner<State>(new Interner.CanonicalFactory<State>() {
       public State build(State state) {
         return new State(state);
       }
     });
 
-    private static transient State tempState = new State();
+    // Each thread builds its lookup keys in a state of its own, as states
+    // may be built by several taggers at once.
+    private static transient ThreadLocal<State> tempStates = new ThreadLocal<State>() {
+      protected State initialValue() {
+        return new State();
+      }
+    };
 
     public static State buildState(String previousPreviousTag,
                                    String previousTag,
                                    int position) {
+      State tempState = tempStates.get();
       tempState.setState(previousPreviousTag, previousTag, position);
       return stateInterner.intern(tempState);
     }
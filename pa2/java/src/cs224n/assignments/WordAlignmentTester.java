@@ -122,6 +122,8 @@ public class WordAlignmentTester {
 
     // Build model
     WordAligner wordAligner = null;
+    // The words the aligners are trained on; read-only once they are.
+    SymbolTable<String> symbols = new SymbolTable<String>();
     if (model.equalsIgnoreCase("baseline")) {
       wordAligner = new BaselineWordAligner();
     }
@@ -129,7 +131,7 @@ public class WordAlignmentTester {
 	wordAligner = new SuperficialWordAligner(); 	
     }
     else if (model.equalsIgnoreCase("modelone")) {
-    	wordAligner = new ModelOneWordAligner();
+    	wordAligner = new ModelOneWordAligner(symbols);
     }
     else if (model.equalsIgnoreCase("modeltwo")) {
     	wordAligner = new ModelTwoWordAligner();
@@ -148,6 +150,7 @@ public class WordAlignmentTester {
     // TODO : build other alignment models
 
     wordAligner.train(trainingSentencePairs);
+    symbols.freeze();
 
     // Test model
     test(wordAligner, testSentencePairs, testAlignments, verbose);
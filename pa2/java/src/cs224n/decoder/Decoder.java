@@ -66,17 +66,10 @@ public abstract class Decoder {
     CounterMap<String,String> mostLikelyTargetGivenSource = new CounterMap<String,String>();
 
     for(String sourceWord : sourceWords){
-      PriorityQueue<String> mostLikely = new PriorityQueue<String>();
       Counter<String> probGivenTargetWords = probSourceGivenTarget.getCounter(sourceWord);
-      Set<String> targetWords = probGivenTargetWords.keySet();
 
-      for(String targetWord : targetWords){
-        mostLikely.add(targetWord, probGivenTargetWords.getCount(targetWord));
-      }
-      
-      for(int i =0; i < N_MOST_LIKELY && mostLikely.hasNext(); i++){
-        double prob = mostLikely.getPriority();
-        String targetWord = mostLikely.next();
+      for(String targetWord : probGivenTargetWords.topK(N_MOST_LIKELY)){
+        double prob = probGivenTargetWords.getCount(targetWord);
         mostLikelyTargetGivenSource.setCount(sourceWord, targetWord, prob);
       }
 
@@ -77,17 +77,10 @@ public class GreedyDecoder extends Decoder {
     CounterMap<String,String> mostLikelyEnglishGivenFrench = new CounterMap<String,String>();
 
     for(String englishWord : englishWords){
-      PriorityQueue<String> mostLikely = new PriorityQueue<String>();
       Counter<String> probGivenTargetWords = probSourceGivenTarget.getCounter(englishWord);
-      Set<String> frenchWords = probGivenTargetWords.keySet();
 
-      for(String frenchWord : frenchWords){
-        mostLikely.add(frenchWord, probGivenTargetWords.getCount(frenchWord));
-      }
-
-      for(int i =0; i < N_MOST_LIKELY && mostLikely.hasNext(); i++){
-        double prob = mostLikely.getPriority();
-        String frenchWord = mostLikely.next();
+      for(String frenchWord : probGivenTargetWords.topK(N_MOST_LIKELY)){
+        double prob = probGivenTargetWords.getCount(frenchWord);
         mostLikelyEnglishGivenFrench.setCount(frenchWord, englishWord, prob);
         //System.err.printf(" GMI: %s\t%s\t%e\n", frenchWord, englishWord, prob);
       }
@@ -187,7 +187,7 @@ class Hypothesis {
       elen = targetSentenceSize;
     }
     if(lmRecalcNeeded){
-      langlog = Math.log(lm.getSentenceProbability(targetSentence));
+      langlog = lm.getSentenceLogProbability(targetSentence);
     }
     if(alignRecalcNeeded){
       translog = Math.log(wa.getAlignmentProb(targetSentence, sourceSentence, alignment));
@@ -1,5 +1,7 @@
 package cs224n.langmodel;
 
+import cs224n.util.ClockCache;
+
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -55,6 +57,37 @@ public abstract class LanguageModel {
     return probability;
   }
 
+  /**
+   * Returns the natural log of getSentenceProbability(sentence).  The word
+   * probabilities are summed in log space, so long sentences do not
+   * underflow to zero.
+   */
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int i=0; i<=sentence.size(); i++) {
+      logProbability += Math.log(getWordProbability(sentence, i));
+    }
+    return logProbability;
+  }
+
+  /**
+   * Caches the looked-up state (such as the normalizer and backoff weight)
+   * of up to the given number of contexts, so that scoring many hypotheses
+   * which share contexts looks each one up once.  A size of zero turns
+   * the cache off.  Models whose contexts cost no more to look up than
+   * their words ignore this.
+   */
+  public void setContextCacheSize(int size) {
+  }
+
+  /**
+   * Returns the context cache, whose hit and miss counts show how well it
+   * works, or null if the model has none.
+   */
+  public ClockCache<?> getContextCache() {
+    return null;
+  }
+
   /**
    * Given a list of words, sums over the probabilities of every token that
    * could follow. If the model implements a valid probability 
@@ -0,0 +1,641 @@
+package cs224n.langmodel;
+
+import cs224n.util.ClockCache;
+import cs224n.util.StringPool;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A read-only n-gram model which answers queries straight from a binary
+ * model file mapped into memory.  Loading a model only maps the file, so it
+ * takes milliseconds however large the model is, and JVMs which map the
+ * same file share its pages through the operating system's page cache.
+ * <p/>
+ * Model files are written from trained n-gram models by the
+ * MappedNgramModel.Writer of the language modeling assignment, so a model
+ * trained there can be used by the decoder without retraining.  Every word
+ * which was not seen after a context has the same probability, and every
+ * unseen context the same distribution, so a file holds:
+ * <ul>
+ * <li>the vocabulary (plus START), sorted by UTF-8 bytes, so that words are
+ * looked up by binary search in the mapped file;</li>
+ * <li>the sorted packed keys (BITS_PER_WORD bits per word, the first word
+ * highest) of the seen contexts, each
+ * with the log probability of a word not seen after it, which is what the
+ * context backs off to;</li>
+ * <li>for each context, the sorted ids of the words seen after it and their
+ * log probabilities;</li>
+ * <li>the log probability of a word after an unseen context.</li>
+ * </ul>
+ * A unigram model is stored as a single empty context.  Log probabilities
+ * are stored as floats, so scores agree with the original model to about
+ * seven significant digits.
+ * <p/>
+ * Compressed model files, written by MappedNgramModel.Writer.writeCompressed()
+ * with pruned n-grams, one-byte probability codes and variable-length ids,
+ * are read too.  Their lookups scan a block of contexts and then the
+ * context's words, so a context cache (see setContextCacheSize()) pays off
+ * more there.
+ */
+public class MappedNgramModel extends LanguageModel {
+
+  static final int MAGIC = 0x4e47524d;  // "NGRM"
+  static final int VERSION = 1;
+  static final int COMPRESSED_VERSION = 2;
+  static final int BITS_PER_WORD = 21;
+
+  /**
+   * The byte offsets of the sections of a model file.  The header is
+   * eleven ints: magic, version, order, numWords, startId, stopId, unkId,
+   * numContexts, numNgrams, the length of the word bytes, and the unseen
+   * context log probability (a float).  The sections follow, each aligned
+   * to eight bytes:
+   * <pre>
+   *   int[numWords + 1]     wordOffsets          into wordBytes
+   *   byte[]                wordBytes            UTF-8, in id order
+   *   long[numContexts]     contextKeys          sorted
+   *   float[numContexts]    contextBackoffs
+   *   int[numContexts + 1]  contextFirstNgrams   into the n-gram arrays
+   *   int[numNgrams]        ngramWords           sorted within a context
+   *   float[numNgrams]      ngramLogProbabilities
+   * </pre>
+   */
+  static class Layout {
+    static final int HEADER_SIZE = 48;
+
+    final int wordOffsets;
+    final int wordBytes;
+    final int contextKeys;
+    final int contextBackoffs;
+    final int contextFirstNgrams;
+    final int ngramWords;
+    final int ngramLogProbabilities;
+    final int size;
+
+    Layout(int numWords, int wordBytesLength, int numContexts, int numNgrams) throws IOException {
+      long position = HEADER_SIZE;
+      wordOffsets = (int) position;
+      position = align(position + 4L * (numWords + 1));
+      wordBytes = (int) position;
+      position = align(position + wordBytesLength);
+      contextKeys = (int) position;
+      position = align(position + 8L * numContexts);
+      contextBackoffs = (int) position;
+      position = align(position + 4L * numContexts);
+      contextFirstNgrams = (int) position;
+      position = align(position + 4L * (numContexts + 1));
+      ngramWords = (int) position;
+      position = align(position + 4L * numNgrams);
+      ngramLogProbabilities = (int) position;
+      position = align(position + 4L * numNgrams);
+      if (position > Integer.MAX_VALUE) {
+        throw new IOException("Model files are limited to " + Integer.MAX_VALUE + " bytes");
+      }
+      size = (int) position;
+    }
+
+    static long align(long position) {
+      return (position + 7) & ~7L;
+    }
+  }
+
+  /**
+   * The byte offsets of the sections of a compressed model file.  The
+   * header is that of Layout, with its version set to COMPRESSED_VERSION
+   * and two more ints, the lengths of the context bytes and the n-gram
+   * bytes; numContexts and numNgrams count what is left after pruning.
+   * Contexts are grouped into blocks of CONTEXT_BLOCK.  The sections
+   * follow, each aligned to eight bytes:
+   * <pre>
+   *   int[numWords + 1]     wordOffsets          into wordBytes
+   *   byte[]                wordBytes            UTF-8, in id order
+   *   float[256]            probabilityCodebook
+   *   float[256]            backoffCodebook
+   *   long[numBlocks]       blockKeys            key of a block's first context
+   *   int[numBlocks]        blockContexts        into contextBytes
+   *   int[numBlocks]        blockNgrams          into ngramBytes
+   *   byte[]                contextBytes
+   *   byte[]                ngramBytes
+   * </pre>
+   * A context is stored in contextBytes as the varint difference of its
+   * key from that of the context before it (left out for the first of a
+   * block), a backoff code, and the varint length of its n-grams in
+   * ngramBytes.  An n-gram is stored there as the varint difference of its
+   * word id from that of the n-gram before it in its context (the first
+   * id is stored as it is), followed by a probability code.  Varints hold
+   * seven bits per byte, low bits first, with the high bit set on all but
+   * the last byte.
+   */
+  static class CompressedLayout {
+    static final int HEADER_SIZE = 56;
+    static final int CONTEXT_BLOCK = 32;
+    static final int CODEBOOK_SIZE = 256;
+
+    final int numBlocks;
+    final int wordOffsets;
+    final int wordBytes;
+    final int probabilityCodebook;
+    final int backoffCodebook;
+    final int blockKeys;
+    final int blockContexts;
+    final int blockNgrams;
+    final int contextBytes;
+    final int ngramBytes;
+    final int size;
+
+    CompressedLayout(int numWords, int wordBytesLength, int numContexts,
+                     int contextBytesLength, int ngramBytesLength) throws IOException {
+      numBlocks = (numContexts + CONTEXT_BLOCK - 1) / CONTEXT_BLOCK;
+      long position = HEADER_SIZE;
+      wordOffsets = (int) position;
+      position = Layout.align(position + 4L * (numWords + 1));
+      wordBytes = (int) position;
+      position = Layout.align(position + wordBytesLength);
+      probabilityCodebook = (int) position;
+      position = Layout.align(position + 4L * CODEBOOK_SIZE);
+      backoffCodebook = (int) position;
+      position = Layout.align(position + 4L * CODEBOOK_SIZE);
+      blockKeys = (int) position;
+      position = Layout.align(position + 8L * numBlocks);
+      blockContexts = (int) position;
+      position = Layout.align(position + 4L * numBlocks);
+      blockNgrams = (int) position;
+      position = Layout.align(position + 4L * numBlocks);
+      contextBytes = (int) position;
+      position = Layout.align(position + contextBytesLength);
+      ngramBytes = (int) position;
+      position = Layout.align(position + ngramBytesLength);
+      if (position > Integer.MAX_VALUE) {
+        throw new IOException("Model files are limited to " + Integer.MAX_VALUE + " bytes");
+      }
+      size = (int) position;
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final Layout layout;
+  private final CompressedLayout compressedLayout;
+  private final StringPool words;
+  private final float[] probabilityCodebook;
+  private final float[] backoffCodebook;
+  private final int order;
+  private final int numWords;
+  private final int startId;
+  private final int stopId;
+  private final int unkId;
+  private final int numContexts;
+  private final float unseenContextLogProbability;
+  private volatile ClockCache<ContextState> contextCache;
+
+  /**
+   * The range of a context's n-grams and its backoff log probability.
+   * An unseen context has an empty range and the unseen-context backoff.
+   */
+  private static class ContextState {
+    final int first;
+    final int end;
+    final float backoff;
+
+    ContextState(int first, int end, float backoff) {
+      this.first = first;
+      this.end = end;
+      this.backoff = backoff;
+    }
+  }
+  private final ThreadLocal<int[]> idBuffers = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[64];
+    }
+  };
+
+  /**
+   * Maps the model file at the given path.
+   */
+  public MappedNgramModel(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < Layout.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is not a binary n-gram model");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      file.close();
+    }
+    int version = buffer.getInt(4);
+    if (buffer.getInt(0) != MAGIC || (version != VERSION && version != COMPRESSED_VERSION)) {
+      throw new IOException(path + " is not a binary n-gram model");
+    }
+    order = buffer.getInt(8);
+    numWords = buffer.getInt(12);
+    startId = buffer.getInt(16);
+    stopId = buffer.getInt(20);
+    unkId = buffer.getInt(24);
+    numContexts = buffer.getInt(28);
+    int numNgrams = buffer.getInt(32);
+    int wordBytesLength = buffer.getInt(36);
+    unseenContextLogProbability = buffer.getFloat(40);
+    int size;
+    int wordOffsets;
+    int wordBytes;
+    if (version == VERSION) {
+      layout = new Layout(numWords, wordBytesLength, numContexts, numNgrams);
+      compressedLayout = null;
+      wordOffsets = layout.wordOffsets;
+      wordBytes = layout.wordBytes;
+      probabilityCodebook = null;
+      backoffCodebook = null;
+      size = layout.size;
+    } else {
+      if (buffer.capacity() < CompressedLayout.HEADER_SIZE) {
+        throw new IOException(path + " is truncated");
+      }
+      layout = null;
+      compressedLayout = new CompressedLayout(numWords, wordBytesLength, numContexts,
+                                              buffer.getInt(44), buffer.getInt(48));
+      wordOffsets = compressedLayout.wordOffsets;
+      wordBytes = compressedLayout.wordBytes;
+      probabilityCodebook = new float[CompressedLayout.CODEBOOK_SIZE];
+      backoffCodebook = new float[CompressedLayout.CODEBOOK_SIZE];
+      for (int code = 0; code < CompressedLayout.CODEBOOK_SIZE; code++) {
+        probabilityCodebook[code] = buffer.getFloat(compressedLayout.probabilityCodebook + 4 * code);
+        backoffCodebook[code] = buffer.getFloat(compressedLayout.backoffCodebook + 4 * code);
+      }
+      size = compressedLayout.size;
+    }
+    if (size != buffer.capacity()) {
+      throw new IOException(path + " is truncated");
+    }
+    try {
+      words = StringPool.wrap(buffer, wordOffsets, wordBytes, numWords);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(path + " has a corrupt vocabulary");
+    }
+  }
+
+  /**
+   * A mapped model is trained by training an n-gram model and writing it
+   * with MappedNgramModel.Writer.write().
+   */
+  @Override
+  public void train(Collection<List<String>> trainingSentences) {
+    throw new UnsupportedOperationException("Mapped models are read-only");
+  }
+
+  public int getOrder() {
+    return order;
+  }
+
+  /**
+   * Returns whether the model file is a compressed one.
+   */
+  public boolean isCompressed() {
+    return compressedLayout != null;
+  }
+
+  @Override
+  public void setContextCacheSize(int size) {
+    contextCache = (size > 0) ? new ClockCache<ContextState>(size) : null;
+  }
+
+  @Override
+  public ClockCache<?> getContextCache() {
+    return contextCache;
+  }
+
+
+  // Vocabulary methods.
+
+  private String getWord(int id) {
+    return words.getString(id);
+  }
+
+  /**
+   * Returns the id of a word, or the id of UNK if the word is not in the
+   * vocabulary.  The word is binary searched for in the mapped words,
+   * which are compared with it as they are decoded, so it is not encoded.
+   */
+  public int getWordId(String word) {
+    int id = words.indexOf(word);
+    return id < 0 ? unkId : id;
+  }
+
+  private int getWordId(List<String> sentence, int index) {
+    if (index < 0) {
+      return startId;
+    }
+    if (index == sentence.size()) {
+      return stopId;
+    }
+    return getWordId(sentence.get(index));
+  }
+
+  /**
+   * Returns the vocabulary as a view of the mapped words, leaving out
+   * START, so the words after it move down one place.  Its get() builds
+   * a word's String.
+   */
+  @Override
+  public Collection<String> getVocabulary() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return getWord(index < startId ? index : index + 1);
+      }
+
+      @Override
+      public int size() {
+        return numWords - 1;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        int id = words.indexOf(o);
+        return id >= 0 && id != startId;
+      }
+    };
+  }
+
+
+  // Word probability methods.
+
+  /**
+   * Returns the index of the context with the given packed key, or -1 if
+   * the context was never seen.
+   */
+  private int findContext(long context) {
+    int low = 0;
+    int high = numContexts - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long key = buffer.getLong(layout.contextKeys + 8 * middle);
+      if (key < context) {
+        low = middle + 1;
+      } else if (key > context) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the log probability of a word following the context with the
+   * given packed key.
+   */
+  public double getLogProbability(long context, int word) {
+    ClockCache<ContextState> cache = contextCache;
+    if (cache != null) {
+      ContextState state = cache.get(context);
+      if (state == null) {
+        state = getContextState(context);
+        cache.put(context, state);
+      }
+      return getLogProbability(state.first, state.end, state.backoff, word);
+    }
+    if (compressedLayout != null) {
+      ContextState state = getContextState(context);
+      return getLogProbability(state.first, state.end, state.backoff, word);
+    }
+    int c = findContext(context);
+    if (c < 0) {
+      return unseenContextLogProbability;
+    }
+    return getLogProbability(buffer.getInt(layout.contextFirstNgrams + 4 * c),
+                             buffer.getInt(layout.contextFirstNgrams + 4 * (c + 1)),
+                             buffer.getFloat(layout.contextBackoffs + 4 * c), word);
+  }
+
+  private ContextState getContextState(long context) {
+    if (compressedLayout != null) {
+      return findCompressedContext(context);
+    }
+    int c = findContext(context);
+    if (c < 0) {
+      return new ContextState(0, 0, unseenContextLogProbability);
+    }
+    return new ContextState(buffer.getInt(layout.contextFirstNgrams + 4 * c),
+                            buffer.getInt(layout.contextFirstNgrams + 4 * (c + 1)),
+                            buffer.getFloat(layout.contextBackoffs + 4 * c));
+  }
+
+  /**
+   * Returns the state of the context with the given packed key in a
+   * compressed model, whose range is that of its n-gram bytes.
+   */
+  private ContextState findCompressedContext(long context) {
+    int low = 0;
+    int high = compressedLayout.numBlocks - 1;
+    int block = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (buffer.getLong(compressedLayout.blockKeys + 8 * middle) <= context) {
+        block = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    if (block >= 0) {
+      long key = buffer.getLong(compressedLayout.blockKeys + 8 * block);
+      int position = compressedLayout.contextBytes + buffer.getInt(compressedLayout.blockContexts + 4 * block);
+      int ngrams = compressedLayout.ngramBytes + buffer.getInt(compressedLayout.blockNgrams + 4 * block);
+      int blockSize = Math.min(CompressedLayout.CONTEXT_BLOCK,
+                               numContexts - block * CompressedLayout.CONTEXT_BLOCK);
+      for (int i = 0; i < blockSize && key <= context; i++) {
+        if (i > 0) {
+          long difference = readVarint(position);
+          position += getVarintLength(difference);
+          key += difference;
+        }
+        int backoffCode = buffer.get(position++) & 0xff;
+        long length = readVarint(position);
+        position += getVarintLength(length);
+        if (key == context) {
+          return new ContextState(ngrams, ngrams + (int) length, backoffCodebook[backoffCode]);
+        }
+        ngrams += (int) length;
+      }
+    }
+    return new ContextState(0, 0, unseenContextLogProbability);
+  }
+
+  private long readVarint(int position) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get(position++);
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    }
+    while (b < 0);
+    return value;
+  }
+
+  static int getVarintLength(long value) {
+    int length = 1;
+    while ((value >>>= 7) != 0) {
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Returns the log probability of a word among the n-grams first to
+   * end - 1 of a context, or the context's backoff if it is not there.
+   * In a compressed model, first and end delimit the n-gram bytes.
+   */
+  private double getLogProbability(int first, int end, float backoff, int word) {
+    if (compressedLayout != null) {
+      int id = 0;
+      for (int position = first; position < end; position++) {
+        long difference = readVarint(position);
+        position += getVarintLength(difference);
+        id += (int) difference;
+        if (id >= word) {
+          return (id == word) ? probabilityCodebook[buffer.get(position) & 0xff] : backoff;
+        }
+      }
+      return backoff;
+    }
+    int low = first;
+    int high = end - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int id = buffer.getInt(layout.ngramWords + 4 * middle);
+      if (id < word) {
+        low = middle + 1;
+      } else if (id > word) {
+        high = middle - 1;
+      } else {
+        return buffer.getFloat(layout.ngramLogProbabilities + 4 * middle);
+      }
+    }
+    return backoff;
+  }
+
+  /**
+   * Packs the order - 1 ids before the given position into a context key.
+   */
+  private long getContext(int[] ids, int position) {
+    long context = 0;
+    for (int i = position - order + 1; i < position; i++) {
+      context = (context << BITS_PER_WORD) | ids[i];
+    }
+    return context;
+  }
+
+  @Override
+  public double getWordProbability(List<String> sentence, int index) {
+    long context = 0;
+    for (int i = index - order + 1; i < index; i++) {
+      context = (context << BITS_PER_WORD) | getWordId(sentence, i);
+    }
+    return Math.exp(getLogProbability(context, getWordId(sentence, index)));
+  }
+
+  /**
+   * Returns the probability of a word at the start of a sentence, the
+   * only context a lone word has.
+   */
+  @Override
+  public double getWordProbability(String word) {
+    List<String> sentence = Collections.singletonList(word);
+    return getWordProbability(sentence, 0);
+  }
+
+  @Override
+  public double getSentenceLogProbability(List<String> sentence) {
+    int history = order - 1;
+    int size = sentence.size();
+    int[] ids = idBuffers.get();
+    if (ids.length < history + size + 1) {
+      ids = new int[Math.max(history + size + 1, 2 * ids.length)];
+      idBuffers.set(ids);
+    }
+    for (int i = 0; i < history; i++) {
+      ids[i] = startId;
+    }
+    for (int i = 0; i < size; i++) {
+      ids[history + i] = getWordId(sentence.get(i));
+    }
+    ids[history + size] = stopId;
+    double logProbability = 0.0;
+    for (int i = 0; i <= size; i++) {
+      int position = history + i;
+      logProbability += getLogProbability(getContext(ids, position), ids[position]);
+    }
+    return logProbability;
+  }
+
+  @Override
+  public List<String> generateSentence() {
+    int[] ids = new int[order - 1];
+    Arrays.fill(ids, startId);
+    List<String> sentence = new ArrayList<String>();
+    int word;
+    do {
+      long context = 0;
+      for (int id : ids) {
+        context = (context << BITS_PER_WORD) | id;
+      }
+      word = generateWord(context);
+      sentence.add(getWord(word));
+      if (ids.length > 0) {
+        System.arraycopy(ids, 1, ids, 0, ids.length - 1);
+        ids[ids.length - 1] = word;
+      }
+    }
+    while (word != stopId);
+    return sentence;
+  }
+
+  /**
+   * Samples a word after the given context by walking the vocabulary
+   * alongside the context's sorted seen words.
+   */
+  private int generateWord(long context) {
+    ContextState state = getContextState(context);
+    int next = state.first;
+    int end = state.end;
+    double unseenLogProbability = state.backoff;
+    int nextId = -1;
+    if (compressedLayout != null && next < end) {
+      nextId = (int) readVarint(next);
+      next += getVarintLength(nextId);
+    }
+    double sample = Math.random();
+    double sum = 0.0;
+    for (int id = 0; id < numWords; id++) {
+      if (id == startId) {
+        continue;
+      }
+      double logProbability = unseenLogProbability;
+      if (compressedLayout != null) {
+        if (id == nextId) {
+          logProbability = probabilityCodebook[buffer.get(next++) & 0xff];
+          if (next < end) {
+            long difference = readVarint(next);
+            next += getVarintLength(difference);
+            nextId += (int) difference;
+          }
+        }
+      } else if (next < end && buffer.getInt(layout.ngramWords + 4 * next) == id) {
+        logProbability = buffer.getFloat(layout.ngramLogProbabilities + 4 * next);
+        next++;
+      }
+      sum += Math.exp(logProbability);
+      if (sum > sample) {
+        return id;
+      }
+    }
+    return stopId;
+  }
+}
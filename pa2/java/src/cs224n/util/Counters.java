@@ -36,12 +36,9 @@ public class Counters {
   }
 
   public static <E> String toBiggestValuesFirstString(Counter<E> c, int k) {
-    PriorityQueue<E> pq = c.asPriorityQueue();
     PriorityQueue<E> largestK = new PriorityQueue<E>();
-    while (largestK.size() < k && pq.hasNext()) {
-      double firstScore = pq.getPriority();
-      E first = pq.next();
-      largestK.add(first, firstScore);
+    for (E key : c.topK(k)) {
+      largestK.add(key, c.getCount(key));
     }
     return largestK.toString();
   }
@@ -19,90 +19,277 @@ import java.util.*;
    * sequences of operations which transform the first sentence into the
    * second; the edit distance is defined to be the cost of the
    * <i>cheapest</i> such sequence.
+   * <p>
+   * The words of the shorter sentence are given int ids, so each word is
+   * compared with equals() (through its hash) once rather than once per
+   * cell.  If the shorter sentence has at most 64 words, the distance is
+   * then found by the bit-parallel algorithm of Myers (1999), as extended
+   * to edit distance by Hyyr&ouml; (2001), in one pass over the longer
+   * sentence.  Otherwise it is found by dynamic programming over two rows
+   * of ints, and if the caller only needs to know whether it is at most k,
+   * over the cells within k of the diagonal (Ukkonen 1985), stopping once a
+   * whole row exceeds k.  The buffers are kept from call to call, one set
+   * per thread.
    */
   public class EditDistance {
 
-    static double INSERT_COST = 1.0;
-    static double DELETE_COST = 1.0;
-    static double SUBSTITUTE_COST = 1.0;
+    /**
+     * The longest sentence compared bit-parallel, with a word per bit of a
+     * long.
+     */
+    static final int MAX_BIT_PARALLEL_LENGTH = 64;
 
-    private static double[][] initialize(double[][] d) {
-      for (int i = 0; i < d.length; i++) {
-        for (int j = 0; j < d[i].length; j++) {
-          d[i][j] = Double.NaN;
+    private static final ThreadLocal<EditDistance> instances =
+      new ThreadLocal<EditDistance>() {
+        protected EditDistance initialValue() {
+          return new EditDistance();
         }
+      };
+
+    // An open-addressing table from the pattern's words to their ids.
+    private Object[] idWords = new Object[128];
+    private int[] ids = new int[128];
+    private int numIds;
+    private int[] pattern = new int[64];
+    private int[] text = new int[64];
+    private long[] matchMasks = new long[64];
+    private int[] previousRow = new int[65];
+    private int[] currentRow = new int[65];
+
+    /**
+     * Returns the edit distance between two sentences.
+     */
+    public static double getDistance(List firstList, List secondList) {
+      return getDistance(firstList, secondList, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the edit distance between two sentences if it is at most
+     * maxDistance, and maxDistance + 1 otherwise.  A small maxDistance
+     * lets long sentences be compared in time proportional to it rather
+     * than to the product of their lengths.
+     */
+    public static int getDistance(List<?> firstList, List<?> secondList, int maxDistance) {
+      return instances.get().distance(firstList, secondList, maxDistance);
+    }
+
+    /**
+     * Returns whether the edit distance between two sentences is at most
+     * maxDistance.
+     */
+    public static boolean isWithinDistance(List<?> firstList, List<?> secondList, int maxDistance) {
+      return getDistance(firstList, secondList, maxDistance) <= maxDistance;
+    }
+
+    private int distance(List<?> firstList, List<?> secondList, int maxDistance) {
+      if (maxDistance < 0) {
+        throw new IllegalArgumentException("Negative maxDistance: " + maxDistance);
+      }
+      // With unit costs the distance is symmetric, so the shorter sentence
+      // can always be the pattern.
+      List<?> patternList = firstList;
+      List<?> textList = secondList;
+      if (patternList.size() > textList.size()) {
+        patternList = secondList;
+        textList = firstList;
+      }
+      int m = patternList.size();
+      int n = textList.size();
+      if (n - m > maxDistance) {
+        return maxDistance + 1;
+      }
+      if (m == 0) {
+        return n;
+      }
+      indexWords(patternList, textList);
+      int distance;
+      if (m <= MAX_BIT_PARALLEL_LENGTH) {
+        distance = getBitParallelDistance(m, n);
+      } else if (maxDistance < n) {
+        distance = getBandedDistance(m, n, maxDistance);
+      } else {
+        distance = getTwoRowDistance(m, n);
       }
-      return d;
+      return distance > maxDistance ? maxDistance + 1 : distance;
     }
 
     /**
-     * Returns the edit distance between two sentences.  Operates by
-     * calling a recursive (dynamic programming) helper method.
+     * Numbers the distinct words of the pattern from zero, in pattern[],
+     * and gives each word of the text the id of the same pattern word, or
+     * -1 if there is none, in text[].
      */
-    public static double getDistance(List firstList, List secondList) {
-      double[][] bestDistances =
-        initialize(new double[firstList.size() + 1][secondList.size() + 1]);
-      return getDistance(firstList, secondList, 0, 0, bestDistances);
+    private void indexWords(List<?> patternList, List<?> textList) {
+      int m = patternList.size();
+      int n = textList.size();
+      if (pattern.length < m) {
+        pattern = new int[Math.max(m, 2 * pattern.length)];
+      }
+      if (text.length < n) {
+        text = new int[Math.max(n, 2 * text.length)];
+      }
+      int capacity = idWords.length;
+      while (capacity < 2 * m) {
+        capacity *= 2;
+      }
+      if (capacity > idWords.length) {
+        idWords = new Object[capacity];
+        ids = new int[capacity];
+      } else {
+        Arrays.fill(idWords, null);
+      }
+      numIds = 0;
+      int i = 0;
+      for (Object word : patternList) {
+        int slot = findSlot(word);
+        if (idWords[slot] == null) {
+          idWords[slot] = word;
+          ids[slot] = numIds++;
+        }
+        pattern[i++] = ids[slot];
+      }
+      int j = 0;
+      for (Object word : textList) {
+        int slot = findSlot(word);
+        text[j++] = idWords[slot] == null ? -1 : ids[slot];
+      }
+    }
+
+    /**
+     * Returns the slot of the word in the id table, or the empty slot where
+     * it would go.
+     */
+    private int findSlot(Object word) {
+      int mask = idWords.length - 1;
+      int h = word.hashCode() * 0x9e3779b9;
+      int slot = (h ^ (h >>> 16)) & mask;
+      Object stored;
+      while ((stored = idWords[slot]) != null && !stored.equals(word)) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Myers' algorithm, as given for edit distance by Hyyr&ouml;.  Bit i of
+     * Pv and Mv says whether the current column of the dynamic programming
+     * table goes up (plus) or down (minus) by one from row i to row i + 1;
+     * each word of the text computes the next column from the previous
+     * one, and the score follows the last row.  Requires m <= 64.
+     */
+    private int getBitParallelDistance(int m, int n) {
+      if (matchMasks.length < numIds) {
+        matchMasks = new long[Math.max(numIds, 2 * matchMasks.length)];
+      }
+      Arrays.fill(matchMasks, 0, numIds, 0L);
+      for (int i = 0; i < m; i++) {
+        matchMasks[pattern[i]] |= 1L << i;
+      }
+      long lastBit = 1L << (m - 1);
+      long pv = -1L;
+      long mv = 0L;
+      int score = m;
+      for (int j = 0; j < n; j++) {
+        long eq = text[j] < 0 ? 0L : matchMasks[text[j]];
+        long xv = eq | mv;
+        long xh = (((eq & pv) + pv) ^ pv) | eq;
+        long ph = mv | ~(xh | pv);
+        long mh = pv & xh;
+        if ((ph & lastBit) != 0) {
+          score++;
+        } else if ((mh & lastBit) != 0) {
+          score--;
+        }
+        // The top row of the table is 0, 1, 2, ..., so it always goes up.
+        ph = (ph << 1) | 1L;
+        mh = mh << 1;
+        pv = mh | ~(xv | ph);
+        mv = ph & xv;
+      }
+      return score;
     }
 
     /**
-     * Computes the edit distance between a suffix of the first list and a
-     * suffix of the second listusing dynamic programming.  The best
-     * distances for small suffixes are computed first and memoized in the
-     * bestDistances table, which is passed around through recursive calls.
-     * Edit distances for longer suffixes are computed in terms of edit
-     * distances for shorter suffixes by examining alternative operations.
+     * The dynamic program over the text, keeping one row per text word and
+     * one column per pattern word.
      */
-    private static double getDistance(List firstList,
-                               List secondList,
-                               int firstPosition,
-                               int secondPosition,
-                               double[][] bestDistances) {
-      
-      // if either suffix has "negative" length...
-      if (firstPosition > firstList.size() || secondPosition > secondList.size())
-        return Double.POSITIVE_INFINITY;
-
-      // if both suffixes are null, distance is 0 (base case for recursion)
-      if (firstPosition == firstList.size() && secondPosition == secondList.size())
-        return 0.0;
-
-      // if this distance has not yet been memoized in table...
-      if (Double.isNaN(bestDistances[firstPosition][secondPosition])) {
-
-        // start distance high and try alternative ways to reduce it...
-        double distance = Double.POSITIVE_INFINITY;
-
-        distance =                      // insert a word?
-          Math.min(distance, INSERT_COST +
-                   getDistance(firstList, secondList, 
-                               firstPosition + 1, secondPosition,
-                               bestDistances));
-        distance =                      // delete a word?
-          Math.min(distance, DELETE_COST +
-                   getDistance(firstList, secondList, 
-                               firstPosition, secondPosition + 1, 
-                               bestDistances));
-        distance =                      // substitute a word?
-          Math.min(distance, SUBSTITUTE_COST +
-                   getDistance(firstList, secondList,
-                               firstPosition + 1, secondPosition + 1,
-                               bestDistances));
-        
-        // if first words match, no cost incurred here
-        if (firstPosition < firstList.size() && secondPosition < secondList.size()) {
-          if (firstList.get(firstPosition).equals(secondList.get(secondPosition))) {
-            distance = 
-              Math.min(distance, 
-                       getDistance(firstList, secondList,
-                                   firstPosition + 1, secondPosition + 1,
-                                   bestDistances));
-          }
+    private int getTwoRowDistance(int m, int n) {
+      ensureRowCapacity(m + 1);
+      int[] previous = previousRow;
+      int[] current = currentRow;
+      for (int i = 0; i <= m; i++) {
+        previous[i] = i;
+      }
+      for (int j = 1; j <= n; j++) {
+        int word = text[j - 1];
+        current[0] = j;
+        for (int i = 1; i <= m; i++) {
+          int distance = previous[i - 1] + (pattern[i - 1] == word ? 0 : 1);
+          distance = Math.min(distance, previous[i] + 1);
+          distance = Math.min(distance, current[i - 1] + 1);
+          current[i] = distance;
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+      }
+      return previous[m];
+    }
+
+    /**
+     * The dynamic program restricted to the cells within maxDistance of the
+     * diagonal, since any path through the others costs more.  Cells are
+     * capped at maxDistance + 1, which stands for every larger distance,
+     * and the search stops once a whole row is over maxDistance.  Requires
+     * n - m <= maxDistance.
+     */
+    private int getBandedDistance(int m, int n, int maxDistance) {
+      ensureRowCapacity(m + 1);
+      int over = maxDistance + 1;
+      int[] previous = previousRow;
+      int[] current = currentRow;
+      for (int i = 0; i <= m; i++) {
+        previous[i] = Math.min(i, over);
+      }
+      for (int j = 1; j <= n; j++) {
+        int word = text[j - 1];
+        int low = Math.max(1, j - maxDistance);
+        int high = Math.min(m, j + maxDistance);
+        current[low - 1] = low == 1 ? Math.min(j, over) : over;
+        int rowMinimum = current[low - 1];
+        for (int i = low; i <= high; i++) {
+          int distance = previous[i - 1] + (pattern[i - 1] == word ? 0 : 1);
+          distance = Math.min(distance, previous[i] + 1);
+          distance = Math.min(distance, current[i - 1] + 1);
+          distance = Math.min(distance, over);
+          current[i] = distance;
+          rowMinimum = Math.min(rowMinimum, distance);
+        }
+        if (high < m) {
+          current[high + 1] = over;
         }
+        if (rowMinimum > maxDistance) {
+          return over;
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+      }
+      return previous[m];
+    }
 
-        // memoize for future reference
-        bestDistances[firstPosition][secondPosition] = distance;
+    private void ensureRowCapacity(int length) {
+      if (previousRow.length < length) {
+        int capacity = Math.max(length, 2 * previousRow.length);
+        previousRow = new int[capacity];
+        currentRow = new int[capacity];
       }
-      return bestDistances[firstPosition][secondPosition];
+    }
+
+    public static void main(String[] args) {
+      List<String> first = Arrays.asList("The quick brown fox jumped over the lazy dog .".split(" "));
+      List<String> second = Arrays.asList("The fox tripped over the fat lazy dog .".split(" "));
+      System.out.println("Distance: " + getDistance(first, second));
+      System.out.println("Within 3: " + isWithinDistance(first, second, 3));
+      System.out.println("Within 4: " + isWithinDistance(first, second, 4));
     }
   }
\ No newline at end of file
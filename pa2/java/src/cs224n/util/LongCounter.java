@@ -0,0 +1,284 @@
+package cs224n.util;
+
+import java.io.Serializable;
+
+/**
+ * A map from longs to doubles.  This is the primitive counterpart of
+ * Counter: keys and counts are stored unboxed in parallel arrays of an
+ * open-addressing (linear probing) hash table, so getCount() and
+ * incrementCount() never allocate.  Keys not in the counter return a count
+ * of zero.  Unlike Counter, the total count is maintained incrementally, so
+ * totalCount() is a constant time operation.
+ */
+public class LongCounter implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  long[] keys;
+  double[] counts;
+  boolean[] used;
+  int size;
+  int mask;
+  double totalCount;
+
+  /**
+   * Walks over the entries of a LongCounter without allocating an object per
+   * entry.  Typical usage:
+   * <pre>
+   *   LongCounter.Cursor cursor = counter.cursor();
+   *   while (cursor.advance()) {
+   *     long key = cursor.key();
+   *     double count = cursor.count();
+   *   }
+   * </pre>
+   * The counter must not have keys added while a cursor is in use, though
+   * counts of existing keys may be changed through setCount().
+   */
+  public class Cursor {
+    int slot = -1;
+
+    /**
+     * Moves to the next entry, returning false if there are no more.
+     */
+    public boolean advance() {
+      int capacity = keys.length;
+      for (slot++; slot < capacity; slot++) {
+        if (used[slot]) return true;
+      }
+      return false;
+    }
+
+    public long key() {
+      return keys[slot];
+    }
+
+    public double count() {
+      return counts[slot];
+    }
+
+    /**
+     * Sets the count of the current entry, keeping the counter's total up to
+     * date.
+     */
+    public void setCount(double count) {
+      totalCount += count - counts[slot];
+      counts[slot] = count;
+    }
+  }
+
+  /**
+   * Returns a cursor positioned before the first entry.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use
+   * totalCount() instead).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the counter.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns whether the counter contains the given key, which distinguishes
+   * keys stored with count zero from keys which are not present.
+   */
+  public boolean containsKey(long key) {
+    return used[find(key)];
+  }
+
+  /**
+   * Get the count of the key, or zero if the key is not in the counter.
+   */
+  public double getCount(long key) {
+    int slot = find(key);
+    return used[slot] ? counts[slot] : 0.0;
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(long key, double count) {
+    int slot = insert(key);
+    totalCount += count - counts[slot];
+    counts[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount, returning the new count.
+   */
+  public double incrementCount(long key, double increment) {
+    int slot = insert(key);
+    counts[slot] += increment;
+    totalCount += increment;
+    return counts[slot];
+  }
+
+  /**
+   * Increment the count of every key in the given counter by its count there.
+   */
+  public void incrementAll(LongCounter counter) {
+    Cursor cursor = counter.cursor();
+    while (cursor.advance()) {
+      incrementCount(cursor.key(), cursor.count());
+    }
+  }
+
+  /**
+   * Returns the total of all counts in the counter.  The total is maintained
+   * as counts are changed, so this is a constant time operation.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the keys of the counter in an unspecified order.
+   */
+  public long[] keys() {
+    long[] result = new long[size];
+    int i = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (used[slot]) result[i++] = keys[slot];
+    }
+    return result;
+  }
+
+  /**
+   * Assigns a key to one of numPartitions partitions, so that counters can
+   * be split and merged partition by partition.  Partitions are taken from
+   * the high bits of the hash, and table slots from the low bits, so the
+   * keys of one partition still spread over a counter's table.
+   */
+  public static int partition(long key, int numPartitions) {
+    return (int) (((hash(key) & 0xffffffffL) * numPartitions) >>> 32);
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Scrambles the bits of a key so that keys which differ only in their high
+   * bits (as packed n-grams do) still spread over the table.
+   */
+  static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /**
+   * Returns the slot holding the key, or the empty slot where it would go.
+   */
+  int find(long key) {
+    int slot = hash(key) & mask;
+    while (used[slot] && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  int insert(long key) {
+    int slot = find(key);
+    if (!used[slot]) {
+      if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+        rehash(2 * keys.length);
+        slot = find(key);
+      }
+      used[slot] = true;
+      keys[slot] = key;
+      counts[slot] = 0.0;
+      size++;
+    }
+    return slot;
+  }
+
+  void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    double[] oldCounts = counts;
+    boolean[] oldUsed = used;
+    allocate(newCapacity);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldUsed[slot]) {
+        int newSlot = find(oldKeys[slot]);
+        used[newSlot] = true;
+        keys[newSlot] = oldKeys[slot];
+        counts[newSlot] = oldCounts[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    counts = new double[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  public LongCounter() {
+    this(16);
+  }
+
+  /**
+   * Constructs a counter which can hold the given number of keys before it
+   * needs to grow.
+   */
+  public LongCounter(int expectedSize) {
+    int capacity = 16;
+    while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * Constructs a copy of the given counter.
+   */
+  public LongCounter(LongCounter counter) {
+    keys = counter.keys.clone();
+    counts = counter.counts.clone();
+    used = counter.used.clone();
+    size = counter.size;
+    mask = counter.mask;
+    totalCount = counter.totalCount;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    Cursor cursor = cursor();
+    boolean first = true;
+    while (cursor.advance()) {
+      if (!first) sb.append(", ");
+      sb.append(cursor.key());
+      sb.append(" : ");
+      sb.append(cursor.count());
+      first = false;
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) {
+    LongCounter counter = new LongCounter();
+    counter.incrementCount(7L, 7);
+    counter.incrementCount(7L, 1);
+    counter.setCount(3L, 1);
+    counter.setCount(-1L, 0);
+    System.out.println(counter);
+    System.out.println("Count of 7: " + counter.getCount(7L));
+    System.out.println("Count of 5: " + counter.getCount(5L));
+    System.out.println("Total: " + counter.totalCount());
+  }
+}
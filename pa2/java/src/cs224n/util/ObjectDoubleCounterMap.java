@@ -0,0 +1,255 @@
+package cs224n.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains counts of (key, value) pairs, with the API of CounterMap, in
+ * ObjectDoubleCounters.  The map is a flat two-level index: an
+ * open-addressing table takes each key to a dense id, and the ids index a
+ * list of the keys' counters of values.  Every counter reports changes of
+ * its total and size to the map, even when changed through getCounter(), so
+ * totalCount() and totalSize() are constant time operations.
+ */
+public class ObjectDoubleCounterMap<K, V> implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  /**
+   * Stands for the null key, since a null slot is an empty one.
+   */
+  private static final Object NULL_KEY = new Object();
+
+  // The key table is rebuilt from keys when the map is read, since its
+  // slots hold NULL_KEY, which is not the same object in another JVM.
+  private transient Object[] slotKeys;
+  private transient int[] slotIds;
+  private transient int mask;
+  private final List<K> keys = new ArrayList<K>();
+  private final List<ObjectDoubleCounter<V>> counters = new ArrayList<ObjectDoubleCounter<V>>();
+  double totalCount;
+  int totalSize;
+
+  // -----------------------------------------------------------------------
+
+  public ObjectDoubleCounterMap() {
+    allocate(16);
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns the counter of the key, creating and installing it if it is
+   * missing and create is true, or returning null if it is missing and
+   * create is false.
+   */
+  protected ObjectDoubleCounter<V> getCounter(K key, boolean create) {
+    Object masked = key == null ? NULL_KEY : key;
+    int slot = find(masked);
+    if (slotKeys[slot] != null) {
+      return counters.get(slotIds[slot]);
+    }
+    if (!create) {
+      return null;
+    }
+    if (keys.size() + 1 > MAX_LOAD_FACTOR * slotKeys.length) {
+      rehash(2 * slotKeys.length);
+      slot = find(masked);
+    }
+    ObjectDoubleCounter<V> valueCounter = new ObjectDoubleCounter<V>();
+    valueCounter.owner = this;
+    slotKeys[slot] = masked;
+    slotIds[slot] = keys.size();
+    keys.add(key);
+    counters.add(valueCounter);
+    return valueCounter;
+  }
+
+  /**
+   * Returns the keys that have been inserted into this map, as a view
+   * which changes with it.
+   */
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+      public Iterator<K> iterator() {
+        return Collections.unmodifiableList(keys).iterator();
+      }
+
+      public int size() {
+        return keys.size();
+      }
+
+      @SuppressWarnings("unchecked")
+      public boolean contains(Object o) {
+        return getCounter((K) o, false) != null;
+      }
+    };
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair.
+   */
+  public void setCount(K key, V value, double count) {
+    getCounter(key, true).setCount(value, count);
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  public void incrementCount(K key, V value, double count) {
+    getCounter(key, true).incrementCount(value, count);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that
+   * entry is not present.  Does not create any objects.
+   */
+  public double getCount(K key, V value) {
+    ObjectDoubleCounter<V> valueCounter = getCounter(key, false);
+    if (valueCounter == null)
+      return 0.0;
+    return valueCounter.getCount(value);
+  }
+
+  /**
+   * Gets the sub-counter for the given key.  If there is none, a counter
+   * is created for that key, and installed in the map.  Changes to the
+   * returned counter are changes to the map, whose totals follow them.
+   */
+  public ObjectDoubleCounter<V> getCounter(K key) {
+    return getCounter(key, true);
+  }
+
+  /**
+   * Returns the total of all counts in sub-counters.  The total is
+   * maintained as counts are changed, so this is a constant time
+   * operation.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries in the map (not
+   * their total counts).  This is a constant time operation.
+   */
+  public int totalSize() {
+    return totalSize;
+  }
+
+  /**
+   * The number of keys in this map (not the number of key-value entries
+   * -- use totalSize() for that)
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * True if there are no entries in the map (false does not mean
+   * totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[\n");
+    for (int id = 0; id < keys.size(); id++) {
+      sb.append("  ");
+      sb.append(keys.get(id));
+      sb.append(" -> ");
+      sb.append(counters.get(id));
+      sb.append("\n");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot holding the (masked) key, or the empty slot where it
+   * would go.
+   */
+  private int find(Object key) {
+    int slot = hash(key) & mask;
+    Object stored;
+    while ((stored = slotKeys[slot]) != null && stored != key && !stored.equals(key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = slotKeys;
+    int[] oldIds = slotIds;
+    allocate(newCapacity);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != null) {
+        int newSlot = find(oldKeys[slot]);
+        slotKeys[newSlot] = oldKeys[slot];
+        slotIds[newSlot] = oldIds[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    slotKeys = new Object[capacity];
+    slotIds = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Rebuilds the key table and makes the map the owner of its counters
+   * again, neither of which is written.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int capacity = 16;
+    while (capacity * MAX_LOAD_FACTOR < keys.size()) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+    for (int id = 0; id < keys.size(); id++) {
+      K key = keys.get(id);
+      Object masked = key == null ? NULL_KEY : key;
+      int slot = find(masked);
+      slotKeys[slot] = masked;
+      slotIds[slot] = id;
+      counters.get(id).owner = this;
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  public static void main(String[] args) {
+    ObjectDoubleCounterMap<String, String> bigramCounterMap = new ObjectDoubleCounterMap<String, String>();
+    bigramCounterMap.incrementCount("people", "run", 1);
+    bigramCounterMap.incrementCount("cats", "growl", 2);
+    bigramCounterMap.incrementCount("cats", "scamper", 3);
+    System.out.println(bigramCounterMap);
+    System.out.println("Entries for cats: " + bigramCounterMap.getCounter("cats"));
+    System.out.println("Entries for dogs: " + bigramCounterMap.getCounter("dogs"));
+    System.out.println("Count of cats scamper: " + bigramCounterMap.getCount("cats", "scamper"));
+    System.out.println("Count of snakes slither: " + bigramCounterMap.getCount("snakes", "slither"));
+    System.out.println("Total size: " + bigramCounterMap.totalSize());
+    System.out.println("Total count: " + bigramCounterMap.totalCount());
+    bigramCounterMap.getCounter("cats").incrementCount("purr", 4);
+    System.out.println("Total count after purring: " + bigramCounterMap.totalCount());
+    System.out.println(bigramCounterMap);
+  }
+}
@@ -0,0 +1,227 @@
+package cs224n.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe Index: a two-way map between objects, such as the words of a
+ * corpus, and the contiguous integers from 0 to the number of objects, which
+ * many threads can read and add to at once.  Subsystems which look up the
+ * same table share one id space, so each string is hashed once, where it is
+ * read in, and is an int from then on.
+ * <p>
+ * Reads take no lock: indexOf() is a ConcurrentHashMap lookup, and get()
+ * reads a chunk of an array of objects.  Adds of new objects take the lock
+ * of one of several stripes, chosen by hash, so an object is numbered once
+ * however many threads add it, and nothing else: ids are handed out by an
+ * atomic counter, so they stay dense, and the chunks double in size, so
+ * that the array of them never has to grow.  No add waits for another:
+ * size() counts the objects stored below the first id still being stored,
+ * and is raised by whichever add finds the next one stored.  Objects may not be null.
+ * After training, freeze() makes the table read-only: looking up an
+ * unknown object then gives -1 rather than adding it.  Ids are never
+ * reclaimed (that would leave holes in the id space); use a WeakInterner
+ * for objects which should be.
+ */
+public class SymbolTable <E> extends AbstractList<E> implements SymbolIndex<E> {
+
+  private static final int CHUNK_BITS = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int NUM_CHUNKS = 31 - CHUNK_BITS;
+  private static final long MAX_SIZE = ((long) CHUNK_SIZE << NUM_CHUNKS) - CHUNK_SIZE;
+  private static final int NUM_STRIPES = 64;
+
+  private final ConcurrentHashMap<E, Integer> indexes = new ConcurrentHashMap<E, Integer>();
+  private final Object[] stripes = new Object[NUM_STRIPES];
+  // Chunk k holds CHUNK_SIZE << k objects, from index (CHUNK_SIZE << k) - CHUNK_SIZE.
+  private final AtomicReferenceArray<AtomicReferenceArray<E>> chunks =
+    new AtomicReferenceArray<AtomicReferenceArray<E>>(NUM_CHUNKS);
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile boolean frozen;
+
+  /**
+   * Return the object with the given index.  Every index below size(), and
+   * every index returned by indexOf() or addAndGetIndex(), has its object.
+   *
+   * @param index
+   */
+  public E get(int index) {
+    E e = (index >= 0 && index < nextIndex.get()) ? getStored(index) : null;
+    if (e == null) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    return e;
+  }
+
+  /**
+   * Returns the object stored at the given index, which is below
+   * nextIndex, or null if it is still being stored (or is past the last
+   * chunk, for adds to a full table).
+   */
+  private E getStored(int index) {
+    int position = index + CHUNK_SIZE;
+    int chunk = 31 - Integer.numberOfLeadingZeros(position) - CHUNK_BITS;
+    if (chunk >= NUM_CHUNKS) {
+      return null;
+    }
+    AtomicReferenceArray<E> objects = chunks.get(chunk);
+    return (objects == null) ? null : objects.get(position - (CHUNK_SIZE << chunk));
+  }
+
+  /**
+   * Returns the number of objects indexed, not counting any stored above
+   * an index still being stored.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Returns the index of the given object, or -1 if the object is not present
+   * in the table.  Takes no lock.
+   *
+   * @param o
+   */
+  public int indexOf(Object o) {
+    Integer index = indexes.get(o);
+    if (index == null)
+      return -1;
+    return index;
+  }
+
+  /**
+   * Constant time override for contains.
+   */
+  public boolean contains(Object o) {
+    return indexes.containsKey(o);
+  }
+
+  /**
+   * Add an element to the table.  If the element is already in the table,
+   * the table is unchanged (and false is returned).
+   *
+   * @param e
+   * @throws UnsupportedOperationException if the element is new and the
+   * table is frozen
+   */
+  public boolean add(E e) {
+    if (indexes.containsKey(e)) return false;
+    if (frozen) {
+      throw new UnsupportedOperationException("Cannot add " + e + " to a frozen symbol table");
+    }
+    return insert(e) >= 0;
+  }
+
+  /**
+   * Returns the index of the given object, adding it to the table first if
+   * it is not present.  If the table is frozen, returns -1 for an object
+   * which is not present.
+   */
+  public int addAndGetIndex(E e) {
+    Integer index = indexes.get(e);
+    if (index != null) {
+      return index;
+    }
+    if (frozen) {
+      return -1;
+    }
+    int inserted = insert(e);
+    return inserted >= 0 ? inserted : ~inserted;
+  }
+
+  /**
+   * Adds the object under the lock of its stripe, returning its new index,
+   * or the complement (~index) of the index another thread gave it first.
+   */
+  private int insert(E e) {
+    synchronized (stripes[(e.hashCode() & 0x7fffffff) % NUM_STRIPES]) {
+      Integer index = indexes.get(e);
+      if (index != null) {
+        return ~index;
+      }
+      int newIndex = store(e);
+      indexes.put(e, newIndex);
+      return newIndex;
+    }
+  }
+
+  /**
+   * Makes the table read-only, so that its ids stay fixed while models
+   * which were trained with it are in use.  Call it once every add has
+   * returned.
+   */
+  public void freeze() {
+    frozen = true;
+  }
+
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  /**
+   * Puts the object at the next index, and returns the index.  The object
+   * is stored before its index is published through the map, so a reader
+   * which finds the index finds the object.  Stores may finish out of
+   * order, so size is only raised past an index once it has been stored,
+   * and by whichever thread sees that first: each add, once its object is
+   * stored, raises size past every stored index it finds from there.  Of
+   * two adds which finish out of order, the later to store its object
+   * finds the other's, so size never stops short of a stored run.
+   */
+  private int store(E e) {
+    int index = nextIndex.getAndIncrement();
+    if (index < 0 || index >= MAX_SIZE) {
+      throw new IllegalStateException("Symbol table is full");
+    }
+    int position = index + CHUNK_SIZE;
+    int chunk = 31 - Integer.numberOfLeadingZeros(position) - CHUNK_BITS;
+    AtomicReferenceArray<E> objects = chunks.get(chunk);
+    if (objects == null) {
+      chunks.compareAndSet(chunk, null, new AtomicReferenceArray<E>(CHUNK_SIZE << chunk));
+      objects = chunks.get(chunk);
+    }
+    objects.set(position - (CHUNK_SIZE << chunk), e);
+    int stored = size.get();
+    while (stored < nextIndex.get() && getStored(stored) != null) {
+      size.compareAndSet(stored, stored + 1);
+      stored = size.get();
+    }
+    return index;
+  }
+
+  public SymbolTable() {
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  public SymbolTable(Collection<? extends E> c) {
+    this();
+    addAll(c);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    final SymbolTable<String> symbols = new SymbolTable<String>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            symbols.addAndGetIndex("w" + i);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    System.out.println("Size: " + symbols.size());
+    System.out.println("w42 -> " + symbols.indexOf("w42") + " -> " + symbols.get(symbols.indexOf("w42")));
+    symbols.freeze();
+    System.out.println("Frozen, unknown word -> " + symbols.addAndGetIndex("unknown"));
+  }
+}
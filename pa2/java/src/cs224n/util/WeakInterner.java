@@ -0,0 +1,47 @@
+package cs224n.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An Interner whose canonical objects can be reclaimed by the garbage
+ * collector once nothing else refers to them, as for the states of a
+ * tagger, which are only needed while sentences which use them are being
+ * tagged.  The canonical objects are the keys of a WeakHashMap, whose
+ * values refer to them weakly too (a value referring to its key strongly
+ * would keep it from ever being reclaimed).  intern() locks the map.
+ */
+public class WeakInterner <T> extends Interner<T> {
+
+  private final Map<T, WeakReference<T>> references = new WeakHashMap<T, WeakReference<T>>();
+
+  public T intern(T object) {
+    synchronized (references) {
+      WeakReference<T> reference = references.get(object);
+      T canonical = reference == null ? null : reference.get();
+      if (canonical == null) {
+        canonical = cf.build(object);
+        references.put(canonical, new WeakReference<T>(canonical));
+      }
+      return canonical;
+    }
+  }
+
+  /**
+   * The number of canonical objects not yet reclaimed.
+   */
+  public int size() {
+    synchronized (references) {
+      return references.size();
+    }
+  }
+
+  public WeakInterner() {
+    this(new IdentityCanonicalFactory<T>());
+  }
+
+  public WeakInterner(CanonicalFactory<T> cf) {
+    super((Map<T,T>) null, cf);
+  }
+}
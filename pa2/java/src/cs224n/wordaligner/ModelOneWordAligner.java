@@ -1,27 +1,44 @@
 package cs224n.wordaligner;
 
-import cs224n.langmodel.EmpiricalUnigramLanguageModel;
-import cs224n.langmodel.LanguageModel;
 import cs224n.util.Alignment;
-import cs224n.util.Counter;
 import cs224n.util.CounterMap;
+import cs224n.util.LongCounter;
 import cs224n.util.SentencePair;
+import cs224n.util.SymbolTable;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.*;
 
 public class ModelOneWordAligner implements WordAligner {
 
     private static final double NULL_MASS = 0.05;
 //    private static final double SURE_THRESHOLD = 0.8;
 
-    private CounterMap<String, String> transProbMap;
-    private LanguageModel sourceModel;
-    private LanguageModel targetModel;
-    private double totalFrenchWords;
-    private double totalEnglishWords;
+    // A first pass from uniform probabilities, then 40 re-estimations.
+    private static final int NUM_ITERATIONS = 41;
+    static final int NUM_PARTITIONS = 64;
+
+    private static int defaultThreads = Runtime.getRuntime().availableProcessors();
+
+    // The ids of the English and French words; the packed (e, f) keys keep
+    // the two languages apart, so they can share one table.
+    private final SymbolTable<String> symbols;
+    // t(f|e) by hash partition of the packed (e, f) ids.
+    private LongCounter[] transProbs;
+
+    public ModelOneWordAligner() {
+        this(new SymbolTable<String>());
+    }
+
+    /**
+     * An aligner which numbers the words it is trained on in the given
+     * table, which other subsystems may share.  train() adds to it, so it
+     * should be frozen after training, not before.
+     */
+    public ModelOneWordAligner(SymbolTable<String> symbols) {
+        this.symbols = symbols;
+    }
 
    public Alignment alignSentencePair(SentencePair sentencePair) {
 //        double threshold = SURE_THRESHOLD;
@@ -32,14 +49,19 @@ public class ModelOneWordAligner implements WordAligner {
         englishWords.add(NULL_WORD);
         int numEnglishWords = sentencePair.getEnglishWords().size();
         int numFrenchWords = sentencePair.getFrenchWords().size();
+        // Each word is looked up once; the loops below only compare ids.
+        int[] englishIds = new int[numEnglishWords];
+        for (int englishIndex = 0; englishIndex < numEnglishWords; englishIndex++) {
+            englishIds[englishIndex] = symbols.indexOf(englishWords.get(englishIndex));
+        }
         for (int frenchIndex = 0; frenchIndex < numFrenchWords; frenchIndex++) {
             List<Integer> transProbMaximaIndices = new ArrayList<Integer>();
-            String frenchWord = frenchWords.get(frenchIndex);
+            int frenchId = symbols.indexOf(frenchWords.get(frenchIndex));
             double maxTransProb = -1;
             double almostMaxTransProb = -1;
 
             for (int englishIndex = 0; englishIndex < numEnglishWords; englishIndex++) {
-                double transProb = transProbMap.getCount(englishWords.get(englishIndex), frenchWord);
+                double transProb = getTransProb(englishIds[englishIndex], frenchId);
                 if (transProb > maxTransProb) {
                     transProbMaximaIndices.clear();
                     almostMaxTransProb = maxTransProb;
@@ -88,7 +110,8 @@ public class ModelOneWordAligner implements WordAligner {
 //                product *= NULL_MASS;
 //            }
             else {
-                double p = transProbMap.getCount(sourceSentence.get(j), targetSentence.get(alignment.getAlignedTarget(j)));
+                double p = getTransProb(symbols.indexOf(sourceSentence.get(j)),
+                                        symbols.indexOf(targetSentence.get(alignment.getAlignedTarget(j))));
                 product *= (1 - NULL_MASS) * p;
             }
         }
@@ -97,82 +120,257 @@ public class ModelOneWordAligner implements WordAligner {
 
     public CounterMap<String, String> getProbSourceGivenTarget() {
         CounterMap<String, String> reversePropMap = new CounterMap<String, String>();
-        for (String key : transProbMap.keySet()) {
-            for (String value : transProbMap.getCounter(key).keySet()) {
-                reversePropMap.setCount(value, key, transProbMap.getCount(key, value));
+        for (LongCounter partition : transProbs) {
+            LongCounter.Cursor cursor = partition.cursor();
+            while (cursor.advance()) {
+                reversePropMap.setCount(symbols.get(getFrenchId(cursor.key())),
+                                        symbols.get(getEnglishId(cursor.key())), cursor.count());
             }
         }
         return reversePropMap;
     }
 
-    public void train(List<SentencePair> trainingPairs) {
-        transProbMap = new CounterMap<String,String>();
-
-        List<List<String>> sourceSentences = new ArrayList<List<String>>();
-        List<List<String>> targetSentences = new ArrayList<List<String>>();
+    /**
+     * Sets the number of threads train() runs EM on.
+     */
+    public static void setDefaultThreads(int threads) {
+        defaultThreads = threads;
+    }
 
-        for (SentencePair pair : trainingPairs) {
-            List<String> targetWords = pair.getEnglishWords();
-            List<String> sourceWords = pair.getFrenchWords();
-            targetWords.add(NULL_WORD); // I have to add the NULL case to the English sentences
-            sourceSentences.add(sourceWords);
-            targetSentences.add(targetWords);
+    /**
+     * Estimates the translation probabilities t(f|e) by EM.  The words are
+     * first mapped to ids, one shard of sentence pairs per thread, through
+     * the aligner's SymbolTable, which the threads share.  Each pass then
+     * runs on several threads:
+     * <ol>
+     * <li>The sentence pairs are split into one shard per thread.  Each
+     * thread collects the expected counts of the (e, f) pairs of its shard
+     * into private LongCounters, one per hash partition, and the expected
+     * counts of each English word into a private array.</li>
+     * <li>The partitions are merged in parallel, one task per partition,
+     * and each merged count normalized by its English word's total in
+     * place, giving the partition's t(f|e) for the next pass.</li>
+     * </ol>
+     * Only pairs which co-occur in some sentence pair ever get a count, and
+     * t(f|e) of any other pair is zero, so neither step visits them.  Unlike
+     * n-gram counts, expected counts are fractional, so the probabilities
+     * may differ in their last bits with the number of threads.  Which ids
+     * the words get depends on which thread reaches them first, but the
+     * probabilities do not: each count is summed in sentence order within
+     * a shard, and in shard order across them, whatever the ids.
+     */
+    public void train(List<SentencePair> trainingPairs) {
+        ExecutorService executor = null;
+        if (defaultThreads > 1) {
+            executor = Executors.newFixedThreadPool(defaultThreads);
         }
+        try {
+            int[][] englishIds = new int[trainingPairs.size()][];
+            int[][] frenchIds = new int[trainingPairs.size()][];
+            mapWords(trainingPairs, symbols, englishIds, frenchIds, executor);
 
-        sourceModel = new EmpiricalUnigramLanguageModel(sourceSentences);
-        targetModel = new EmpiricalUnigramLanguageModel(targetSentences);
+            // The first pass starts from uniform probabilities (null).
+            LongCounter[] transProbs = null;
+            for (int iteration = 0; iteration < NUM_ITERATIONS; iteration++) {
+                transProbs = iterate(englishIds, frenchIds, symbols.size(), transProbs, executor);
+            }
+            this.transProbs = transProbs;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
 
-        totalEnglishWords = targetModel.getVocabulary().size();
-        totalFrenchWords = sourceModel.getVocabulary().size();
+    /**
+     * The expected counts collected from one shard.
+     */
+    private static class ShardCounts {
+        final LongCounter[] pairCounts = new LongCounter[NUM_PARTITIONS];
+        final double[] englishCounts;
 
-        for (String englishWord : targetModel.getVocabulary()) {
-            for (String frenchWord : sourceModel.getVocabulary()) {
-                transProbMap.setCount(englishWord, frenchWord, 1 / totalFrenchWords);
+        ShardCounts(int numEnglishWords) {
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                pairCounts[p] = new LongCounter();
             }
+            englishCounts = new double[numEnglishWords];
         }
+    }
 
-        int n = 40; // do this 40 times for EM
-        do {
-            CounterMap<String, String> tCountMap = new CounterMap<String, String>();
-            Counter<String> totalEnglishCounter = new Counter<String>();
-            Set<String> frenchWords = new HashSet<String>();
-
-            for (SentencePair pair : trainingPairs) {
-                List<String> targetWords = pair.getEnglishWords();
-                List<String> sourceWords = pair.getFrenchWords();
+    /**
+     * Runs one pass of EM, returning the re-estimated t(f|e) by partition.
+     */
+    private static LongCounter[] iterate(final int[][] englishIds, final int[][] frenchIds, final int numEnglishWords,
+                                         final LongCounter[] transProbs, ExecutorService executor) {
+        // E-step: collect the expected counts of each shard.
+        List<Callable<ShardCounts>> countTasks = new ArrayList<Callable<ShardCounts>>();
+        int numShards = Math.max(1, Math.min(defaultThreads, englishIds.length));
+        for (int shard = 0; shard < numShards; shard++) {
+            final int from = (int) ((long) englishIds.length * shard / numShards);
+            final int to = (int) ((long) englishIds.length * (shard + 1) / numShards);
+            countTasks.add(new Callable<ShardCounts>() {
+                public ShardCounts call() {
+                    ShardCounts counts = new ShardCounts(numEnglishWords);
+                    long[] keys = new long[64];
+                    double[] probs = new double[64];
+                    for (int s = from; s < to; s++) {
+                        int[] english = englishIds[s];
+                        if (keys.length < english.length) {
+                            keys = new long[2 * english.length];
+                            probs = new double[2 * english.length];
+                        }
+                        for (int frenchId : frenchIds[s]) {
+                            double totalSentenceProb = 0;
+                            for (int i = 0; i < english.length; i++) {
+                                keys[i] = pack(english[i], frenchId);
+                                probs[i] = (transProbs == null) ? 1.0 : getProb(transProbs, keys[i]);
+                                totalSentenceProb += probs[i];
+                            }
+                            for (int i = 0; i < english.length; i++) {
+                                double count = probs[i] / totalSentenceProb;
+                                counts.pairCounts[LongCounter.partition(keys[i], NUM_PARTITIONS)].incrementCount(keys[i], count);
+                                counts.englishCounts[english[i]] += count;
+                            }
+                        }
+                    }
+                    return counts;
+                }
+            });
+        }
+        final List<ShardCounts> shardCounts = invokeAll(countTasks, executor);
 
+        final double[] englishCounts = new double[numEnglishWords];
+        for (ShardCounts counts : shardCounts) {
+            for (int e = 0; e < numEnglishWords; e++) {
+                englishCounts[e] += counts.englishCounts[e];
+            }
+        }
 
-                for (String frenchWord : sourceWords) {
-                    frenchWords.add(frenchWord);
-//                    System.out.print(frenchWord);
-                    double totalSentenceProb = 0;
-                    for (String englishWord : targetWords) {
-                        totalSentenceProb += transProbMap.getCount(englishWord, frenchWord);
+        // M-step: merge each partition across shards, and normalize it.
+        List<Callable<LongCounter>> mergeTasks = new ArrayList<Callable<LongCounter>>();
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            final int partition = p;
+            mergeTasks.add(new Callable<LongCounter>() {
+                public LongCounter call() {
+                    int expectedSize = 0;
+                    for (ShardCounts counts : shardCounts) {
+                        expectedSize = Math.max(expectedSize, counts.pairCounts[partition].size());
                     }
-//                    System.out.println(": " + totalSentenceProb);
-
-                    for (String englishWord : targetWords) {
-                        double tProb = transProbMap.getCount(englishWord, frenchWord);
-                        tCountMap.incrementCount(englishWord, frenchWord, tProb / totalSentenceProb);
-                        totalEnglishCounter.incrementCount(englishWord, tProb / totalSentenceProb);
+                    LongCounter merged = new LongCounter(expectedSize);
+                    for (ShardCounts counts : shardCounts) {
+                        merged.incrementAll(counts.pairCounts[partition]);
+                        counts.pairCounts[partition] = null;
                     }
+                    LongCounter.Cursor cursor = merged.cursor();
+                    while (cursor.advance()) {
+                        cursor.setCount(cursor.count() / englishCounts[getEnglishId(cursor.key())]);
+                    }
+                    return merged;
                 }
-            }
+            });
+        }
+        return invokeAll(mergeTasks, executor).toArray(new LongCounter[NUM_PARTITIONS]);
+    }
 
-            for (String englishWord : totalEnglishCounter.keySet()) {
-                for (String frenchWord : frenchWords) {
-                    transProbMap.setCount(englishWord, frenchWord, tCountMap.getCount(englishWord, frenchWord) / totalEnglishCounter.getCount(englishWord));
+    /**
+     * Fills englishIds and frenchIds with the ids of the words of each
+     * sentence pair, with NULL_WORD as the last English word of every
+     * sentence, one task per shard.
+     */
+    private static void mapWords(final List<SentencePair> trainingPairs, final SymbolTable<String> symbols,
+                                 final int[][] englishIds, final int[][] frenchIds, ExecutorService executor) {
+        final int nullId = getId(symbols, NULL_WORD);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int numShards = Math.max(1, Math.min(defaultThreads, trainingPairs.size()));
+        for (int shard = 0; shard < numShards; shard++) {
+            final int from = (int) ((long) trainingPairs.size() * shard / numShards);
+            final int to = (int) ((long) trainingPairs.size() * (shard + 1) / numShards);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int s = from; s < to; s++) {
+                        SentencePair pair = trainingPairs.get(s);
+                        List<String> englishWords = pair.getEnglishWords();
+                        List<String> frenchWords = pair.getFrenchWords();
+                        englishIds[s] = new int[englishWords.size() + 1];
+                        for (int i = 0; i < englishWords.size(); i++) {
+                            englishIds[s][i] = getId(symbols, englishWords.get(i));
+                        }
+                        englishIds[s][englishWords.size()] = nullId;
+                        frenchIds[s] = new int[frenchWords.size()];
+                        for (int j = 0; j < frenchWords.size(); j++) {
+                            frenchIds[s][j] = getId(symbols, frenchWords.get(j));
+                        }
+                    }
+                    return null;
                 }
-            }
+            });
+        }
+        invokeAll(tasks, executor);
+    }
 
-//            System.out.println();
-        } while (n-- > 0);
+    /**
+     * Returns the id of a training word, adding it to the table if it is new.
+     */
+    private static int getId(SymbolTable<String> symbols, String word) {
+        int id = symbols.addAndGetIndex(word);
+        if (id < 0) {
+            throw new IllegalStateException("Training word " + word + " is not in the frozen symbol table");
+        }
+        return id;
+    }
 
-        for (SentencePair pair : trainingPairs) {
-            List<String> targetWords = pair.getEnglishWords();
-            targetWords.remove(NULL_WORD);
+    /**
+     * Returns t(f|e) given the ids of e and f, which is zero if either word
+     * was never trained on (-1).
+     */
+    private double getTransProb(int englishId, int frenchId) {
+        if (englishId < 0 || frenchId < 0) {
+            return 0.0;
         }
+        return getProb(transProbs, pack(englishId, frenchId));
+    }
 
-//        System.out.println();
+    private static long pack(int englishId, int frenchId) {
+        return ((long) englishId << 32) | frenchId;
+    }
+
+    private static int getEnglishId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int getFrenchId(long key) {
+        return (int) key;
+    }
+
+    private static double getProb(LongCounter[] transProbs, long key) {
+        return transProbs[LongCounter.partition(key, NUM_PARTITIONS)].getCount(key);
+    }
+
+    /**
+     * Runs the tasks on the executor (or on this thread if it is null) and
+     * returns their results in order.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return results;
     }
 }
@@ -3,14 +3,15 @@ package cs224n.wordaligner;
 import cs224n.langmodel.EmpiricalUnigramLanguageModel;
 import cs224n.langmodel.LanguageModel;
 import cs224n.util.Alignment;
+import cs224n.util.ConcurrentCounter;
 import cs224n.util.Counter;
 import cs224n.util.CounterMap;
+import cs224n.util.Pair;
 import cs224n.util.SentencePair;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.*;
 
 //TODO: need to account for sign of buckets
 //TODO: sure word vs possible word probabilities
@@ -21,6 +22,8 @@ public class ModelTwoWordAligner implements WordAligner {
     private static final double NULL_MASS = 0.1;
     private static final double BUCKET_SIZE = 7;
 
+    private static int defaultThreads = Runtime.getRuntime().availableProcessors();
+
     private CounterMap<String, String> transProbMap;
     private Counter<Double> bucketProbCounter;
     private LanguageModel sourceModel;
@@ -112,7 +115,22 @@ public class ModelTwoWordAligner implements WordAligner {
         return getBucket(align.getAlignedTarget(frenchIndex), frenchIndex, englishLength, frenchLength);
     }
 
-    public void train(List<SentencePair> trainingPairs) {
+    /**
+     * Sets the number of threads train() runs the E step on.
+     */
+    public static void setDefaultThreads(int threads) {
+        defaultThreads = threads;
+    }
+
+    /**
+     * Estimates t(f|e) and the bucket probabilities by EM.  In each E step
+     * the sentence pairs are split into one shard per thread, and every
+     * thread adds its expected counts into ConcurrentCounters the threads
+     * share; the M step reads snapshots of them.  Expected counts are
+     * fractional, so the probabilities may differ in their last bits with
+     * the number of threads.
+     */
+    public void train(final List<SentencePair> trainingPairs) {
         transProbMap = new CounterMap<String,String>();
         bucketProbCounter = new Counter<Double>();
 
@@ -146,54 +164,64 @@ public class ModelTwoWordAligner implements WordAligner {
             }
         }
 
-        int n = 40;
-        do {
-            CounterMap<String, String> tCountMap = new CounterMap<String, String>();
-            Counter<String> totalEnglishCounter = new Counter<String>();
-            Set<String> frenchWords = new HashSet<String>();
-            Counter<Double> bucketCounter = new Counter<Double>();
+        ExecutorService executor = null;
+        if (defaultThreads > 1) {
+            executor = Executors.newFixedThreadPool(defaultThreads);
+        }
+        try {
+            int n = 40;
+            do {
+                final ConcurrentCounter<Pair<String, String>> tCounts = new ConcurrentCounter<Pair<String, String>>();
+                final ConcurrentCounter<String> totalEnglishCounts = new ConcurrentCounter<String>();
+                final ConcurrentCounter<Double> bucketCounts = new ConcurrentCounter<Double>();
 
-            for (SentencePair pair : trainingPairs) {
-                List<String> targetWords = pair.getEnglishWords();
-                List<String> sourceWords = pair.getFrenchWords();
-                targetWords.add(NULL_WORD);
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                int numShards = Math.max(1, Math.min(defaultThreads, trainingPairs.size()));
+                for (int shard = 0; shard < numShards; shard++) {
+                    final int from = (int) ((long) trainingPairs.size() * shard / numShards);
+                    final int to = (int) ((long) trainingPairs.size() * (shard + 1) / numShards);
+                    tasks.add(new Callable<Void>() {
+                        public Void call() {
+                            for (SentencePair pair : trainingPairs.subList(from, to)) {
+                                collectCounts(pair, tCounts, totalEnglishCounts, bucketCounts);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(tasks, executor);
 
-//              for (String frenchWord : sourceWords) {
-                for (int frenchIndex = 0; frenchIndex < sourceWords.size(); frenchIndex++) {
-                    String frenchWord = sourceWords.get(frenchIndex);
-                    frenchWords.add(frenchWord);
-//                    System.out.print(frenchWord);
-                    double totalSentenceProb = 0;
-                    for (int englishIndex = 0; englishIndex < targetWords.size(); englishIndex++) {
-                        String englishWord  = targetWords.get(englishIndex);
-                        totalSentenceProb += transProbMap.getCount(englishWord, frenchWord)* bucketProbCounter.getCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()));  // * bucket probability
-                    }
-//                    System.out.println(": " + totalSentenceProb);
-
-//                  for (String englishWord : targetWords) {
-                    for (int englishIndex = 0; englishIndex < targetWords.size(); englishIndex++) {
-                        String englishWord  = targetWords.get(englishIndex);
-                        double tProb = transProbMap.getCount(englishWord, frenchWord) * bucketProbCounter.getCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()));
-                        tCountMap.incrementCount(englishWord, frenchWord, tProb / totalSentenceProb);
-                        totalEnglishCounter.incrementCount(englishWord, tProb / totalSentenceProb);
-                        bucketCounter.incrementCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()), 1.0);
+                Counter<Pair<String, String>> tCountMap = tCounts.snapshot();
+                Counter<String> totalEnglishCounter = totalEnglishCounts.snapshot();
+                Counter<Double> bucketCounter = bucketCounts.snapshot();
+                // Only pairs which co-occur have expected counts, so t(f|e) is
+                // rebuilt from them and every other pair of a counted English
+                // word drops to zero; rows of uncounted words carry over.
+                CounterMap<String, String> nextTransProbMap = new CounterMap<String, String>();
+                for (Pair<String, String> pair : tCountMap.keySet()) {
+                    String englishWord = pair.getFirst();
+                    nextTransProbMap.setCount(englishWord, pair.getSecond(), tCountMap.getCount(pair) / totalEnglishCounter.getCount(englishWord));
+                }
+                for (String englishWord : transProbMap.keySet()) {
+                    if (!totalEnglishCounter.containsKey(englishWord)) {
+                        Counter<String> row = transProbMap.getCounter(englishWord);
+                        for (String frenchWord : row.keySet()) {
+                            nextTransProbMap.setCount(englishWord, frenchWord, row.getCount(frenchWord));
+                        }
                     }
                 }
+                transProbMap = nextTransProbMap;
 
-                targetWords.remove(NULL_WORD);
-            }
-
-            for (String englishWord : totalEnglishCounter.keySet()) {
-                for (String frenchWord : frenchWords) {
-                    transProbMap.setCount(englishWord, frenchWord, tCountMap.getCount(englishWord, frenchWord) / totalEnglishCounter.getCount(englishWord));
+                for (Double bucket : bucketCounter.keySet()) {
+                    bucketProbCounter.setCount(bucket, bucketCounter.getCount(bucket) / bucketCounter.totalCount());
                 }
-            }
 
-            for (Double bucket : bucketCounter.keySet()) {
-                bucketProbCounter.setCount(bucket, bucketCounter.getCount(bucket) / bucketCounter.totalCount());
+            } while (n-- > 0);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
             }
-
-        } while (n-- > 0);
+        }
 
         for (SentencePair pair : trainingPairs) {
             List<String> targetWords = pair.getEnglishWords();
@@ -202,4 +230,62 @@ public class ModelTwoWordAligner implements WordAligner {
 
     }
 
+    /**
+     * Adds the expected counts of one sentence pair, under the current
+     * t(f|e) and bucket probabilities, which the E step only reads.
+     */
+    private void collectCounts(SentencePair pair, ConcurrentCounter<Pair<String, String>> tCounts,
+                               ConcurrentCounter<String> totalEnglishCounts, ConcurrentCounter<Double> bucketCounts) {
+        List<String> targetWords = pair.getEnglishWords();
+        List<String> sourceWords = pair.getFrenchWords();
+        targetWords.add(NULL_WORD);
+
+        for (int frenchIndex = 0; frenchIndex < sourceWords.size(); frenchIndex++) {
+            String frenchWord = sourceWords.get(frenchIndex);
+            double totalSentenceProb = 0;
+            for (int englishIndex = 0; englishIndex < targetWords.size(); englishIndex++) {
+                String englishWord  = targetWords.get(englishIndex);
+                totalSentenceProb += transProbMap.getCount(englishWord, frenchWord)* bucketProbCounter.getCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()));  // * bucket probability
+            }
+
+            for (int englishIndex = 0; englishIndex < targetWords.size(); englishIndex++) {
+                String englishWord  = targetWords.get(englishIndex);
+                double tProb = transProbMap.getCount(englishWord, frenchWord) * bucketProbCounter.getCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()));
+                tCounts.incrementCount(new Pair<String, String>(englishWord, frenchWord), tProb / totalSentenceProb);
+                totalEnglishCounts.incrementCount(englishWord, tProb / totalSentenceProb);
+                bucketCounts.incrementCount(getBucket(englishIndex, frenchIndex, targetWords.size(), sourceWords.size()), 1.0);
+            }
+        }
+
+        targetWords.remove(NULL_WORD);
+    }
+
+    /**
+     * Runs the tasks on the executor (or on this thread if it is null) and
+     * returns their results in order.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+
 }
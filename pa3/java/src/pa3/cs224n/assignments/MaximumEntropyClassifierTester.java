@@ -23,6 +23,7 @@ public class MaximumEntropyClassifierTester {
     public static class Factory <F,L> implements ClassifierFactory<F, L> {
       double sigma;
       int iterations;
+      SymbolIndex<F> featureIndex;
 
       public ProbabilisticClassifier<F, L> trainClassifier(List<LabeledDatum<F, L>> trainingData) {
         // build data encodings so the inner loops can be efficient
@@ -49,7 +50,7 @@ public class MaximumEntropyClassifierTester {
       }
 
       private Encoding<F, L> buildEncoding(List<LabeledDatum<F, L>> data) {
-        Index<F> featureIndex = new Index<F>();
+        SymbolIndex<F> featureIndex = (this.featureIndex != null) ? this.featureIndex : new Index<F>();
         Index<L> labelIndex = new Index<L>();
         for (LabeledDatum<F, L> labeledDatum : data) {
           labelIndex.add(labeledDatum.getLabel());
@@ -81,6 +82,18 @@ public class MaximumEntropyClassifierTester {
         this.sigma = sigma;
         this.iterations = iterations;
       }
+
+      /**
+       * Numbers features by the given index, such as a SymbolTable shared
+       * with the code which extracts them, rather than by a private one.
+       * Every object in the index gets weights, so it should hold few
+       * objects which are not features.  Labels are always numbered
+       * privately, as each one is scored.
+       */
+      public Factory(double sigma, int iterations, SymbolIndex<F> featureIndex) {
+        this(sigma, iterations);
+        this.featureIndex = featureIndex;
+      }
     }
 
     /**
@@ -313,11 +326,12 @@ public class MaximumEntropyClassifierTester {
      * getFeatureIndex() can be used to translate those objects to integer
      * representations: numbers between 0 and getNumLabels() or getNumFeatures()
      * (exclusive).  The inverses of this map are the getLabel() and
-     * getFeature() functions.
+     * getFeature() functions.  Either map may be an Index or a SymbolTable
+     * (see SymbolIndex).
      */
     public static class Encoding <F,L> {
-      Index<F> featureIndex;
-      Index<L> labelIndex;
+      SymbolIndex<F> featureIndex;
+      SymbolIndex<L> labelIndex;
 
       public int getNumFeatures() {
         return featureIndex.size();
@@ -343,7 +357,7 @@ public class MaximumEntropyClassifierTester {
         return labelIndex.get(idx);
       }
 
-      public Encoding(Index<F> featureIndex, Index<L> labelIndex) {
+      public Encoding(SymbolIndex<F> featureIndex, SymbolIndex<L> labelIndex) {
         this.featureIndex = featureIndex;
         this.labelIndex = labelIndex;
       }
@@ -677,8 +691,12 @@ public class MaximumEntropyClassifierTester {
 
   public static ProbabilisticClassifier<String,String> getClassifier(String trainFile) throws IOException {
     List<LabeledDatum<String, String>> trainingData = transformData(loadData(trainFile));
-    MaximumEntropyClassifier.Factory<String, String> maximumEntropyClassifierFactory = new MaximumEntropyClassifier.Factory<String, String>(1.0, 40);
+    // The features are numbered once, as training encodes them; test
+    // features the table does not hold are then looked up, never added.
+    SymbolTable<String> features = new SymbolTable<String>();
+    MaximumEntropyClassifier.Factory<String, String> maximumEntropyClassifierFactory = new MaximumEntropyClassifier.Factory<String, String>(1.0, 40, features);
     ProbabilisticClassifier<String, String> maximumEntropyClassifier = maximumEntropyClassifierFactory.trainClassifier(trainingData);
+    features.freeze();
     return maximumEntropyClassifier;
   }
   
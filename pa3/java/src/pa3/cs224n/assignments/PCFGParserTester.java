@@ -47,8 +47,12 @@ public class PCFGParserTester {
     public void train(List<Tree<String>> trainTrees) {
       // TODO: before you generate your grammar, the training trees
       // need to be binarized so that rules are at most binary
-      lexicon = new Lexicon(trainTrees);
-      grammar = new Grammar(trainTrees);
+      // The lexicon and grammar share one symbol table, so that a tag has
+      // the same id in both, and it is read-only once they are built.
+      SymbolTable<String> symbols = new SymbolTable<String>();
+      lexicon = new Lexicon(trainTrees, symbols);
+      grammar = new Grammar(trainTrees, symbols);
+      symbols.freeze();
     }
     
     public Tree<String> getBestParse(List<String> sentence) {
@@ -251,34 +255,72 @@ public class PCFGParserTester {
   }
 
 
+  /* Returns the id of a symbol, adding it to the index if it is new. */
+  static int getId(SymbolIndex<String> symbols, String symbol) {
+    int id = symbols.addAndGetIndex(symbol);
+    if (id < 0) {
+      throw new IllegalStateException(symbol + " is not in the read-only symbol index");
+    }
+    return id;
+  }
+
+
   // Lexicon ====================================================================
 
   /**
    * Simple default implementation of a lexicon, which scores word,
-   * tag pairs with a smoothed estimate of P(tag|word)/P(tag).
+   * tag pairs with a smoothed estimate of P(tag|word)/P(tag).  Words and
+   * tags are tallied by their ids in a symbol index, which may be a
+   * SymbolTable shared with a Grammar; the scoring methods take either
+   * strings or ids.
    */
   public static class Lexicon {
 
-    CounterMap<String,String> wordToTagCounters = new CounterMap<String, String>();
+    SymbolIndex<String> symbols;
+    List<IntDoubleCounter> wordToTagCounters = new ArrayList<IntDoubleCounter>();
     double totalTokens = 0.0;
     double totalWordTypes = 0.0;
-    Counter<String> tagCounter = new Counter<String>();
-    Counter<String> wordCounter = new Counter<String>();
-    Counter<String> typeTagCounter = new Counter<String>();
+    IntDoubleCounter tagCounter = new IntDoubleCounter();
+    IntDoubleCounter wordCounter = new IntDoubleCounter();
+    IntDoubleCounter typeTagCounter = new IntDoubleCounter();
+    int[] tagIds;
+    Set<String> tags;
 
     public Set<String> getAllTags() {
-      return tagCounter.keySet();
+      return tags;
+    }
+
+    /* Returns the ids of the tags, in increasing order; not to be changed. */
+    public int[] getAllTagIds() {
+      return tagIds;
+    }
+
+    public SymbolIndex<String> getSymbols() {
+      return symbols;
     }
 
     public boolean isKnown(String word) {
-      return wordCounter.keySet().contains(word);
+      return isKnown(symbols.indexOf(word));
+    }
+
+    public boolean isKnown(int word) {
+      return wordCounter.containsKey(word);
     }
 
     /* Returns a smoothed estimate of P(word|tag) */
     public double scoreTagging(String word, String tag) {
+      return scoreTagging(symbols.indexOf(word), symbols.indexOf(tag));
+    }
+
+    /* Returns a smoothed estimate of P(word|tag), given the ids of the
+     * word and tag (-1 for ones not in the symbol index). */
+    public double scoreTagging(int word, int tag) {
       double p_tag = tagCounter.getCount(tag) / totalTokens;
       double c_word = wordCounter.getCount(word);
-      double c_tag_and_word = wordToTagCounters.getCount(word, tag);
+      double c_tag_and_word = 0.0;
+      if (word >= 0 && word < wordToTagCounters.size() && wordToTagCounters.get(word) != null) {
+        c_tag_and_word = wordToTagCounters.get(word).getCount(tag);
+      }
       if (c_word < 10) { // rare or unknown
         c_word += 1.0;
         c_tag_and_word += typeTagCounter.getCount(tag) / totalWordTypes;
@@ -290,18 +332,32 @@ public class PCFGParserTester {
 
     /* Builds a lexicon from the observed tags in a list of training trees. */
     public Lexicon(List<Tree<String>> trainTrees) {
+      this(trainTrees, new Index<String>());
+    }
+
+    /* Builds a lexicon from the observed tags in a list of training trees,
+     * adding the words and tags to the given symbol index. */
+    public Lexicon(List<Tree<String>> trainTrees, SymbolIndex<String> symbols) {
+      this.symbols = symbols;
       for (Tree<String> trainTree : trainTrees) {
         List<String> words = trainTree.getYield();
         List<String> tags = trainTree.getPreTerminalYield();
         for (int position = 0; position < words.size(); position++) {
-          String word = words.get(position);
-          String tag = tags.get(position);
+          int word = getId(symbols, words.get(position));
+          int tag = getId(symbols, tags.get(position));
           tallyTagging(word, tag);
         }
       }
+      tagIds = tagCounter.keys();
+      Arrays.sort(tagIds);
+      tags = new LinkedHashSet<String>();
+      for (int tag : tagIds) {
+        tags.add(symbols.get(tag));
+      }
+      tags = Collections.unmodifiableSet(tags);
     }
 
-    private void tallyTagging(String word, String tag) {
+    private void tallyTagging(int word, int tag) {
       if (! isKnown(word)) {
         totalWordTypes += 1.0;
         typeTagCounter.incrementCount(tag, 1.0);
@@ -309,7 +365,13 @@ public class PCFGParserTester {
       totalTokens += 1.0;
       tagCounter.incrementCount(tag, 1.0);
       wordCounter.incrementCount(word, 1.0);
-      wordToTagCounters.incrementCount(word, tag, 1.0);
+      while (wordToTagCounters.size() <= word) {
+        wordToTagCounters.add(null);
+      }
+      if (wordToTagCounters.get(word) == null) {
+        wordToTagCounters.set(word, new IntDoubleCounter());
+      }
+      wordToTagCounters.get(word).incrementCount(tag, 1.0);
     }
   }
 
@@ -320,39 +382,56 @@ public class PCFGParserTester {
    * Simple implementation of a PCFG grammar, offering the ability to
    * look up rules by their child symbols.  Rule probability estimates
    * are just relative frequency estimates off of training trees.
+   * Symbols are tallied, and rules indexed, by their ids in a symbol
+   * index, which may be a SymbolTable shared with a Lexicon; rules carry
+   * the ids of their symbols, and can be looked up by strings or ids.
    */
   public static class Grammar {
 
-    Map<String, List<BinaryRule>> binaryRulesByLeftChild = 
-      new HashMap<String, List<BinaryRule>>();
-    Map<String, List<BinaryRule>> binaryRulesByRightChild = 
-      new HashMap<String, List<BinaryRule>>();
-    Map<String, List<UnaryRule>> unaryRulesByChild = 
-      new HashMap<String, List<UnaryRule>>();
+    SymbolIndex<String> symbols;
+    List<List<BinaryRule>> binaryRulesByLeftChild = new ArrayList<List<BinaryRule>>();
+    List<List<BinaryRule>> binaryRulesByRightChild = new ArrayList<List<BinaryRule>>();
+    List<List<UnaryRule>> unaryRulesByChild = new ArrayList<List<UnaryRule>>();
 
     /* Rules in grammar are indexed by child for easy access when
      * doing bottom up parsing. */
     public List<BinaryRule> getBinaryRulesByLeftChild(String leftChild) {
-      return CollectionUtils.getValueList(binaryRulesByLeftChild, leftChild);
+      return getBinaryRulesByLeftChild(symbols.indexOf(leftChild));
     }
 
     public List<BinaryRule> getBinaryRulesByRightChild(String rightChild) {
-      return CollectionUtils.getValueList(binaryRulesByRightChild, rightChild);
+      return getBinaryRulesByRightChild(symbols.indexOf(rightChild));
     }
 
     public List<UnaryRule> getUnaryRulesByChild(String child) {
-      return CollectionUtils.getValueList(unaryRulesByChild, child);
+      return getUnaryRulesByChild(symbols.indexOf(child));
+    }
+
+    public List<BinaryRule> getBinaryRulesByLeftChild(int leftChild) {
+      return getRules(binaryRulesByLeftChild, leftChild);
+    }
+
+    public List<BinaryRule> getBinaryRulesByRightChild(int rightChild) {
+      return getRules(binaryRulesByRightChild, rightChild);
+    }
+
+    public List<UnaryRule> getUnaryRulesByChild(int child) {
+      return getRules(unaryRulesByChild, child);
+    }
+
+    public SymbolIndex<String> getSymbols() {
+      return symbols;
     }
 
     public String toString() {
       StringBuilder sb = new StringBuilder();
       List<String> ruleStrings = new ArrayList<String>();
-      for (String leftChild : binaryRulesByLeftChild.keySet()) {
+      for (int leftChild = 0; leftChild < binaryRulesByLeftChild.size(); leftChild++) {
         for (BinaryRule binaryRule : getBinaryRulesByLeftChild(leftChild)) {
           ruleStrings.add(binaryRule.toString());
         }
       }
-      for (String child : unaryRulesByChild.keySet()) {
+      for (int child = 0; child < unaryRulesByChild.size(); child++) {
         for (UnaryRule unaryRule : getUnaryRulesByChild(child)) {
           ruleStrings.add(unaryRule.toString());
         }
@@ -365,56 +444,82 @@ public class PCFGParserTester {
     }
 
     private void addBinary(BinaryRule binaryRule) {
-      CollectionUtils.addToValueList(binaryRulesByLeftChild, 
-                                     binaryRule.getLeftChild(), binaryRule);
-      CollectionUtils.addToValueList(binaryRulesByRightChild, 
-                                     binaryRule.getRightChild(), binaryRule);
+      binaryRule.parentId = getId(symbols, binaryRule.getParent());
+      binaryRule.leftChildId = getId(symbols, binaryRule.getLeftChild());
+      binaryRule.rightChildId = getId(symbols, binaryRule.getRightChild());
+      addRule(binaryRulesByLeftChild, binaryRule.leftChildId, binaryRule);
+      addRule(binaryRulesByRightChild, binaryRule.rightChildId, binaryRule);
     }
 
     private void addUnary(UnaryRule unaryRule) {
-      CollectionUtils.addToValueList(unaryRulesByChild, 
-                                     unaryRule.getChild(), unaryRule);
+      unaryRule.parentId = getId(symbols, unaryRule.getParent());
+      unaryRule.childId = getId(symbols, unaryRule.getChild());
+      addRule(unaryRulesByChild, unaryRule.childId, unaryRule);
+    }
+
+    private static <R> void addRule(List<List<R>> rulesBySymbol, int symbol, R rule) {
+      while (rulesBySymbol.size() <= symbol) {
+        rulesBySymbol.add(null);
+      }
+      if (rulesBySymbol.get(symbol) == null) {
+        rulesBySymbol.set(symbol, new ArrayList<R>());
+      }
+      rulesBySymbol.get(symbol).add(rule);
+    }
+
+    private static <R> List<R> getRules(List<List<R>> rulesBySymbol, int symbol) {
+      if (symbol < 0 || symbol >= rulesBySymbol.size() || rulesBySymbol.get(symbol) == null) {
+        return Collections.emptyList();
+      }
+      return rulesBySymbol.get(symbol);
     }
 
     /* A builds PCFG using the observed counts of binary and unary
      * productions in the training trees to estimate the probabilities
      * for those rules.  */ 
     public Grammar(List<Tree<String>> trainTrees) {
-      Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
-      Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
-      Counter<String> symbolCounter = new Counter<String>();
+      this(trainTrees, new Index<String>());
+    }
+
+    /* Builds the PCFG as above, adding its symbols to the given symbol
+     * index. */
+    public Grammar(List<Tree<String>> trainTrees, SymbolIndex<String> symbols) {
+      this.symbols = symbols;
+      ObjectDoubleCounter<UnaryRule> unaryRuleCounter = new ObjectDoubleCounter<UnaryRule>();
+      ObjectDoubleCounter<BinaryRule> binaryRuleCounter = new ObjectDoubleCounter<BinaryRule>();
+      IntDoubleCounter symbolCounter = new IntDoubleCounter();
       for (Tree<String> trainTree : trainTrees) {
         tallyTree(trainTree, symbolCounter, unaryRuleCounter, binaryRuleCounter);
       }
       for (UnaryRule unaryRule : unaryRuleCounter.keySet()) {
+        addUnary(unaryRule);
         double unaryProbability = 
           unaryRuleCounter.getCount(unaryRule) / 
-          symbolCounter.getCount(unaryRule.getParent());
+          symbolCounter.getCount(unaryRule.parentId);
         unaryRule.setScore(unaryProbability);
-        addUnary(unaryRule);
       }
       for (BinaryRule binaryRule : binaryRuleCounter.keySet()) {
+        addBinary(binaryRule);
         double binaryProbability = 
           binaryRuleCounter.getCount(binaryRule) / 
-          symbolCounter.getCount(binaryRule.getParent());
+          symbolCounter.getCount(binaryRule.parentId);
         binaryRule.setScore(binaryProbability);
-        addBinary(binaryRule);
       }
     }
 
-    private void tallyTree(Tree<String> tree, Counter<String> symbolCounter,
-                           Counter<UnaryRule> unaryRuleCounter, 
-                           Counter<BinaryRule> binaryRuleCounter) {
+    private void tallyTree(Tree<String> tree, IntDoubleCounter symbolCounter,
+                           ObjectDoubleCounter<UnaryRule> unaryRuleCounter, 
+                           ObjectDoubleCounter<BinaryRule> binaryRuleCounter) {
       if (tree.isLeaf()) return;
       if (tree.isPreTerminal()) return;
       if (tree.getChildren().size() == 1) {
         UnaryRule unaryRule = makeUnaryRule(tree);
-        symbolCounter.incrementCount(tree.getLabel(), 1.0);
+        symbolCounter.incrementCount(getId(symbols, tree.getLabel()), 1.0);
         unaryRuleCounter.incrementCount(unaryRule, 1.0);
       }
       if (tree.getChildren().size() == 2) {
         BinaryRule binaryRule = makeBinaryRule(tree);
-        symbolCounter.incrementCount(tree.getLabel(), 1.0);
+        symbolCounter.incrementCount(getId(symbols, tree.getLabel()), 1.0);
         binaryRuleCounter.incrementCount(binaryRule, 1.0);
       }
       if (tree.getChildren().size() < 1 || tree.getChildren().size() > 2) {
@@ -444,6 +549,9 @@ public class PCFGParserTester {
     String parent;
     String leftChild;
     String rightChild;
+    int parentId = -1;
+    int leftChildId = -1;
+    int rightChildId = -1;
     double score;
 
     public String getParent() {
@@ -458,6 +566,20 @@ public class PCFGParserTester {
       return rightChild;
     }
 
+    /* The ids of the symbols in the symbol index of the Grammar the rule
+     * was added to, or -1 before then. */
+    public int getParentId() {
+      return parentId;
+    }
+
+    public int getLeftChildId() {
+      return leftChildId;
+    }
+
+    public int getRightChildId() {
+      return rightChildId;
+    }
+
     public double getScore() {
       return score;
     }
@@ -509,6 +631,8 @@ public class PCFGParserTester {
 
     String parent;
     String child;
+    int parentId = -1;
+    int childId = -1;
     double score;
 
     public String getParent() {
@@ -519,6 +643,16 @@ public class PCFGParserTester {
       return child;
     }
 
+    /* The ids of the symbols in the symbol index of the Grammar the rule
+     * was added to, or -1 before then. */
+    public int getParentId() {
+      return parentId;
+    }
+
+    public int getChildId() {
+      return childId;
+    }
+
     public double getScore() {
       return score;
     }
@@ -0,0 +1,323 @@
+package cs224n.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A map from objects to doubles which many threads can increment at once,
+ * such as the expected counts of a parallel E step.  Keys are spread over
+ * lock stripes by hash; each stripe is an open-addressing (linear probing)
+ * table whose writers take the stripe's lock, so threads counting keys of
+ * different stripes do not contend.  getCount() takes no lock: a stripe's
+ * arrays are atomic, and a rehashed table is only published once it is
+ * complete, so a reader sees each count either before or after any
+ * increment of it.  snapshot() copies the counts into a read-only Counter,
+ * for the code which uses the result.  Keys can not be removed.
+ */
+public class ConcurrentCounter <E> {
+
+  private static final double MAX_LOAD_FACTOR = 0.75;
+
+  /**
+   * Stands for the null key, since a null slot is an empty one.
+   */
+  private static final Object NULL_KEY = new Object();
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  /**
+   * One lock stripe.  Its table is replaced, never resized in place, so a
+   * reader holding the old table still sees complete counts.
+   */
+  private static final class Stripe extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
+
+    volatile Table table = new Table(16);
+    int size;
+    volatile double totalCount;
+  }
+
+  private static final class Table {
+    final AtomicReferenceArray<Object> keys;
+    final AtomicLongArray counts;
+    final int mask;
+
+    Table(int capacity) {
+      keys = new AtomicReferenceArray<Object>(capacity);
+      counts = new AtomicLongArray(capacity);
+      mask = capacity - 1;
+    }
+
+    /**
+     * Returns the slot holding the (masked) key, or the empty slot where it
+     * would go.
+     */
+    int find(Object key, int hash) {
+      int slot = hash & mask;
+      Object stored;
+      while ((stored = keys.get(slot)) != null && stored != key && !stored.equals(key)) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    double getCount(int slot) {
+      return Double.longBitsToDouble(counts.get(slot));
+    }
+
+    void setCount(int slot, double count) {
+      counts.set(slot, Double.doubleToRawLongBits(count));
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns whether the counter contains the given key.  Takes no lock.
+   */
+  public boolean containsKey(E key) {
+    Object masked = mask(key);
+    int hash = hash(masked);
+    Table table = stripeOf(hash).table;
+    return table.keys.get(table.find(masked, hash)) != null;
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.  Takes no lock.
+   */
+  public double getCount(E key) {
+    Object masked = mask(key);
+    int hash = hash(masked);
+    Table table = stripeOf(hash).table;
+    int slot = table.find(masked, hash);
+    return table.keys.get(slot) != null ? table.getCount(slot) : 0.0;
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(E key, double count) {
+    Object masked = mask(key);
+    int hash = hash(masked);
+    Stripe stripe = stripeOf(hash);
+    stripe.lock();
+    try {
+      int slot = insert(stripe, masked, hash);
+      Table table = stripe.table;
+      stripe.totalCount += count - table.getCount(slot);
+      table.setCount(slot, count);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Increment a key's count by the given amount, returning the new count.
+   */
+  public double incrementCount(E key, double increment) {
+    Object masked = mask(key);
+    int hash = hash(masked);
+    Stripe stripe = stripeOf(hash);
+    stripe.lock();
+    try {
+      int slot = insert(stripe, masked, hash);
+      Table table = stripe.table;
+      double count = table.getCount(slot) + increment;
+      table.setCount(slot, count);
+      stripe.totalCount += increment;
+      return count;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Increment each element in a given collection by a given amount.
+   */
+  public void incrementAll(Collection<? extends E> collection, double count) {
+    for (E key : collection) {
+      incrementCount(key, count);
+    }
+  }
+
+  public <T extends E> void incrementAll(Counter<T> counter) {
+    for (T key : counter.keySet()) {
+      incrementCount(key, counter.getCount(key));
+    }
+  }
+
+  /**
+   * The number of entries in the counter.  Entries added while this is
+   * called may or may not be included.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      stripe.lock();
+      try {
+        size += stripe.size;
+      } finally {
+        stripe.unlock();
+      }
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the total of all counts in the counter.  The stripes keep their
+   * totals as counts change, so this is linear in the number of stripes,
+   * not of keys; increments made while it is called may or may not be
+   * included.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (Stripe stripe : stripes) {
+      total += stripe.totalCount;
+    }
+    return total;
+  }
+
+  /**
+   * Copies the counts into a new, read-only Counter, whose setCount() and
+   * incrementCount() throw UnsupportedOperationException, as does removing
+   * from its keySet().  Every stripe is locked while it is copied, so the
+   * copy is a consistent view: it holds all of any increment finished
+   * before the call, and none of any begun after it.
+   */
+  @SuppressWarnings("unchecked")
+  public Counter<E> snapshot() {
+    Counter<E> counter = new Counter<E>();
+    for (Stripe stripe : stripes) {
+      stripe.lock();
+    }
+    try {
+      for (Stripe stripe : stripes) {
+        Table table = stripe.table;
+        for (int slot = 0; slot <= table.mask; slot++) {
+          Object key = table.keys.get(slot);
+          if (key != null) {
+            counter.setCount(key == NULL_KEY ? null : (E) key, table.getCount(slot));
+          }
+        }
+      }
+    } finally {
+      for (Stripe stripe : stripes) {
+        stripe.unlock();
+      }
+    }
+    counter.entries = Collections.unmodifiableMap(counter.entries);
+    return counter;
+  }
+
+  public String toString() {
+    return snapshot().toString();
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static Object mask(Object key) {
+    return key == null ? NULL_KEY : key;
+  }
+
+  /**
+   * Spreads the hash code over all bits: the high ones pick the stripe and
+   * the low ones the slot within it.
+   */
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripeOf(int hash) {
+    return stripes[(int) ((hash & 0xffffffffL) >>> stripeShift)];
+  }
+
+  /**
+   * Returns the slot of the key in the stripe's table, adding the key with
+   * a count of zero if it is missing.  The caller holds the stripe's lock.
+   */
+  private static int insert(Stripe stripe, Object key, int hash) {
+    Table table = stripe.table;
+    int slot = table.find(key, hash);
+    if (table.keys.get(slot) == null) {
+      if (stripe.size + 1 > MAX_LOAD_FACTOR * (table.mask + 1)) {
+        table = rehash(table, 2 * (table.mask + 1));
+        stripe.table = table;
+        slot = table.find(key, hash);
+      }
+      table.keys.set(slot, key);
+      stripe.size++;
+    }
+    return slot;
+  }
+
+  private static Table rehash(Table table, int newCapacity) {
+    Table newTable = new Table(newCapacity);
+    for (int slot = 0; slot <= table.mask; slot++) {
+      Object key = table.keys.get(slot);
+      if (key != null) {
+        int newSlot = newTable.find(key, hash(key));
+        newTable.setCount(newSlot, table.getCount(slot));
+        newTable.keys.set(newSlot, key);
+      }
+    }
+    return newTable;
+  }
+
+  /**
+   * Constructs a counter with enough lock stripes for the processors of
+   * this machine.
+   */
+  public ConcurrentCounter() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs a counter with at least the given number of lock stripes,
+   * rounded up to a power of two.
+   */
+  public ConcurrentCounter(int numStripes) {
+    int stripeBits = 0;
+    while ((1 << stripeBits) < numStripes && stripeBits < 16) {
+      stripeBits++;
+    }
+    stripes = new Stripe[1 << stripeBits];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    stripeShift = 32 - stripeBits;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    final ConcurrentCounter<String> counter = new ConcurrentCounter<String>();
+    final String[] words = {"planets", "suns", "aliens", "comets"};
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            counter.incrementCount(words[(i + offset) % words.length], 1.0);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    System.out.println(counter);
+    System.out.println("Count of planets: " + counter.getCount("planets"));
+    System.out.println("Total: " + counter.totalCount());
+    System.out.println("Size: " + counter.size());
+  }
+}
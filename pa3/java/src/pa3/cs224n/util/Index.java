@@ -9,7 +9,7 @@ import java.util.*;
  *
  * @author Dan Klein
  */
-public class Index <E> extends AbstractList<E> {
+public class Index <E> extends AbstractList<E> implements SymbolIndex<E> {
   List<E> objects;
   Map<E, Integer> indexes;
 
@@ -62,6 +62,19 @@ public class Index <E> extends AbstractList<E> {
     return true;
   }
 
+  /**
+   * Returns the index of the given object, adding it to the indexer first
+   * if it is not present.
+   */
+  public int addAndGetIndex(E e) {
+    Integer index = indexes.get(e);
+    if (index != null) {
+      return index;
+    }
+    add(e);
+    return size() - 1;
+  }
+
   public Index() {
     objects = new ArrayList<E>();
     indexes = new HashMap<E, Integer>();
@@ -1,6 +1,7 @@
 package cs224n.util;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Serializable;
 
 /**
@@ -38,6 +39,12 @@ public abstract class MapFactory<K,V> implements Serializable {
     }
   }
 
+  public static class ConcurrentHashMapFactory<K,V> extends MapFactory<K,V> {
+    public Map<K,V> buildMap() {
+      return new ConcurrentHashMap<K,V>();
+    }
+  }
+
   public abstract Map<K,V> buildMap();
 }
 
@@ -1,33 +1,36 @@
 package cs224n.util;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.List;
-import java.util.ArrayList;
 import java.io.Serializable;
 
 /**
- * A priority queue based on a binary heap.  Note that this implementation does
- * not efficiently support containment, removal, or element promotion
- * (decreaseKey) -- these methods are therefore not yet implemented.
+ * A priority queue based on a binary heap.  Elements and priorities are held
+ * in parallel arrays, and the heap is restored by loops rather than
+ * recursion.  Removal of arbitrary elements is not supported, but an
+ * element's priority can be changed in place with decreaseKey().
  *
  * @author Dan Klein
  */
 public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
   int size;
   int capacity;
-  List<E> elements;
+  Object[] elements;
   double[] priorities;
+  /**
+   * The heap position of each element, built by the first call of
+   * decreaseKey() and kept up to date from then on, so queues which never
+   * change priorities do not pay for it.  It is a hint: each position is
+   * checked, and an element added more than once is found by a scan.
+   */
+  transient Map<E, Integer> positions;
 
   protected void grow(int newCapacity) {
-    List<E> newElements = new ArrayList<E>(newCapacity);
-    double[] newPriorities = new double[newCapacity];
-    if (size > 0) {
-      newElements.addAll(elements);
-      System.arraycopy(priorities, 0, newPriorities, 0, priorities.length);
-    }
-    elements = newElements;
-    priorities = newPriorities;
+    elements = elements == null ? new Object[newCapacity] : Arrays.copyOf(elements, newCapacity);
+    priorities = priorities == null ? new double[newCapacity] : Arrays.copyOf(priorities, newCapacity);
     capacity = newCapacity;
   }
 
@@ -43,51 +46,70 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
     return 2 * loc + 2;
   }
 
+  /**
+   * Moves the element at loc up while it outranks its parent.  The element
+   * is held aside and its ancestors shifted down, rather than swapped.
+   */
   protected void heapifyUp(int loc) {
-    if (loc == 0) return;
-    int parent = parent(loc);
-    if (priorities[loc] > priorities[parent]) {
-      swap(loc, parent);
-      heapifyUp(parent);
+    Object element = elements[loc];
+    double priority = priorities[loc];
+    while (loc > 0) {
+      int parent = parent(loc);
+      if (!(priority > priorities[parent])) break;
+      place(loc, elements[parent], priorities[parent]);
+      loc = parent;
     }
+    place(loc, element, priority);
   }
 
+  /**
+   * Moves the element at loc down while a child outranks it.
+   */
   protected void heapifyDown(int loc) {
-    int max = loc;
-    int leftChild = leftChild(loc);
-    if (leftChild < size()) {
-      double priority = priorities[loc];
-      double leftChildPriority = priorities[leftChild];
-      if (leftChildPriority > priority)
-        max = leftChild;
-      int rightChild = rightChild(loc);
-      if (rightChild < size()) {
-        double rightChildPriority = priorities[rightChild(loc)];
-        if (rightChildPriority > priority && rightChildPriority > leftChildPriority)
-          max = rightChild;
+    Object element = elements[loc];
+    double priority = priorities[loc];
+    while (true) {
+      int max = leftChild(loc);
+      if (max >= size) break;
+      int rightChild = max + 1;
+      if (rightChild < size && priorities[rightChild] > priorities[max]) {
+        max = rightChild;
       }
+      if (!(priorities[max] > priority)) break;
+      place(loc, elements[max], priorities[max]);
+      loc = max;
     }
-    if (max == loc)
-      return;
-    swap(loc, max);
-    heapifyDown(max);
+    place(loc, element, priority);
   }
 
   protected void swap(int loc1, int loc2) {
+    Object tempElement = elements[loc1];
     double tempPriority = priorities[loc1];
-    E tempElement = elements.get(loc1);
-    priorities[loc1] = priorities[loc2];
-    elements.set(loc1, elements.get(loc2));
-    priorities[loc2] = tempPriority;
-    elements.set(loc2, tempElement);
+    place(loc1, elements[loc2], priorities[loc2]);
+    place(loc2, tempElement, tempPriority);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void place(int loc, Object element, double priority) {
+    elements[loc] = element;
+    priorities[loc] = priority;
+    if (positions != null) {
+      positions.put((E) element, loc);
+    }
   }
 
   protected void removeFirst() {
     if (size < 1) return;
-    swap(0, size - 1);
+    Object first = elements[0];
     size--;
-    elements.remove(size);
-    heapifyDown(0);
+    if (positions != null) {
+      positions.remove(first);
+    }
+    if (size > 0) {
+      place(0, elements[size], priorities[size]);
+      heapifyDown(0);
+    }
+    elements[size] = null;
   }
 
   /**
@@ -117,9 +139,10 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
   /**
    * Returns the highest-priority element in the queue, but does not pop it.
    */
+  @SuppressWarnings("unchecked")
   public E peek() {
     if (size() > 0)
-      return elements.get(0);
+      return (E) elements[0];
     throw new NoSuchElementException();
   }
 
@@ -157,13 +180,63 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
     if (size == capacity) {
       grow(2 * capacity + 1);
     }
-    elements.add(key);
-    priorities[size] = priority;
+    place(size, key, priority);
     heapifyUp(size);
     size++;
     return true;
   }
 
+  /**
+   * Changes the priority of a key in the queue, moving it up or down the
+   * heap, in O(log n) time once the queue has indexed its elements (which
+   * the first call does).  This is the decreaseKey of a min-heap; as this
+   * queue pops the highest priority first, a promotion raises the priority.
+   * If the key was added more than once, one of its instances is changed.
+   *
+   * @return false, changing nothing, if the key is not in the queue
+   */
+  public boolean decreaseKey(E key, double priority) {
+    int loc = find(key);
+    if (loc < 0) return false;
+    double oldPriority = priorities[loc];
+    priorities[loc] = priority;
+    if (priority > oldPriority) {
+      heapifyUp(loc);
+    } else {
+      heapifyDown(loc);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the position of the key in the heap, or -1 if it is not in the
+   * queue.
+   */
+  @SuppressWarnings("unchecked")
+  private int find(E key) {
+    if (positions == null) {
+      positions = new HashMap<E, Integer>();
+      for (int loc = 0; loc < size; loc++) {
+        positions.put((E) elements[loc], loc);
+      }
+    }
+    Integer loc = positions.get(key);
+    if (loc != null && loc < size && equal(elements[loc], key)) {
+      return loc;
+    }
+    for (int i = 0; i < size; i++) {
+      if (equal(elements[i], key)) {
+        positions.put(key, i);
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean equal(Object element, Object key) {
+    return element == null ? key == null : element.equals(key);
+  }
+
   /**
    * Returns a representation of the queue in decreasing priority order.
    */
@@ -204,13 +277,11 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
    * will be the sum of the instances' priorities.
    *
    */
-  public Counter asCounter() {
-    PriorityQueue<E> pq = clone();
+  @SuppressWarnings("unchecked")
+  public Counter<E> asCounter() {
     Counter<E> counter = new Counter<E>();
-    while (pq.hasNext()) {
-      double priority = pq.getPriority();
-      E element = pq.next();
-      counter.incrementCount(element, priority);
+    for (int loc = 0; loc < size; loc++) {
+      counter.incrementCount((E) elements[loc], priorities[loc]);
     }
     return counter;
   }
@@ -220,15 +291,11 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
    * affect modifications to the other.
    */
   public PriorityQueue<E> clone() {
-    PriorityQueue<E> clonePQ = new PriorityQueue<E>();
+    PriorityQueue<E> clonePQ = new PriorityQueue<E>(0);
     clonePQ.size = size;
     clonePQ.capacity = capacity;
-    clonePQ.elements = new ArrayList<E>(capacity);
-    clonePQ.priorities = new double[capacity];
-    if (size() > 0) {
-      clonePQ.elements.addAll(elements);
-      System.arraycopy(priorities, 0, clonePQ.priorities, 0, size());
-    }
+    clonePQ.elements = elements.clone();
+    clonePQ.priorities = priorities.clone();
     return clonePQ;
   }
 
@@ -256,6 +323,10 @@ public class PriorityQueue <E> implements Iterator<E>, Serializable, Cloneable {
     pq.add("two",2);
     System.out.println(pq);
     System.out.println(pq.toString(2));
+    pq.decreaseKey("two", 4);
+    System.out.println(pq);
+    pq.decreaseKey("three", 0.5);
+    System.out.println(pq);
     while (pq.hasNext()) {
       System.out.println(pq.next());
     }
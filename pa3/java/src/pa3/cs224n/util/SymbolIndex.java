@@ -0,0 +1,27 @@
+package cs224n.util;
+
+import java.util.List;
+
+/**
+ * A two-way map between objects and the contiguous integers from 0 to the
+ * number of objects, looked up in constant time both ways: get(i) gives
+ * object i, and indexOf(object) the index of an object.  An Index is one
+ * for a single thread; a SymbolTable is one which many threads, and
+ * several subsystems, may share.  Code which only looks objects up and adds
+ * them can take either.
+ */
+public interface SymbolIndex <E> extends List<E> {
+
+  /**
+   * Returns the index of the given object, or -1 if the object is not
+   * present.
+   */
+  int indexOf(Object o);
+
+  /**
+   * Returns the index of the given object, adding it first if it is not
+   * present.  A read-only index returns -1 for an object which is not
+   * present.
+   */
+  int addAndGetIndex(E e);
+}
@@ -0,0 +1,87 @@
+package cs224n.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the k keys of highest priority offered to it, in a min-heap of at
+ * most k entries over parallel arrays, so picking the top k of n keys takes
+ * O(n log k) time and O(k) space rather than the O(n log n) time of popping
+ * them from a full PriorityQueue.  Ties are broken arbitrarily.
+ */
+class TopK <E> {
+  private final Object[] keys;
+  private final double[] priorities;
+  private int size;
+
+  TopK(int k) {
+    if (k < 0) {
+      throw new IllegalArgumentException("Negative k: " + k);
+    }
+    keys = new Object[k];
+    priorities = new double[k];
+  }
+
+  /**
+   * Offers a key, which is kept if it is among the k highest so far.
+   */
+  void add(E key, double priority) {
+    if (size < keys.length) {
+      int loc = size++;
+      while (loc > 0) {
+        int parent = (loc - 1) / 2;
+        if (!(priority < priorities[parent])) break;
+        keys[loc] = keys[parent];
+        priorities[loc] = priorities[parent];
+        loc = parent;
+      }
+      keys[loc] = key;
+      priorities[loc] = priority;
+    } else if (size > 0 && priority > priorities[0]) {
+      siftDown(key, priority, size);
+    }
+  }
+
+  /**
+   * Puts the key at the root, replacing the minimum, and restores the heap
+   * of the first n entries.
+   */
+  private void siftDown(Object key, double priority, int n) {
+    int loc = 0;
+    while (true) {
+      int min = 2 * loc + 1;
+      if (min >= n) break;
+      if (min + 1 < n && priorities[min + 1] < priorities[min]) {
+        min++;
+      }
+      if (!(priorities[min] < priority)) break;
+      keys[loc] = keys[min];
+      priorities[loc] = priorities[min];
+      loc = min;
+    }
+    keys[loc] = key;
+    priorities[loc] = priority;
+  }
+
+  /**
+   * Returns the kept keys in decreasing order of priority, emptying this.
+   */
+  @SuppressWarnings("unchecked")
+  List<E> toList() {
+    // Heap sort: each minimum moves to the end of the shrinking heap, so the
+    // arrays end up in decreasing order.
+    for (int n = size - 1; n > 0; n--) {
+      Object minKey = keys[0];
+      double minPriority = priorities[0];
+      siftDown(keys[n], priorities[n], n);
+      keys[n] = minKey;
+      priorities[n] = minPriority;
+    }
+    List<E> list = new ArrayList<E>(size);
+    for (int i = 0; i < size; i++) {
+      list.add((E) keys[i]);
+    }
+    size = 0;
+    return list;
+  }
+}